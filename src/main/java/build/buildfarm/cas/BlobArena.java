@@ -0,0 +1,177 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap storage for blob content, in direct slabs divided into slots of
+ * power of two size classes.
+ *
+ * A slab serves a single size class, and is released once all of its slots
+ * are free and another slab of the class has room, so that memory follows
+ * the distribution of retained blob sizes. Blobs larger than a slab are
+ * given a direct buffer of their own.
+ */
+class BlobArena {
+  static final int MIN_SLOT_SIZE = 256;
+  static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+  private static final int SIZE_CLASSES =
+      Integer.numberOfTrailingZeros(SLAB_SIZE) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE) + 1;
+
+  private static final class Slab {
+    private final ByteBuffer buffer;
+    private final int slotSize;
+    // guarded by the arena, a stack of free slot indices
+    private final int[] freeSlots;
+    private int freeCount;
+
+    Slab(int slotSize) {
+      this.slotSize = slotSize;
+      buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+      freeCount = SLAB_SIZE / slotSize;
+      freeSlots = new int[freeCount];
+      for (int i = 0; i < freeCount; i++) {
+        freeSlots[i] = freeCount - 1 - i;
+      }
+    }
+
+    int take() {
+      return freeSlots[--freeCount] * slotSize;
+    }
+
+    void give(int offset) {
+      freeSlots[freeCount++] = offset / slotSize;
+    }
+
+    boolean isFull() {
+      return freeCount == 0;
+    }
+
+    boolean isEmpty() {
+      return freeCount == freeSlots.length;
+    }
+  }
+
+  /** a region of the arena holding the content of a single blob */
+  static final class Slot {
+    private final Slab slab; // null for a dedicated buffer
+    private final int offset;
+    private final ByteBuffer buffer;
+
+    private Slot(Slab slab, int offset, ByteBuffer buffer) {
+      this.slab = slab;
+      this.offset = offset;
+      this.buffer = buffer;
+    }
+
+    /** the reserved capacity of the slot */
+    int capacity() {
+      return slab == null ? buffer.capacity() : slab.slotSize;
+    }
+
+    /** copy the content of the slot onto the heap */
+    ByteString read() {
+      return ByteString.copyFrom(buffer.duplicate());
+    }
+  }
+
+  // guarded by this, slabs of each size class with free slots
+  private final List<List<Slab>> availableSlabs = new ArrayList<>(SIZE_CLASSES);
+  private long reservedBytes = 0;
+
+  BlobArena() {
+    for (int i = 0; i < SIZE_CLASSES; i++) {
+      availableSlabs.add(new ArrayList<>());
+    }
+  }
+
+  private static int sizeClass(int size) {
+    int slotSize = Math.max(MIN_SLOT_SIZE, Integer.highestOneBit(size - 1) << 1);
+    return Integer.numberOfTrailingZeros(slotSize) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+  }
+
+  /** the capacity which would be reserved for content of size */
+  static long capacityFor(long size) {
+    if (size > SLAB_SIZE) {
+      return size;
+    }
+    return MIN_SLOT_SIZE << sizeClass((int) size);
+  }
+
+  /** store content in a newly allocated slot */
+  Slot allocate(ByteString content) {
+    int size = content.size();
+    Slot slot;
+    if (size > SLAB_SIZE) {
+      slot = new Slot(null, 0, ByteBuffer.allocateDirect(size));
+      synchronized (this) {
+        reservedBytes += size;
+      }
+    } else {
+      slot = allocateSlot(sizeClass(size), size);
+    }
+    content.copyTo(slot.buffer.duplicate());
+    return slot;
+  }
+
+  private synchronized Slot allocateSlot(int sizeClass, int size) {
+    List<Slab> slabs = availableSlabs.get(sizeClass);
+    if (slabs.isEmpty()) {
+      slabs.add(new Slab(MIN_SLOT_SIZE << sizeClass));
+      reservedBytes += SLAB_SIZE;
+    }
+    Slab slab = slabs.get(slabs.size() - 1);
+    int offset = slab.take();
+    if (slab.isFull()) {
+      slabs.remove(slabs.size() - 1);
+    }
+    ByteBuffer buffer = slab.buffer.duplicate();
+    buffer.position(offset);
+    buffer.limit(offset + size);
+    return new Slot(slab, offset, buffer.slice());
+  }
+
+  /** return a slot to the arena, its content may not be read afterwards */
+  synchronized void free(Slot slot) {
+    if (slot.slab == null) {
+      reservedBytes -= slot.capacity();
+      return;
+    }
+    Slab slab = slot.slab;
+    List<Slab> slabs = availableSlabs.get(sizeClass(slab.slotSize));
+    boolean wasFull = slab.isFull();
+    checkState(!slab.isEmpty(), "slot freed twice");
+    slab.give(slot.offset);
+    if (wasFull) {
+      slabs.add(slab);
+    } else if (slab.isEmpty() && slabs.size() > 1) {
+      // release the slab, retaining another with room for this class
+      slabs.remove(slab);
+      reservedBytes -= SLAB_SIZE;
+    }
+  }
+
+  /** direct memory held by slabs and dedicated buffers */
+  synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+}
@@ -17,6 +17,7 @@ package build.buildfarm.cas;
 import static build.buildfarm.common.grpc.Retrier.NO_RETRIES;
 import static com.google.common.collect.Multimaps.synchronizedListMultimap;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
 
 import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
 import build.bazel.remote.execution.v2.Digest;
@@ -25,12 +26,14 @@ import build.buildfarm.common.Write;
 import build.buildfarm.instance.stub.ByteStreamUploader;
 import build.buildfarm.v1test.ContentAddressableStorageConfig;
 import build.buildfarm.v1test.GrpcCASConfig;
+import build.buildfarm.v1test.TieredCASConfig;
 import build.buildfarm.common.grpc.JWTClientInterceptor;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.protobuf.ByteString;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Channel;
 import io.grpc.ClientInterceptor;
 import io.grpc.netty.NegotiationType;
@@ -76,10 +79,42 @@ public final class ContentAddressableStorages {
       case GRPC:
         return createGrpcCAS(config.getGrpc());
       case MEMORY:
-        return new MemoryCAS(config.getMemory().getMaxSizeBytes());
+        return new MemoryCAS(
+            config.getMemory().getMaxSizeBytes(),
+            (digest) -> {},
+            /* delegate=*/ null,
+            config.getMemory().getOffHeap());
+      case TIERED:
+        return createTieredCAS(config.getTiered());
     }
   }
 
+  private static ContentAddressableStorage createTieredCAS(TieredCASConfig config) {
+    ImmutableList.Builder<ContentAddressableStorage> tiers = ImmutableList.builder();
+    for (ContentAddressableStorageConfig tierConfig : config.getTiersList()) {
+      tiers.add(create(tierConfig));
+    }
+    TieredCAS.WritePolicy writePolicy;
+    switch (config.getWritePolicy()) {
+      default:
+      case WRITE_THROUGH:
+        writePolicy = TieredCAS.WritePolicy.WRITE_THROUGH;
+        break;
+      case WRITE_BACK:
+        writePolicy = TieredCAS.WritePolicy.WRITE_BACK;
+        break;
+    }
+    return new TieredCAS(
+        tiers.build(),
+        writePolicy,
+        config.getPromoteOnRead(),
+        newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("tiered-cas-write-back-%d")
+                .setDaemon(true)
+                .build()));
+  }
+
   /**
    * decorates a map with a CAS interface, does not react
    * to removals with expirations
@@ -26,7 +26,6 @@ import build.buildfarm.common.Write;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.rpc.Code;
@@ -38,13 +37,31 @@ import java.io.OutputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Logger;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * An in-memory CAS bounded by size, which expires its least recently used
+ * blobs, through the delegate if present, to admit new blobs.
+ *
+ * Blobs are looked up without locking, and hits only stamp their entry
+ * with an access time. Entries are ordered for expiration in segments,
+ * each with its own lock, and an entry which was accessed since it was
+ * ordered is reordered when it reaches the head of its segment. Expiration
+ * takes the least recently accessed head among all segments.
+ *
+ * With offHeap, blob content is held in a BlobArena, outside of the heap
+ * that the collector must mark and copy, and each read copies the content
+ * of its blob onto the heap. Sizes are charged with the capacity of the
+ * arena slots they reserve.
+ */
 public class MemoryCAS implements ContentAddressableStorage {
   private static final Logger logger = Logger.getLogger(MemoryCAS.class.getName());
 
@@ -56,19 +73,19 @@ public class MemoryCAS implements ContentAddressableStorage {
       .setCode(Code.NOT_FOUND.getNumber())
       .build();
 
+  private static final int SEGMENT_COUNT = 16;
+
   private final long maxSizeInBytes;
   private final Consumer<Digest> onPut;
-
-  @GuardedBy("this")
-  private final Map<Digest, Entry> storage;
-
-  @GuardedBy("this")
-  private final Entry header = new SentinelEntry();
-
-  @GuardedBy("this")
-  private long sizeInBytes;
+  private final ConcurrentMap<Digest, Entry> storage = new ConcurrentHashMap<>();
+  private final Segment[] segments = new Segment[SEGMENT_COUNT];
+  private final AtomicLong sizeInBytes = new AtomicLong(0);
+  // expirations are serialized, so that concurrent puts expire only what
+  // is required to admit them
+  private final Object expirationLock = new Object();
 
   private final ContentAddressableStorage delegate;
+  private final BlobArena arena; // null for heap storage
   private final Writes writes = new Writes(this);
 
   public MemoryCAS(long maxSizeInBytes) {
@@ -76,28 +93,52 @@ public class MemoryCAS implements ContentAddressableStorage {
   }
 
   public MemoryCAS(long maxSizeInBytes, Consumer<Digest> onPut, ContentAddressableStorage delegate) {
+    this(maxSizeInBytes, onPut, delegate, /* offHeap=*/ false);
+  }
+
+  public MemoryCAS(
+      long maxSizeInBytes,
+      Consumer<Digest> onPut,
+      ContentAddressableStorage delegate,
+      boolean offHeap) {
     this.maxSizeInBytes = maxSizeInBytes;
     this.onPut = onPut;
     this.delegate = delegate;
-    sizeInBytes = 0;
-    header.before = header.after = header;
-    storage = Maps.newHashMap();
+    arena = offHeap ? new BlobArena() : null;
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /** the charge of the stored entries, at most the limit when puts are quiescent */
+  long size() {
+    return sizeInBytes.get();
+  }
+
+  private Segment segmentFor(Digest digest) {
+    return segments[(digest.getHash().hashCode() & Integer.MAX_VALUE) % segments.length];
   }
 
   @Override
-  public synchronized boolean contains(Digest digest) {
+  public boolean contains(Digest digest) {
     return get(digest) != null || (delegate != null && delegate.contains(digest));
   }
 
+  /**
+   * Indicates presence in this CAS for digest, without recording access or
+   * consulting the delegate.
+   */
+  public boolean containsLocal(Digest digest) {
+    return storage.containsKey(digest);
+  }
+
   @Override
   public Iterable<Digest> findMissingBlobs(Iterable<Digest> digests) throws InterruptedException {
     ImmutableList.Builder<Digest> builder = ImmutableList.builder();
-    synchronized(this) {
-      // incur access use of the digest
-      for (Digest digest : digests) {
-        if (digest.getSizeBytes() != 0 && !contains(digest)) {
-          builder.add(digest);
-        }
+    // incur access use of the digest
+    for (Digest digest : digests) {
+      if (digest.getSizeBytes() != 0 && !contains(digest)) {
+        builder.add(digest);
       }
     }
     ImmutableList<Digest> missing = builder.build();
@@ -108,7 +149,7 @@ public class MemoryCAS implements ContentAddressableStorage {
   }
 
   @Override
-  public synchronized InputStream newInput(Digest digest, long offset) throws IOException {
+  public InputStream newInput(Digest digest, long offset) throws IOException {
     // implicit int bounds compare against size bytes
     if (offset < 0 || offset > digest.getSizeBytes()) {
       throw new IndexOutOfBoundsException(
@@ -135,7 +176,7 @@ public class MemoryCAS implements ContentAddressableStorage {
     return immediateFuture(getAll(digests));
   }
 
-  synchronized Iterable<Response> getAll(Iterable<Digest> digests) {
+  Iterable<Response> getAll(Iterable<Digest> digests) {
     return getAll(digests, (digest) -> {
       Blob blob = get(digest);
       if (blob == null) {
@@ -186,31 +227,22 @@ public class MemoryCAS implements ContentAddressableStorage {
   }
 
   @Override
-  public synchronized Blob get(Digest digest) {
+  public Blob get(Digest digest) {
     if (digest.getSizeBytes() == 0) {
       throw new IllegalArgumentException("Cannot fetch empty blob");
     }
 
     Entry e = storage.get(digest);
-    if (e == null) {
+    // an expired entry has released its content
+    Blob blob = e == null ? null : e.getBlob();
+    if (blob == null) {
       if (delegate != null) {
         return delegate.get(digest);
       }
       return null;
     }
-    e.recordAccess(header);
-    return e.value;
-  }
-
-  @GuardedBy("this")
-  private long size() {
-    Entry e = header.before;
-    long count = 0;
-    while (e != header) {
-      count++;
-      e = e.before;
-    }
-    return count;
+    e.recordAccess();
+    return blob;
   }
 
   @Override
@@ -234,146 +266,230 @@ public class MemoryCAS implements ContentAddressableStorage {
     }
   }
 
-  private synchronized boolean add(Blob blob, Runnable onExpiration) {
-    Entry e = storage.get(blob.getDigest());
-    if (e != null) {
-      if (onExpiration != null) {
-        e.addOnExpiration(onExpiration);
-      }
-      e.recordAccess(header);
+  private boolean add(Blob blob, Runnable onExpiration) {
+    Digest digest = blob.getDigest();
+    Entry existing = storage.get(digest);
+    if (existing != null && existing.addOnExpiration(onExpiration)) {
+      existing.recordAccess();
       return false;
     }
 
-    sizeInBytes += blob.size();
-
-    while (sizeInBytes > maxSizeInBytes && header.after != header) {
-      expireEntry(header.after);
-    }
-
-    if (sizeInBytes > maxSizeInBytes) {
-      logger.warning(
-          String.format(
-              "Out of nodes to remove, sizeInBytes = %d, maxSizeInBytes = %d, storage = %d, list = %d",
-              sizeInBytes,
-              maxSizeInBytes,
-              storage.size(),
-              size()));
+    Entry e = new Entry(blob, arena);
+    e.addOnExpiration(onExpiration);
+    while ((existing = storage.putIfAbsent(digest, e)) != null) {
+      if (existing.addOnExpiration(onExpiration)) {
+        existing.recordAccess();
+        e.release();
+        return false;
+      }
+      // the existing entry is expiring, replace it
+      storage.remove(digest, existing);
     }
 
-    createEntry(blob, onExpiration);
-
-    storage.put(blob.getDigest(), header.before);
-
+    sizeInBytes.addAndGet(e.charge());
+    // the new entry is not yet ordered, and will not be chosen to expire
+    expireEntries();
+    segmentFor(digest).add(e);
     return true;
   }
 
-  @GuardedBy("this")
-  private void createEntry(Blob blob, Runnable onExpiration) {
-    Entry e = new Entry(blob);
-    if (onExpiration != null) {
-      e.addOnExpiration(onExpiration);
+  private void expireEntries() {
+    synchronized (expirationLock) {
+      while (sizeInBytes.get() > maxSizeInBytes) {
+        Segment eldestSegment = null;
+        Entry eldest = null;
+        for (Segment segment : segments) {
+          Entry head = segment.eldest();
+          if (head != null && (eldest == null || head.orderedAt - eldest.orderedAt < 0)) {
+            eldestSegment = segment;
+            eldest = head;
+          }
+        }
+        if (eldest == null) {
+          logger.warning(
+              String.format(
+                  "Out of nodes to remove, sizeInBytes = %d, maxSizeInBytes = %d, storage = %d",
+                  sizeInBytes.get(),
+                  maxSizeInBytes,
+                  storage.size()));
+          return;
+        }
+        if (eldestSegment.remove(eldest)) {
+          expireEntry(eldest);
+        }
+      }
     }
-    e.addBefore(header);
   }
 
-  @GuardedBy("this")
+  @GuardedBy("expirationLock")
   private void expireEntry(Entry e) {
     logger.info("MemoryLRUCAS: expiring " + DigestUtil.toString(e.key));
+    List<Runnable> onExpirations = e.expire();
+    // the entry remains readable while it is written to the delegate
     if (delegate != null) {
       Write write = delegate.getWrite(e.key, UUID.randomUUID(), RequestMetadata.getDefaultInstance());
       try (OutputStream out = write.getOutput(1, MINUTES, () -> {})) {
-        e.value.getData().writeTo(out);
+        e.getBlob().getData().writeTo(out);
       } catch (IOException ioEx) {
         logger.log(SEVERE, String.format("error delegating %s", DigestUtil.toString(e.key)), ioEx);
       }
     }
-    storage.remove(e.key);
-    e.expire();
-    sizeInBytes -= e.value.size();
+    storage.remove(e.key, e);
+    e.release();
+    sizeInBytes.addAndGet(-e.charge());
+    for (Runnable onExpiration : onExpirations) {
+      onExpiration.run();
+    }
   }
 
-  private static class Entry {
-    Entry before, after;
-    final Digest key;
-    final Blob value;
-    private List<Runnable> onExpirations;
+  /** an expiration order over a subset of entries */
+  private static final class Segment {
+    @GuardedBy("this")
+    private final Entry header = new Entry();
 
-    /** implemented only for sentinel */
-    private Entry() {
-      key = null;
-      value = null;
-      onExpirations = null;
+    Segment() {
+      header.before = header.after = header;
     }
 
-    public Entry(Blob blob) {
-      key = blob.getDigest();
-      value = blob;
-      onExpirations = null;
+    synchronized void add(Entry e) {
+      e.orderedAt = e.accessedAt;
+      e.after = header;
+      e.before = header.before;
+      e.before.after = e;
+      e.after.before = e;
     }
 
-    public void addOnExpiration(Runnable onExpiration) {
-      if (onExpirations == null) {
-        onExpirations = new ArrayList<>(1);
+    synchronized boolean remove(Entry e) {
+      if (e.before == null) {
+        return false;
       }
-      onExpirations.add(onExpiration);
+      e.before.after = e.after;
+      e.after.before = e.before;
+      e.before = e.after = null;
+      return true;
     }
 
-    public void remove() {
-      before.after = after;
-      after.before = before;
-    }
-
-    public void expire() {
-      remove();
-      if (onExpirations != null) {
-        for (Runnable r : onExpirations) {
-          r.run();
+    /**
+     * the least recently accessed entry, after reordering any entries at
+     * the head which were accessed since they were ordered
+     */
+    synchronized Entry eldest() {
+      for (;;) {
+        Entry e = header.after;
+        if (e == header) {
+          return null;
+        }
+        if (e.orderedAt == e.accessedAt) {
+          return e;
         }
+        remove(e);
+        add(e);
       }
     }
+  }
 
-    public void addBefore(Entry existingEntry) {
-      after = existingEntry;
-      before = existingEntry.before;
-      before.after = this;
-      after.before = this;
+  private static final class Entry {
+    // guarded by the segment of the entry
+    Entry before, after;
+    long orderedAt;
+
+    final Digest key;
+    private final Blob value; // null if held in the arena
+    private final BlobArena arena;
+    private final BlobArena.Slot slot;
+    // the entry holds one reference until it expires, and reads of the slot
+    // hold one for their duration, the slot is freed with the last
+    private final AtomicInteger references = new AtomicInteger(1);
+    volatile long accessedAt;
+    @GuardedBy("this")
+    private List<Runnable> onExpirations = null;
+    @GuardedBy("this")
+    private boolean expired = false;
+
+    /** implemented only for sentinel */
+    Entry() {
+      key = null;
+      value = null;
+      arena = null;
+      slot = null;
     }
 
-    public void recordAccess(Entry header) {
-      remove();
-      addBefore(header);
+    Entry(Blob blob, BlobArena arena) {
+      key = blob.getDigest();
+      this.arena = arena;
+      if (arena == null) {
+        value = blob;
+        slot = null;
+      } else {
+        value = null;
+        slot = arena.allocate(blob.getData());
+      }
+      accessedAt = System.nanoTime();
     }
-  }
 
-  class SentinelEntry extends Entry {
-    SentinelEntry() {
-      super();
-      before = after = this;
+    /** the size counted against the limit of the CAS */
+    long charge() {
+      return slot == null ? key.getSizeBytes() : slot.capacity();
     }
 
-    @Override
-    public void addOnExpiration(Runnable onExpiration) {
-      throw new UnsupportedOperationException("cannot add expiration to sentinal");
+    /** the blob, or null if its content has been released */
+    Blob getBlob() {
+      if (slot == null) {
+        return value;
+      }
+      if (!retain()) {
+        return null;
+      }
+      try {
+        return new Blob(slot.read(), key);
+      } finally {
+        release();
+      }
+    }
+
+    private boolean retain() {
+      for (;;) {
+        int count = references.get();
+        if (count == 0) {
+          return false;
+        }
+        if (references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
     }
 
-    @Override
-    public void remove() {
-      throw new UnsupportedOperationException("cannot remove sentinel");
+    void release() {
+      if (references.decrementAndGet() == 0 && slot != null) {
+        arena.free(slot);
+      }
     }
 
-    @Override
-    public void expire() {
-      throw new UnsupportedOperationException("cannot expire sentinel");
+    void recordAccess() {
+      accessedAt = System.nanoTime();
     }
 
-    @Override
-    public void addBefore(Entry existingEntry) {
-      throw new UnsupportedOperationException("cannot add sentinel");
+    /** returns false if the entry is expiring, a null onExpiration is not added */
+    synchronized boolean addOnExpiration(Runnable onExpiration) {
+      if (expired) {
+        return false;
+      }
+      if (onExpiration == null) {
+        return true;
+      }
+      if (onExpirations == null) {
+        onExpirations = new ArrayList<>(1);
+      }
+      onExpirations.add(onExpiration);
+      return true;
     }
 
-    @Override
-    public void recordAccess(Entry header) {
-      throw new UnsupportedOperationException("cannot record sentinel access");
+    /** refuse further puts, returning the expirations to run */
+    synchronized List<Runnable> expire() {
+      expired = true;
+      List<Runnable> expirations = onExpirations;
+      onExpirations = null;
+      return expirations == null ? ImmutableList.of() : expirations;
     }
   }
 }
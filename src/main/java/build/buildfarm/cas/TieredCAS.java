@@ -0,0 +1,191 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static java.lang.String.format;
+import static java.util.logging.Level.SEVERE;
+
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.RequestMetadata;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.Write;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * A sequence of independent storages, each typically larger and slower
+ * than the last, presented as a single CAS.
+ *
+ * Reads are served by the first tier which holds a blob, and with
+ * promoteOnRead, blobs read from a later tier are put into all earlier
+ * tiers. Puts are made to every tier before returning with WRITE_THROUGH,
+ * and to the first tier before returning with WRITE_BACK, with the later
+ * tiers written in order on the writeBackExecutor. Each tier retains
+ * content within its own configured size.
+ *
+ * Streams are opened from the first tier which does not refuse them with
+ * NoSuchFileException, and are not promoted. Tiers which open streams
+ * lazily, such as a grpc tier, should be last.
+ */
+public class TieredCAS implements ContentAddressableStorage {
+  private static final Logger logger = Logger.getLogger(TieredCAS.class.getName());
+
+  public enum WritePolicy {
+    WRITE_THROUGH,
+    WRITE_BACK,
+  }
+
+  private final List<ContentAddressableStorage> tiers;
+  private final WritePolicy writePolicy;
+  private final boolean promoteOnRead;
+  private final Executor writeBackExecutor;
+  private final Writes writes = new Writes(this);
+
+  public TieredCAS(
+      List<ContentAddressableStorage> tiers,
+      WritePolicy writePolicy,
+      boolean promoteOnRead,
+      Executor writeBackExecutor) {
+    checkArgument(!tiers.isEmpty(), "tiered cas requires at least one tier");
+    this.tiers = ImmutableList.copyOf(tiers);
+    this.writePolicy = writePolicy;
+    this.promoteOnRead = promoteOnRead;
+    this.writeBackExecutor = writeBackExecutor;
+  }
+
+  @Override
+  public boolean contains(Digest digest) {
+    for (ContentAddressableStorage tier : tiers) {
+      if (tier.contains(digest)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Iterable<Digest> findMissingBlobs(Iterable<Digest> digests) throws InterruptedException {
+    ImmutableList<Digest> missing = ImmutableList.copyOf(digests);
+    for (ContentAddressableStorage tier : tiers) {
+      if (missing.isEmpty()) {
+        break;
+      }
+      missing = ImmutableList.copyOf(tier.findMissingBlobs(missing));
+    }
+    return missing;
+  }
+
+  @Override
+  public Blob get(Digest digest) {
+    for (int i = 0; i < tiers.size(); i++) {
+      Blob blob = tiers.get(i).get(digest);
+      if (blob != null) {
+        if (promoteOnRead) {
+          promote(blob, i);
+        }
+        return blob;
+      }
+    }
+    return null;
+  }
+
+  private void promote(Blob blob, int tier) {
+    try {
+      for (int i = 0; i < tier; i++) {
+        tiers.get(i).put(blob);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public ListenableFuture<Iterable<Response>> getAllFuture(Iterable<Digest> digests) {
+    return immediateFuture(MemoryCAS.getAll(digests, (digest) -> {
+      Blob blob = get(digest);
+      if (blob == null) {
+        return null;
+      }
+      return blob.getData();
+    }));
+  }
+
+  @Override
+  public InputStream newInput(Digest digest, long offset) throws IOException {
+    int last = tiers.size() - 1;
+    for (int i = 0; i < last; i++) {
+      try {
+        return tiers.get(i).newInput(digest, offset);
+      } catch (NoSuchFileException e) {
+        // fall through to the next tier
+      }
+    }
+    return tiers.get(last).newInput(digest, offset);
+  }
+
+  @Override
+  public Write getWrite(Digest digest, UUID uuid, RequestMetadata requestMetadata) {
+    return writes.get(digest, uuid);
+  }
+
+  @Override
+  public void put(Blob blob) throws InterruptedException {
+    put(blob, null);
+  }
+
+  /** onExpiration is registered with the first tier */
+  @Override
+  public void put(Blob blob, Runnable onExpiration) throws InterruptedException {
+    if (onExpiration == null) {
+      tiers.get(0).put(blob);
+    } else {
+      tiers.get(0).put(blob, onExpiration);
+    }
+    List<ContentAddressableStorage> laterTiers = tiers.subList(1, tiers.size());
+    if (laterTiers.isEmpty()) {
+      // nothing further to write
+    } else if (writePolicy == WritePolicy.WRITE_BACK) {
+      writeBackExecutor.execute(() -> {
+        try {
+          putAll(laterTiers, blob);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          logger.log(SEVERE, format("error writing back %s", DigestUtil.toString(blob.getDigest())), e);
+        }
+      });
+    } else {
+      putAll(laterTiers, blob);
+    }
+    writes.getFuture(blob.getDigest()).set(blob.getData());
+  }
+
+  private static void putAll(List<ContentAddressableStorage> storages, Blob blob)
+      throws InterruptedException {
+    for (ContentAddressableStorage storage : storages) {
+      storage.put(blob);
+    }
+  }
+}
@@ -17,7 +17,6 @@ package build.buildfarm.cas;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 import build.bazel.remote.execution.v2.Digest;
-import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.common.Write;
 import build.buildfarm.common.Write.CompleteWrite;
 import build.buildfarm.v1test.BlobWriteKey;
@@ -53,8 +52,8 @@ public class Writes {
   }
 
   private synchronized Write getNonEmpty(Digest digest, UUID uuid) {
-    Blob blob = storage.get(digest);
-    if (blob != null) {
+    // a presence check, which does not retrieve the content from storage
+    if (storage.contains(digest)) {
       return new CompleteWrite(digest.getSizeBytes());
     }
     return get(BlobWriteKey.newBuilder()
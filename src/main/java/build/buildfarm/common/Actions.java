@@ -19,6 +19,7 @@ import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Platform;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.rpc.PreconditionFailure;
 import com.google.rpc.PreconditionFailure.Violation;
@@ -28,9 +29,17 @@ import com.google.protobuf.Any;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.StatusException;
 import io.grpc.protobuf.StatusProto;
+import java.util.Collection;
 import java.util.Map;
 
 public final class Actions {
+  // resource requirements, admitted by the execute stage of a worker, and
+  // matched numerically against a provider's capacity, which must be
+  // provisioned for the requirement to be satisfied
+  private static final Map<String, String> RESOURCE_PROVISIONS = ImmutableMap.of(
+      "min-cores", "cores",
+      "min-mem", "mem");
+
   private Actions() {
   }
 
@@ -94,7 +103,7 @@ public final class Actions {
   }
 
   public static boolean satisfiesRequirements(Platform provider, Platform requirements) {
-    // string compare only
+    // string compare, other than resource requirements
     // no duplicate names
     ImmutableSetMultimap.Builder<String, String> provisionsBuilder =
         new ImmutableSetMultimap.Builder<>();
@@ -103,6 +112,13 @@ public final class Actions {
     }
     ImmutableSetMultimap<String, String> provisions = provisionsBuilder.build();
     for (Platform.Property property : requirements.getPropertiesList()) {
+      String resource = RESOURCE_PROVISIONS.get(property.getName());
+      if (resource != null) {
+        if (!satisfiesResource(provisions.get(resource), property.getValue())) {
+          return false;
+        }
+        continue;
+      }
       if (!provisions.containsKey(property.getName()) ||
           !provisions.get(property.getName()).contains(property.getValue())) {
         return false;
@@ -110,4 +126,28 @@ public final class Actions {
     }
     return true;
   }
+
+  /** an unprovisioned resource is unconstrained, and satisfies any requirement */
+  private static boolean satisfiesResource(Collection<String> capacities, String requirement) {
+    if (capacities.isEmpty()) {
+      return true;
+    }
+    long required;
+    try {
+      required = Long.parseLong(requirement);
+    } catch (NumberFormatException e) {
+      // invalid requirements are ignored by admission
+      return true;
+    }
+    for (String capacity : capacities) {
+      try {
+        if (Long.parseLong(capacity) < required) {
+          return false;
+        }
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
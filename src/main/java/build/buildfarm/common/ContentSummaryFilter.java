@@ -0,0 +1,195 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * A counting Bloom filter of the blobs held by a worker, maintained as
+ * blobs are inserted and expired, and published as a ContentSummary.
+ *
+ * Each position holds a 4 bit counter so that expirations may be removed.
+ * A saturated counter is never decremented, retaining a possible false
+ * positive rather than introducing a false negative. The published summary
+ * is the plain Bloom filter of nonzero positions, which is maintained with
+ * the counters, so that a summary or the delta of its changed words is
+ * taken without a scan of the counters.
+ */
+public class ContentSummaryFilter {
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+  private static final int MAX_HASH_COUNT = 16;
+  private static final int COUNTER_MAX = 0xf;
+
+  private final long size;
+  private final int hashCount;
+  // guarded by this, two counters per byte
+  private final byte[] counters;
+  // guarded by this, the summary bits, one per nonzero counter
+  private final long[] words;
+  // guarded by this, the indices of words changed since the last delta
+  private final BitSet changedWords = new BitSet();
+
+  public ContentSummaryFilter(long expectedBlobs, double falsePositiveRate) {
+    checkArgument(expectedBlobs > 0, "expectedBlobs must be positive");
+    checkArgument(
+        falsePositiveRate > 0 && falsePositiveRate < 1,
+        "falsePositiveRate must be within (0, 1)");
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-expectedBlobs * Math.log(falsePositiveRate) / (ln2 * ln2));
+    // whole words of summary bits
+    size = Math.max(64, (bits + 63) / 64 * 64);
+    checkArgument(size / 2 <= Integer.MAX_VALUE, "summary of %s bits is too large", size);
+    hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(size / (double) expectedBlobs * ln2)));
+    counters = new byte[(int) (size / 2)];
+    words = new long[(int) (size / 64)];
+  }
+
+  private static long index(long h1, long h2, int i, long size) {
+    return ((h1 + i * h2) & Long.MAX_VALUE) % size;
+  }
+
+  /** the two halves of the 128 bit hash of digest, combined for each index */
+  private static long[] hashes(Digest digest) {
+    HashCode hashCode = hashFunction.newHasher()
+        .putString(digest.getHash(), UTF_8)
+        .putLong(digest.getSizeBytes())
+        .hash();
+    ByteBuffer buffer = ByteBuffer.wrap(hashCode.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+    return new long[] { buffer.getLong(), buffer.getLong() };
+  }
+
+  private int counter(long index) {
+    int b = counters[(int) (index >> 1)];
+    return ((index & 1) == 0 ? b : b >> 4) & COUNTER_MAX;
+  }
+
+  private void setCounter(long index, int value) {
+    int i = (int) (index >> 1);
+    if ((index & 1) == 0) {
+      counters[i] = (byte) ((counters[i] & 0xf0) | value);
+    } else {
+      counters[i] = (byte) ((counters[i] & 0x0f) | (value << 4));
+    }
+  }
+
+  private void flipBit(long index) {
+    int word = (int) (index >> 6);
+    words[word] ^= 1L << (index & 63);
+    changedWords.set(word);
+  }
+
+  public synchronized void add(Digest digest) {
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < hashCount; i++) {
+      long index = index(hashes[0], hashes[1], i, size);
+      int count = counter(index);
+      if (count < COUNTER_MAX) {
+        setCounter(index, count + 1);
+        if (count == 0) {
+          flipBit(index);
+        }
+      }
+    }
+  }
+
+  public synchronized void remove(Digest digest) {
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < hashCount; i++) {
+      long index = index(hashes[0], hashes[1], i, size);
+      int count = counter(index);
+      // saturated counters may be shared by more blobs than they count
+      if (count > 0 && count < COUNTER_MAX) {
+        setCounter(index, count - 1);
+        if (count == 1) {
+          flipBit(index);
+        }
+      }
+    }
+  }
+
+  public ContentSummary toContentSummary() {
+    long[] snapshot;
+    synchronized (this) {
+      snapshot = words.clone();
+    }
+    ByteBuffer bits = ByteBuffer.allocate(snapshot.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+    bits.asLongBuffer().put(snapshot);
+    return ContentSummary.newBuilder()
+        .setHashCount(hashCount)
+        .setBits(ByteString.copyFrom(bits.array()))
+        .build();
+  }
+
+  /**
+   * the words of the summary changed since the last delta was taken, with
+   * the base version unset. The delta is empty if the summary is unchanged.
+   */
+  public synchronized ContentSummaryDelta takeDelta() {
+    ContentSummaryDelta.Builder delta = ContentSummaryDelta.newBuilder();
+    for (int word = changedWords.nextSetBit(0); word >= 0; word = changedWords.nextSetBit(word + 1)) {
+      delta.addWordIndices(word);
+      delta.addWords(words[word]);
+    }
+    changedWords.clear();
+    return delta.build();
+  }
+
+  /**
+   * the summary with the words of delta applied. Applying a delta is
+   * idempotent, and a summary which already contains some of its changes
+   * is brought to the same state.
+   */
+  public static ContentSummary apply(ContentSummary summary, ContentSummaryDelta delta) {
+    ByteBuffer bits = ByteBuffer.wrap(summary.getBits().toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < delta.getWordIndicesCount(); i++) {
+      bits.putLong(delta.getWordIndices(i) * 8, delta.getWords(i));
+    }
+    return summary.toBuilder()
+        .setBits(ByteString.copyFrom(bits.array()))
+        .build();
+  }
+
+  /**
+   * determine whether the summarized worker may hold digest, with false
+   * positives at the rate of its filter. An empty summary holds nothing.
+   */
+  public static boolean mightContain(ContentSummary summary, Digest digest) {
+    ByteString bits = summary.getBits();
+    long size = bits.size() * 8L;
+    if (size == 0) {
+      return false;
+    }
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < summary.getHashCount(); i++) {
+      long index = index(hashes[0], hashes[1], i, size);
+      if ((bits.byteAt((int) (index >> 3)) & (1 << (index & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
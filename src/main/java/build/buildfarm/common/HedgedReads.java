@@ -0,0 +1,70 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class HedgedReads {
+  private HedgedReads() {}
+
+  /**
+   * Completes with the input of the first read to succeed, or with the
+   * failure of the last read to fail if none succeed.
+   *
+   * Reads which succeed after the first are closed on completion. Reads
+   * are not cancelled, since an input produced concurrently with
+   * cancellation could not be closed.
+   */
+  public static ListenableFuture<InputStream> firstSuccessful(Iterable<ListenableFuture<InputStream>> reads) {
+    List<ListenableFuture<InputStream>> readsList = ImmutableList.copyOf(reads);
+    SettableFuture<InputStream> first = SettableFuture.create();
+    AtomicInteger remaining = new AtomicInteger(readsList.size());
+    for (ListenableFuture<InputStream> read : readsList) {
+      addCallback(
+          read,
+          new FutureCallback<InputStream>() {
+            @Override
+            public void onSuccess(InputStream input) {
+              if (!first.set(input)) {
+                try {
+                  input.close();
+                } catch (IOException e) {
+                  // ignore, the input is unused
+                }
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              if (remaining.decrementAndGet() == 0) {
+                first.setException(t);
+              }
+            }
+          },
+          directExecutor());
+    }
+    return first;
+  }
+}
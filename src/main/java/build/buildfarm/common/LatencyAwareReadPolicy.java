@@ -0,0 +1,164 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Prefers sources with the lowest expected time to first response, from an
+ * exponentially weighted moving average of each source's latency penalized
+ * by its recent error rate. Error rates decay with time, so that a source
+ * which has only failed is ordered last until its errors are forgotten,
+ * and is then measured again. Sources without history are preferred, so
+ * that they are measured.
+ *
+ * Reads are hedged after the configured percentile of recently observed
+ * first response latencies across all sources.
+ */
+public class LatencyAwareReadPolicy implements ReadPolicy {
+  private static final double SMOOTHING_FACTOR = 0.3;
+  private static final double ERROR_PENALTY = 10.0;
+  private static final int LATENCY_SAMPLES = 256;
+  private static final int MIN_HEDGE_SAMPLES = 32;
+  private static final double DEFAULT_HEDGE_PERCENTILE = 95;
+  private static final long DEFAULT_MIN_HEDGE_DELAY_NANOS = 10 * 1000 * 1000;
+  private static final long ERROR_HALF_LIFE_NANOS = 10L * 1000 * 1000 * 1000;
+  // error rates below this are forgotten for sources which have only failed
+  private static final double MIN_ERROR_RATE = 0.01;
+
+  private static class SourceStats {
+    double latencyNanos = 0;
+    double errorRate = 0;
+    long errorRateNanos = 0; // time of the last decay of errorRate
+
+    private void decay(long nowNanos) {
+      if (errorRate > 0) {
+        long elapsedNanos = Math.max(0, nowNanos - errorRateNanos);
+        errorRate *= Math.pow(0.5, elapsedNanos / (double) ERROR_HALF_LIFE_NANOS);
+      }
+      errorRateNanos = nowNanos;
+    }
+
+    synchronized void onSuccess(long firstResponseNanos, long nowNanos) {
+      if (latencyNanos == 0) {
+        latencyNanos = firstResponseNanos;
+      } else {
+        latencyNanos += SMOOTHING_FACTOR * (firstResponseNanos - latencyNanos);
+      }
+      decay(nowNanos);
+      errorRate -= SMOOTHING_FACTOR * errorRate;
+    }
+
+    synchronized void onFailure(long nowNanos) {
+      decay(nowNanos);
+      errorRate += SMOOTHING_FACTOR * (1 - errorRate);
+    }
+
+    synchronized double getCost(long nowNanos) {
+      decay(nowNanos);
+      if (latencyNanos == 0) {
+        // only failures have been observed, until they are forgotten
+        return errorRate < MIN_ERROR_RATE ? 0 : Double.MAX_VALUE;
+      }
+      return latencyNanos * (1 + ERROR_PENALTY * errorRate);
+    }
+  }
+
+  private final double hedgePercentile;
+  private final long minHedgeDelayNanos;
+  private final LongSupplier clock;
+  private final ConcurrentMap<String, SourceStats> sources = new ConcurrentHashMap<>();
+  private final long[] samples = new long[LATENCY_SAMPLES];
+  private int sampleCount = 0;
+  private int nextSample = 0;
+
+  public LatencyAwareReadPolicy() {
+    this(DEFAULT_HEDGE_PERCENTILE, DEFAULT_MIN_HEDGE_DELAY_NANOS);
+  }
+
+  /**
+   * @param hedgePercentile percentile of observed latencies in (0, 100]
+   * after which reads are hedged, with 0 disabling hedging
+   * @param minHedgeDelayNanos lower bound of the hedge delay
+   */
+  public LatencyAwareReadPolicy(double hedgePercentile, long minHedgeDelayNanos) {
+    this(hedgePercentile, minHedgeDelayNanos, System::nanoTime);
+  }
+
+  LatencyAwareReadPolicy(double hedgePercentile, long minHedgeDelayNanos, LongSupplier clock) {
+    checkArgument(hedgePercentile >= 0 && hedgePercentile <= 100, "hedgePercentile must be in [0, 100]");
+    this.hedgePercentile = hedgePercentile;
+    this.minHedgeDelayNanos = minHedgeDelayNanos;
+    this.clock = clock;
+  }
+
+  private SourceStats getStats(String source) {
+    return sources.computeIfAbsent(source, (name) -> new SourceStats());
+  }
+
+  @Override
+  public List<String> order(Collection<String> sourceNames) {
+    // snapshot costs for a consistent ordering
+    Map<String, Double> costs = new HashMap<>();
+    long nowNanos = clock.getAsLong();
+    for (String source : sourceNames) {
+      SourceStats stats = sources.get(source);
+      costs.put(source, stats == null ? 0.0 : stats.getCost(nowNanos));
+    }
+    List<String> ordered = new ArrayList<>(sourceNames);
+    // stable, retaining the incoming order among equivalent sources
+    ordered.sort(Comparator.comparing((String source) -> costs.get(source)));
+    return ordered;
+  }
+
+  @Override
+  public synchronized long getHedgeDelayNanos() {
+    if (hedgePercentile == 0 || sampleCount < MIN_HEDGE_SAMPLES) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(hedgePercentile * sampleCount / 100) - 1;
+    return Math.max(minHedgeDelayNanos, sorted[Math.max(0, index)]);
+  }
+
+  @Override
+  public void onSuccess(String source, long firstResponseNanos) {
+    getStats(source).onSuccess(firstResponseNanos, clock.getAsLong());
+    synchronized (this) {
+      samples[nextSample] = firstResponseNanos;
+      nextSample = (nextSample + 1) % LATENCY_SAMPLES;
+      if (sampleCount < LATENCY_SAMPLES) {
+        sampleCount++;
+      }
+    }
+  }
+
+  @Override
+  public void onFailure(String source) {
+    getStats(source).onFailure(clock.getAsLong());
+  }
+}
@@ -14,25 +14,34 @@
 
 package build.buildfarm.common;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
 import com.google.protobuf.Duration;
-import com.google.protobuf.util.Durations;
 import io.grpc.Deadline;
+import java.util.concurrent.ScheduledFuture;
 import java.util.function.BooleanSupplier;
 
+/**
+ * Invokes a poll every period while resumed, until the poll fails or an
+ * expiration deadline passes.
+ *
+ * Pollers share the timing thread of a SharedTimer, and polls are run on
+ * its callback pool, so that a paused or waiting poller holds no thread.
+ */
 public class Poller {
   private final long periodMicros;
+  private final SharedTimer timer;
   private Deadline periodDeadline = null;
   private ActivePoller activePoller = null;
 
-  private class ActivePoller implements Runnable {
+  private class ActivePoller {
     private final BooleanSupplier poll;
     private final Runnable onExpiration;
     private final Deadline expirationDeadline;
-    private volatile boolean running = true;
+    // guarded by this
+    private boolean running = true;
+    private ScheduledFuture<?> nextTick = null;
 
     ActivePoller(BooleanSupplier poll, Runnable onExpiration, Deadline expirationDeadline) {
       this.poll = poll;
@@ -40,50 +49,44 @@ public class Poller {
       this.expirationDeadline = expirationDeadline;
     }
 
-    private Duration getWaitTime() {
-      checkNotNull(periodDeadline);
+    // must be called with this held
+    private void scheduleTick() {
       Deadline waitDeadline = expirationDeadline.minimum(periodDeadline);
-      long waitMicros = waitDeadline.timeRemaining(MICROSECONDS);
-      if (waitMicros <= 0) {
-        return Duration.getDefaultInstance();
-      }
-      return Durations.fromMicros(waitMicros);
+      long waitMicros = Math.max(0, waitDeadline.timeRemaining(MICROSECONDS));
+      nextTick = timer.schedule(this::tick, waitMicros, MICROSECONDS);
     }
 
-    private void waitForNextDeadline() {
-      try {
-        Duration waitTime = getWaitTime();
-        if (waitTime.getSeconds() != 0 || waitTime.getNanos() != 0) {
-            wait(
-                waitTime.getSeconds() * 1000 + waitTime.getNanos() / 1000000,
-                waitTime.getNanos() % 1000000);
-        }
-      } catch (InterruptedException e) {
-        running = false;
-      }
+    synchronized void start() {
+      scheduleTick();
     }
 
-    @Override
-    public synchronized void run() {
-      while (running) {
-        if (expirationDeadline.isExpired()) {
-          onExpiration.run();
-          running = false;
-        } else if (periodDeadline.isExpired()) {
-          // FP interface with distinct returns, do not memoize!
-          running = poll.getAsBoolean();
-          while (periodDeadline.isExpired()) {
-            periodDeadline = periodDeadline.offset(periodMicros, MICROSECONDS);
-          }
-        } else {
-          waitForNextDeadline();
+    // polls are run with this held, so that a stop waits for a poll in progress
+    private synchronized void tick() {
+      if (!running) {
+        return;
+      }
+      if (expirationDeadline.isExpired()) {
+        onExpiration.run();
+        running = false;
+        return;
+      }
+      if (periodDeadline.isExpired()) {
+        // FP interface with distinct returns, do not memoize!
+        running = poll.getAsBoolean();
+        while (periodDeadline.isExpired()) {
+          periodDeadline = periodDeadline.offset(periodMicros, MICROSECONDS);
         }
       }
+      if (running) {
+        scheduleTick();
+      }
     }
 
     public synchronized void stop() {
       running = false;
-      notify();
+      if (nextTick != null) {
+        nextTick.cancel(false);
+      }
     }
   }
 
@@ -91,12 +94,13 @@ public class Poller {
     checkState(period.getSeconds() > 0 || period.getNanos() >= 1000);
     periodMicros = period.getSeconds() * 1000000 + period.getNanos() / 1000;
     periodDeadline = Deadline.after(periodMicros, MICROSECONDS);
+    timer = SharedTimer.getDefault();
   }
 
   public void resume(BooleanSupplier poll, Runnable onExpiry, Deadline expiryDeadline) {
     checkState(activePoller == null);
     activePoller = new ActivePoller(poll, onExpiry, expiryDeadline);
-    new Thread(activePoller).start();
+    activePoller.start();
   }
 
   public void pause() {
@@ -0,0 +1,44 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Selects among sources of a blob for reads, and decides when a read
+ * should be hedged with a second source.
+ *
+ * Sources are identified by name, and implementations must be thread safe.
+ */
+public interface ReadPolicy {
+  /** order sources by preference for a read, most preferred first */
+  List<String> order(Collection<String> sources);
+
+  /**
+   * the delay after which a read without a first response should be hedged
+   * with another source, or a negative value if reads should not be hedged
+   */
+  long getHedgeDelayNanos();
+
+  /** record the time to first response of a successful read from source */
+  void onSuccess(String source, long firstResponseNanos);
+
+  /**
+   * record a failed read from source, where the absence of a blob from a
+   * source is not a failure
+   */
+  void onFailure(String source);
+}
@@ -22,6 +22,8 @@ import build.buildfarm.common.DigestUtil.ActionKey;
 import build.buildfarm.common.ThreadSafety.ThreadSafe;
 import build.buildfarm.common.Watcher;
 import build.buildfarm.common.function.InterruptingRunnable;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
 import build.buildfarm.v1test.DispatchedOperation;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.QueueEntry;
@@ -247,6 +249,14 @@ public interface ShardBackplane {
   @ThreadSafe
   void rejectOperation(QueueEntry queueEntry) throws IOException;
 
+  /**
+   * Pushes a dispatched operation onto the tail of the list of queued
+   * operations, to be dispatched after those already queued, as when a
+   * worker declines it in favor of others
+   */
+  @ThreadSafe
+  void deferOperation(QueueEntry queueEntry) throws IOException;
+
   /**
    * Updates the backplane to indicate that the operation is being
    * queued and should not be considered immediately lost
@@ -265,6 +275,14 @@ public interface ShardBackplane {
   @ThreadSafe
   boolean pollOperation(QueueEntry queueEntry, ExecutionStage.Value stage, long requeueAt) throws IOException;
 
+  /**
+   * Updates the requeue_at of many dispatchedOperations in a single round
+   * trip, and returns the names of those operations which are no longer
+   * valid.
+   */
+  @ThreadSafe
+  Set<String> pollOperations(Iterable<QueueEntry> queueEntries, long requeueAt) throws IOException;
+
   /**
    * Complete an operation
    */
@@ -331,4 +349,33 @@ public interface ShardBackplane {
    */
   @ThreadSafe
   boolean canPrequeue() throws IOException;
+
+  /**
+   * Publish the summary of blobs held by a worker, replacing its previous
+   * summary, with the delta from its previous summary, or null if readers
+   * must retrieve the whole summary
+   */
+  @ThreadSafe
+  void putContentSummary(String workerName, ContentSummary summary, ContentSummaryDelta delta) throws IOException;
+
+  /**
+   * Retrieve the versions of the published content summaries of all
+   * workers, which change with each publication
+   */
+  @ThreadSafe
+  Map<String, Long> getContentSummaryVersions() throws IOException;
+
+  /**
+   * Retrieve the published content summaries of workerNames, omitting
+   * workers without summaries
+   */
+  @ThreadSafe
+  Map<String, ContentSummary> getContentSummaries(Iterable<String> workerNames) throws IOException;
+
+  /**
+   * Retrieve the deltas of the latest published content summaries of
+   * workerNames, omitting workers without deltas
+   */
+  @ThreadSafe
+  Map<String, ContentSummaryDelta> getContentSummaryDeltas(Iterable<String> workerNames) throws IOException;
 }
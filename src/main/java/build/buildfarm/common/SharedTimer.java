@@ -0,0 +1,73 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single timing thread shared by all pollers and watchdogs in the
+ * process, in place of a sleeping thread for each.
+ *
+ * Expired timers are handed to a callback pool, so that callbacks may
+ * block on remote calls without delaying other timers. Threads exist in
+ * the pool only for callbacks in progress.
+ */
+public final class SharedTimer {
+  private static final SharedTimer defaultTimer = new SharedTimer();
+
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final Executor callbackExecutor;
+
+  private SharedTimer() {
+    scheduler = new ScheduledThreadPoolExecutor(
+        1,
+        new ThreadFactoryBuilder()
+            .setNameFormat("shared-timer")
+            .setDaemon(true)
+            .build());
+    // cancelled timers are discarded immediately, as most are cancelled
+    scheduler.setRemoveOnCancelPolicy(true);
+    callbackExecutor = newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setNameFormat("shared-timer-callback-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  public static SharedTimer getDefault() {
+    return defaultTimer;
+  }
+
+  /**
+   * run callback on the callback pool after delay
+   *
+   * Cancellation of the returned future is best effort once the delay has
+   * elapsed, and callbacks must observe their own cancellation.
+   */
+  public ScheduledFuture<?> schedule(Runnable callback, long delay, TimeUnit unit) {
+    return scheduler.schedule(() -> callbackExecutor.execute(callback), delay, unit);
+  }
+
+  /** timers not yet expired or cancelled */
+  public int getPendingCount() {
+    return scheduler.getQueue().size();
+  }
+}
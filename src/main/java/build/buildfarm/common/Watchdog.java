@@ -14,64 +14,85 @@
 
 package build.buildfarm.common;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import build.buildfarm.common.function.InterruptingRunnable;
 import com.google.protobuf.Duration;
+import java.util.concurrent.ScheduledFuture;
 
-public class Watchdog implements Runnable {
+/**
+ * Runs a callback once the watchdog has not been pet for its timeout.
+ *
+ * The expiration is checked on the shared timer, and a pet only moves the
+ * deadline, which is observed when the pending check fires, so that
+ * frequent pets do not reschedule.
+ */
+public class Watchdog {
   private final InterruptingRunnable runnable;
-  private final Duration petTimeout;
-  private long timeoutNanos;
-  private boolean stopped;
-  private boolean done;
-  private long start;
+  private final long petTimeoutNanos;
+  private final SharedTimer timer;
+  // guarded by this
+  private long deadlineNanos;
+  private boolean stopped = false;
+  private Thread runner = null;
+  private ScheduledFuture<?> check = null;
 
   public Watchdog(Duration petTimeout, InterruptingRunnable runnable) {
     this.runnable = runnable;
-    this.petTimeout = petTimeout;
-    stopped = false;
-    done = false;
+    petTimeoutNanos = petTimeout.getSeconds() * 1000000000L + petTimeout.getNanos();
+    timer = SharedTimer.getDefault();
     pet();
   }
 
-  public void run() {
+  public synchronized void start() {
+    if (!stopped && check == null) {
+      scheduleCheck();
+    }
+  }
+
+  // must be called with this held
+  private void scheduleCheck() {
+    check = timer.schedule(this::expire, Math.max(0, deadlineNanos - System.nanoTime()), NANOSECONDS);
+  }
+
+  private void expire() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      if (deadlineNanos - System.nanoTime() > 0) {
+        // pet since the check was scheduled
+        scheduleCheck();
+        return;
+      }
+      stopped = true;
+      runner = Thread.currentThread();
+    }
     try {
+      runnable.runInterruptibly();
+    } catch (InterruptedException e) {
+      // the callback pool does not observe interrupts
+    } finally {
       synchronized (this) {
-        start = System.nanoTime();
-        while (!stopped && timeoutNanos > 0) {
-          this.wait(timeoutNanos / 1000000L, (int) (timeoutNanos % 1000000L));
-          long now = System.nanoTime();
-          timeoutNanos -= now - start;
-          start = now;
-        }
-        if (!stopped) {
-          runnable.runInterruptibly();
-        }
-        if (Thread.interrupted()) {
-          throw new InterruptedException();
-        }
-        done = true;
-        this.notify();
+        runner = null;
+        notifyAll();
       }
-    } catch (InterruptedException e) {
     }
   }
 
-  public void pet() {
-    reset(petTimeout);
-  }
-
-  private synchronized void reset(Duration timeout) {
-    start = System.nanoTime();
-    timeoutNanos = timeout.getSeconds() * 1000000000L + timeout.getNanos();
-    this.notify();
+  public synchronized void pet() {
+    deadlineNanos = System.nanoTime() + petTimeoutNanos;
   }
 
+  /** prevent the callback from running, or wait for it to complete if it has begun */
   public synchronized void stop() {
     stopped = true;
-    while (!done) {
-      this.notify();
+    if (check != null) {
+      check.cancel(false);
+    }
+    while (runner != null && runner != Thread.currentThread()) {
       try {
-        this.wait();
+        wait();
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
         break;
@@ -45,9 +45,29 @@ public final class ByteStreamHelper {
       Supplier<Backoff> backoffSupplier,
       Predicate<Status> isRetriable,
       @Nullable ListeningScheduledExecutorService retryService) {
+    return newInput(
+        resourceName,
+        offset,
+        /* limit=*/ 0,
+        bsStubSupplier,
+        backoffSupplier,
+        isRetriable,
+        retryService);
+  }
+
+  /** read at most limit bytes of resourceName from offset, unlimited if 0 */
+  public static final InputStream newInput(
+      String resourceName,
+      long offset,
+      long limit,
+      Supplier<ByteStreamStub> bsStubSupplier,
+      Supplier<Backoff> backoffSupplier,
+      Predicate<Status> isRetriable,
+      @Nullable ListeningScheduledExecutorService retryService) {
     ReadRequest request = ReadRequest.newBuilder()
         .setResourceName(resourceName)
         .setReadOffset(offset)
+        .setReadLimit(limit)
         .build();
     BlockingQueue<ByteString> queue = new ArrayBlockingQueue<>(1);
     ByteStringQueueInputStream inputStream = new ByteStringQueueInputStream(queue);
@@ -70,11 +90,12 @@ public final class ByteStreamHelper {
 
       private void retryRequest() {
         requestOffset = currentOffset;
-        bsStubSupplier.get().read(
-            request.toBuilder()
-                .setReadOffset(requestOffset)
-                .build(),
-            this);
+        ReadRequest.Builder retryRequest = request.toBuilder()
+            .setReadOffset(requestOffset);
+        if (limit != 0) {
+          retryRequest.setReadLimit(limit - (requestOffset - offset));
+        }
+        bsStubSupplier.get().read(retryRequest.build(), this);
       }
 
       @Override
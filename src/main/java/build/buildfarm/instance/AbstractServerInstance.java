@@ -70,6 +70,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -234,6 +235,21 @@ public abstract class AbstractServerInstance implements Instance {
     return contentAddressableStorage.newInput(digest, offset);
   }
 
+  @Override
+  public InputStream newBlobInput(
+      Digest digest,
+      long offset,
+      long limit,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) throws IOException {
+    InputStream in = newBlobInput(digest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
+    if (limit == 0) {
+      return in;
+    }
+    return ByteStreams.limit(in, limit);
+  }
+
   @Override
   public Write getBlobWrite(Digest digest, UUID uuid, RequestMetadata requestMetadata) {
     return contentAddressableStorage.getWrite(digest, uuid, requestMetadata);
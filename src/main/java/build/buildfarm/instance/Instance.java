@@ -76,6 +76,13 @@ public interface Instance {
       long deadlineAfter,
       TimeUnit deadlineAfterUnits,
       RequestMetadata requestMetadata) throws IOException;
+  InputStream newBlobInput(
+      Digest digest,
+      long offset,
+      long limit,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) throws IOException;
   ListenableFuture<Iterable<Response>> getAllBlobsFuture(Iterable<Digest> digests);
   String getTree(Digest rootDigest, int pageSize, String pageToken, Tree.Builder tree)
       throws IOException, InterruptedException;
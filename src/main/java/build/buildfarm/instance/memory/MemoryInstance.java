@@ -75,13 +75,11 @@ import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -101,9 +99,10 @@ import io.grpc.Status.Code;
 import io.grpc.StatusException;
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -142,8 +141,16 @@ public class MemoryInstance extends AbstractServerInstance {
           return newStreamSource(name);
         }
       });
-  private final List<Operation> queuedOperations = Lists.newArrayList();
-  private final List<Worker> workers;
+  // queued operations indexed by the platform required by their commands,
+  // so that a match considers only the head of each distinct platform
+  private final Map<Platform, Deque<PreparedOperation>> queuedOperations = Maps.newHashMap();
+  // guarded by queuedOperations
+  private final Set<String> queuedOperationNames = Sets.newHashSet();
+  private long queuedOperationSequence = 0;
+  // operations which failed to match when put, awaiting their enqueue
+  private final Map<String, PreparedOperation> unmatchedOperations = Maps.newConcurrentMap();
+  // waiting workers indexed by their platform, in order of arrival
+  private final Map<Platform, Deque<Worker>> workers;
   private final Map<String, Watchdog> requeuers;
   private final Map<String, Watchdog> operationTimeoutDelays;
   private final OperationsMap outstandingOperations;
@@ -167,6 +174,30 @@ public class MemoryInstance extends AbstractServerInstance {
     }
   }
 
+  // an operation with its action, command and input tree resolved once for
+  // dispatch, and retained while the operation waits in the queue
+  private static final class PreparedOperation {
+    private final Operation operation;
+    private final QueueEntry queueEntry;
+    private final ByteString queuedOperationBlob;
+    // guarded by queuedOperations
+    private long sequence = 0;
+
+    PreparedOperation(Operation operation, QueueEntry queueEntry, ByteString queuedOperationBlob) {
+      this.operation = operation;
+      this.queueEntry = queueEntry;
+      this.queuedOperationBlob = queuedOperationBlob;
+    }
+
+    String getName() {
+      return operation.getName();
+    }
+
+    Platform getPlatform() {
+      return queueEntry.getPlatform();
+    }
+  }
+
   static class OutstandingOperations implements OperationsMap {
     private final Map<String, Operation> map =
         synchronizedSortedMap(new TreeMap<>());
@@ -210,7 +241,7 @@ public class MemoryInstance extends AbstractServerInstance {
                 .build()),
         /* watcherExecutor=*/ newCachedThreadPool(),
         new OutstandingOperations(),
-        /* workers=*/ Lists.newArrayList(),
+        /* workers=*/ Maps.newLinkedHashMap(),
         /* requeuers=*/ Maps.newConcurrentMap(),
         /* operationTimeoutDelays=*/ Maps.newConcurrentMap());
   }
@@ -224,7 +255,7 @@ public class MemoryInstance extends AbstractServerInstance {
       SetMultimap<String, WatchFuture> watchers,
       Executor watcherExecutor,
       OperationsMap outstandingOperations,
-      List<Worker> workers,
+      Map<Platform, Deque<Worker>> workers,
       Map<String, Watchdog> requeuers,
       Map<String, Watchdog> operationTimeoutDelays) {
     super(
@@ -381,12 +412,43 @@ public class MemoryInstance extends AbstractServerInstance {
 
   @Override
   protected void enqueueOperation(Operation operation) {
+    // operations are enqueued only after a failed matchOperation
+    PreparedOperation preparedOperation = unmatchedOperations.remove(operation.getName());
+    Preconditions.checkState(preparedOperation != null, "operation was not prepared");
+    enqueuePreparedOperation(preparedOperation);
+  }
+
+  private void enqueuePreparedOperation(PreparedOperation preparedOperation) {
     synchronized (queuedOperations) {
-      Preconditions.checkState(!Iterables.any(queuedOperations, (queuedOperation) -> queuedOperation.getName().equals(operation.getName())));
-      queuedOperations.add(operation);
+      Preconditions.checkState(queuedOperationNames.add(preparedOperation.getName()));
+      preparedOperation.sequence = queuedOperationSequence++;
+      queuedOperations
+          .computeIfAbsent(preparedOperation.getPlatform(), (platform) -> new ArrayDeque<>())
+          .add(preparedOperation);
     }
   }
 
+  // takes the earliest queued operation which platform satisfies
+  private @Nullable PreparedOperation takeQueuedOperation(Platform platform) {
+    Deque<PreparedOperation> matchedOperations = null;
+    for (Map.Entry<Platform, Deque<PreparedOperation>> entry : queuedOperations.entrySet()) {
+      Deque<PreparedOperation> platformOperations = entry.getValue();
+      if ((matchedOperations == null || platformOperations.peek().sequence < matchedOperations.peek().sequence)
+          && satisfiesRequirements(platform, entry.getKey())) {
+        matchedOperations = platformOperations;
+      }
+    }
+    if (matchedOperations == null) {
+      return null;
+    }
+    PreparedOperation preparedOperation = matchedOperations.poll();
+    if (matchedOperations.isEmpty()) {
+      queuedOperations.remove(preparedOperation.getPlatform());
+    }
+    queuedOperationNames.remove(preparedOperation.getName());
+    return preparedOperation;
+  }
+
   @Override
   protected void updateOperationWatchers(Operation operation) throws InterruptedException {
     super.updateOperationWatchers(operation);
@@ -595,7 +657,7 @@ public class MemoryInstance extends AbstractServerInstance {
           }
         });
         operationTimeoutDelays.put(operationName, operationTimeoutDelay);
-        new Thread(operationTimeoutDelay).start();
+        operationTimeoutDelay.start();
       }
     }
     return true;
@@ -610,7 +672,7 @@ public class MemoryInstance extends AbstractServerInstance {
       requeueOperation(operation);
     });
     requeuers.put(operationName, requeuer);
-    new Thread(requeuer).start();
+    requeuer.start();
   }
 
   Tree getCompleteTree(Digest rootDigest) {
@@ -622,20 +684,37 @@ public class MemoryInstance extends AbstractServerInstance {
     return tree.build();
   }
 
-  // removes any instance of an existing listener in the workers list
-  private void removeWorker(MatchListener listener) {
+  // removes any instance of an existing listener in the workers index
+  private void removeWorker(Platform platform, MatchListener listener) {
     synchronized (workers) {
-      Iterator<Worker> iter = workers.iterator();
-      while (iter.hasNext()) {
-        if (iter.next().getListener() == listener) {
+      Deque<Worker> platformWorkers = workers.get(platform);
+      if (platformWorkers != null) {
+        platformWorkers.removeIf((worker) -> worker.getListener() == listener);
+        if (platformWorkers.isEmpty()) {
+          workers.remove(platform);
+        }
+      }
+    }
+  }
+
+  // takes the first waiting worker of a platform which satisfies requirements
+  private @Nullable Worker takeWorker(Platform requirements) {
+    Iterator<Map.Entry<Platform, Deque<Worker>>> iter = workers.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Platform, Deque<Worker>> entry = iter.next();
+      if (satisfiesRequirements(entry.getKey(), requirements)) {
+        Deque<Worker> platformWorkers = entry.getValue();
+        Worker worker = platformWorkers.poll();
+        if (platformWorkers.isEmpty()) {
           iter.remove();
         }
+        return worker;
       }
     }
+    return null;
   }
 
-  @Override
-  protected boolean matchOperation(Operation operation) throws InterruptedException {
+  private PreparedOperation prepareOperation(Operation operation) throws InterruptedException {
     ExecuteOperationMetadata metadata = expectExecuteOperationMetadata(operation);
     Preconditions.checkState(metadata != null, "metadata not found");
 
@@ -653,48 +732,58 @@ public class MemoryInstance extends AbstractServerInstance {
         RequestMetadata.getDefaultInstance()));
     Preconditions.checkState(command != null, "command not found");
 
-    Tree tree = getCompleteTree(action.getInputRootDigest());
-
     QueuedOperation queuedOperation = QueuedOperation.newBuilder()
         .setAction(action)
         .setCommand(command)
-        .setTree(tree)
+        .setTree(getCompleteTree(action.getInputRootDigest()))
         .build();
     ByteString queuedOperationBlob = queuedOperation.toByteString();
-    Digest queuedOperationDigest = getDigestUtil().compute(queuedOperationBlob);
+    QueueEntry queueEntry = QueueEntry.newBuilder()
+        // FIXME find a way to get this properly populated...
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName(operation.getName())
+            .setActionDigest(metadata.getActionDigest())
+            .setStdoutStreamName(metadata.getStdoutStreamName())
+            .setStderrStreamName(metadata.getStderrStreamName()))
+        .setQueuedOperationDigest(getDigestUtil().compute(queuedOperationBlob))
+        .setPlatform(command.getPlatform())
+        .build();
+    return new PreparedOperation(operation, queueEntry, queuedOperationBlob);
+  }
+
+  private void putQueuedOperation(PreparedOperation preparedOperation)
+      throws IOException, StatusException, InterruptedException {
+    putBlob(
+        this,
+        preparedOperation.queueEntry.getQueuedOperationDigest(),
+        preparedOperation.queuedOperationBlob,
+        60, SECONDS,
+        RequestMetadata.getDefaultInstance());
+  }
+
+  @Override
+  protected boolean matchOperation(Operation operation) throws InterruptedException {
+    PreparedOperation preparedOperation = prepareOperation(operation);
     String operationName = operation.getName();
+    // retained for the enqueue which follows a failed match
+    unmatchedOperations.put(operationName, preparedOperation);
     try {
-      putBlob(this, queuedOperationDigest, queuedOperationBlob, 60, SECONDS, RequestMetadata.getDefaultInstance());
+      putQueuedOperation(preparedOperation);
     } catch (StatusException|IOException e) {
       logger.log(SEVERE, format("could not emplace queued operation: %s", operationName), e);
       return false;
     }
 
-    ImmutableList.Builder<Worker> rejectedWorkers = new ImmutableList.Builder<>();
     boolean dispatched = false;
     synchronized (workers) {
-      while (!dispatched && !workers.isEmpty()) {
-        Worker worker = workers.remove(0);
-        if (!satisfiesRequirements(worker.getPlatform(), command.getPlatform())) {
-          rejectedWorkers.add(worker);
-        } else {
-          QueueEntry queueEntry = QueueEntry.newBuilder()
-              // FIXME find a way to get this properly populated...
-              .setExecuteEntry(ExecuteEntry.newBuilder()
-                  .setOperationName(operationName)
-                  .setActionDigest(metadata.getActionDigest())
-                  .setStdoutStreamName(metadata.getStdoutStreamName())
-                  .setStderrStreamName(metadata.getStderrStreamName()))
-              .setQueuedOperationDigest(queuedOperationDigest)
-              .setPlatform(command.getPlatform())
-              .build();
-          dispatched = worker.getListener().onEntry(queueEntry);
-          if (dispatched) {
-            onDispatched(operation);
-          }
-        }
+      Worker worker;
+      while (!dispatched && (worker = takeWorker(preparedOperation.getPlatform())) != null) {
+        dispatched = worker.getListener().onEntry(preparedOperation.queueEntry);
       }
-      Iterables.addAll(workers, rejectedWorkers.build());
+    }
+    if (dispatched) {
+      unmatchedOperations.remove(operationName);
+      onDispatched(operation);
     }
     return dispatched;
   }
@@ -702,74 +791,30 @@ public class MemoryInstance extends AbstractServerInstance {
   private void matchSynchronized(
       Platform platform,
       MatchListener listener) throws InterruptedException {
-    ImmutableList.Builder<Operation> rejectedOperations = ImmutableList.builder();
     boolean matched = false;
-    while (!matched && !queuedOperations.isEmpty()) {
-      Operation operation = queuedOperations.remove(0);
-      ExecuteOperationMetadata metadata = expectExecuteOperationMetadata(operation);
-      Preconditions.checkState(metadata != null, "metadata not found");
-
-      Action action = getUnchecked(expect(
-          metadata.getActionDigest(),
-          Action.parser(),
-          newDirectExecutorService(),
-          RequestMetadata.getDefaultInstance()));
-      Preconditions.checkState(action != null, "action not found");
-
-      Command command = getUnchecked(expect(
-          action.getCommandDigest(),
-          Command.parser(),
-          newDirectExecutorService(),
-          RequestMetadata.getDefaultInstance()));
-      Preconditions.checkState(command != null, "command not found");
-
-      String operationName = operation.getName();
-      if (command == null) {
-        cancelOperation(operationName);
-      } else if (satisfiesRequirements(platform, command.getPlatform())) {
-        QueuedOperation queuedOperation = QueuedOperation.newBuilder()
-            .setAction(action)
-            .setCommand(command)
-            .setTree(getCompleteTree(action.getInputRootDigest()))
-            .build();
-        ByteString queuedOperationBlob = queuedOperation.toByteString();
-        Digest queuedOperationDigest = getDigestUtil().compute(queuedOperationBlob);
-        // maybe do this elsewhere
-        try {
-          putBlob(this, queuedOperationDigest, queuedOperationBlob, 60, SECONDS, RequestMetadata.getDefaultInstance());
-
-          QueueEntry queueEntry = QueueEntry.newBuilder()
-              // FIXME find a way to get this properly populated...
-              .setExecuteEntry(ExecuteEntry.newBuilder()
-                  .setOperationName(operationName)
-                  .setActionDigest(metadata.getActionDigest())
-                  .setStdoutStreamName(metadata.getStdoutStreamName())
-                  .setStderrStreamName(metadata.getStderrStreamName()))
-              .setQueuedOperationDigest(queuedOperationDigest)
-              .setPlatform(command.getPlatform())
-              .build();
-
-          matched = true;
-          if (listener.onEntry(queueEntry)) {
-            onDispatched(operation);
-          } else {
-            enqueueOperation(operation);
-          }
-        } catch (StatusException|IOException e) {
-          logger.log(SEVERE, format("could not emplace queued operation: %s", operationName), e);
+    PreparedOperation preparedOperation;
+    while (!matched && (preparedOperation = takeQueuedOperation(platform)) != null) {
+      // maybe do this elsewhere
+      try {
+        putQueuedOperation(preparedOperation);
+
+        matched = true;
+        if (listener.onEntry(preparedOperation.queueEntry)) {
+          onDispatched(preparedOperation.operation);
+        } else {
+          enqueuePreparedOperation(preparedOperation);
         }
-      } else {
-        rejectedOperations.add(operation);
+      } catch (StatusException|IOException e) {
+        logger.log(SEVERE, format("could not emplace queued operation: %s", preparedOperation.getName()), e);
       }
     }
-    for (Operation operation : rejectedOperations.build()) {
-      requeueOperation(operation);
-    }
     if (!matched) {
       synchronized(workers) {
-        listener.setOnCancelHandler(() -> removeWorker(listener));
+        listener.setOnCancelHandler(() -> removeWorker(platform, listener));
         listener.onWaitStart();
-        workers.add(new Worker(platform, listener));
+        workers
+            .computeIfAbsent(platform, (workerPlatform) -> new ArrayDeque<>())
+            .add(new Worker(platform, listener));
       }
     }
   }
@@ -0,0 +1,190 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.instance.Instance;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent reads of small blobs from a worker into
+ * BatchReadBlobs requests.
+ *
+ * A read is requested immediately while fewer than maxBatchesInFlight
+ * requests are outstanding to its worker, and otherwise joins a pending
+ * batch, bounded by maxBatchSizeBytes of content, which is requested as an
+ * outstanding request completes. Concurrent fetches of many small inputs
+ * are served with a request per batch rather than a stream per blob, and
+ * an isolated read is not delayed.
+ */
+class BatchedBlobReader {
+  private static final class Batch {
+    final Map<Digest, SettableFuture<ByteString>> reads = new LinkedHashMap<>();
+    long sizeBytes = 0;
+  }
+
+  private static final class WorkerReads {
+    // guarded by this
+    final Deque<Batch> pendingBatches = new ArrayDeque<>();
+    final Map<Digest, SettableFuture<ByteString>> pendingReads = new HashMap<>();
+    int batchesInFlight = 0;
+  }
+
+  private final Function<String, Instance> workerStub;
+  private final long maxBlobSizeBytes;
+  private final long maxBatchSizeBytes;
+  private final int maxBatchesInFlight;
+  private final ConcurrentMap<String, WorkerReads> workerReads = new ConcurrentHashMap<>();
+
+  BatchedBlobReader(
+      Function<String, Instance> workerStub,
+      long maxBlobSizeBytes,
+      long maxBatchSizeBytes,
+      int maxBatchesInFlight) {
+    checkArgument(maxBlobSizeBytes <= maxBatchSizeBytes, "blobs must fit within a batch");
+    this.workerStub = workerStub;
+    this.maxBlobSizeBytes = maxBlobSizeBytes;
+    this.maxBatchSizeBytes = maxBatchSizeBytes;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+  }
+
+  boolean isBatchable(Digest digest) {
+    return digest.getSizeBytes() > 0 && digest.getSizeBytes() <= maxBlobSizeBytes;
+  }
+
+  /**
+   * read the content of a small blob from worker, failing with the
+   * StatusRuntimeException of its batch response or request
+   */
+  ListenableFuture<ByteString> read(String worker, Digest digest) {
+    checkArgument(isBatchable(digest), "%s is not batchable", DigestUtil.toString(digest));
+    WorkerReads reads = workerReads.computeIfAbsent(worker, (name) -> new WorkerReads());
+    SettableFuture<ByteString> read;
+    List<Batch> batches;
+    synchronized (reads) {
+      read = reads.pendingReads.get(digest);
+      if (read != null) {
+        // already awaiting a request
+        return read;
+      }
+      read = SettableFuture.create();
+      reads.pendingReads.put(digest, read);
+      Batch batch = reads.pendingBatches.peekLast();
+      if (batch == null || batch.sizeBytes + digest.getSizeBytes() > maxBatchSizeBytes) {
+        batch = new Batch();
+        reads.pendingBatches.addLast(batch);
+      }
+      batch.reads.put(digest, read);
+      batch.sizeBytes += digest.getSizeBytes();
+      batches = takeRequestableBatches(reads);
+    }
+    request(worker, reads, batches);
+    return read;
+  }
+
+  private List<Batch> takeRequestableBatches(WorkerReads reads) {
+    ImmutableList.Builder<Batch> batches = ImmutableList.builder();
+    while (reads.batchesInFlight < maxBatchesInFlight && !reads.pendingBatches.isEmpty()) {
+      Batch batch = reads.pendingBatches.removeFirst();
+      reads.pendingReads.keySet().removeAll(batch.reads.keySet());
+      reads.batchesInFlight++;
+      batches.add(batch);
+    }
+    return batches.build();
+  }
+
+  private void request(String worker, WorkerReads reads, List<Batch> batches) {
+    for (Batch batch : batches) {
+      ListenableFuture<Iterable<Response>> responses;
+      try {
+        responses = workerStub.apply(worker).getAllBlobsFuture(ImmutableList.copyOf(batch.reads.keySet()));
+      } catch (RuntimeException e) {
+        responses = immediateFailedFuture(e);
+      }
+      addCallback(
+          responses,
+          new FutureCallback<Iterable<Response>>() {
+            @Override
+            public void onSuccess(Iterable<Response> responses) {
+              complete(batch, responses);
+              onBatchComplete(worker, reads);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              Status status = Status.fromThrowable(t);
+              for (SettableFuture<ByteString> read : batch.reads.values()) {
+                read.setException(status.asRuntimeException());
+              }
+              onBatchComplete(worker, reads);
+            }
+          },
+          directExecutor());
+    }
+  }
+
+  private void onBatchComplete(String worker, WorkerReads reads) {
+    List<Batch> batches;
+    synchronized (reads) {
+      reads.batchesInFlight--;
+      batches = takeRequestableBatches(reads);
+    }
+    request(worker, reads, batches);
+  }
+
+  private static void complete(Batch batch, Iterable<Response> responses) {
+    for (Response response : responses) {
+      SettableFuture<ByteString> read = batch.reads.get(response.getDigest());
+      if (read == null) {
+        continue;
+      }
+      Status status = Status.fromCodeValue(response.getStatus().getCode());
+      if (status.isOk()) {
+        read.set(response.getData());
+      } else {
+        read.setException(status
+            .withDescription(response.getStatus().getMessage())
+            .asRuntimeException());
+      }
+    }
+    for (Map.Entry<Digest, SettableFuture<ByteString>> entry : batch.reads.entrySet()) {
+      // no effect on completed reads
+      entry.getValue().setException(Status.INTERNAL
+          .withDescription("no batch response for " + DigestUtil.toString(entry.getKey()))
+          .asRuntimeException());
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static java.lang.String.format;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+import javax.annotation.Nullable;
+
+/**
+ * Retains the content of small blobs read through the instance, bounded by
+ * the total size of its content, to avoid repeated worker reads of hot
+ * blobs.
+ */
+class BlobReadCache {
+  private final long maxEntrySizeBytes;
+  private final Cache<Digest, ByteString> blobs;
+  private CacheStats reportedStats;
+
+  BlobReadCache(long maxSizeBytes, long maxEntrySizeBytes) {
+    this.maxEntrySizeBytes = maxEntrySizeBytes;
+    blobs = CacheBuilder.newBuilder()
+        .maximumWeight(maxSizeBytes)
+        .weigher((Digest digest, ByteString content) -> content.size())
+        .recordStats()
+        .build();
+    reportedStats = blobs.stats();
+  }
+
+  boolean isCacheable(Digest digest) {
+    return digest.getSizeBytes() != 0 && digest.getSizeBytes() <= maxEntrySizeBytes;
+  }
+
+  @Nullable
+  ByteString getIfPresent(Digest digest) {
+    return blobs.getIfPresent(digest);
+  }
+
+  void put(Digest digest, ByteString content) {
+    if (isCacheable(digest) && content.size() == digest.getSizeBytes()) {
+      blobs.put(digest, content);
+    }
+  }
+
+  /** describe the hit rate and evictions since the last report */
+  synchronized String report() {
+    CacheStats stats = blobs.stats();
+    CacheStats intervalStats = stats.minus(reportedStats);
+    reportedStats = stats;
+    return format(
+        "%d requests, %.1f%% hit rate, %d evictions, %d entries",
+        intervalStats.requestCount(),
+        intervalStats.hitRate() * 100,
+        intervalStats.evictionCount(),
+        blobs.size());
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static java.util.logging.Level.SEVERE;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.ContentSummaryFilter;
+import build.buildfarm.common.ShardBackplane;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A snapshot of the content summaries published by workers, used to find
+ * the likely holders of blobs without a backplane request per blob.
+ *
+ * The snapshot is replaced by refresh, which is run periodically by the
+ * owner of the summaries, and which retrieves only the summaries whose
+ * published versions have changed, as deltas of the retained summaries
+ * where the backplane has them. Lookups never wait for the backplane.
+ *
+ * Summaries lag the content of workers by up to their publish period plus
+ * the refresh period, and admit false positives, so a likely holder may
+ * not hold a blob, and a recently inserted blob may be absent from its
+ * holder's summary. Callers must correct failed reads from likely holders
+ * with a search of the workers.
+ */
+public class ContentSummaries {
+  private static final Logger logger = Logger.getLogger(ContentSummaries.class.getName());
+
+  private final ShardBackplane backplane;
+  private final boolean exclusive;
+  private volatile Map<String, ContentSummary> summaries = ImmutableMap.of();
+  // guarded by this
+  private Map<String, Long> versions = ImmutableMap.of();
+
+  /**
+   * exclusive summaries locate blobs without the backplane location sets,
+   * which must only be used if every worker publishes a summary
+   */
+  public ContentSummaries(ShardBackplane backplane, boolean exclusive) {
+    this.backplane = backplane;
+    this.exclusive = exclusive;
+  }
+
+  /**
+   * replace the snapshot with the current summaries, retrieving those whose
+   * versions have changed, and retaining the previous snapshot if the
+   * backplane is unavailable
+   */
+  public synchronized void refresh() {
+    try {
+      Map<String, Long> publishedVersions = backplane.getContentSummaryVersions();
+      ImmutableList.Builder<String> advanced = ImmutableList.builder();
+      for (Map.Entry<String, Long> entry : publishedVersions.entrySet()) {
+        Long version = versions.get(entry.getKey());
+        if (version != null && entry.getValue() == version + 1 && summaries.containsKey(entry.getKey())) {
+          advanced.add(entry.getKey());
+        }
+      }
+      Map<String, ContentSummary> updated = Maps.newHashMap();
+      for (Map.Entry<String, ContentSummaryDelta> entry : backplane.getContentSummaryDeltas(advanced.build()).entrySet()) {
+        String worker = entry.getKey();
+        ContentSummaryDelta delta = entry.getValue();
+        // a delta of a later publication is not applicable
+        if (delta.getBaseVersion() == versions.get(worker)) {
+          updated.put(worker, ContentSummaryFilter.apply(summaries.get(worker), delta));
+        }
+      }
+      ImmutableList.Builder<String> changed = ImmutableList.builder();
+      for (Map.Entry<String, Long> entry : publishedVersions.entrySet()) {
+        String worker = entry.getKey();
+        if (!updated.containsKey(worker) && !entry.getValue().equals(versions.get(worker))) {
+          changed.add(worker);
+        }
+      }
+      updated.putAll(backplane.getContentSummaries(changed.build()));
+      ImmutableMap.Builder<String, ContentSummary> refreshed = ImmutableMap.builder();
+      ImmutableMap.Builder<String, Long> refreshedVersions = ImmutableMap.builder();
+      for (Map.Entry<String, Long> entry : publishedVersions.entrySet()) {
+        String worker = entry.getKey();
+        ContentSummary summary = updated.get(worker);
+        if (summary == null && entry.getValue().equals(versions.get(worker))) {
+          summary = summaries.get(worker);
+        }
+        // workers without summaries are retried with the next refresh
+        if (summary != null) {
+          refreshed.put(worker, summary);
+          refreshedVersions.put(worker, entry.getValue());
+        }
+      }
+      summaries = refreshed.build();
+      versions = refreshedVersions.build();
+    } catch (IOException e) {
+      logger.log(SEVERE, "error refreshing content summaries", e);
+    }
+  }
+
+  /** the current snapshot of summaries */
+  Map<String, ContentSummary> get() {
+    return summaries;
+  }
+
+  /** the summarized workers whose summaries contain digest */
+  public Set<String> getLikelyHolders(Digest digest) {
+    ImmutableSet.Builder<String> holders = ImmutableSet.builder();
+    for (Map.Entry<String, ContentSummary> entry : summaries.entrySet()) {
+      if (ContentSummaryFilter.mightContain(entry.getValue(), digest)) {
+        holders.add(entry.getKey());
+      }
+    }
+    return holders.build();
+  }
+
+  /**
+   * the workers among candidates which likely hold digest, or the location
+   * set of digest if no summary contains it and summaries are not exclusive,
+   * as for a blob inserted since the last refresh. An empty result should be
+   * corrected with a search of the workers.
+   */
+  public Set<String> locate(Digest digest, Set<String> candidates) throws IOException {
+    Set<String> likelyHolders;
+    synchronized (candidates) {
+      likelyHolders = Sets.intersection(getLikelyHolders(digest), candidates).immutableCopy();
+    }
+    if (!likelyHolders.isEmpty() || exclusive) {
+      return likelyHolders;
+    }
+    return backplane.getBlobLocationSet(digest);
+  }
+
+  /** the number of digests contained in the summary of worker */
+  int countLikelyHeld(String worker, Iterable<Digest> digests) {
+    ContentSummary summary = summaries.get(worker);
+    if (summary == null) {
+      return 0;
+    }
+    int count = 0;
+    for (Digest digest : digests) {
+      if (ContentSummaryFilter.mightContain(summary, digest)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
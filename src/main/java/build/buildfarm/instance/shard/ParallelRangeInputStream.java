@@ -0,0 +1,247 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static java.lang.String.format;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.protobuf.ByteString;
+import io.grpc.StatusRuntimeException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads a large blob as consecutive ranges fetched concurrently from the
+ * workers which hold it, presenting its content in order.
+ *
+ * Up to maxRangesInFlight ranges are fetched ahead of the reader, each
+ * from the next worker in turn. A range which cannot be read from a worker
+ * is retried from the next, and the failed worker is requested no further
+ * ranges. Content is not verified here, a write of the stream into the
+ * CAS verifies the digest of the assembled blob.
+ *
+ * Every range which is fetched or buffered holds a permit from buffers,
+ * which is shared by the streams of a process to bound their memory and
+ * the range reads in their service. The creator of a stream acquires its
+ * first permit, so that the stream always progresses, and further ranges
+ * are fetched ahead only while permits are available.
+ */
+class ParallelRangeInputStream extends InputStream {
+  interface RangeReader {
+    /** read limit bytes of the blob from offset on worker */
+    ByteString read(String worker, long offset, long limit) throws IOException, InterruptedException;
+  }
+
+  private final Digest digest;
+  private final RangeReader rangeReader;
+  private final long rangeSizeBytes;
+  private final int maxRangesInFlight;
+  private final ListeningExecutorService service;
+  private final Semaphore buffers;
+  private int buffersHeld = 1; // the first is acquired by the creator
+  private boolean currentBuffered = false; // true if current is an unconsumed range
+  // guarded by itself, the rotation of workers which have not failed
+  private final Deque<String> workers;
+  private final Deque<ListenableFuture<ByteString>> ranges = new ArrayDeque<>();
+  private long nextRangeOffset = 0;
+  private InputStream current = ByteString.EMPTY.newInput();
+  private boolean closed = false;
+
+  ParallelRangeInputStream(
+      Digest digest,
+      List<String> workers,
+      RangeReader rangeReader,
+      long rangeSizeBytes,
+      int maxRangesInFlight,
+      ListeningExecutorService service,
+      Semaphore buffers) {
+    this.digest = digest;
+    this.workers = new ArrayDeque<>(workers);
+    this.rangeReader = rangeReader;
+    this.rangeSizeBytes = rangeSizeBytes;
+    this.maxRangesInFlight = maxRangesInFlight;
+    this.service = service;
+    this.buffers = buffers;
+    requestRanges();
+    releaseSurplusBuffers();
+  }
+
+  private int buffered() {
+    return ranges.size() + (currentBuffered ? 1 : 0);
+  }
+
+  private boolean reserveBuffer() {
+    if (buffered() < buffersHeld) {
+      return true;
+    }
+    if (buffers.tryAcquire()) {
+      buffersHeld++;
+      return true;
+    }
+    return false;
+  }
+
+  private void requestRanges() {
+    while (ranges.size() < maxRangesInFlight
+        && nextRangeOffset < digest.getSizeBytes()
+        && reserveBuffer()) {
+      long offset = nextRangeOffset;
+      long limit = Math.min(rangeSizeBytes, digest.getSizeBytes() - offset);
+      ranges.addLast(service.submit(() -> readRange(offset, limit)));
+      nextRangeOffset += limit;
+    }
+  }
+
+  private void releaseSurplusBuffers() {
+    // retain one permit for the remainder of the stream
+    while (buffersHeld > Math.max(1, buffered())) {
+      buffers.release();
+      buffersHeld--;
+    }
+  }
+
+  private void releaseBuffers() {
+    buffers.release(buffersHeld);
+    buffersHeld = 0;
+  }
+
+  private String nextWorker() {
+    synchronized (workers) {
+      String worker = workers.pollFirst();
+      if (worker != null) {
+        workers.addLast(worker);
+      }
+      return worker;
+    }
+  }
+
+  private void removeWorker(String worker) {
+    synchronized (workers) {
+      workers.remove(worker);
+    }
+  }
+
+  private ByteString readRange(long offset, long limit) throws IOException, InterruptedException {
+    IOException failure = null;
+    for (String worker = nextWorker(); worker != null; worker = nextWorker()) {
+      try {
+        ByteString content = rangeReader.read(worker, offset, limit);
+        if (content.size() == limit) {
+          return content;
+        }
+        failure = new IOException(format(
+            "%s returned %d bytes for %d at %d of %s",
+            worker,
+            content.size(),
+            limit,
+            offset,
+            DigestUtil.toString(digest)));
+      } catch (IOException e) {
+        failure = e;
+      } catch (StatusRuntimeException e) {
+        failure = new IOException(e);
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      removeWorker(worker);
+    }
+    if (failure == null) {
+      failure = new IOException("no workers remain to read " + DigestUtil.toString(digest));
+    }
+    throw failure;
+  }
+
+  private boolean nextRange() throws IOException {
+    // the consumed range releases its buffer to the next
+    currentBuffered = false;
+    requestRanges();
+    ListenableFuture<ByteString> range = ranges.pollFirst();
+    if (range == null) {
+      releaseBuffers();
+      return false;
+    }
+    currentBuffered = true;
+    requestRanges();
+    releaseSurplusBuffers();
+    try {
+      current = range.get().newInput();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == -1 ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("stream is closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    for (;;) {
+      int n = current.read(b, off, len);
+      if (n != -1) {
+        return n;
+      }
+      if (!nextRange()) {
+        return -1;
+      }
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return closed ? 0 : current.available();
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      for (ListenableFuture<ByteString> range : ranges) {
+        range.cancel(true);
+      }
+      ranges.clear();
+      current = ByteString.EMPTY.newInput();
+      currentBuffered = false;
+      releaseBuffers();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static java.lang.String.format;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Accumulates per-phase timings of the operation queuer between reports. */
+class QueuerTimings {
+  enum Phase {
+    CAN_QUEUE("canQueue"),
+    DISPATCH("dispatch"),
+    CHECK_CACHE("checkCache"),
+    TRANSFORM("transform"),
+    VALIDATE("validate"),
+    UPLOAD("upload"),
+    QUEUE("queue");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  private static class Accumulator {
+    final LongAdder count = new LongAdder();
+    final LongAdder totalUSecs = new LongAdder();
+  }
+
+  private final Map<Phase, Accumulator> accumulators = new EnumMap<>(Phase.class);
+
+  QueuerTimings() {
+    for (Phase phase : Phase.values()) {
+      accumulators.put(phase, new Accumulator());
+    }
+  }
+
+  void add(Phase phase, long usecs) {
+    Accumulator accumulator = accumulators.get(phase);
+    accumulator.count.increment();
+    accumulator.totalUSecs.add(usecs);
+  }
+
+  /** describe the mean time spent in each phase since the last report */
+  String report() {
+    StringBuilder report = new StringBuilder();
+    for (Phase phase : Phase.values()) {
+      Accumulator accumulator = accumulators.get(phase);
+      long count = accumulator.count.sumThenReset();
+      long totalUSecs = accumulator.totalUSecs.sumThenReset();
+      if (report.length() != 0) {
+        report.append(", ");
+      }
+      report.append(format(
+          "%s %d x %dus",
+          phase.label,
+          count,
+          count == 0 ? 0 : totalUSecs / count));
+    }
+    return report.toString();
+  }
+}
@@ -16,6 +16,7 @@ package build.buildfarm.instance.shard;
 
 import static redis.clients.jedis.ScanParams.SCAN_POINTER_START;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.ActionResult;
@@ -30,6 +31,8 @@ import build.buildfarm.common.Watcher;
 import build.buildfarm.common.function.InterruptingRunnable;
 import build.buildfarm.instance.shard.RedisShardSubscriber.TimedWatchFuture;
 import build.buildfarm.v1test.CompletedOperationMetadata;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
 import build.buildfarm.v1test.DispatchedOperation;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
@@ -695,6 +698,13 @@ public class RedisShardBackplane implements ShardBackplane {
   }
 
   private boolean removeWorkerAndPublish(JedisCluster jedis, String name, String changeJson) {
+    if (!config.getContentSummariesHashName().isEmpty()) {
+      jedis.hdel(config.getContentSummariesHashName(), name);
+      jedis.hdel(config.getContentSummaryVersionsHashName(), name);
+      if (!config.getContentSummaryDeltasHashName().isEmpty()) {
+        jedis.hdel(config.getContentSummaryDeltasHashName(), name);
+      }
+    }
     if (jedis.hdel(config.getWorkersHashName(), name) == 1) {
       jedis.publish(config.getWorkerChannel(), changeJson);
       return true;
@@ -1251,6 +1261,18 @@ public class RedisShardBackplane implements ShardBackplane {
     });
   }
 
+  @Override
+  public void deferOperation(QueueEntry queueEntry) throws IOException {
+    String operationName = queueEntry.getExecuteEntry().getOperationName();
+    String queueEntryJson = JsonFormat.printer().print(queueEntry);
+    withVoidBackplaneException((jedis) -> {
+      if (jedis.hdel(config.getDispatchedOperationsHashName(), operationName) == 1) {
+        // dispatch pops from the head, at the right
+        jedis.lpush(config.getQueuedOperationsListName(), queueEntryJson);
+      }
+    });
+  }
+
   @Override
   public boolean pollOperation(QueueEntry queueEntry, ExecutionStage.Value stage, long requeueAt) throws IOException {
     String operationName = queueEntry.getExecuteEntry().getOperationName();
@@ -1277,6 +1299,68 @@ public class RedisShardBackplane implements ShardBackplane {
     });
   }
 
+  @Override
+  public Set<String> pollOperations(Iterable<QueueEntry> queueEntries, long requeueAt) throws IOException {
+    Set<String> unprintable = new HashSet<>();
+    Map<String, String> dispatchedOperations = Maps.newLinkedHashMap();
+    for (QueueEntry queueEntry : queueEntries) {
+      String operationName = queueEntry.getExecuteEntry().getOperationName();
+      DispatchedOperation o = DispatchedOperation.newBuilder()
+          .setQueueEntry(queueEntry)
+          .setRequeueAt(requeueAt)
+          .build();
+      try {
+        dispatchedOperations.put(operationName, JsonFormat.printer().print(o));
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(SEVERE, "error printing dispatched operation " + operationName, e);
+        unprintable.add(operationName);
+      }
+    }
+    if (dispatchedOperations.isEmpty()) {
+      return unprintable;
+    }
+    String dispatchedOperationsHashName = config.getDispatchedOperationsHashName();
+    return withBackplaneException((jedis) -> {
+      Set<String> invalidOperationNames = new HashSet<>(unprintable);
+
+      // the existence of every operation is checked in one round trip, and
+      // the existing operations are updated in another
+      JedisClusterPipeline p = jedis.pipelined();
+      Map<String, Response<Boolean>> exists = Maps.newLinkedHashMap();
+      for (String operationName : dispatchedOperations.keySet()) {
+        exists.put(operationName, p.hexists(dispatchedOperationsHashName, operationName));
+      }
+      p.sync();
+
+      p = jedis.pipelined();
+      Map<String, Response<Long>> updates = Maps.newLinkedHashMap();
+      for (Map.Entry<String, String> entry : dispatchedOperations.entrySet()) {
+        String operationName = entry.getKey();
+        if (exists.get(operationName).get()) {
+          updates.put(operationName, p.hset(dispatchedOperationsHashName, operationName, entry.getValue()));
+        } else {
+          invalidOperationNames.add(operationName);
+        }
+      }
+      p.sync();
+
+      List<String> removedOperationNames = new ArrayList<>();
+      for (Map.Entry<String, Response<Long>> entry : updates.entrySet()) {
+        if (entry.getValue().get() != 0) {
+          removedOperationNames.add(entry.getKey());
+        }
+      }
+      if (!removedOperationNames.isEmpty()) {
+        /* someone else beat us to the punch, delete our incorrectly added keys */
+        jedis.hdel(
+            dispatchedOperationsHashName,
+            removedOperationNames.toArray(new String[removedOperationNames.size()]));
+        invalidOperationNames.addAll(removedOperationNames);
+      }
+      return invalidOperationNames;
+    });
+  }
+
   @Override
   public void prequeue(ExecuteEntry executeEntry, Operation operation) throws IOException {
     String operationName = operation.getName();
@@ -1415,4 +1499,96 @@ public class RedisShardBackplane implements ShardBackplane {
     return maxPreQueueDepth < 0
         || withBackplaneException((jedis) -> jedis.llen(config.getPreQueuedOperationsListName()) < maxPreQueueDepth);
   }
+
+  @Override
+  public void putContentSummary(String workerName, ContentSummary summary, ContentSummaryDelta delta) throws IOException {
+    byte[] summariesKey = config.getContentSummariesHashName().getBytes(UTF_8);
+    String deltasHashName = config.getContentSummaryDeltasHashName();
+    withVoidBackplaneException((jedis) -> {
+      // each worker is the only publisher of its summary
+      String version = jedis.hget(config.getContentSummaryVersionsHashName(), workerName);
+      jedis.hset(summariesKey, workerName.getBytes(UTF_8), summary.toByteArray());
+      if (!deltasHashName.isEmpty()) {
+        if (delta != null && version != null) {
+          jedis.hset(
+              deltasHashName.getBytes(UTF_8),
+              workerName.getBytes(UTF_8),
+              delta.toBuilder().setBaseVersion(Long.parseLong(version)).build().toByteArray());
+        } else {
+          jedis.hdel(deltasHashName, workerName);
+        }
+      }
+      // the version follows its summary and delta, so that a summary is
+      // never retained by readers with a newer version
+      jedis.hincrBy(config.getContentSummaryVersionsHashName(), workerName, 1);
+    });
+  }
+
+  @Override
+  public Map<String, Long> getContentSummaryVersions() throws IOException {
+    Map<String, String> versions = withBackplaneException((jedis) -> jedis.hgetAll(config.getContentSummaryVersionsHashName()));
+    ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+    for (Map.Entry<String, String> entry : versions.entrySet()) {
+      try {
+        builder.put(entry.getKey(), Long.parseLong(entry.getValue()));
+      } catch (NumberFormatException e) {
+        logger.log(SEVERE, format("invalid content summary version for %s: %s", entry.getKey(), entry.getValue()));
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public Map<String, ContentSummary> getContentSummaries(Iterable<String> workerNames) throws IOException {
+    List<String> names = ImmutableList.copyOf(workerNames);
+    if (names.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    byte[] summariesKey = config.getContentSummariesHashName().getBytes(UTF_8);
+    byte[][] fields = new byte[names.size()][];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = names.get(i).getBytes(UTF_8);
+    }
+    List<byte[]> summaries = withBackplaneException((jedis) -> jedis.hmget(summariesKey, fields));
+    ImmutableMap.Builder<String, ContentSummary> builder = ImmutableMap.builder();
+    for (int i = 0; i < names.size(); i++) {
+      byte[] summary = summaries.get(i);
+      if (summary == null) {
+        continue;
+      }
+      try {
+        builder.put(names.get(i), ContentSummary.parseFrom(summary));
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(SEVERE, format("error parsing content summary for %s", names.get(i)), e);
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public Map<String, ContentSummaryDelta> getContentSummaryDeltas(Iterable<String> workerNames) throws IOException {
+    List<String> names = ImmutableList.copyOf(workerNames);
+    if (names.isEmpty() || config.getContentSummaryDeltasHashName().isEmpty()) {
+      return ImmutableMap.of();
+    }
+    byte[] deltasKey = config.getContentSummaryDeltasHashName().getBytes(UTF_8);
+    byte[][] fields = new byte[names.size()][];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = names.get(i).getBytes(UTF_8);
+    }
+    List<byte[]> deltas = withBackplaneException((jedis) -> jedis.hmget(deltasKey, fields));
+    ImmutableMap.Builder<String, ContentSummaryDelta> builder = ImmutableMap.builder();
+    for (int i = 0; i < names.size(); i++) {
+      byte[] delta = deltas.get(i);
+      if (delta == null) {
+        continue;
+      }
+      try {
+        builder.put(names.get(i), ContentSummaryDelta.parseFrom(delta));
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(SEVERE, format("error parsing content summary delta for %s", names.get(i)), e);
+      }
+    }
+    return builder.build();
+  }
 }
@@ -17,19 +17,25 @@ package build.buildfarm.instance.shard;
 import static build.buildfarm.instance.shard.Util.SHARD_IS_RETRIABLE;
 import static build.buildfarm.instance.shard.Util.correctMissingBlob;
 import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.Futures.getDone;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.lang.String.format;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.RequestMetadata;
 import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.HedgedReads;
 import build.buildfarm.common.InputStreamFactory;
+import build.buildfarm.common.ReadPolicy;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.common.grpc.Retrier;
 import build.buildfarm.instance.Instance;
@@ -40,8 +46,10 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
@@ -50,17 +58,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 public class RemoteInputStreamFactory implements InputStreamFactory {
   private static final Logger logger = Logger.getLogger(RemoteInputStreamFactory.class.getName());
 
+  public static final long DEFAULT_BATCH_MAX_BLOB_SIZE_BYTES = 64 * 1024;
+
+  // within the default grpc max inbound message size
+  private static final long BATCH_MAX_SIZE_BYTES = 2 * 1024 * 1024;
+  private static final int BATCH_MAX_IN_FLIGHT = 4;
+
+  private static final long PARALLEL_READ_RANGE_SIZE_BYTES = 16 * 1024 * 1024;
+  private static final int PARALLEL_READ_MAX_RANGES_IN_FLIGHT = 4;
+  // bounds the ranges buffered and read by all parallel reads
+  private static final int PARALLEL_READ_MAX_BUFFERED_RANGES = 8;
+
   public interface UnavailableConsumer {
     void accept(String worker, Throwable t, String context);
   }
@@ -70,13 +94,32 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
   private final Random rand;
   private final LoadingCache<String, Instance> workerStubs;
   private final UnavailableConsumer onUnavailable;
+  private final ReadPolicy readPolicy;
+  private final ListeningExecutorService hedgeService;
+  private final BatchedBlobReader batchedBlobReader;
+  private final long parallelReadMinBlobSizeBytes;
+  private final @Nullable ContentSummaries contentSummaries;
+  private final Semaphore parallelReadBuffers = new Semaphore(PARALLEL_READ_MAX_BUFFERED_RANGES);
 
   RemoteInputStreamFactory(
       ShardBackplane backplane,
       Random rand,
       LoadingCache<String, Instance> workerStubs,
-      UnavailableConsumer onUnavailable) {
-    this(/* publicName=*/ null, backplane, rand, workerStubs, onUnavailable);
+      UnavailableConsumer onUnavailable,
+      ReadPolicy readPolicy,
+      ExecutorService hedgeService,
+      @Nullable ContentSummaries contentSummaries) {
+    this(
+        /* publicName=*/ null,
+        backplane,
+        rand,
+        workerStubs,
+        onUnavailable,
+        readPolicy,
+        hedgeService,
+        DEFAULT_BATCH_MAX_BLOB_SIZE_BYTES,
+        /* parallelReadMinBlobSizeBytes=*/ 0,
+        contentSummaries);
   }
 
   public RemoteInputStreamFactory(
@@ -84,12 +127,26 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
       ShardBackplane backplane,
       Random rand,
       LoadingCache<String, Instance> workerStubs,
-      UnavailableConsumer onUnavailable) {
+      UnavailableConsumer onUnavailable,
+      ReadPolicy readPolicy,
+      ExecutorService hedgeService,
+      long batchMaxBlobSizeBytes,
+      long parallelReadMinBlobSizeBytes,
+      @Nullable ContentSummaries contentSummaries) {
     this.publicName = publicName;
     this.backplane = backplane;
     this.rand = rand;
     this.workerStubs = workerStubs;
     this.onUnavailable = onUnavailable;
+    this.readPolicy = readPolicy;
+    this.hedgeService = listeningDecorator(hedgeService);
+    batchedBlobReader = new BatchedBlobReader(
+        this::workerStub,
+        Math.min(batchMaxBlobSizeBytes, BATCH_MAX_SIZE_BYTES),
+        BATCH_MAX_SIZE_BYTES,
+        BATCH_MAX_IN_FLIGHT);
+    this.parallelReadMinBlobSizeBytes = parallelReadMinBlobSizeBytes;
+    this.contentSummaries = contentSummaries;
   }
 
   private Instance workerStub(String worker) {
@@ -101,43 +158,206 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
     }
   }
 
-  private InputStream fetchBlobFromRemoteWorker(
+  private InputStream newWorkerInput(
+      String worker,
       Digest blobDigest,
-      Deque<String> workers,
       long offset,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits,
       RequestMetadata requestMetadata) throws IOException, InterruptedException {
-    String worker = workers.removeFirst();
+    long startNanos = System.nanoTime();
     try {
-      Instance instance = workerStub(worker);
+      InputStream input = null;
+      if (offset == 0 && batchedBlobReader.isBatchable(blobDigest)) {
+        input = newBatchedWorkerInput(worker, blobDigest, deadlineAfter, deadlineAfterUnits);
+      }
+      if (input == null) {
+        Instance instance = workerStub(worker);
 
-      InputStream input = instance.newBlobInput(blobDigest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
-      // ensure that if the blob cannot be fetched, that we throw here
-      input.available();
+        input = instance.newBlobInput(blobDigest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
+        // ensure that if the blob cannot be fetched, that we throw here
+        input.available();
+      }
+      readPolicy.onSuccess(worker, System.nanoTime() - startNanos);
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
       return input;
     } catch (StatusRuntimeException e) {
-      Status st = Status.fromThrowable(e);
-      if (st.getCode() == Code.UNAVAILABLE || st.getCode() == Code.UNIMPLEMENTED) {
-        // for now, leave this up to schedulers
-        onUnavailable.accept(worker, e, "getBlob(" + DigestUtil.toString(blobDigest) + ")");
-      } else if (st.getCode() == Code.NOT_FOUND) {
-        // ignore this, the worker will update the backplane eventually
-      } else if (st.getCode() != Code.DEADLINE_EXCEEDED && SHARD_IS_RETRIABLE.test(st)) {
-        // why not, always
-        workers.addLast(worker);
-      } else if (st.getCode() == Code.CANCELLED) {
-        throw new InterruptedException();
-      } else {
-        throw e;
+      onReadFailure(worker, e);
+      throw e;
+    }
+  }
+
+  /** record a read failure of worker, excluding cancellations and missing blobs */
+  private void onReadFailure(String worker, StatusRuntimeException e) {
+    Code code = Status.fromThrowable(e).getCode();
+    if (code != Code.CANCELLED && code != Code.NOT_FOUND) {
+      readPolicy.onFailure(worker);
+    }
+  }
+
+  /**
+   * read a small blob in a batch with other reads from worker, returning
+   * null if the batch fails for any reason other than the absence of the
+   * blob, as for workers which do not serve batches, so that it is read
+   * with a stream instead
+   */
+  private @Nullable InputStream newBatchedWorkerInput(
+      String worker,
+      Digest blobDigest,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits) throws InterruptedException {
+    try {
+      return batchedBlobReader.read(worker, blobDigest)
+          .get(deadlineAfter, deadlineAfterUnits)
+          .newInput();
+    } catch (ExecutionException e) {
+      Status status = Status.fromThrowable(e.getCause());
+      if (status.getCode() == Code.NOT_FOUND || status.getCode() == Code.CANCELLED) {
+        throw status.asRuntimeException();
+      }
+      logger.log(FINE, format("falling back to stream for %s from %s", DigestUtil.toString(blobDigest), worker), e.getCause());
+      return null;
+    } catch (TimeoutException e) {
+      throw Status.DEADLINE_EXCEEDED
+          .withDescription("batched read of " + DigestUtil.toString(blobDigest))
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * determine whether a blob is read in parallel ranges, acquiring the
+   * first buffer of the read. Reads beyond the buffers of the factory are
+   * streamed from a single worker.
+   */
+  private boolean isParallelRead(Digest blobDigest, long offset, List<String> workers) {
+    return parallelReadMinBlobSizeBytes > 0
+        && offset == 0
+        && blobDigest.getSizeBytes() >= parallelReadMinBlobSizeBytes
+        && workers.size() > 1
+        && parallelReadBuffers.tryAcquire();
+  }
+
+  /** read a large blob in ranges from each of its workers concurrently */
+  private ParallelRangeInputStream newParallelRangeInput(
+      Digest blobDigest,
+      List<String> workers,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) {
+    return new ParallelRangeInputStream(
+        blobDigest,
+        workers,
+        (worker, offset, limit) -> {
+          try (InputStream in = workerStub(worker).newBlobInput(
+              blobDigest, offset, limit, deadlineAfter, deadlineAfterUnits, requestMetadata)) {
+            return ByteString.readFrom(in);
+          } catch (StatusRuntimeException e) {
+            onReadFailure(worker, e);
+            throw e;
+          }
+        },
+        PARALLEL_READ_RANGE_SIZE_BYTES,
+        PARALLEL_READ_MAX_RANGES_IN_FLIGHT,
+        hedgeService,
+        parallelReadBuffers);
+  }
+
+  private void onWorkerFailure(
+      String worker,
+      Digest blobDigest,
+      Deque<String> workers,
+      StatusRuntimeException e) throws InterruptedException {
+    Status st = Status.fromThrowable(e);
+    if (st.getCode() == Code.UNAVAILABLE || st.getCode() == Code.UNIMPLEMENTED) {
+      // for now, leave this up to schedulers
+      onUnavailable.accept(worker, e, "getBlob(" + DigestUtil.toString(blobDigest) + ")");
+    } else if (st.getCode() == Code.NOT_FOUND) {
+      // ignore this, the worker will update the backplane eventually
+    } else if (st.getCode() != Code.DEADLINE_EXCEEDED && SHARD_IS_RETRIABLE.test(st)) {
+      // why not, always
+      workers.addLast(worker);
+    } else if (st.getCode() == Code.CANCELLED) {
+      throw new InterruptedException();
+    } else {
+      throw e;
+    }
+  }
+
+  private InputStream fetchBlobFromRemoteWorker(
+      Digest blobDigest,
+      Deque<String> workers,
+      long offset,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) throws IOException, InterruptedException {
+    String worker = workers.removeFirst();
+    long hedgeDelayNanos = readPolicy.getHedgeDelayNanos();
+    if (!workers.isEmpty() && hedgeDelayNanos >= 0) {
+      return fetchBlobFromRemoteWorkersHedged(
+          blobDigest, worker, workers, hedgeDelayNanos, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
+    }
+    try {
+      return newWorkerInput(worker, blobDigest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
+    } catch (StatusRuntimeException e) {
+      onWorkerFailure(worker, blobDigest, workers, e);
+    }
+    throw new NoSuchFileException(DigestUtil.toString(blobDigest));
+  }
+
+  /**
+   * Read from worker, and from the next worker in workers if the first
+   * response from worker does not arrive within the hedge delay.
+   */
+  private InputStream fetchBlobFromRemoteWorkersHedged(
+      Digest blobDigest,
+      String worker,
+      Deque<String> workers,
+      long hedgeDelayNanos,
+      long offset,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) throws IOException, InterruptedException {
+    Map<String, ListenableFuture<InputStream>> reads = new LinkedHashMap<>();
+    reads.put(worker, hedgeService.submit(() ->
+        newWorkerInput(worker, blobDigest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata)));
+    ListenableFuture<InputStream> firstRead = HedgedReads.firstSuccessful(reads.values());
+    try {
+      try {
+        return firstRead.get(hedgeDelayNanos, NANOSECONDS);
+      } catch (TimeoutException e) {
+        String hedgeWorker = workers.removeFirst();
+        reads.put(hedgeWorker, hedgeService.submit(() ->
+            newWorkerInput(hedgeWorker, blobDigest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata)));
+        firstRead = HedgedReads.firstSuccessful(reads.values());
+        return firstRead.get();
+      }
+    } catch (ExecutionException e) {
+      // every read has failed
+      for (Map.Entry<String, ListenableFuture<InputStream>> read : reads.entrySet()) {
+        Throwable cause = getFailure(read.getValue());
+        if (cause instanceof StatusRuntimeException) {
+          onWorkerFailure(read.getKey(), blobDigest, workers, (StatusRuntimeException) cause);
+        }
       }
+    } catch (InterruptedException e) {
+      // any remaining reads will be closed upon completion
+      firstRead.cancel(false);
+      throw e;
     }
     throw new NoSuchFileException(DigestUtil.toString(blobDigest));
   }
 
+  private static Throwable getFailure(ListenableFuture<InputStream> read) {
+    try {
+      getDone(read);
+      throw new IllegalStateException("read did not fail");
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
   @Override
   public InputStream newInput(Digest blobDigest, long offset) throws IOException, InterruptedException {
     return newInput(blobDigest, offset, 60, SECONDS, RequestMetadata.getDefaultInstance());
@@ -161,7 +381,14 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
           remoteWorkers = Sets.difference(workers, ImmutableSet.<String>of(publicName)).immutableCopy();
         }
       }
-      locationSet = Sets.newHashSet(Sets.intersection(backplane.getBlobLocationSet(blobDigest), workers));
+      // a false positive of the summaries fails its read with NOT_FOUND, and
+      // is corrected with a search of the workers
+      Set<String> holders = contentSummaries == null
+          ? backplane.getBlobLocationSet(blobDigest)
+          : contentSummaries.locate(blobDigest, remoteWorkers);
+      synchronized (workers) {
+        locationSet = Sets.newHashSet(Sets.intersection(holders, workers));
+      }
     } catch (IOException e) {
       throw Status.fromThrowable(e).asRuntimeException();
     }
@@ -192,6 +419,18 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
           @Override
           public void onQueue(Deque<String> workers) {
             Set<String> locationSet = Sets.newHashSet(workers);
+            List<String> orderedWorkers = readPolicy.order(workers);
+            if (isParallelRead(blobDigest, offset, orderedWorkers)) {
+              ParallelRangeInputStream in = newParallelRangeInput(
+                  blobDigest, orderedWorkers, deadlineAfter, deadlineAfterUnits, requestMetadata);
+              // release the buffers of an abandoned read
+              if (!inputStreamFuture.set(in)) {
+                in.close();
+              }
+              return;
+            }
+            workers.clear();
+            workers.addAll(orderedWorkers);
             boolean complete = false;
             while (!complete && !workers.isEmpty()) {
               try {
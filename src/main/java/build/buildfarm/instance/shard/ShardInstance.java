@@ -20,6 +20,7 @@ import static build.buildfarm.common.Actions.invalidActionMessage;
 import static build.buildfarm.common.Errors.VIOLATION_TYPE_MISSING;
 import static build.buildfarm.instance.shard.Util.SHARD_IS_RETRIABLE;
 import static build.buildfarm.instance.shard.Util.correctMissingBlob;
+import static build.buildfarm.instance.shard.Util.summarizeInputs;
 import static com.google.common.base.Predicates.or;
 import static com.google.common.base.Predicates.notNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -34,10 +35,12 @@ import static com.google.common.util.concurrent.Futures.transformAsync;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static java.lang.String.format;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.SEVERE;
@@ -60,6 +63,7 @@ import build.bazel.remote.execution.v2.ResultsCachePolicy;
 import build.bazel.remote.execution.v2.Tree;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.ActionKey;
+import build.buildfarm.common.LatencyAwareReadPolicy;
 import build.buildfarm.common.Poller;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.common.TokenizableIterator;
@@ -93,6 +97,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -120,6 +125,7 @@ import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
 import io.grpc.protobuf.StatusProto;
 import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -127,6 +133,7 @@ import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -136,7 +143,6 @@ import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -144,10 +150,12 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -156,10 +164,25 @@ import javax.naming.ConfigurationException;
 public class ShardInstance extends AbstractServerInstance {
   private static final Logger logger = Logger.getLogger(ShardInstance.class.getName());
 
+  private static final int DEFAULT_MIN_TRANSFORM_CONCURRENCY = 8;
+  private static final int DEFAULT_MAX_TRANSFORM_CONCURRENCY = 256;
+  private static final long QUEUER_REPORT_INTERVAL_SECONDS = 60;
+  private static final long BLOB_REPLICATION_DEADLINE_MINUTES = 10;
+  private static final long DEFAULT_READ_CACHE_MAX_ENTRY_SIZE_BYTES = 64 * 1024;
+  private static final long READ_CACHE_REPORT_INTERVAL_MINUTES = 1;
+  // the largest inputs of an operation summarized in its queue entry
+  private static final int INPUT_SUMMARY_SIZE = 8;
+
   private static ListenableFuture<Void> IMMEDIATE_VOID_FUTURE = Futures.<Void>immediateFuture(null);
 
   private final Runnable onStop;
   private final long maxBlobSize;
+  private final boolean queueDirectoriesByReference;
+  private final int blobReplicationFactor;
+  private final long blobReplicationMaxSizeBytes;
+  private final @Nullable BlobReadCache blobReadCache;
+  private final @Nullable ContentSummaries contentSummaries;
+  private final long contentSummaryRefreshPeriodMillis;
   private final ShardBackplane backplane;
   private final RemoteInputStreamFactory remoteInputStreamFactory;
   private final LoadingCache<String, Instance> workerStubs;
@@ -180,13 +203,19 @@ public class ShardInstance extends AbstractServerInstance {
           .build();
 
   private final Random rand = new Random();
-  private final Writes writes = new Writes(this::writeInstanceSupplier);
+  private final Writes writes = new Writes(this::getRandomWorker, this::workerStub);
 
   private final ListeningExecutorService operationTransformService =
       listeningDecorator(newFixedThreadPool(24));
   private final ScheduledExecutorService contextDeadlineScheduler = newSingleThreadScheduledExecutor();
+  // refreshes are not run on the context deadline scheduler, lest they delay deadlines
+  private final ScheduledExecutorService contentSummaryRefreshService = newSingleThreadScheduledExecutor();
   private final ExecutorService operationDeletionService = newSingleThreadExecutor();
-  private final BlockingQueue transformTokensQueue = new LinkedBlockingQueue(256);
+  private final ExecutorService blobReadService = newCachedThreadPool();
+  private final ExecutorService blobReplicationService = newFixedThreadPool(8);
+  private final Set<Digest> replicatingBlobs = Sets.newConcurrentHashSet();
+  private final TransformLimiter transformLimiter;
+  private final QueuerTimings queuerTimings = new QueuerTimings();
   private Thread operationQueuer;
   private boolean stopping = false;
   private boolean stopped = true;
@@ -201,6 +230,17 @@ public class ShardInstance extends AbstractServerInstance {
         config.getDispatchedMonitorIntervalSeconds(),
         config.getRunOperationQueuer(),
         config.getMaxBlobSize(),
+        config.getQueueDirectoriesByReference(),
+        config.getMinTransformConcurrency(),
+        config.getMaxTransformConcurrency(),
+        config.getBlobReplicationFactor(),
+        config.getBlobReplicationMaxSizeBytes(),
+        config.getReadCacheMaxSizeBytes(),
+        config.getReadCacheMaxEntrySizeBytes(),
+        config.hasContentSummaryRefreshPeriod()
+            ? Durations.toMillis(config.getContentSummaryRefreshPeriod())
+            : 0,
+        config.getContentSummaryOnly(),
         onStop,
         WorkerStubs.create(digestUtil));
   }
@@ -246,6 +286,15 @@ public class ShardInstance extends AbstractServerInstance {
       int dispatchedMonitorIntervalSeconds,
       boolean runOperationQueuer,
       long maxBlobSize,
+      boolean queueDirectoriesByReference,
+      int minTransformConcurrency,
+      int maxTransformConcurrency,
+      int blobReplicationFactor,
+      long blobReplicationMaxSizeBytes,
+      long readCacheMaxSizeBytes,
+      long readCacheMaxEntrySizeBytes,
+      long contentSummaryRefreshPeriodMillis,
+      boolean contentSummaryOnly,
       Runnable onStop,
       LoadingCache<String, Instance> workerStubs)
       throws InterruptedException {
@@ -254,10 +303,34 @@ public class ShardInstance extends AbstractServerInstance {
     this.workerStubs = workerStubs;
     this.onStop = onStop;
     this.maxBlobSize = maxBlobSize;
+    this.queueDirectoriesByReference = queueDirectoriesByReference;
+    this.transformLimiter = createTransformLimiter(minTransformConcurrency, maxTransformConcurrency);
+    this.blobReplicationFactor = blobReplicationFactor;
+    this.blobReplicationMaxSizeBytes = blobReplicationMaxSizeBytes;
+    if (readCacheMaxSizeBytes > 0) {
+      blobReadCache = new BlobReadCache(
+          readCacheMaxSizeBytes,
+          readCacheMaxEntrySizeBytes > 0 ? readCacheMaxEntrySizeBytes : DEFAULT_READ_CACHE_MAX_ENTRY_SIZE_BYTES);
+    } else {
+      blobReadCache = null;
+    }
+    this.contentSummaryRefreshPeriodMillis = contentSummaryRefreshPeriodMillis;
+    if (contentSummaryRefreshPeriodMillis > 0) {
+      contentSummaries = new ContentSummaries(backplane, contentSummaryOnly);
+    } else {
+      contentSummaries = null;
+    }
     this.actionResultCache = createActionResultCache(backplane);
     backplane.setOnUnsubscribe(this::stop);
 
-    remoteInputStreamFactory = new RemoteInputStreamFactory(backplane, rand, workerStubs, this::removeMalfunctioningWorker);
+    remoteInputStreamFactory = new RemoteInputStreamFactory(
+        backplane,
+        rand,
+        workerStubs,
+        this::removeMalfunctioningWorker,
+        new LatencyAwareReadPolicy(),
+        blobReadService,
+        contentSummaries);
 
     if (runDispatchedMonitor) {
       dispatchedMonitor = new Thread(new DispatchedMonitor(
@@ -271,10 +344,12 @@ public class ShardInstance extends AbstractServerInstance {
     if (runOperationQueuer) {
       operationQueuer = new Thread(new Runnable() {
         Stopwatch stopwatch = Stopwatch.createUnstarted();
+        Stopwatch reportStopwatch = Stopwatch.createStarted();
 
-        ListenableFuture<Void> iterate() throws IOException, InterruptedException {
+        ListenableFuture<Void> iterate(LongConsumer onTransformStart) throws IOException, InterruptedException {
           ensureCanQueue(stopwatch); // wait for transition to canQueue state
           long canQueueUSecs = stopwatch.elapsed(MICROSECONDS);
+          queuerTimings.add(QueuerTimings.Phase.CAN_QUEUE, canQueueUSecs);
           stopwatch.stop();
           ExecuteEntry executeEntry = backplane.deprequeueOperation();
           stopwatch.start();
@@ -301,7 +376,7 @@ public class ShardInstance extends AbstractServerInstance {
               Deadline.after(5, MINUTES));
           try {
             logger.info("queueing " + operationName);
-            ListenableFuture<Void> queueFuture = queue(executeEntry, poller);
+            ListenableFuture<Void> queueFuture = queue(executeEntry, poller, onTransformStart);
             addCallback(
                 queueFuture,
                 new FutureCallback<Void>() {
@@ -318,12 +393,15 @@ public class ShardInstance extends AbstractServerInstance {
                 },
                 operationTransformService);
             long operationTransformDispatchUSecs = stopwatch.elapsed(MICROSECONDS) - canQueueUSecs;
+            queuerTimings.add(QueuerTimings.Phase.DISPATCH, operationTransformDispatchUSecs);
             logger.info(
                 format(
-                    "OperationQueuer: Dispatched To Transform %s: %dus in canQueue, %dus in transform dispatch",
+                    "OperationQueuer: Dispatched To Transform %s: %dus in canQueue, %dus in transform dispatch, %d/%d transforms",
                     operationName,
                     canQueueUSecs,
-                    operationTransformDispatchUSecs));
+                    operationTransformDispatchUSecs,
+                    transformLimiter.getInFlight(),
+                    transformLimiter.getLimit()));
             return queueFuture;
           } catch (Throwable t) {
             poller.pause();
@@ -332,26 +410,52 @@ public class ShardInstance extends AbstractServerInstance {
           }
         }
 
+        void report() {
+          if (reportStopwatch.elapsed(SECONDS) >= QUEUER_REPORT_INTERVAL_SECONDS) {
+            logger.info(
+                format(
+                    "OperationQueuer: %d/%d transforms, %s",
+                    transformLimiter.getInFlight(),
+                    transformLimiter.getLimit(),
+                    queuerTimings.report()));
+            reportStopwatch.reset().start();
+          }
+        }
+
         @Override
         public void run() {
           logger.info("OperationQueuer: Running");
           try {
             for (;;) {
-              transformTokensQueue.put(new Object());
+              transformLimiter.acquire();
+              report();
+              // sampled from the start of a transform, excluding the wait
+              // for an entry, and unset if nothing was transformed
+              AtomicLong startTransformNanos = new AtomicLong(-1);
               stopwatch.start();
               try {
-                iterate().addListener(
-                    () -> {
-                      try {
-                        transformTokensQueue.take();
-                      } catch (InterruptedException e) {
-                        logger.log(SEVERE, "interrupted while returning transform token", e);
+                addCallback(
+                    iterate(startTransformNanos::set),
+                    new FutureCallback<Void>() {
+                      @Override
+                      public void onSuccess(Void result) {
+                        long startNanos = startTransformNanos.get();
+                        if (startNanos < 0) {
+                          transformLimiter.release();
+                        } else {
+                          transformLimiter.release(System.nanoTime() - startNanos, /* success=*/ true);
+                        }
+                      }
+
+                      @Override
+                      public void onFailure(Throwable t) {
+                        transformLimiter.release(/* latencyNanos=*/ 0, /* success=*/ false);
                       }
                     },
                     operationTransformService);
               } catch (IOException e) {
-                transformTokensQueue.take();
                 // problems interacting with backplane
+                transformLimiter.release(/* latencyNanos=*/ 0, /* success=*/ false);
               } finally {
                 stopwatch.reset();
               }
@@ -378,8 +482,21 @@ public class ShardInstance extends AbstractServerInstance {
     }
   }
 
+  private static TransformLimiter createTransformLimiter(int minTransformConcurrency, int maxTransformConcurrency) {
+    int minLimit = minTransformConcurrency > 0 ? minTransformConcurrency : DEFAULT_MIN_TRANSFORM_CONCURRENCY;
+    int maxLimit = Math.max(
+        minLimit,
+        maxTransformConcurrency > 0 ? maxTransformConcurrency : DEFAULT_MAX_TRANSFORM_CONCURRENCY);
+    return new TransformLimiter(minLimit, maxLimit, /* initialLimit=*/ maxLimit / 4);
+  }
+
   private void ensureCanQueue(Stopwatch stopwatch) throws IOException, InterruptedException {
+    boolean backpressured = false;
     while (!backplane.canQueue()) {
+      if (!backpressured) {
+        transformLimiter.onBackpressure();
+        backpressured = true;
+      }
       stopwatch.stop();
       TimeUnit.MILLISECONDS.sleep(100);
       stopwatch.start();
@@ -396,6 +513,20 @@ public class ShardInstance extends AbstractServerInstance {
     if (operationQueuer != null) {
       operationQueuer.start();
     }
+    if (contentSummaries != null) {
+      contentSummaryRefreshService.scheduleWithFixedDelay(
+          contentSummaries::refresh,
+          0,
+          contentSummaryRefreshPeriodMillis,
+          MILLISECONDS);
+    }
+    if (blobReadCache != null) {
+      contextDeadlineScheduler.scheduleAtFixedRate(
+          () -> logger.info(format("ShardInstance(%s): read cache: %s", getName(), blobReadCache.report())),
+          READ_CACHE_REPORT_INTERVAL_MINUTES,
+          READ_CACHE_REPORT_INTERVAL_MINUTES,
+          MINUTES);
+    }
   }
 
   @Override
@@ -427,6 +558,9 @@ public class ShardInstance extends AbstractServerInstance {
       logger.severe("Could not shut down operation transform service");
     }
     operationTransformService.shutdownNow();
+    contentSummaryRefreshService.shutdownNow();
+    blobReadService.shutdownNow();
+    blobReplicationService.shutdownNow();
     workerStubs.invalidateAll();
     logger.fine(format("Instance %s has been stopped", getName()));
     stopping = false;
@@ -483,6 +617,15 @@ public class ShardInstance extends AbstractServerInstance {
         workersList = new ArrayList<>(workerSet);
       }
       Collections.shuffle(workersList, rand);
+      if (contentSummaries != null) {
+        // query likely holders of the most digests first, reducing the
+        // remainder sent to each subsequent worker
+        Map<String, Integer> likelyHeld = new HashMap<>();
+        for (String worker : workersList) {
+          likelyHeld.put(worker, contentSummaries.countLikelyHeld(worker, nonEmptyDigests));
+        }
+        workersList.sort(Comparator.comparing(likelyHeld::get, Comparator.reverseOrder()));
+      }
       workers = new ArrayDeque(workersList);
     } catch (IOException e) {
       throw Status.fromThrowable(e).asRuntimeException();
@@ -681,12 +824,79 @@ public class ShardInstance extends AbstractServerInstance {
       long count,
       ServerCallStreamObserver<ByteString> blobObserver,
       RequestMetadata requestMetadata) {
+    if (blobReadCache != null && blobReadCache.isCacheable(blobDigest)) {
+      ByteString content = blobReadCache.getIfPresent(blobDigest);
+      if (content != null) {
+        getCachedBlob(blobDigest, content, offset, count, blobObserver);
+        return;
+      }
+      if (offset == 0 && count >= blobDigest.getSizeBytes()) {
+        getUncachedBlob(
+            blobDigest,
+            offset,
+            count,
+            new UniformDelegateServerCallStreamObserver<ByteString>(blobObserver) {
+              ByteString content = ByteString.EMPTY;
+
+              @Override
+              public void onNext(ByteString chunk) {
+                content = content.concat(chunk);
+                blobObserver.onNext(chunk);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                blobObserver.onError(t);
+              }
+
+              @Override
+              public void onCompleted() {
+                blobReadCache.put(blobDigest, content);
+                blobObserver.onCompleted();
+              }
+            },
+            requestMetadata);
+        return;
+      }
+    }
+    getUncachedBlob(blobDigest, offset, count, blobObserver, requestMetadata);
+  }
+
+  @VisibleForTesting
+  static void getCachedBlob(
+      Digest blobDigest,
+      ByteString content,
+      long offset,
+      long count,
+      StreamObserver<ByteString> blobObserver) {
+    if (offset < 0 || offset > content.size()) {
+      blobObserver.onError(Status.OUT_OF_RANGE
+          .withDescription(format("%d is out of bounds for blob %s", offset, DigestUtil.toString(blobDigest)))
+          .asException());
+    } else if (count < 0) {
+      blobObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription(format("%d is an invalid count for blob %s", count, DigestUtil.toString(blobDigest)))
+          .asException());
+    } else {
+      blobObserver.onNext(content.substring((int) offset, (int) Math.min(content.size(), offset + count)));
+      blobObserver.onCompleted();
+    }
+  }
+
+  private void getUncachedBlob(
+      Digest blobDigest,
+      long offset,
+      long count,
+      ServerCallStreamObserver<ByteString> blobObserver,
+      RequestMetadata requestMetadata) {
     List<String> workersList;
     Set<String> workerSet;
     Set<String> locationSet;
     try {
       workerSet = backplane.getWorkers();
-      locationSet = backplane.getBlobLocationSet(blobDigest);
+      locationSet = contentSummaries == null
+          ? backplane.getBlobLocationSet(blobDigest)
+          : contentSummaries.locate(blobDigest, workerSet);
       synchronized (workerSet) {
         workersList = new ArrayList<>(Sets.intersection(locationSet, workerSet));
       }
@@ -818,11 +1028,6 @@ public class ShardInstance extends AbstractServerInstance {
     protected abstract void onQueue(Deque<String> workers);
   }
 
-  private Instance writeInstanceSupplier() {
-    String worker = getRandomWorker();
-    return workerStub(worker);
-  }
-
   String getRandomWorker() {
     Set<String> workerSet;
     try {
@@ -862,6 +1067,23 @@ public class ShardInstance extends AbstractServerInstance {
       TimeUnit deadlineAfterUnits,
       RequestMetadata requestMetadata) throws IOException {
     try {
+      if (blobReadCache != null && blobReadCache.isCacheable(digest)) {
+        ByteString content = blobReadCache.getIfPresent(digest);
+        if (content == null && offset == 0) {
+          try (InputStream in = remoteInputStreamFactory.newInput(digest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata)) {
+            content = ByteString.readFrom(in);
+          }
+          blobReadCache.put(digest, content);
+        }
+        if (content != null) {
+          if (offset < 0 || offset > content.size()) {
+            throw new IOException(Status.OUT_OF_RANGE
+                .withDescription(format("%d is out of bounds for blob %s", offset, DigestUtil.toString(digest)))
+                .asRuntimeException());
+          }
+          return content.substring((int) offset).newInput();
+        }
+      }
       return remoteInputStreamFactory.newInput(digest, offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
     } catch (InterruptedException e) {
       throw new IOException(e);
@@ -895,7 +1117,90 @@ public class ShardInstance extends AbstractServerInstance {
           .asRuntimeException();
     }
     // FIXME small blob write to proto cache
-    return writes.get(digest, uuid, requestMetadata);
+    if (!shouldReplicate(digest)) {
+      return writes.get(digest, uuid, requestMetadata);
+    }
+    String worker = writes.getWorker(digest, uuid);
+    Write write = writes.get(digest, uuid, requestMetadata);
+    write.addListener(() -> replicateBlob(digest, worker, write, requestMetadata), blobReplicationService);
+    return write;
+  }
+
+  private boolean shouldReplicate(Digest digest) {
+    return blobReplicationFactor > 1
+        && digest.getSizeBytes() != 0
+        && (blobReplicationMaxSizeBytes <= 0 || digest.getSizeBytes() <= blobReplicationMaxSizeBytes);
+  }
+
+  /**
+   * Copy a blob committed to source to randomly selected other workers, so
+   * that it is present on blobReplicationFactor workers.
+   *
+   * The replicas are selected without the backplane location set, which
+   * may not yet include source, and is not maintained by summary only
+   * workers.
+   */
+  private void replicateBlob(Digest digest, String source, Write write, RequestMetadata requestMetadata) {
+    boolean committed;
+    try {
+      committed = write.isComplete();
+    } catch (RuntimeException e) {
+      // the write failed
+      committed = false;
+    }
+    if (!committed || !replicatingBlobs.add(digest)) {
+      return;
+    }
+    List<String> replicaWorkers = ImmutableList.of();
+    try {
+      Set<String> workers = backplane.getWorkers();
+      List<String> candidates;
+      // the backplane replaces the content of its worker set in place
+      synchronized (workers) {
+        candidates = new ArrayList<>(workers);
+      }
+      candidates.remove(source);
+      Collections.shuffle(candidates, rand);
+      int replicas = Math.min(blobReplicationFactor - 1, candidates.size());
+      if (replicas > 0) {
+        replicaWorkers = candidates.subList(0, replicas);
+      }
+    } catch (IOException e) {
+      logger.log(WARNING, format("error determining replicas for %s", DigestUtil.toString(digest)), e);
+    }
+    if (replicaWorkers.isEmpty()) {
+      replicatingBlobs.remove(digest);
+      return;
+    }
+
+    AtomicInteger remaining = new AtomicInteger(replicaWorkers.size());
+    for (String worker : replicaWorkers) {
+      blobReplicationService.execute(() -> {
+        try {
+          copyBlob(digest, source, worker, requestMetadata);
+        } catch (IOException|StatusRuntimeException e) {
+          logger.log(WARNING, format("error replicating %s to %s", DigestUtil.toString(digest), worker), e);
+        } finally {
+          if (remaining.decrementAndGet() == 0) {
+            replicatingBlobs.remove(digest);
+          }
+        }
+      });
+    }
+  }
+
+  private void copyBlob(Digest digest, String source, String worker, RequestMetadata requestMetadata)
+      throws IOException {
+    try (InputStream in = workerStub(source).newBlobInput(
+        digest,
+        /* offset=*/ 0,
+        BLOB_REPLICATION_DEADLINE_MINUTES, MINUTES,
+        requestMetadata)) {
+      Write write = workerStub(worker).getBlobWrite(digest, UUID.randomUUID(), requestMetadata);
+      try (OutputStream out = write.getOutput(BLOB_REPLICATION_DEADLINE_MINUTES, MINUTES, () -> {})) {
+        ByteStreams.copy(in, out);
+      }
+    }
   }
 
   protected int getTreeDefaultPageSize() { return 1024; }
@@ -1171,10 +1476,38 @@ public class ShardInstance extends AbstractServerInstance {
     }
   }
 
+  private QueuedOperation referenceDirectories(QueuedOperation queuedOperation) {
+    return queuedOperation.toBuilder()
+        .clearTree()
+        .addAllDirectories(getDigestUtil().createDirectoriesIndex(queuedOperation.getTree()).keySet())
+        .build();
+  }
+
+  private ListenableFuture<QueuedOperation> inlineDirectories(
+      String operationName,
+      QueuedOperation queuedOperation,
+      ExecutorService service,
+      RequestMetadata requestMetadata) {
+    if (!queuedOperation.hasAction() || queuedOperation.hasTree()) {
+      return immediateFuture(queuedOperation);
+    }
+    return transform(
+        getTreeFuture(operationName, queuedOperation.getAction().getInputRootDigest(), service, requestMetadata),
+        (tree) -> queuedOperation.toBuilder()
+            .setTree(tree)
+            .clearDirectories()
+            .build(),
+        service);
+  }
+
   private ListenableFuture<QueuedOperationResult> uploadQueuedOperation(
       QueuedOperation queuedOperation,
       ExecuteEntry executeEntry,
       ExecutorService service) {
+    List<Digest> inputSummary = summarizeInputs(queuedOperation.getTree(), INPUT_SUMMARY_SIZE);
+    if (queueDirectoriesByReference) {
+      queuedOperation = referenceDirectories(queuedOperation);
+    }
     ByteString queuedOperationBlob = queuedOperation.toByteString();
     Digest queuedOperationDigest = getDigestUtil().compute(queuedOperationBlob);
     QueuedOperationMetadata metadata = QueuedOperationMetadata.newBuilder()
@@ -1189,6 +1522,7 @@ public class ShardInstance extends AbstractServerInstance {
         .setExecuteEntry(executeEntry)
         .setQueuedOperationDigest(queuedOperationDigest)
         .setPlatform(queuedOperation.getCommand().getPlatform())
+        .addAllInputSummary(inputSummary)
         .build();
     return transform(
         writeBlobFuture(queuedOperationDigest, queuedOperationBlob, executeEntry.getRequestMetadata()),
@@ -1241,7 +1575,14 @@ public class ShardInstance extends AbstractServerInstance {
         expect(queueEntry.getQueuedOperationDigest(), QueuedOperation.parser(), operationTransformService, requestMetadata);
     Digest actionDigest = executeEntry.getActionDigest();
     ListenableFuture<QueuedOperation> queuedOperationFuture = catchingAsync(
-        fetchQueuedOperationFuture,
+        transformAsync(
+            fetchQueuedOperationFuture,
+            (queuedOperation) -> inlineDirectories(
+                operationName,
+                queuedOperation,
+                operationTransformService,
+                requestMetadata),
+            directExecutor()),
         Throwable.class,
         (e) -> buildQueuedOperation(operation.getName(), actionDigest, operationTransformService, requestMetadata),
         directExecutor());
@@ -1588,6 +1929,14 @@ public class ShardInstance extends AbstractServerInstance {
   public ListenableFuture<Void> queue(
       ExecuteEntry executeEntry,
       Poller poller) throws InterruptedException {
+    return queue(executeEntry, poller, (startTransformNanos) -> {});
+  }
+
+  /** queue executeEntry, calling onTransformStart if it is not cached */
+  private ListenableFuture<Void> queue(
+      ExecuteEntry executeEntry,
+      Poller poller,
+      LongConsumer onTransformStart) throws InterruptedException {
     ExecuteOperationMetadata metadata = ExecuteOperationMetadata.newBuilder()
         .setActionDigest(executeEntry.getActionDigest())
         .setStdoutStreamName(executeEntry.getStdoutStreamName())
@@ -1622,6 +1971,7 @@ public class ShardInstance extends AbstractServerInstance {
                     checkCacheUSecs));
             return IMMEDIATE_VOID_FUTURE;
           }
+          onTransformStart.accept(System.nanoTime());
           return transformAndQueue(executeEntry, poller, operation, stopwatch);
         },
         operationTransformService);
@@ -1707,6 +2057,7 @@ public class ShardInstance extends AbstractServerInstance {
                       metadata,
                       requestMetadata,
                       queuedOperation))
+                  .addAllInputSummary(summarizeInputs(queuedOperation.getTree(), INPUT_SUMMARY_SIZE))
                   .setTransformedIn(Durations.fromMicros(transformStopwatch.elapsed(MICROSECONDS))),
               operationTransformService);
         },
@@ -1737,10 +2088,16 @@ public class ShardInstance extends AbstractServerInstance {
                   getName(),
                   operation.getName(),
                   DigestUtil.toString(profiledQueuedMetadata.getQueuedOperationMetadata().getQueuedOperationDigest())));
-          ByteString queuedOperationBlob = profiledQueuedMetadata.getQueuedOperation().toByteString();
-          Digest queuedOperationDigest = profiledQueuedMetadata
-              .getQueuedOperationMetadata()
-                  .getQueuedOperationDigest();
+          QueuedOperation queuedOperation = profiledQueuedMetadata.getQueuedOperation();
+          if (queueDirectoriesByReference) {
+            queuedOperation = referenceDirectories(queuedOperation);
+          }
+          ByteString queuedOperationBlob = queuedOperation.toByteString();
+          Digest queuedOperationDigest = getDigestUtil().compute(queuedOperationBlob);
+          profiledQueuedMetadata
+              .setQueuedOperation(queuedOperation)
+              .getQueuedOperationMetadataBuilder()
+                  .setQueuedOperationDigest(queuedOperationDigest);
           long startUploadUSecs = stopwatch.elapsed(MICROSECONDS);
           return transform(
               writeBlobFuture(queuedOperationDigest, queuedOperationBlob, requestMetadata),
@@ -1766,6 +2123,7 @@ public class ShardInstance extends AbstractServerInstance {
                 .setExecuteEntry(executeEntry)
                 .setQueuedOperationDigest(queuedOperationMetadata.getQueuedOperationDigest())
                 .setPlatform(profiledQueuedMetadata.getQueuedOperation().getCommand().getPlatform())
+                .addAllInputSummary(profiledQueuedMetadata.getInputSummaryList())
                 .build();
             try {
               ensureCanQueue(stopwatch);
@@ -1774,6 +2132,11 @@ public class ShardInstance extends AbstractServerInstance {
               backplane.queue(queueEntry, queueOperation);
               long elapsedUSecs = stopwatch.elapsed(MICROSECONDS);
               long queueUSecs = elapsedUSecs - startQueueUSecs;
+              queuerTimings.add(QueuerTimings.Phase.CHECK_CACHE, checkCacheUSecs);
+              queuerTimings.add(QueuerTimings.Phase.TRANSFORM, Durations.toMicros(profiledQueuedMetadata.getTransformedIn()));
+              queuerTimings.add(QueuerTimings.Phase.VALIDATE, Durations.toMicros(profiledQueuedMetadata.getValidatedIn()));
+              queuerTimings.add(QueuerTimings.Phase.UPLOAD, Durations.toMicros(profiledQueuedMetadata.getUploadedIn()));
+              queuerTimings.add(QueuerTimings.Phase.QUEUE, queueUSecs);
               logger.info(
                   format(
                       "ShardInstance(%s): queue(%s): %dus checkCache, %dus transform, %dus validate, %dus upload, %dus queue, %dus elapsed",
@@ -0,0 +1,144 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Bounds the number of concurrent operation transformations with a limit
+ * that adapts to observed transform latency.
+ *
+ * The limit grows additively (by one per window of completions) while
+ * latency stays near its observed baseline and the limit is being used, and
+ * shrinks multiplicatively when latency inflates, when a transform fails, or
+ * when the backplane signals that it cannot accept more queued operations.
+ * At most one decrease is applied per window of in flight transforms.
+ *
+ * The baseline is a low percentile of the most recent samples, so that it
+ * follows sustained changes in transform cost and is not pinned by a single
+ * fast outlier. Only transforms which did transform work are sampled.
+ */
+class TransformLimiter {
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final double MIN_GRADIENT = 0.5;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double SMOOTHING_FACTOR = 0.2;
+  private static final int BASELINE_WINDOW = 100;
+  private static final double BASELINE_PERCENTILE = 0.1;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private double limit;
+  private int inFlight = 0;
+  private double smoothedLatencyNanos = 0;
+  private final long[] recentLatencyNanos = new long[BASELINE_WINDOW];
+  private int sampleCount = 0;
+  private int nextSampleIndex = 0;
+  private int releasesUntilDecrease = 0;
+
+  TransformLimiter(int minLimit, int maxLimit, int initialLimit) {
+    checkArgument(minLimit > 0, "minLimit must be positive");
+    checkArgument(maxLimit >= minLimit, "maxLimit must not be less than minLimit");
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /** block until a transform may begin */
+  synchronized void acquire() throws InterruptedException {
+    while (inFlight >= getLimit()) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  /**
+   * complete a transform, with its latency sampled for successful
+   * transforms, and any failure treated as an overload signal
+   */
+  synchronized void release(long latencyNanos, boolean success) {
+    int releasedInFlight = complete();
+    if (!success) {
+      decrease(BACKOFF_RATIO);
+    } else {
+      sample(latencyNanos, releasedInFlight);
+    }
+  }
+
+  /**
+   * complete a transform without a latency sample, as for one which found
+   * nothing to transform or a cached result
+   */
+  synchronized void release() {
+    complete();
+  }
+
+  private int complete() {
+    int releasedInFlight = inFlight--;
+    if (releasesUntilDecrease > 0) {
+      releasesUntilDecrease--;
+    }
+    notifyAll();
+    return releasedInFlight;
+  }
+
+  /** indicate that downstream queues are full */
+  synchronized void onBackpressure() {
+    decrease(BACKOFF_RATIO);
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  private void sample(long latencyNanos, int releasedInFlight) {
+    if (smoothedLatencyNanos == 0) {
+      smoothedLatencyNanos = latencyNanos;
+    } else {
+      smoothedLatencyNanos += SMOOTHING_FACTOR * (latencyNanos - smoothedLatencyNanos);
+    }
+    recentLatencyNanos[nextSampleIndex] = latencyNanos;
+    nextSampleIndex = (nextSampleIndex + 1) % BASELINE_WINDOW;
+    sampleCount = Math.min(sampleCount + 1, BASELINE_WINDOW);
+
+    double toleratedLatencyNanos = getBaselineLatencyNanos() * LATENCY_TOLERANCE;
+    if (smoothedLatencyNanos > toleratedLatencyNanos) {
+      decrease(Math.max(MIN_GRADIENT, toleratedLatencyNanos / smoothedLatencyNanos));
+    } else if (releasedInFlight * 2 >= limit) {
+      // only grow while the current limit is being used
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  private long getBaselineLatencyNanos() {
+    long[] window = Arrays.copyOf(recentLatencyNanos, sampleCount);
+    Arrays.sort(window);
+    return window[(int) (window.length * BASELINE_PERCENTILE)];
+  }
+
+  private void decrease(double ratio) {
+    if (releasesUntilDecrease > 0) {
+      return;
+    }
+    limit = Math.max(minLimit, limit * ratio);
+    releasesUntilDecrease = inFlight;
+  }
+}
@@ -22,10 +22,14 @@ import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.base.Predicates.notNull;
 import static java.lang.String.format;
+import static java.util.Comparator.comparingLong;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.RequestMetadata;
+import build.bazel.remote.execution.v2.Tree;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.common.grpc.Retrier;
@@ -33,6 +37,7 @@ import build.buildfarm.instance.Instance;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -42,6 +47,7 @@ import io.grpc.Status;
 import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -174,6 +180,17 @@ public class Util {
     return foundFuture;
   }
 
+  /** the largest distinct input files of tree, at most count of them */
+  static List<Digest> summarizeInputs(Tree tree, int count) {
+    Set<Digest> inputs = Sets.newHashSet();
+    for (Directory directory : Iterables.concat(ImmutableList.of(tree.getRoot()), tree.getChildrenList())) {
+      for (FileNode fileNode : directory.getFilesList()) {
+        inputs.add(fileNode.getDigest());
+      }
+    }
+    return Ordering.from(comparingLong(Digest::getSizeBytes)).greatestOf(inputs, count);
+  }
+
   static void checkMissingBlobOnInstance(
       Digest digest,
       String worker,
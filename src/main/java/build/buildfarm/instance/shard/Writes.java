@@ -34,11 +34,13 @@ import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 class Writes {
-  private final Supplier<Instance> instanceSupplier;
-  private final LoadingCache<BlobWriteKey, Instance> blobWriteInstances;
+  private final Supplier<String> workerSupplier;
+  private final Function<String, Instance> workerInstances;
+  private final LoadingCache<BlobWriteKey, String> blobWriteWorkers;
 
   private class InvalidatingWrite implements Write {
     private final Write delegate;
@@ -100,44 +102,59 @@ class Writes {
     }
   }
 
-  Writes(Supplier<Instance> instanceSupplier) {
+  Writes(Supplier<String> workerSupplier, Function<String, Instance> workerInstances) {
     this(
-        instanceSupplier,
+        workerSupplier,
+        workerInstances,
         /* writeExpiresAfter=*/ 1,
         /* writeExpiresUnit=*/ TimeUnit.HOURS);
   }
 
   Writes(
-      Supplier<Instance> instanceSupplier,
+      Supplier<String> workerSupplier,
+      Function<String, Instance> workerInstances,
       long writeExpiresAfter,
       TimeUnit writeExpiresUnit) {
-    this.instanceSupplier = instanceSupplier;
-    blobWriteInstances = CacheBuilder.newBuilder()
+    this.workerSupplier = workerSupplier;
+    this.workerInstances = workerInstances;
+    blobWriteWorkers = CacheBuilder.newBuilder()
         .expireAfterWrite(writeExpiresAfter, writeExpiresUnit)
-        .build(new CacheLoader<BlobWriteKey, Instance>() {
+        .build(new CacheLoader<BlobWriteKey, String>() {
           @Override
-          public Instance load(BlobWriteKey key) {
-            return instanceSupplier.get();
+          public String load(BlobWriteKey key) {
+            return workerSupplier.get();
           }
         });
   }
 
-  public Write get(Digest digest, UUID uuid, RequestMetadata requestMetadata) {
-    if (digest.getSizeBytes() == 0) {
-      return new CompleteWrite(0);
-    }
-    BlobWriteKey key = BlobWriteKey.newBuilder()
+  private static BlobWriteKey key(Digest digest, UUID uuid) {
+    return BlobWriteKey.newBuilder()
         .setDigest(digest)
         .setIdentifier(uuid.toString())
         .build();
+  }
+
+  /**
+   * the worker to which the write of digest identified by uuid is directed,
+   * selected with the first request for the write
+   */
+  public String getWorker(Digest digest, UUID uuid) {
     try {
-      return new InvalidatingWrite(
-          blobWriteInstances.get(key).getBlobWrite(digest, uuid, requestMetadata),
-          () -> blobWriteInstances.invalidate(key));
+      return blobWriteWorkers.get(key(digest, uuid));
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
       throwIfInstanceOf(cause, RuntimeException.class);
       throw new UncheckedExecutionException(cause);
     }
   }
+
+  public Write get(Digest digest, UUID uuid, RequestMetadata requestMetadata) {
+    if (digest.getSizeBytes() == 0) {
+      return new CompleteWrite(0);
+    }
+    BlobWriteKey key = key(digest, uuid);
+    return new InvalidatingWrite(
+        workerInstances.apply(getWorker(digest, uuid)).getBlobWrite(digest, uuid, requestMetadata),
+        () -> blobWriteWorkers.invalidate(key));
+  }
 }
@@ -398,9 +398,20 @@ public class StubInstance implements Instance {
       long deadlineAfter,
       TimeUnit deadlineAfterUnits,
       RequestMetadata requestMetadata) {
+    return newInput(resourceName, offset, /* limit=*/ 0, deadlineAfter, deadlineAfterUnits, requestMetadata);
+  }
+
+  InputStream newInput(
+      String resourceName,
+      long offset,
+      long limit,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) {
     return ByteStreamHelper.newInput(
         resourceName,
         offset,
+        limit,
         () -> deadlined(bsStub)
             .withInterceptors(attachMetadataInterceptor(requestMetadata)),
         retrier::newBackoff,
@@ -502,6 +513,17 @@ public class StubInstance implements Instance {
     return newInput(getBlobName(digest), offset, deadlineAfter, deadlineAfterUnits, requestMetadata);
   }
 
+  @Override
+  public InputStream newBlobInput(
+      Digest digest,
+      long offset,
+      long limit,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      RequestMetadata requestMetadata) {
+    return newInput(getBlobName(digest), offset, limit, deadlineAfter, deadlineAfterUnits, requestMetadata);
+  }
+
   @Override
   public ListenableFuture<Iterable<Response>> getAllBlobsFuture(
       Iterable<Digest> digests) {
@@ -50,6 +50,7 @@ import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.RequestMetadata;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.DigestMismatchException;
+import build.buildfarm.cas.MemoryCAS;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Write;
 import build.buildfarm.common.Write.CompleteWrite;
@@ -78,6 +79,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.protobuf.ByteString;
 import io.grpc.Deadline;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -88,6 +90,7 @@ import java.io.OutputStream;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -376,6 +379,14 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return false;
   }
 
+  /**
+   * Indicates presence in this cache for digest, without recording access
+   * or consulting the delegate.
+   */
+  public boolean containsLocal(Digest digest) {
+    return containsLocal(digest, (key) -> {});
+  }
+
   boolean containsLocal(Digest digest, Consumer<Path> onContains) {
     /* maybe swap the order here if we're higher in ratio on one side */
     return contains(digest, false, onContains) || contains(digest, true, onContains);
@@ -408,7 +419,21 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   @Override
   public ListenableFuture<Iterable<Response>> getAllFuture(Iterable<Digest> digests) {
-    throw new UnsupportedOperationException();
+    // batches are served from local content only, as for a located read
+    return immediateFuture(MemoryCAS.getAll(digests, this::getLocalBlob));
+  }
+
+  private ByteString getLocalBlob(Digest digest) {
+    if (digest.getSizeBytes() == 0) {
+      return ByteString.EMPTY;
+    }
+    try (InputStream in = newLocalInput(digest, /* offset=*/ 0)) {
+      return ByteString.readFrom(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw Status.fromThrowable(e).asRuntimeException();
+    }
   }
 
   protected InputStream newTransparentInput(Digest digest, long offset) throws IOException {
@@ -538,6 +563,81 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     }
   }
 
+  /**
+   * Insert the content of an existing file as a blob by linking it into the
+   * cache rather than copying it, returning its digest, which is computed
+   * from the linked file. The file must not be modified once adopted.
+   *
+   * Returns null if the file cannot be linked, when it is on another
+   * filesystem or already has other links which could be affected by the
+   * permissions of an entry, or if its size or modification time changed
+   * while it was hashed, in which case its content must be written.
+   */
+  public Digest adopt(Path file) throws IOException, InterruptedException {
+    if (!hasSingleLink(file)) {
+      return null;
+    }
+    // link before hashing, so that the digest describes the inode which is committed
+    Path linkPath = getPath("adopt." + UUID.randomUUID());
+    try {
+      Files.createLink(linkPath, file);
+    } catch (FileSystemException | UnsupportedOperationException e) {
+      logger.finer(format("could not link %s for adoption: %s", file, e.getMessage()));
+      return null;
+    }
+    boolean consumed = false;
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(linkPath, BasicFileAttributes.class);
+      Digest digest = digestUtil.compute(linkPath);
+      BasicFileAttributes hashedAttrs = Files.readAttributes(linkPath, BasicFileAttributes.class);
+      if (digest.getSizeBytes() != hashedAttrs.size()
+          || attrs.size() != hashedAttrs.size()
+          || !attrs.lastModifiedTime().equals(hashedAttrs.lastModifiedTime())) {
+        logger.finer(format("%s was modified during adoption", file));
+        return null;
+      }
+      if (digest.getSizeBytes() == 0) {
+        return digest;
+      }
+      Path key = getKey(digest, /* isExecutable=*/ false);
+      long blobSizeInBytes = digest.getSizeBytes();
+      AtomicBoolean requiresDischarge = new AtomicBoolean(false);
+      try {
+        if (!referenceOrReserve(key, blobSizeInBytes, /* containingDirectory=*/ null, requiresDischarge)) {
+          requiresDischarge.set(false); // commit now owns discharge
+          consumed = true;
+          commitEntry(
+              key,
+              linkPath,
+              blobSizeInBytes,
+              /* isExecutable=*/ false,
+              /* containingDirectory=*/ null,
+              () -> completeWrite(digest),
+              () -> invalidateWrite(digest));
+        }
+      } finally {
+        if (requiresDischarge.get()) {
+          dischargeAndNotify(blobSizeInBytes);
+        }
+      }
+      decrementReference(key);
+      return digest;
+    } finally {
+      if (!consumed) {
+        Files.delete(linkPath);
+      }
+    }
+  }
+
+  private static boolean hasSingleLink(Path file) throws IOException {
+    try {
+      return ((Number) Files.getAttribute(file, "unix:nlink")).intValue() == 1;
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // link counts are unavailable, we cannot ensure that other links are unaffected
+      return false;
+    }
+  }
+
   @Override
   public Write getWrite(Digest digest, UUID uuid, RequestMetadata requestMetadata) {
     if (digest.getSizeBytes() == 0) {
@@ -2012,85 +2112,8 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       Runnable onInsert,
       AtomicBoolean requiresDischarge)
       throws IOException, InterruptedException {
-
-    if (blobSizeInBytes > maxEntrySizeInBytes) {
-      String fileName = key.getFileName().toString();
-      FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
-      Digest digest;
-      if (fileEntryKey == null) {
-        logger.log(SEVERE, format("error parsing over limit key %s", key));
-        digest = Digest.newBuilder()
-            .setHash(fileName)
-            .setSizeBytes(blobSizeInBytes)
-            .build();
-      } else {
-        digest = fileEntryKey.getDigest();
-      }
-      throw new EntryLimitException(digest);
-    }
-
-    final ListenableFuture<Set<Digest>> expiredDigestsFuture;
-
-    boolean interrupted = false;
-    Iterable<ListenableFuture<Digest>> expiredDigestsFutures;
-    synchronized (this) {
-      if (referenceIfExists(key, containingDirectory)) {
-        return DUPLICATE_OUTPUT_STREAM;
-      }
-      sizeInBytes += blobSizeInBytes;
-      requiresDischarge.set(true);
-
-      ImmutableList.Builder<ListenableFuture<Digest>> builder = ImmutableList.builder();
-      try {
-        while (!interrupted && sizeInBytes > maxSizeInBytes) {
-          ListenableFuture<Path> expiredFuture = expireEntry(blobSizeInBytes, expireService);
-          interrupted = Thread.interrupted();
-          if (expiredFuture != null) {
-            builder.add(
-                transformAsync(
-                    expiredFuture,
-                    (expiredKey) -> {
-                      try {
-                        Files.delete(expiredKey);
-                      } catch (NoSuchFileException eNoEnt) {
-                        logger.severe(format("CASFileCache::putImpl: expired key %s did not exist to delete", expiredKey.toString()));
-                      }
-                      String fileName = expiredKey.getFileName().toString();
-                      FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
-                      if (fileEntryKey == null) {
-                        logger.severe(format("error parsing expired key %s", expiredKey));
-                      } else if (storage.containsKey(getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
-                        return immediateFuture(null);
-                      }
-                      return immediateFuture(fileEntryKey.getDigest());
-                    },
-                    expireService));
-          }
-        }
-      } catch (InterruptedException e) {
-        // clear interrupted flag
-        Thread.interrupted();
-        interrupted = true;
-      }
-      expiredDigestsFutures = builder.build();
-    }
-
-    ImmutableSet.Builder<Digest> builder = ImmutableSet.builder();
-    for (ListenableFuture<Digest> expiredDigestFuture : expiredDigestsFutures) {
-      Digest digest = getOrIOException(expiredDigestFuture);
-      if (Thread.interrupted()) {
-        interrupted = true;
-      }
-      if (digest != null) {
-        builder.add(digest);
-      }
-    }
-    Set<Digest> expiredDigests = builder.build();
-    if (!expiredDigests.isEmpty()) {
-      onExpire.accept(expiredDigests);
-    }
-    if (interrupted || Thread.currentThread().isInterrupted()) {
-      throw new InterruptedException();
+    if (referenceOrReserve(key, blobSizeInBytes, containingDirectory, requiresDischarge)) {
+      return DUPLICATE_OUTPUT_STREAM;
     }
 
     Path writePath = key.resolveSibling(key.getFileName() + "." + writeId);
@@ -2191,68 +2214,185 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           Digest expected = keyToDigest(key, digestUtil);
           throw new DigestMismatchException(actual, expected);
         }
-        try {
-          setPermissions(writePath, isExecutable);
-        } catch (IOException e) {
-          dischargeAndNotify(blobSizeInBytes);
-          throw e;
-        }
-
-        Entry entry = new Entry(
+        commitEntry(
             key,
+            writePath,
             blobSizeInBytes,
+            isExecutable,
             containingDirectory,
-            Deadline.after(10, SECONDS));
+            writeWinner,
+            onInsert);
+      }
+    };
+  }
 
-        Entry existingEntry = null;
-        boolean inserted = false;
-        try {
-          Files.createLink(key, writePath);
-          existingEntry = storage.putIfAbsent(key, entry);
-          inserted = existingEntry == null;
-        } catch (FileAlreadyExistsException e) {
-          logger.finer("file already exists for " + key + ", nonexistent entry will fail");
-        } finally {
-          Files.delete(writePath);
-          if (!inserted) {
-            dischargeAndNotify(blobSizeInBytes);
-          }
-        }
+  /**
+   * reference an existing entry for key, returning true, or reserve space
+   * for a new entry, expiring entries as necessary, returning false.
+   *
+   * requiresDischarge is set when space has been reserved.
+   */
+  private boolean referenceOrReserve(
+      Path key,
+      long blobSizeInBytes,
+      Digest containingDirectory,
+      AtomicBoolean requiresDischarge)
+      throws IOException, InterruptedException {
+    if (blobSizeInBytes > maxEntrySizeInBytes) {
+      String fileName = key.getFileName().toString();
+      FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
+      Digest digest;
+      if (fileEntryKey == null) {
+        logger.log(SEVERE, format("error parsing over limit key %s", key));
+        digest = Digest.newBuilder()
+            .setHash(fileName)
+            .setSizeBytes(blobSizeInBytes)
+            .build();
+      } else {
+        digest = fileEntryKey.getDigest();
+      }
+      throw new EntryLimitException(digest);
+    }
 
-        int attempts = 10;
-        if (!inserted) {
-          while (existingEntry == null && attempts-- != 0) {
-            existingEntry = storage.get(key);
-            try {
-              MILLISECONDS.sleep(10);
-            } catch (InterruptedException intEx) {
-              throw new IOException(intEx);
-            }
-          }
+    final ListenableFuture<Set<Digest>> expiredDigestsFuture;
 
-          if (existingEntry == null) {
-            throw new IOException("existing entry did not appear for " + key);
+    boolean interrupted = false;
+    Iterable<ListenableFuture<Digest>> expiredDigestsFutures;
+    synchronized (this) {
+      if (referenceIfExists(key, containingDirectory)) {
+        return true;
+      }
+      sizeInBytes += blobSizeInBytes;
+      requiresDischarge.set(true);
+
+      ImmutableList.Builder<ListenableFuture<Digest>> builder = ImmutableList.builder();
+      try {
+        while (!interrupted && sizeInBytes > maxSizeInBytes) {
+          ListenableFuture<Path> expiredFuture = expireEntry(blobSizeInBytes, expireService);
+          interrupted = Thread.interrupted();
+          if (expiredFuture != null) {
+            builder.add(
+                transformAsync(
+                    expiredFuture,
+                    (expiredKey) -> {
+                      try {
+                        Files.delete(expiredKey);
+                      } catch (NoSuchFileException eNoEnt) {
+                        logger.severe(format("CASFileCache::putImpl: expired key %s did not exist to delete", expiredKey.toString()));
+                      }
+                      String fileName = expiredKey.getFileName().toString();
+                      FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
+                      if (fileEntryKey == null) {
+                        logger.severe(format("error parsing expired key %s", expiredKey));
+                      } else if (storage.containsKey(getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
+                        return immediateFuture(null);
+                      }
+                      return immediateFuture(fileEntryKey.getDigest());
+                    },
+                    expireService));
           }
         }
+      } catch (InterruptedException e) {
+        // clear interrupted flag
+        Thread.interrupted();
+        interrupted = true;
+      }
+      expiredDigestsFutures = builder.build();
+    }
 
-        if (existingEntry != null) {
-          logger.finer("lost the race to insert " + key);
-          if (!referenceIfExists(key, containingDirectory)) {
-            // we would lose our accountability and have a presumed reference if we returned
-            throw new IllegalStateException("storage conflict with existing key for " + key);
-          }
-        } else if (writeWinner.get()) {
-          logger.finer("won the race to insert " + key);
-          try {
-            onInsert.run();
-          } catch (RuntimeException e) {
-            throw new IOException(e);
-          }
-        } else {
-          logger.finer("did not win the race to insert " + key);
+    ImmutableSet.Builder<Digest> builder = ImmutableSet.builder();
+    for (ListenableFuture<Digest> expiredDigestFuture : expiredDigestsFutures) {
+      Digest digest = getOrIOException(expiredDigestFuture);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+      if (digest != null) {
+        builder.add(digest);
+      }
+    }
+    Set<Digest> expiredDigests = builder.build();
+    if (!expiredDigests.isEmpty()) {
+      onExpire.accept(expiredDigests);
+    }
+    if (interrupted || Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException();
+    }
+    return false;
+  }
+
+  /**
+   * insert a complete and verified file at writePath as the entry for key,
+   * for which space has been reserved, consuming writePath
+   */
+  private void commitEntry(
+      Path key,
+      Path writePath,
+      long blobSizeInBytes,
+      boolean isExecutable,
+      Digest containingDirectory,
+      Supplier<Boolean> writeWinner,
+      Runnable onInsert)
+      throws IOException {
+    try {
+      setPermissions(writePath, isExecutable);
+    } catch (IOException e) {
+      dischargeAndNotify(blobSizeInBytes);
+      throw e;
+    }
+
+    Entry entry = new Entry(
+        key,
+        blobSizeInBytes,
+        containingDirectory,
+        Deadline.after(10, SECONDS));
+
+    Entry existingEntry = null;
+    boolean inserted = false;
+    try {
+      Files.createLink(key, writePath);
+      existingEntry = storage.putIfAbsent(key, entry);
+      inserted = existingEntry == null;
+    } catch (FileAlreadyExistsException e) {
+      logger.finer("file already exists for " + key + ", nonexistent entry will fail");
+    } finally {
+      Files.delete(writePath);
+      if (!inserted) {
+        dischargeAndNotify(blobSizeInBytes);
+      }
+    }
+
+    int attempts = 10;
+    if (!inserted) {
+      while (existingEntry == null && attempts-- != 0) {
+        existingEntry = storage.get(key);
+        try {
+          MILLISECONDS.sleep(10);
+        } catch (InterruptedException intEx) {
+          throw new IOException(intEx);
         }
       }
-    };
+
+      if (existingEntry == null) {
+        throw new IOException("existing entry did not appear for " + key);
+      }
+    }
+
+    if (existingEntry != null) {
+      logger.finer("lost the race to insert " + key);
+      if (!referenceIfExists(key, containingDirectory)) {
+        // we would lose our accountability and have a presumed reference if we returned
+        throw new IllegalStateException("storage conflict with existing key for " + key);
+      }
+    } else if (writeWinner.get()) {
+      logger.finer("won the race to insert " + key);
+      try {
+        onInsert.run();
+      } catch (RuntimeException e) {
+        throw new IOException(e);
+      }
+    } else {
+      logger.finer("did not win the race to insert " + key);
+    }
   }
 
   private static void setPermissions(Path path, boolean isExecutable) throws IOException {
@@ -16,9 +16,9 @@ package build.buildfarm.worker;
 
 import static java.util.logging.Level.SEVERE;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import java.io.IOException;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
@@ -26,16 +26,41 @@ import java.util.logging.Logger;
 public class ExecuteActionStage extends SuperscalarPipelineStage {
   private static final Logger logger = Logger.getLogger(ExecuteActionStage.class.getName());
 
-  private final Set<Thread> executors = Sets.newHashSet();
+  private final Map<Thread, ExecutionResources.Claim> executors = Maps.newHashMap();
   private BlockingQueue<OperationContext> queue = new ArrayBlockingQueue<>(1);
+  private final ExecutionResources resources;
+  final PersistentWorkerPool persistentWorkers;
 
   public ExecuteActionStage(WorkerContext workerContext, PipelineStage output, PipelineStage error) {
+    this(
+        workerContext,
+        output,
+        error,
+        new ExecutionResources(/* cores=*/ 0, /* memoryBytes=*/ 0));
+  }
+
+  public ExecuteActionStage(
+      WorkerContext workerContext,
+      PipelineStage output,
+      PipelineStage error,
+      ExecutionResources resources) {
     super(
         "ExecuteActionStage",
         workerContext,
         output,
         createDestroyExecDirStage(workerContext, error),
         workerContext.getExecuteStageWidth());
+    this.resources = resources;
+    persistentWorkers = new PersistentWorkerPool(
+        /* maxIdlePerKey=*/ workerContext.getExecuteStageWidth());
+    PipelineMetrics.getDefault().setGauge(
+        "execute_stage_cores_available",
+        "Cores not claimed by executing actions, 0 if unconstrained.",
+        resources::getAvailableCores);
+    PipelineMetrics.getDefault().setGauge(
+        "execute_stage_memory_bytes_available",
+        "Memory not claimed by executing actions, 0 if unconstrained.",
+        resources::getAvailableMemoryBytes);
   }
 
   static PipelineStage createDestroyExecDirStage(WorkerContext workerContext, PipelineStage nextStage) {
@@ -53,6 +78,12 @@ public class ExecuteActionStage extends SuperscalarPipelineStage {
     };
   }
 
+  @Override
+  public void setWidth(int width) {
+    super.setWidth(width);
+    persistentWorkers.setMaxIdlePerKey(width);
+  }
+
   @Override
   protected Logger getLogger() {
     return logger;
@@ -69,15 +100,18 @@ public class ExecuteActionStage extends SuperscalarPipelineStage {
   }
 
   synchronized int removeAndRelease(String operationName) {
-    if (!executors.remove(Thread.currentThread())) {
+    ExecutionResources.Claim claim = executors.remove(Thread.currentThread());
+    if (claim == null) {
       throw new IllegalStateException("tried to remove unknown executor thread for " + operationName);
     }
+    resources.release(claim);
     releaseClaim(operationName);
     return executors.size();
   }
 
   public void releaseExecutor(String operationName, long usecs, long stallUSecs, int exitCode) {
     int size = removeAndRelease(operationName);
+    metrics.record(usecs, stallUSecs, exitCode != Executor.INCOMPLETE_EXIT_CODE);
     logComplete(
         operationName,
         usecs,
@@ -85,9 +119,15 @@ public class ExecuteActionStage extends SuperscalarPipelineStage {
         String.format("exit code: %d, %s", exitCode, getUsage(size)));
   }
 
+  @Override
+  public void close() {
+    super.close();
+    persistentWorkers.close();
+  }
+
   @Override
   protected synchronized void interruptAll() {
-    for (Thread executor : executors) {
+    for (Thread executor : executors.keySet()) {
       executor.interrupt();
     }
   }
@@ -95,10 +135,26 @@ public class ExecuteActionStage extends SuperscalarPipelineStage {
   @Override
   protected void iterate() throws InterruptedException {
     OperationContext operationContext = take();
+    // admitted in order, so that a large claim is not starved by smaller ones
+    ExecutionResources.Claim claim = resources.claim(operationContext.command.getPlatform());
+    try {
+      resources.acquire(claim);
+    } catch (InterruptedException e) {
+      // the operation must still be reported, and its exec dir destroyed
+      String operationName = operationContext.operation.getName();
+      try {
+        error.put(operationContext);
+      } catch (InterruptedException errorEx) {
+        logger.log(SEVERE, "interrupted while erroring " + operationName, errorEx);
+      } finally {
+        releaseClaim(operationName);
+      }
+      throw e;
+    }
     Thread executor = new Thread(new Executor(workerContext, operationContext, this));
 
     synchronized (this) {
-      executors.add(executor);
+      executors.put(executor, claim);
       logStart(operationContext.operation.getName(), getUsage(executors.size()));
       executor.start();
     }
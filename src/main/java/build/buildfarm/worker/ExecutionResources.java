@@ -0,0 +1,117 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+import build.bazel.remote.execution.v2.Platform;
+import java.util.logging.Logger;
+
+/**
+ * Admits executions by the cores and memory they declare, as a weighted
+ * semaphore over the totals available to the execute stage.
+ *
+ * Actions declare their needs with the min-cores and min-mem (in bytes)
+ * platform properties, and claim nothing when undeclared, so that only
+ * the execute stage width limits them. A total of 0 leaves that resource
+ * unconstrained, and nothing of it is claimed. Constrained totals must be
+ * provisioned as the capacities against which actions are matched, so
+ * that no admitted action needs more than a total.
+ */
+public class ExecutionResources {
+  private static final Logger logger = Logger.getLogger(ExecutionResources.class.getName());
+
+  public static final String CORES_PROPERTY = "min-cores";
+  public static final String MEMORY_PROPERTY = "min-mem";
+
+  static final class Claim {
+    final int cores;
+    final long memoryBytes;
+
+    Claim(int cores, long memoryBytes) {
+      this.cores = cores;
+      this.memoryBytes = memoryBytes;
+    }
+  }
+
+  private final int cores;
+  private final long memoryBytes;
+  // guarded by this
+  private int availableCores;
+  private long availableMemoryBytes;
+
+  /** cores or memoryBytes of 0 leave that resource unconstrained */
+  public ExecutionResources(int cores, long memoryBytes) {
+    checkArgument(cores >= 0, "cores must not be negative");
+    checkArgument(memoryBytes >= 0, "memoryBytes must not be negative");
+    this.cores = cores;
+    this.memoryBytes = memoryBytes;
+    availableCores = cores;
+    availableMemoryBytes = memoryBytes;
+  }
+
+  private static long parseProperty(Platform.Property property, long defaultValue) {
+    try {
+      long value = Long.parseLong(property.getValue());
+      if (value >= 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // fall through
+    }
+    logger.warning(format("ignoring invalid %s: %s", property.getName(), property.getValue()));
+    return defaultValue;
+  }
+
+  /** the resources declared by platform */
+  Claim claim(Platform platform) {
+    long claimCores = 0;
+    long claimMemoryBytes = 0;
+    for (Platform.Property property : platform.getPropertiesList()) {
+      if (property.getName().equals(CORES_PROPERTY)) {
+        claimCores = parseProperty(property, claimCores);
+      } else if (property.getName().equals(MEMORY_PROPERTY)) {
+        claimMemoryBytes = parseProperty(property, claimMemoryBytes);
+      }
+    }
+    return new Claim(
+        cores == 0 ? 0 : (int) claimCores,
+        memoryBytes == 0 ? 0 : claimMemoryBytes);
+  }
+
+  /** wait until the claimed resources are available and take them */
+  synchronized void acquire(Claim claim) throws InterruptedException {
+    while (availableCores < claim.cores || availableMemoryBytes < claim.memoryBytes) {
+      wait();
+    }
+    availableCores -= claim.cores;
+    availableMemoryBytes -= claim.memoryBytes;
+  }
+
+  synchronized void release(Claim claim) {
+    availableCores += claim.cores;
+    availableMemoryBytes += claim.memoryBytes;
+    notifyAll();
+  }
+
+  synchronized int getAvailableCores() {
+    return availableCores;
+  }
+
+  synchronized long getAvailableMemoryBytes() {
+    return availableMemoryBytes;
+  }
+}
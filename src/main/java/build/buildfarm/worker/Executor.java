@@ -20,21 +20,30 @@ import static build.buildfarm.v1test.ExecutionPolicy.PolicyCase.WRAPPER;
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecuteResponse;
 import build.bazel.remote.execution.v2.ExecutionStage;
+import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.Platform;
 import build.bazel.remote.execution.v2.Platform.Property;
 import build.buildfarm.common.Write;
-import build.buildfarm.common.Write.NullWrite;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkRequestInput;
+import build.buildfarm.v1test.WorkResponse;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Any;
@@ -48,15 +57,32 @@ import java.nio.file.Path;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 class Executor implements Runnable {
-  private static final int INCOMPLETE_EXIT_CODE = -1;
+  static final int INCOMPLETE_EXIT_CODE = -1;
   private static final Logger logger = Logger.getLogger(Executor.class.getName());
 
-  private static final Object execLock = new Object();
+  // exec of a file held open for writing in any process fails with ETXTBSY
+  private static final String TEXT_FILE_BUSY_ERROR = "error=26,";
+  @VisibleForTesting
+  static final int TEXT_FILE_BUSY_ATTEMPTS = 10;
+  private static final long TEXT_FILE_BUSY_DELAY_MILLIS = 10;
+
+  // platform property for actions which may be run on a persistent worker
+  private static final String PERSISTENT_WORKER_PROPERTY = "persistent-worker";
+  // captured standard outputs beyond this size are uploaded from their files
+  @VisibleForTesting
+  static final long STD_OUTPUT_INLINE_LIMIT = 1024 * 1024;
+
+  // persistent worker directories are siblings of exec directories
+  private static final String PERSISTENT_WORKERS_DIRECTORY = ".persistent-workers";
 
   private final WorkerContext workerContext;
   private final OperationContext operationContext;
@@ -69,6 +95,292 @@ class Executor implements Runnable {
     this.owner = owner;
   }
 
+  /**
+   * start the process without serializing against other launches
+   *
+   * Descriptors are not leaked into children, since the JDK closes all but
+   * the standard streams in the child before exec. A concurrent launch may
+   * however briefly hold a descriptor for an executable which is being
+   * written into the cache, which fails our exec of it as busy until that
+   * child has exec'd. That window is short, so the launch is retried rather
+   * than excluded by a global lock.
+   */
+  static Process startProcess(ProcessBuilder processBuilder)
+      throws IOException, InterruptedException {
+    return startProcess(processBuilder::start);
+  }
+
+  interface ProcessStarter {
+    Process start() throws IOException;
+  }
+
+  @VisibleForTesting
+  static Process startProcess(ProcessStarter starter)
+      throws IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return starter.start();
+      } catch (IOException e) {
+        String message = e.getMessage();
+        if (attempt >= TEXT_FILE_BUSY_ATTEMPTS
+            || message == null
+            || !message.contains(TEXT_FILE_BUSY_ERROR)) {
+          throw e;
+        }
+      }
+      MILLISECONDS.sleep(TEXT_FILE_BUSY_DELAY_MILLIS * attempt);
+    }
+  }
+
+  /**
+   * A standard output stream of a process. Unless it is streamed, the
+   * stream is redirected into a capture file, which the kernel fills
+   * without a reader thread or heap buffering. Captures within
+   * STD_OUTPUT_INLINE_LIMIT are returned raw, and larger ones are uploaded
+   * directly from the file. A capture which exceeds the entry limit of the
+   * storage is truncated to STD_OUTPUT_INLINE_LIMIT and returned raw.
+   */
+  @VisibleForTesting
+  static final class StdOutput {
+    private final WorkerContext workerContext;
+    private final Write write; // null if captured to file
+    private final Path file; // null if streamed
+    private ByteStringWriteReader reader = null;
+    private Thread readerThread = null;
+
+    StdOutput(WorkerContext workerContext, Path captureDirectory, String suffix, Write write)
+        throws IOException {
+      this.workerContext = workerContext;
+      this.write = write;
+      file = write == null ? Files.createTempFile(captureDirectory, "capture", suffix) : null;
+    }
+
+    ProcessBuilder.Redirect redirect() {
+      return file == null ? ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.to(file.toFile());
+    }
+
+    void start(InputStream input) {
+      if (file == null) {
+        write.reset();
+        reader = new ByteStringWriteReader(input, write);
+        readerThread = new Thread(reader);
+        readerThread.start();
+      }
+    }
+
+    void join() throws InterruptedException {
+      if (readerThread != null) {
+        readerThread.join();
+      }
+    }
+
+    void complete(Consumer<ByteString> onRaw, Consumer<Digest> onDigest)
+        throws IOException, InterruptedException {
+      if (file == null) {
+        onRaw.accept(reader.getData());
+        return;
+      }
+      long size = Files.size(file);
+      if (size > STD_OUTPUT_INLINE_LIMIT) {
+        Digest digest = workerContext.uploadFile(file);
+        if (digest != null) {
+          onDigest.accept(digest);
+          return;
+        }
+        logger.warning(
+            format(
+                "capture %s of %d bytes exceeds the storage entry limit, truncating to %d bytes",
+                file,
+                size,
+                STD_OUTPUT_INLINE_LIMIT));
+      }
+      try (InputStream in = ByteStreams.limit(Files.newInputStream(file), STD_OUTPUT_INLINE_LIMIT)) {
+        onRaw.accept(ByteString.readFrom(in));
+      }
+    }
+
+    void discard() {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          logger.log(SEVERE, "error removing capture " + file, e);
+        }
+      }
+    }
+  }
+
+  private static boolean requestsPersistentWorker(Command command) {
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      if (property.getName().equals(PERSISTENT_WORKER_PROPERTY)) {
+        return property.getValue().equals("true");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * the path of the flagfile which ends a persistent worker invocation,
+   * as produced by bazel for worker supporting actions, or null if the
+   * arguments do not end with one
+   */
+  private static String getFlagfile(List<String> arguments) {
+    if (arguments.size() < 2) {
+      return null;
+    }
+    String last = arguments.get(arguments.size() - 1);
+    if (last.startsWith("@") && !last.startsWith("@@")) {
+      return last.substring(1);
+    }
+    if (last.startsWith("--flagfile=")) {
+      return last.substring("--flagfile=".length());
+    }
+    return null;
+  }
+
+  /**
+   * the relative path and digest of every input file of the action, which
+   * persistent workers use to distinguish changed content at identical
+   * paths across requests, or null if the input tree cannot be resolved
+   */
+  private List<WorkRequestInput> getWorkRequestInputs(String operationName)
+      throws InterruptedException {
+    Map<Digest, Directory> directoriesIndex;
+    try {
+      directoriesIndex = workerContext.getDirectoriesIndex(
+          operationContext.tree,
+          operationContext.action);
+    } catch (IOException e) {
+      logger.log(SEVERE, "error resolving persistent worker inputs for " + operationName, e);
+      return null;
+    }
+    ImmutableList.Builder<WorkRequestInput> inputs = ImmutableList.builder();
+    if (!addWorkRequestInputs(
+        "",
+        operationContext.action.getInputRootDigest(),
+        directoriesIndex,
+        inputs)) {
+      logger.severe("incomplete input tree for persistent worker request of " + operationName);
+      return null;
+    }
+    return inputs.build();
+  }
+
+  @VisibleForTesting
+  static boolean addWorkRequestInputs(
+      String prefix,
+      Digest directoryDigest,
+      Map<Digest, Directory> directoriesIndex,
+      ImmutableList.Builder<WorkRequestInput> inputs) {
+    Directory directory = directoriesIndex.get(directoryDigest);
+    if (directory == null) {
+      // only the empty directory may be omitted from an index
+      return directoryDigest.getSizeBytes() == 0;
+    }
+    for (FileNode fileNode : directory.getFilesList()) {
+      inputs.add(WorkRequestInput.newBuilder()
+          .setPath(prefix + fileNode.getName())
+          // bazel presents digests to workers as their hex encoding
+          .setDigest(ByteString.copyFromUtf8(fileNode.getDigest().getHash()))
+          .build());
+    }
+    for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+      if (!addWorkRequestInputs(
+          prefix + directoryNode.getName() + "/",
+          directoryNode.getDigest(),
+          directoriesIndex,
+          inputs)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * send the flagfile arguments to a persistent worker launched with the
+   * remaining arguments, returning null if the request could not be
+   * served by a worker
+   */
+  private Code executeOnPersistentWorker(
+      String operationName,
+      Path execDir,
+      PersistentWorker.Key key,
+      Path flagfile,
+      Duration timeout,
+      ActionResult.Builder resultBuilder)
+      throws InterruptedException {
+    // a worker without input digests may reuse stale content at identical paths
+    List<WorkRequestInput> inputs = getWorkRequestInputs(operationName);
+    if (inputs == null) {
+      return null;
+    }
+    WorkRequest request;
+    try {
+      request = WorkRequest.newBuilder()
+          .addAllArguments(Files.readAllLines(flagfile))
+          .addAllInputs(inputs)
+          .build();
+    } catch (IOException e) {
+      logger.log(SEVERE, "error reading persistent worker flagfile for " + operationName, e);
+      return null;
+    }
+
+    long timeoutNanos = timeout == null ? 0 : timeout.getSeconds() * 1000000000L + timeout.getNanos();
+    Code statusCode = executeWorkRequest(
+        operationName,
+        owner.persistentWorkers,
+        key,
+        execDir,
+        request,
+        timeoutNanos,
+        resultBuilder);
+    if (statusCode != null) {
+      exitCode = resultBuilder.getExitCode();
+    }
+    return statusCode;
+  }
+
+  /**
+   * serve request with a worker from pool, recording its result in
+   * resultBuilder, returning null if the worker failed to respond
+   *
+   * A timed out request reports INCOMPLETE_EXIT_CODE, as a timed out process
+   * does, and its worker is discarded.
+   */
+  @VisibleForTesting
+  static Code executeWorkRequest(
+      String operationName,
+      PersistentWorkerPool pool,
+      PersistentWorker.Key key,
+      Path execDir,
+      WorkRequest request,
+      long timeoutNanos,
+      ActionResult.Builder resultBuilder)
+      throws InterruptedException {
+    PersistentWorker worker = pool.borrow(key, execDir.resolveSibling(PERSISTENT_WORKERS_DIRECTORY));
+    WorkResponse response;
+    try {
+      response = worker.execute(execDir, request, timeoutNanos, pool.getReadService());
+    } catch (TimeoutException e) {
+      logger.info("persistent worker timed out for " + operationName);
+      pool.invalidate(worker);
+      resultBuilder.setExitCode(INCOMPLETE_EXIT_CODE);
+      return Code.DEADLINE_EXCEEDED;
+    } catch (IOException e) {
+      logger.log(SEVERE, "error executing persistent worker request for " + operationName, e);
+      pool.invalidate(worker);
+      return null;
+    } catch (InterruptedException e) {
+      pool.invalidate(worker);
+      throw e;
+    }
+    pool.release(worker);
+    resultBuilder
+        .setExitCode(response.getExitCode())
+        .setStderrRaw(ByteString.copyFromUtf8(response.getOutput()));
+    return Code.OK;
+  }
+
   private long runInterruptible(Stopwatch stopwatch) throws InterruptedException {
     ExecuteOperationMetadata metadata;
     try {
@@ -278,9 +590,10 @@ class Executor implements Runnable {
             filter(policies, (policy) -> policy.getPolicyCase() == WRAPPER),
             (policy) -> policy.getWrapper().getPath()));
     arguments.addAll(command.getArgumentsList());
+    ImmutableList<String> argumentList = arguments.build();
 
     ProcessBuilder processBuilder =
-        new ProcessBuilder(arguments.build())
+        new ProcessBuilder(argumentList)
             .directory(execDir.toAbsolutePath().toFile());
 
     Map<String, String> environment = processBuilder.environment();
@@ -289,25 +602,75 @@ class Executor implements Runnable {
       environment.put(environmentVariable.getName(), environmentVariable.getValue());
     }
 
+    String flagfile = workerContext.getPersistentWorkers() && requestsPersistentWorker(command)
+        ? getFlagfile(argumentList)
+        : null;
+    if (flagfile != null) {
+      Code statusCode = executeOnPersistentWorker(
+          operationName,
+          execDir,
+          new PersistentWorker.Key(argumentList.subList(0, argumentList.size() - 1), environment),
+          execDir.resolve(flagfile),
+          timeout,
+          resultBuilder);
+      if (statusCode != null) {
+        return statusCode;
+      }
+      // the worker could not serve the request, run it as a single process
+    }
+
     final Write stdoutWrite, stderrWrite;
 
     if (stdoutStreamName != null && !stdoutStreamName.isEmpty() && workerContext.getStreamStdout()) {
       stdoutWrite = workerContext.getOperationStreamWrite(stdoutStreamName);
     } else {
-      stdoutWrite = new NullWrite();
+      stdoutWrite = null;
     }
     if (stderrStreamName != null && !stderrStreamName.isEmpty() && workerContext.getStreamStderr()) {
       stderrWrite = workerContext.getOperationStreamWrite(stderrStreamName);
     } else {
-      stderrWrite = new NullWrite();
+      stderrWrite = null;
+    }
+
+    Path captureDirectory = execDir.toAbsolutePath().getParent();
+    StdOutput stdout = new StdOutput(workerContext, captureDirectory, ".stdout", stdoutWrite);
+    StdOutput stderr;
+    try {
+      stderr = new StdOutput(workerContext, captureDirectory, ".stderr", stderrWrite);
+    } catch (IOException e) {
+      stdout.discard();
+      throw e;
     }
+    processBuilder
+        .redirectOutput(stdout.redirect())
+        .redirectError(stderr.redirect());
 
+    try {
+      return executeProcess(
+          operationName,
+          processBuilder,
+          timeout,
+          stdout,
+          stderr,
+          resultBuilder);
+    } finally {
+      stdout.discard();
+      stderr.discard();
+    }
+  }
+
+  private Code executeProcess(
+      String operationName,
+      ProcessBuilder processBuilder,
+      Duration timeout,
+      StdOutput stdout,
+      StdOutput stderr,
+      ActionResult.Builder resultBuilder)
+      throws IOException, InterruptedException {
     long startNanoTime = System.nanoTime();
     Process process;
     try {
-      synchronized (execLock) {
-        process = processBuilder.start();
-      }
+      process = startProcess(processBuilder);
       process.getOutputStream().close();
     } catch (IOException e) {
       logger.log(SEVERE, "error starting process for " + operationName, e);
@@ -327,17 +690,8 @@ class Executor implements Runnable {
       return Code.INVALID_ARGUMENT;
     }
 
-    stdoutWrite.reset();
-    stderrWrite.reset();
-    ByteStringWriteReader stdoutReader = new ByteStringWriteReader(
-        process.getInputStream(), stdoutWrite);
-    ByteStringWriteReader stderrReader = new ByteStringWriteReader(
-        process.getErrorStream(), stderrWrite);
-
-    Thread stdoutReaderThread = new Thread(stdoutReader);
-    Thread stderrReaderThread = new Thread(stderrReader);
-    stdoutReaderThread.start();
-    stderrReaderThread.start();
+    stdout.start(process.getInputStream());
+    stderr.start(process.getErrorStream());
 
     Code statusCode = Code.OK;
     try {
@@ -356,6 +710,7 @@ class Executor implements Runnable {
             process.destroyForcibly();
             process.waitFor(100, TimeUnit.MILLISECONDS); // fair trade, i think
           }
+          exitCode = INCOMPLETE_EXIT_CODE;
           statusCode = Code.DEADLINE_EXCEEDED;
         }
       }
@@ -367,12 +722,11 @@ class Executor implements Runnable {
       }
       throw e;
     }
-    stdoutReaderThread.join();
-    stderrReaderThread.join();
-    resultBuilder
-        .setExitCode(exitCode)
-        .setStdoutRaw(stdoutReader.getData())
-        .setStderrRaw(stderrReader.getData());
+    stdout.join();
+    stderr.join();
+    resultBuilder.setExitCode(exitCode);
+    stdout.complete(resultBuilder::setStdoutRaw, resultBuilder::setStdoutDigest);
+    stderr.complete(resultBuilder::setStderrRaw, resultBuilder::setStderrDigest);
     return statusCode;
   }
 }
@@ -414,7 +414,7 @@ public class FuseCAS extends FuseStubFS {
         umount();
         mounted = false;
       });
-      new Thread(unmounter).start();
+      unmounter.start();
     }
   }
 
@@ -62,6 +62,7 @@ public class InputFetchStage extends SuperscalarPipelineStage {
 
   public void releaseInputFetcher(String operationName, long usecs, long stallUSecs, boolean success) {
     int size = removeAndRelease(operationName);
+    metrics.record(usecs, stallUSecs, success);
     logComplete(
         operationName,
         usecs,
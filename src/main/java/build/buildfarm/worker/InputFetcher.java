@@ -140,6 +140,7 @@ public class InputFetcher implements Runnable {
         .setExecDir(execDir)
         .setAction(queuedOperation.getAction())
         .setCommand(queuedOperation.getCommand())
+        .setTree(queuedOperation.getTree())
         .build();
     boolean claimed = owner.output().claim();
     operationContext.poller.pause();
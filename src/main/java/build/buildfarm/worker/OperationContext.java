@@ -19,6 +19,7 @@ import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.ExecuteResponse;
+import build.bazel.remote.execution.v2.Tree;
 import build.buildfarm.common.Poller;
 import build.buildfarm.v1test.QueueEntry;
 import com.google.longrunning.Operation;
@@ -32,6 +33,7 @@ final class OperationContext {
   final Action action;
   final Command command;
   final QueueEntry queueEntry;
+  final Tree tree;
 
   private OperationContext(
       ExecuteResponse.Builder executeResponse,
@@ -40,7 +42,8 @@ final class OperationContext {
       Path execDir,
       Action action,
       Command command,
-      QueueEntry queueEntry) {
+      QueueEntry queueEntry,
+      Tree tree) {
     this.executeResponse = executeResponse;
     this.operation = operation;
     this.poller = poller;
@@ -48,6 +51,7 @@ final class OperationContext {
     this.action = action;
     this.command = command;
     this.queueEntry = queueEntry;
+    this.tree = tree;
   }
 
   public static class Builder {
@@ -58,6 +62,7 @@ final class OperationContext {
     private Action action;
     private Command command;
     private QueueEntry queueEntry;
+    private Tree tree;
 
     private Builder(
         ExecuteResponse.Builder executeResponse,
@@ -66,7 +71,8 @@ final class OperationContext {
         Path execDir,
         Action action,
         Command command,
-        QueueEntry queueEntry) {
+        QueueEntry queueEntry,
+        Tree tree) {
       this.executeResponse = executeResponse;
       this.operation = operation;
       this.poller = poller;
@@ -74,6 +80,7 @@ final class OperationContext {
       this.action = action;
       this.command = command;
       this.queueEntry = queueEntry;
+      this.tree = tree;
     }
 
     public Builder setExecuteResponseBuilder(ExecuteResponse.Builder executeResponse) {
@@ -111,6 +118,11 @@ final class OperationContext {
       return this;
     }
 
+    public Builder setTree(Tree tree) {
+      this.tree = tree;
+      return this;
+    }
+
     public OperationContext build() {
       return new OperationContext(
           executeResponse,
@@ -119,7 +131,8 @@ final class OperationContext {
           execDir,
           action,
           command,
-          queueEntry);
+          queueEntry,
+          tree);
     }
   }
 
@@ -131,7 +144,8 @@ final class OperationContext {
         /* execDir=*/ null,
         /* action=*/ null,
         /* command=*/ null,
-        /* queueEntry=*/ null);
+        /* queueEntry=*/ null,
+        /* tree=*/ null);
   }
 
   public Builder toBuilder() {
@@ -142,6 +156,7 @@ final class OperationContext {
         execDir,
         action,
         command,
-        queueEntry);
+        queueEntry,
+        tree);
   }
 }
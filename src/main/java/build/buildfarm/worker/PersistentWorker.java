@@ -0,0 +1,231 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.WARNING;
+
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * A long lived tool process driven with the persistent worker protocol,
+ * serving one request at a time.
+ *
+ * The process runs in a working directory of its own, into which the
+ * top level entries of each request's exec directory are symlinked for
+ * the duration of the request, so that the relative paths of a request
+ * resolve into its exec directory alone. Top level files created by the
+ * tool during a request are moved into the exec directory afterwards.
+ */
+class PersistentWorker {
+  private static final Logger logger = Logger.getLogger(PersistentWorker.class.getName());
+
+  static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+  /** processes are interchangeable if launched with the same arguments and environment */
+  static final class Key {
+    final ImmutableList<String> arguments;
+    final ImmutableMap<String, String> environment;
+
+    Key(Iterable<String> arguments, Map<String, String> environment) {
+      this.arguments = ImmutableList.copyOf(arguments);
+      this.environment = ImmutableMap.copyOf(environment);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o instanceof Key) {
+        Key key = (Key) o;
+        return arguments.equals(key.arguments) && environment.equals(key.environment);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(arguments, environment);
+    }
+  }
+
+  private final Key key;
+  private final Path workDir;
+  private Process process = null;
+
+  PersistentWorker(Key key, Path workDir) {
+    this.key = key;
+    this.workDir = workDir;
+  }
+
+  Key getKey() {
+    return key;
+  }
+
+  boolean isAlive() {
+    return process == null || process.isAlive();
+  }
+
+  private Path getLogFile() {
+    return workDir.resolveSibling(workDir.getFileName() + ".log");
+  }
+
+  private void start() throws IOException, InterruptedException {
+    ProcessBuilder processBuilder =
+        new ProcessBuilder(ImmutableList.<String>builder()
+            .addAll(key.arguments)
+            .add(PERSISTENT_WORKER_FLAG)
+            .build())
+            .directory(workDir.toAbsolutePath().toFile())
+            .redirectError(getLogFile().toFile());
+    processBuilder.environment().clear();
+    processBuilder.environment().putAll(key.environment);
+    process = Executor.startProcess(processBuilder);
+  }
+
+  /**
+   * perform request with the relative paths of execDir
+   *
+   * The process is started with the first request. Any exception leaves the
+   * process in an unknown state, and it must be destroyed.
+   */
+  WorkResponse execute(
+      Path execDir,
+      WorkRequest request,
+      long timeoutNanos,
+      ExecutorService readService)
+      throws IOException, InterruptedException, TimeoutException {
+    Files.createDirectories(workDir);
+    List<Path> links = link(execDir);
+    try {
+      if (process == null) {
+        start();
+      }
+      OutputStream out = process.getOutputStream();
+      request.writeDelimitedTo(out);
+      out.flush();
+
+      // parsing is not interruptible, destroying the process unblocks it
+      Process requestProcess = process;
+      Future<WorkResponse> responseFuture =
+          readService.submit(() -> WorkResponse.parseDelimitedFrom(requestProcess.getInputStream()));
+      WorkResponse response;
+      try {
+        if (timeoutNanos > 0) {
+          response = responseFuture.get(timeoutNanos, NANOSECONDS);
+        } else {
+          response = responseFuture.get();
+        }
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      } finally {
+        responseFuture.cancel(true);
+      }
+      if (response == null) {
+        throw new IOException(format("persistent worker exited with %s", exitStatus()));
+      }
+      return response;
+    } finally {
+      unlink(execDir, links);
+    }
+  }
+
+  private String exitStatus() {
+    try {
+      return Integer.toString(process.exitValue());
+    } catch (IllegalThreadStateException e) {
+      return "no exit status";
+    }
+  }
+
+  private List<Path> link(Path execDir) throws IOException {
+    List<Path> links = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(execDir)) {
+      for (Path entry : entries) {
+        Path link = workDir.resolve(entry.getFileName().toString());
+        Files.createSymbolicLink(link, entry.toAbsolutePath());
+        links.add(link);
+      }
+    } catch (IOException e) {
+      for (Path link : links) {
+        Files.deleteIfExists(link);
+      }
+      throw e;
+    }
+    return links;
+  }
+
+  private void unlink(Path execDir, List<Path> links) throws IOException {
+    for (Path link : links) {
+      Files.deleteIfExists(link);
+    }
+    // created by the tool outside of any linked directory
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(workDir)) {
+      for (Path entry : entries) {
+        Path target = execDir.resolve(entry.getFileName().toString());
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+          logger.warning(format("persistent worker created %s over an existing input, discarding", target));
+          Utils.removeDirectory(entry);
+        } else {
+          Files.move(entry, target);
+        }
+      }
+    }
+  }
+
+  void destroy() {
+    if (process != null) {
+      process.destroy();
+      try {
+        if (!process.waitFor(1, SECONDS)) {
+          process.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      if (Files.exists(workDir)) {
+        Utils.removeDirectory(workDir);
+      }
+      Files.deleteIfExists(getLogFile());
+    } catch (IOException e) {
+      logger.log(WARNING, format("error removing persistent worker directory %s", workDir), e);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idle persistent workers, keyed by their launch arguments and environment.
+ *
+ * Workers are borrowed for the duration of a request and returned if they
+ * remain healthy, up to maxIdlePerKey for each key, so that warm processes
+ * are retained for the tools in use without growing past the concurrency
+ * of the execute stage. The bound follows the execute stage as it is
+ * resized.
+ */
+class PersistentWorkerPool {
+  private int maxIdlePerKey; // guarded by this
+  private final ExecutorService readService = newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setNameFormat("persistent-worker-read-%d")
+          .setDaemon(true)
+          .build());
+  private final AtomicInteger workerIds = new AtomicInteger(0);
+  // guarded by this
+  private final Map<PersistentWorker.Key, Deque<PersistentWorker>> idleWorkers = new HashMap<>();
+  private boolean closed = false;
+
+  PersistentWorkerPool(int maxIdlePerKey) {
+    this.maxIdlePerKey = maxIdlePerKey;
+  }
+
+  /** bound the idle workers for each key, destroying any in excess */
+  void setMaxIdlePerKey(int maxIdlePerKey) {
+    ImmutableList.Builder<PersistentWorker> excessWorkers = ImmutableList.builder();
+    synchronized (this) {
+      this.maxIdlePerKey = maxIdlePerKey;
+      for (Deque<PersistentWorker> workers : idleWorkers.values()) {
+        while (workers.size() > maxIdlePerKey) {
+          // the least recently used are at the tail
+          excessWorkers.add(workers.removeLast());
+        }
+      }
+    }
+    for (PersistentWorker worker : excessWorkers.build()) {
+      worker.destroy();
+    }
+  }
+
+  ExecutorService getReadService() {
+    return readService;
+  }
+
+  /**
+   * take an idle worker for key, or a new worker which will be started in
+   * a directory under root with its first request
+   */
+  PersistentWorker borrow(PersistentWorker.Key key, Path root) {
+    synchronized (this) {
+      Deque<PersistentWorker> workers = idleWorkers.get(key);
+      if (workers != null && !workers.isEmpty()) {
+        return workers.pop();
+      }
+    }
+    return new PersistentWorker(key, root.resolve("worker-" + workerIds.incrementAndGet()));
+  }
+
+  /** return a worker which completed its request */
+  void release(PersistentWorker worker) {
+    if (worker.isAlive()) {
+      synchronized (this) {
+        Deque<PersistentWorker> workers =
+            idleWorkers.computeIfAbsent(worker.getKey(), (key) -> new ArrayDeque<>());
+        if (!closed && workers.size() < maxIdlePerKey) {
+          workers.push(worker);
+          return;
+        }
+      }
+    }
+    worker.destroy();
+  }
+
+  /** discard a worker in an unknown state */
+  void invalidate(PersistentWorker worker) {
+    worker.destroy();
+  }
+
+  void close() {
+    ImmutableList.Builder<PersistentWorker> workers = ImmutableList.builder();
+    synchronized (this) {
+      closed = true;
+      for (Deque<PersistentWorker> keyWorkers : idleWorkers.values()) {
+        workers.addAll(keyWorkers);
+      }
+      idleWorkers.clear();
+    }
+    for (PersistentWorker worker : workers.build()) {
+      worker.destroy();
+    }
+    readService.shutdownNow();
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Per stage latency histograms, slot utilization, and completion counts
+ * for the worker pipeline, along with gauges for its supporting services,
+ * rendered in the Prometheus text exposition format.
+ */
+public class PipelineMetrics {
+  private static final PipelineMetrics defaultMetrics = new PipelineMetrics();
+
+  // upper bounds in microseconds, from 100us to 10 minutes
+  private static final long[] BUCKET_BOUNDS_USECS = {
+    100, 250, 500,
+    1000, 2500, 5000,
+    10000, 25000, 50000,
+    100000, 250000, 500000,
+    1000000, 2500000, 5000000,
+    10000000, 30000000, 60000000,
+    120000000, 300000000, 600000000,
+  };
+
+  static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_USECS.length + 1];
+    private final LongAdder sumUSecs = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observe(long usecs) {
+      int i = 0;
+      while (i < BUCKET_BOUNDS_USECS.length && usecs > BUCKET_BOUNDS_USECS[i]) {
+        i++;
+      }
+      buckets[i].increment();
+      sumUSecs.add(usecs);
+    }
+
+    long getSumUSecs() {
+      return sumUSecs.sum();
+    }
+
+    void write(Writer writer, String metric, String stage) throws IOException {
+      long cumulative = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_USECS.length; i++) {
+        cumulative += buckets[i].sum();
+        writer.write(format(
+            "%s_bucket{stage=\"%s\",le=\"%s\"} %d\n",
+            metric,
+            stage,
+            seconds(BUCKET_BOUNDS_USECS[i]),
+            cumulative));
+      }
+      cumulative += buckets[BUCKET_BOUNDS_USECS.length].sum();
+      writer.write(format("%s_bucket{stage=\"%s\",le=\"+Inf\"} %d\n", metric, stage, cumulative));
+      writer.write(format("%s_sum{stage=\"%s\"} %s\n", metric, stage, seconds(sumUSecs.sum())));
+      writer.write(format("%s_count{stage=\"%s\"} %d\n", metric, stage, cumulative));
+    }
+  }
+
+  public static final class Stage {
+    private final Histogram tick = new Histogram();
+    private final Histogram stall = new Histogram();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile IntSupplier slotsUsed = () -> 0;
+    private volatile IntSupplier slots = () -> 1;
+
+    /**
+     * record the completion of an operation in the stage, after usecs
+     * of which stallUSecs were spent waiting on the next stage
+     */
+    public void record(long usecs, long stallUSecs, boolean success) {
+      tick.observe(usecs);
+      stall.observe(stallUSecs);
+      if (success) {
+        successes.increment();
+      } else {
+        failures.increment();
+      }
+    }
+
+    void setSlots(IntSupplier slotsUsed, IntSupplier slots) {
+      this.slotsUsed = slotsUsed;
+      this.slots = slots;
+    }
+
+    long getCount(boolean success) {
+      return success ? successes.sum() : failures.sum();
+    }
+
+    long getTickUSecs() {
+      return tick.getSumUSecs();
+    }
+
+    long getStallUSecs() {
+      return stall.getSumUSecs();
+    }
+  }
+
+  private static final class Gauge {
+    final String help;
+    final LongSupplier value;
+
+    Gauge(String help, LongSupplier value) {
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private final ConcurrentMap<String, Stage> stages = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+  public static PipelineMetrics getDefault() {
+    return defaultMetrics;
+  }
+
+  public Stage stage(String name) {
+    return stages.computeIfAbsent(name, (stageName) -> new Stage());
+  }
+
+  /** report the current value of a named gauge, replacing any previous source */
+  public void setGauge(String name, String help, LongSupplier value) {
+    gauges.put(name, new Gauge(help, value));
+  }
+
+  private static String seconds(long usecs) {
+    return Double.toString(usecs / 1000000.0);
+  }
+
+  /** write all stage metrics and gauges in the Prometheus text exposition format */
+  public void writeTo(Writer writer) throws IOException {
+    Map<String, Stage> sortedStages = new TreeMap<>(stages);
+
+    writer.write("# HELP pipeline_stage_tick_seconds Time to complete an operation in the stage.\n");
+    writer.write("# TYPE pipeline_stage_tick_seconds histogram\n");
+    for (Map.Entry<String, Stage> entry : sortedStages.entrySet()) {
+      entry.getValue().tick.write(writer, "pipeline_stage_tick_seconds", entry.getKey());
+    }
+
+    writer.write("# HELP pipeline_stage_stall_seconds Time spent waiting for the next stage to accept an operation.\n");
+    writer.write("# TYPE pipeline_stage_stall_seconds histogram\n");
+    for (Map.Entry<String, Stage> entry : sortedStages.entrySet()) {
+      entry.getValue().stall.write(writer, "pipeline_stage_stall_seconds", entry.getKey());
+    }
+
+    writer.write("# HELP pipeline_stage_operations_total Operations completed by the stage.\n");
+    writer.write("# TYPE pipeline_stage_operations_total counter\n");
+    for (Map.Entry<String, Stage> entry : sortedStages.entrySet()) {
+      Stage stage = entry.getValue();
+      writer.write(format(
+          "pipeline_stage_operations_total{stage=\"%s\",result=\"success\"} %d\n",
+          entry.getKey(),
+          stage.successes.sum()));
+      writer.write(format(
+          "pipeline_stage_operations_total{stage=\"%s\",result=\"failure\"} %d\n",
+          entry.getKey(),
+          stage.failures.sum()));
+    }
+
+    writer.write("# HELP pipeline_stage_slots_used Operations currently held by the stage.\n");
+    writer.write("# TYPE pipeline_stage_slots_used gauge\n");
+    for (Map.Entry<String, Stage> entry : sortedStages.entrySet()) {
+      writer.write(format(
+          "pipeline_stage_slots_used{stage=\"%s\"} %d\n",
+          entry.getKey(),
+          entry.getValue().slotsUsed.getAsInt()));
+    }
+
+    writer.write("# HELP pipeline_stage_slots Operations the stage may hold concurrently.\n");
+    writer.write("# TYPE pipeline_stage_slots gauge\n");
+    for (Map.Entry<String, Stage> entry : sortedStages.entrySet()) {
+      writer.write(format(
+          "pipeline_stage_slots{stage=\"%s\"} %d\n",
+          entry.getKey(),
+          entry.getValue().slots.getAsInt()));
+    }
+
+    for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+      String name = entry.getKey();
+      Gauge gauge = entry.getValue();
+      writer.write(format("# HELP %s %s\n", name, gauge.help));
+      writer.write(format("# TYPE %s gauge\n", name));
+      writer.write(format("%s %d\n", name, gauge.value.getAsLong()));
+    }
+    writer.flush();
+  }
+}
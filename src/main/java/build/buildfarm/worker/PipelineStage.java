@@ -24,6 +24,7 @@ public abstract class PipelineStage implements Runnable {
   protected final WorkerContext workerContext;
   protected final PipelineStage output;
   protected final PipelineStage error;
+  protected final PipelineMetrics.Stage metrics;
 
   protected boolean claimed = false;
   private boolean closed = false;
@@ -35,6 +36,7 @@ public abstract class PipelineStage implements Runnable {
     this.workerContext = workerContext;
     this.output = output;
     this.error = error;
+    metrics = PipelineMetrics.getDefault().stage(name);
   }
 
   private void runInterruptible() throws InterruptedException {
@@ -45,6 +47,7 @@ public abstract class PipelineStage implements Runnable {
 
   @Override
   public void run() {
+    metrics.setSlots(this::getSlotsUsed, this::getSlots);
     try {
       runInterruptible();
     } catch (InterruptedException e) {
@@ -131,6 +134,7 @@ public abstract class PipelineStage implements Runnable {
   }
 
   protected void logComplete(String operationName, long usecs, long stallUSecs, boolean success) {
+    metrics.record(usecs, stallUSecs, success);
     logComplete(operationName, usecs, stallUSecs, success ? "Success" : "Failed");
   }
 
@@ -178,6 +182,14 @@ public abstract class PipelineStage implements Runnable {
     return claimed;
   }
 
+  protected int getSlotsUsed() {
+    return isClaimed() ? 1 : 0;
+  }
+
+  protected int getSlots() {
+    return 1;
+  }
+
   public PipelineStage output() {
     return this.output;
   }
@@ -0,0 +1,254 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.logging.Level.SEVERE;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Resizes the input fetch and execute stages within bounds so that neither
+ * idles while the other is saturated.
+ *
+ * Each run samples the occupancy of both stages, and every adjustment
+ * period the widths move by one according to the fraction of samples in
+ * which each stage was full, the fraction of input fetch time spent
+ * stalled waiting for an execute slot, and the processor load:
+ *
+ * Saturated input fetch without stalls means the worker is fetch bound,
+ * and the input fetch stage is widened, so long as the previous widening
+ * raised fetch throughput: if the latency of a fetch grew in proportion to
+ * the added width, the source of inputs is saturated, and the widening is
+ * undone and not retried until the worker is next fetch bound. Stalled input fetch with a
+ * saturated execute stage means the worker is execute bound, and the
+ * execute stage is widened while the processors have capacity, or the
+ * input fetch stage is narrowed if they do not. Processor load beyond the
+ * target narrows a saturated execute stage.
+ */
+public class StageWidthController implements Runnable {
+  private static final Logger logger = Logger.getLogger(StageWidthController.class.getName());
+
+  private static final double SATURATION_THRESHOLD = 0.9;
+  private static final double STALL_THRESHOLD = 0.1;
+
+  private final SuperscalarPipelineStage inputFetchStage;
+  private final SuperscalarPipelineStage executeActionStage;
+  private final int minInputFetchWidth;
+  private final int maxInputFetchWidth;
+  private final int minExecuteWidth;
+  private final int maxExecuteWidth;
+  private final double targetCpuLoad;
+  private final DoubleSupplier cpuLoad;
+  private final int samplesPerAdjustment;
+
+  private int samples = 0;
+  private int inputFetchSaturatedSamples = 0;
+  private int executeSaturatedSamples = 0;
+  private long lastInputFetchTickUSecs = 0;
+  private long lastInputFetchStallUSecs = 0;
+  private long lastInputFetchCount = 0;
+  // fetches per microsecond at the width of the previous adjustment
+  private double lastInputFetchThroughput = 0;
+  private boolean widenedInputFetch = false;
+  private int inputFetchWidthCeiling;
+
+  public StageWidthController(
+      InputFetchStage inputFetchStage,
+      ExecuteActionStage executeActionStage,
+      int minInputFetchWidth,
+      int maxInputFetchWidth,
+      int minExecuteWidth,
+      int maxExecuteWidth,
+      double targetCpuLoad,
+      int samplesPerAdjustment) {
+    this(
+        inputFetchStage,
+        executeActionStage,
+        minInputFetchWidth,
+        maxInputFetchWidth,
+        minExecuteWidth,
+        maxExecuteWidth,
+        targetCpuLoad,
+        StageWidthController::systemCpuLoad,
+        samplesPerAdjustment);
+  }
+
+  StageWidthController(
+      SuperscalarPipelineStage inputFetchStage,
+      SuperscalarPipelineStage executeActionStage,
+      int minInputFetchWidth,
+      int maxInputFetchWidth,
+      int minExecuteWidth,
+      int maxExecuteWidth,
+      double targetCpuLoad,
+      DoubleSupplier cpuLoad,
+      int samplesPerAdjustment) {
+    checkArgument(
+        minInputFetchWidth > 0 && minInputFetchWidth <= maxInputFetchWidth,
+        "input fetch width bounds must be positive and ordered");
+    checkArgument(
+        minExecuteWidth > 0 && minExecuteWidth <= maxExecuteWidth,
+        "execute width bounds must be positive and ordered");
+    checkArgument(samplesPerAdjustment > 0, "samplesPerAdjustment must be positive");
+    this.inputFetchStage = inputFetchStage;
+    this.executeActionStage = executeActionStage;
+    this.minInputFetchWidth = minInputFetchWidth;
+    this.maxInputFetchWidth = maxInputFetchWidth;
+    this.minExecuteWidth = minExecuteWidth;
+    this.maxExecuteWidth = maxExecuteWidth;
+    this.targetCpuLoad = targetCpuLoad;
+    this.cpuLoad = cpuLoad;
+    this.samplesPerAdjustment = samplesPerAdjustment;
+    inputFetchWidthCeiling = maxInputFetchWidth;
+    clamp(inputFetchStage, minInputFetchWidth, maxInputFetchWidth);
+    clamp(executeActionStage, minExecuteWidth, maxExecuteWidth);
+  }
+
+  /** the system load average per processor, or a negative value if unavailable */
+  private static double systemCpuLoad() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    double loadAverage = os.getSystemLoadAverage();
+    if (loadAverage < 0) {
+      return loadAverage;
+    }
+    return loadAverage / os.getAvailableProcessors();
+  }
+
+  private static void clamp(SuperscalarPipelineStage stage, int minWidth, int maxWidth) {
+    int width = stage.getWidth();
+    if (width < minWidth) {
+      stage.setWidth(minWidth);
+    } else if (width > maxWidth) {
+      stage.setWidth(maxWidth);
+    }
+  }
+
+  private static boolean isSaturated(SuperscalarPipelineStage stage) {
+    return stage.getSlotsUsed() >= stage.getWidth();
+  }
+
+  /**
+   * sample the stages, adjusting their widths every samplesPerAdjustment
+   * runs. Errors are logged rather than thrown, since a scheduled executor
+   * suppresses further runs of a task which throws.
+   */
+  @Override
+  public void run() {
+    try {
+      sample();
+    } catch (RuntimeException e) {
+      logger.log(SEVERE, "error adjusting stage widths", e);
+    }
+  }
+
+  private void sample() {
+    samples++;
+    if (isSaturated(inputFetchStage)) {
+      inputFetchSaturatedSamples++;
+    }
+    if (isSaturated(executeActionStage)) {
+      executeSaturatedSamples++;
+    }
+    if (samples >= samplesPerAdjustment) {
+      try {
+        adjust();
+      } finally {
+        samples = 0;
+        inputFetchSaturatedSamples = 0;
+        executeSaturatedSamples = 0;
+      }
+    }
+  }
+
+  private void adjust() {
+    double inputFetchSaturation = inputFetchSaturatedSamples / (double) samples;
+    double executeSaturation = executeSaturatedSamples / (double) samples;
+
+    long tickUSecs = inputFetchStage.metrics.getTickUSecs();
+    long stallUSecs = inputFetchStage.metrics.getStallUSecs();
+    long count = inputFetchStage.metrics.getCount(true) + inputFetchStage.metrics.getCount(false);
+    long intervalTickUSecs = tickUSecs - lastInputFetchTickUSecs;
+    long intervalStallUSecs = stallUSecs - lastInputFetchStallUSecs;
+    long intervalCount = count - lastInputFetchCount;
+    double stallFraction =
+        intervalTickUSecs <= 0 ? 0 : intervalStallUSecs / (double) intervalTickUSecs;
+    // the latency of a fetch excludes its wait for an execute slot
+    double fetchLatencyUSecs =
+        intervalCount <= 0 ? 0 : (intervalTickUSecs - intervalStallUSecs) / (double) intervalCount;
+    lastInputFetchTickUSecs = tickUSecs;
+    lastInputFetchStallUSecs = stallUSecs;
+    lastInputFetchCount = count;
+
+    double load = cpuLoad.getAsDouble();
+    // an unavailable load does not constrain the execute width
+    boolean cpuAvailable = load < targetCpuLoad;
+
+    int inputFetchWidth = inputFetchStage.getWidth();
+    int executeWidth = executeActionStage.getWidth();
+    boolean executeSaturated = executeSaturation >= SATURATION_THRESHOLD;
+    boolean stalled = stallFraction >= STALL_THRESHOLD;
+    boolean fetchBound = !stalled && inputFetchSaturation >= SATURATION_THRESHOLD;
+    // 0 if no fetches completed in the interval
+    double fetchThroughput = fetchLatencyUSecs <= 0 ? 0 : inputFetchWidth / fetchLatencyUSecs;
+
+    int nextExecuteWidth = executeWidth;
+    int nextInputFetchWidth = inputFetchWidth;
+    if (executeSaturated && !cpuAvailable) {
+      nextExecuteWidth = Math.max(minExecuteWidth, executeWidth - 1);
+    } else if (executeSaturated && stalled) {
+      nextExecuteWidth = Math.min(maxExecuteWidth, executeWidth + 1);
+    }
+    if (stalled && nextExecuteWidth <= executeWidth) {
+      // fetched inputs are waiting on execution that cannot grow
+      nextInputFetchWidth = Math.max(minInputFetchWidth, inputFetchWidth - 1);
+    } else if (fetchBound) {
+      if (widenedInputFetch && fetchThroughput > 0 && fetchThroughput <= lastInputFetchThroughput) {
+        // fetches slowed as the stage widened, the source of inputs is saturated
+        inputFetchWidthCeiling = Math.max(minInputFetchWidth, inputFetchWidth - 1);
+        nextInputFetchWidth = inputFetchWidthCeiling;
+      } else {
+        nextInputFetchWidth = Math.min(inputFetchWidthCeiling, inputFetchWidth + 1);
+      }
+    }
+    if (!fetchBound) {
+      inputFetchWidthCeiling = maxInputFetchWidth;
+    }
+    widenedInputFetch = nextInputFetchWidth > inputFetchWidth;
+    if (fetchThroughput > 0) {
+      lastInputFetchThroughput = fetchThroughput;
+    }
+
+    if (nextExecuteWidth != executeWidth || nextInputFetchWidth != inputFetchWidth) {
+      logger.info(format(
+          "stage widths: input fetch %d -> %d, execute %d -> %d (fetch saturation %.2f, execute saturation %.2f, stall %.2f, fetch latency %.0fus, load %.2f)",
+          inputFetchWidth,
+          nextInputFetchWidth,
+          executeWidth,
+          nextExecuteWidth,
+          inputFetchSaturation,
+          executeSaturation,
+          stallFraction,
+          fetchLatencyUSecs,
+          load));
+      inputFetchStage.setWidth(nextInputFetchWidth);
+      executeActionStage.setWidth(nextExecuteWidth);
+    }
+  }
+}
@@ -14,14 +14,15 @@
 
 package build.buildfarm.worker;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 abstract class SuperscalarPipelineStage extends PipelineStage {
 
-  private final int width;
-  private final BlockingQueue claims;
+  private volatile int width;
+  private int claims = 0; // guarded by this
   private boolean catastrophic = false;
 
   public SuperscalarPipelineStage(
@@ -32,7 +33,20 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
       int width) {
     super(name, workerContext, output, error);
     this.width = width;
-    claims = new ArrayBlockingQueue(width);
+  }
+
+  /**
+   * resize the stage, with claims in excess of a reduced width retained
+   * until they are released
+   */
+  public synchronized void setWidth(int width) {
+    checkArgument(width > 0, "width must be positive");
+    this.width = width;
+    notifyAll();
+  }
+
+  public int getWidth() {
+    return width;
   }
 
   protected abstract void interruptAll();
@@ -82,15 +96,14 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
   }
 
   protected synchronized void releaseClaim(String operationName) {
-    try {
-      claims.take();
-    } catch (InterruptedException e) {
+    if (claims == 0) {
       catastrophic = true;
       getLogger().severe(name + ": could not release claim on " + operationName + ", aborting drain to avoid deadlock");
       close();
-    } finally {
-      notify();
+    } else {
+      claims--;
     }
+    notifyAll();
   }
 
   protected String getUsage(int size) {
@@ -98,13 +111,16 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
   }
 
   @Override
-  public boolean claim() throws InterruptedException {
-    Object handle = new Object();
-    boolean offered = false;
-    while (!offered && !isClosed()) {
-      offered = claims.offer(handle, 10, TimeUnit.MILLISECONDS);
+  public synchronized boolean claim() throws InterruptedException {
+    // closure is not signalled, so we must wake periodically to observe it
+    while (!isClosed() && claims >= width) {
+      wait(10);
     }
-    return offered;
+    if (isClosed()) {
+      return false;
+    }
+    claims++;
+    return true;
   }
 
   @Override
@@ -113,7 +129,17 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
   }
 
   @Override
-  protected boolean isClaimed() {
-    return claims.size() > 0;
+  protected synchronized boolean isClaimed() {
+    return claims > 0;
+  }
+
+  @Override
+  protected synchronized int getSlotsUsed() {
+    return claims;
+  }
+
+  @Override
+  protected int getSlots() {
+    return getWidth();
   }
 }
@@ -37,6 +37,7 @@ import io.grpc.Deadline;
 import io.grpc.StatusException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 
 public interface WorkerContext {
   String getName();
@@ -55,9 +56,11 @@ public interface WorkerContext {
   boolean hasMaximumActionTimeout();
   boolean getStreamStdout();
   boolean getStreamStderr();
+  boolean getPersistentWorkers();
   Duration getDefaultActionTimeout();
   Duration getMaximumActionTimeout();
   QueuedOperation getQueuedOperation(QueueEntry queueEntry) throws IOException, InterruptedException;
+  Map<Digest, Directory> getDirectoriesIndex(Tree tree, Action action) throws IOException, InterruptedException;
   Path createExecDir(String operationName, Tree tree, Action action, Command command) throws IOException, InterruptedException;
   void destroyExecDir(Path execDir) throws IOException, InterruptedException;
   void uploadOutputs(Digest actionDigest, ActionResult.Builder resultBuilder, Path actionRoot, Iterable<String> outputFiles, Iterable<String> outputDirs) throws IOException, InterruptedException, StatusException;
@@ -65,4 +68,6 @@ public interface WorkerContext {
   void blacklistAction(String actionId) throws IOException, InterruptedException;
   void putActionResult(ActionKey actionKey, ActionResult actionResult) throws IOException, InterruptedException;
   Write getOperationStreamWrite(String name) throws IOException;
+  // null if the file exceeds the entry limit of the storage
+  Digest uploadFile(Path file) throws IOException, InterruptedException;
 }
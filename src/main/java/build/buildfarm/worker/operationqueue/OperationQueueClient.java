@@ -43,7 +43,10 @@ class OperationQueueClient {
   private final Platform matchPlatform;
   private final Set<String> activeOperations = new ConcurrentSkipListSet<>();
 
-  static Platform getMatchPlatform(Platform platform, Iterable<ExecutionPolicy> policies) {
+  static Platform getMatchPlatform(
+      Platform platform,
+      Iterable<ExecutionPolicy> policies,
+      boolean persistentWorkers) {
     Platform.Builder builder = platform.toBuilder();
     for (ExecutionPolicy policy : policies) {
       String name = policy.getName();
@@ -53,12 +56,22 @@ class OperationQueueClient {
             .setValue(policy.getName());
       }
     }
+    if (persistentWorkers) {
+      // all actions which request persistent workers may be run on this worker
+      builder.addPropertiesBuilder()
+          .setName("persistent-worker")
+          .setValue("true");
+    }
     return builder.build();
   }
 
-  OperationQueueClient(Instance instance, Platform platform, Iterable<ExecutionPolicy> policies) {
+  OperationQueueClient(
+      Instance instance,
+      Platform platform,
+      Iterable<ExecutionPolicy> policies,
+      boolean persistentWorkers) {
     this.instance = instance;
-    matchPlatform = getMatchPlatform(platform, policies);
+    matchPlatform = getMatchPlatform(platform, policies, persistentWorkers);
   }
 
   void match(MatchListener listener) throws InterruptedException {
@@ -403,7 +403,8 @@ public class Worker {
     OperationQueueClient oq = new OperationQueueClient(
         operationQueueInstance,
         config.getPlatform(),
-        config.getExecutionPoliciesList());
+        config.getExecutionPoliciesList(),
+        config.getPersistentWorkers());
 
     WorkerContext context = new WorkerContext() {
       Map<String, ExecutionPolicy> policies = uniqueIndex(
@@ -511,6 +512,11 @@ public class Worker {
         return config.getStreamStderr();
       }
 
+      @Override
+      public boolean getPersistentWorkers() {
+        return config.getPersistentWorkers();
+      }
+
       @Override
       public Duration getDefaultActionTimeout() {
         return config.getDefaultActionTimeout();
@@ -565,13 +571,18 @@ public class Worker {
         }
       }
 
+      @Override
+      public Map<Digest, Directory> getDirectoriesIndex(Tree tree, Action action) {
+        return casInstance.getDigestUtil().createDirectoriesIndex(tree);
+      }
+
       @Override
       public Path createExecDir(
           String operationName,
           Tree tree,
           Action action,
           Command command) throws IOException, InterruptedException {
-        Map<Digest, Directory> directoriesIndex = casInstance.getDigestUtil().createDirectoriesIndex(tree);
+        Map<Digest, Directory> directoriesIndex = getDirectoriesIndex(tree, action);
         OutputDirectory outputDirectory = OutputDirectory.parse(
             command.getOutputFilesList(),
             command.getOutputDirectoriesList());
@@ -642,6 +653,15 @@ public class Worker {
         return oq.getStreamWrite(name);
       }
 
+      @Override
+      public Digest uploadFile(Path file) throws IOException, InterruptedException {
+        Digest digest = casInstance.getDigestUtil().compute(file);
+        uploader.uploadBlob(
+            HashCode.fromString(digest.getHash()),
+            Chunker.builder().setInput(digest.getSizeBytes(), file).build());
+        return digest;
+      }
+
       @Override
       public void blacklistAction(String actionId) {
         // ignore
@@ -45,6 +45,7 @@ import build.buildfarm.common.DigestUtil.ActionKey;
 import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.worker.Dirent;
 import build.buildfarm.worker.OutputDirectory;
+import build.buildfarm.worker.PipelineMetrics;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -66,6 +67,11 @@ import java.util.logging.Logger;
 class CFCExecFileSystem implements ExecFileSystem {
   private static final Logger logger = Logger.getLogger(Worker.class.getName());
 
+  // exec directories are renamed here to be removed in the background
+  private static final String TRASH_DIRECTORY = ".trash";
+  // bounds the removal share of disk bandwidth under bursts of completions
+  private static final int EXEC_DIR_REAPER_CONCURRENCY = 4;
+
   private final Path root;
   private final CASFileCache fileCache;
   private final boolean linkInputDirectories; // perform first-available non-output symlinking and retain directories in cache
@@ -74,6 +80,7 @@ class CFCExecFileSystem implements ExecFileSystem {
   private final ExecutorService fetchService = newWorkStealingPool(128);
   private final ExecutorService removeDirectoryService;
   private final ExecutorService accessRecorder;
+  private final ExecDirReaper execDirReaper;
   private final long deadlineAfter;
   private final TimeUnit deadlineAfterUnits;
 
@@ -92,6 +99,14 @@ class CFCExecFileSystem implements ExecFileSystem {
     this.accessRecorder = accessRecorder;
     this.deadlineAfter = deadlineAfter;
     this.deadlineAfterUnits = deadlineAfterUnits;
+    execDirReaper = new ExecDirReaper(
+        root.resolve(TRASH_DIRECTORY),
+        removeDirectoryService,
+        EXEC_DIR_REAPER_CONCURRENCY);
+    PipelineMetrics.getDefault().setGauge(
+        "exec_dir_reaper_backlog",
+        "Exec directories awaiting removal.",
+        execDirReaper::getBacklog);
   }
 
   @Override
@@ -105,7 +120,7 @@ class CFCExecFileSystem implements ExecFileSystem {
 
     ImmutableList.Builder<ListenableFuture<Void>> removeDirectoryFutures = ImmutableList.builder();
 
-    // only valid path under root is cache
+    // only valid path under root is cache, trash from a previous run is removed
     for (Dirent dirent : dirents) {
       String name = dirent.getName();
       Path child = root.resolve(name);
@@ -119,6 +134,7 @@ class CFCExecFileSystem implements ExecFileSystem {
     onDigests.accept(blobDigests.build());
 
     getInterruptiblyOrIOException(allAsList(removeDirectoryFutures.build()));
+    Files.createDirectories(root.resolve(TRASH_DIRECTORY));
   }
 
   @Override
@@ -277,7 +293,7 @@ class CFCExecFileSystem implements ExecFileSystem {
 
     Path execDir = root.resolve(operationName);
     if (Files.exists(execDir)) {
-      removeDirectory(execDir);
+      execDirReaper.reap(execDir);
     }
     Files.createDirectories(execDir);
 
@@ -329,7 +345,7 @@ class CFCExecFileSystem implements ExecFileSystem {
     } finally {
       if (!success) {
         fileCache.decrementReferences(inputFiles.build(), inputDirectories.build());
-        removeDirectory(execDir);
+        execDirReaper.reap(execDir);
       }
     }
 
@@ -347,6 +363,13 @@ class CFCExecFileSystem implements ExecFileSystem {
     return execDir;
   }
 
+  /**
+   * release the cache references held by execDir and move it to the trash
+   *
+   * The references are released immediately, since the trash is never
+   * read, and the contents are removed by the reaper after the slot for
+   * the operation has been freed.
+   */
   @Override
   public void destroyExecDir(Path execDir) throws IOException, InterruptedException {
     Iterable<Path> inputFiles = rootInputFiles.remove(execDir);
@@ -357,7 +380,7 @@ class CFCExecFileSystem implements ExecFileSystem {
           inputDirectories == null ? ImmutableList.of() : inputDirectories);
     }
     if (Files.exists(execDir)) {
-      removeDirectory(execDir);
+      execDirReaper.reap(execDir);
     }
   }
 }
@@ -0,0 +1,158 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.InputStreamFactory;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Retains parsed input directories for queued operations which reference
+ * their input root by digest, so that common directories across actions
+ * are fetched and parsed once.
+ */
+class DirectoryCache {
+  private static final long DEFAULT_MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+  private final InputStreamFactory inputStreamFactory;
+  private final ListeningExecutorService fetchService;
+  private final LoadingCache<Digest, Directory> directories;
+
+  DirectoryCache(InputStreamFactory inputStreamFactory, long maxSizeBytes, ExecutorService fetchService) {
+    this.inputStreamFactory = inputStreamFactory;
+    this.fetchService = listeningDecorator(fetchService);
+    directories = CacheBuilder.newBuilder()
+        .maximumWeight(maxSizeBytes > 0 ? maxSizeBytes : DEFAULT_MAX_SIZE_BYTES)
+        .weigher((Digest digest, Directory directory) -> (int) Math.min(digest.getSizeBytes(), Integer.MAX_VALUE))
+        .build(new CacheLoader<Digest, Directory>() {
+          @Override
+          public Directory load(Digest digest) throws IOException, InterruptedException {
+            return fetch(digest);
+          }
+        });
+  }
+
+  private Directory fetch(Digest digest) throws IOException, InterruptedException {
+    try (InputStream in = inputStreamFactory.newInput(digest, 0)) {
+      return Directory.parseFrom(ByteString.readFrom(in));
+    } catch (StatusRuntimeException e) {
+      if (e.getStatus().getCode() == Status.Code.NOT_FOUND) {
+        throw new IOException("directory " + DigestUtil.toString(digest) + " was not found", e);
+      }
+      throw e;
+    }
+  }
+
+  private Directory get(Digest digest) throws IOException, InterruptedException {
+    if (digest.getSizeBytes() == 0) {
+      return Directory.getDefaultInstance();
+    }
+    try {
+      return directories.get(digest);
+    } catch (ExecutionException|UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, IOException.class);
+      Throwables.propagateIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Concurrently retrieve any of the specified directories which are not
+   * already present.
+   */
+  void prefetch(Iterable<Digest> digests) throws IOException, InterruptedException {
+    ImmutableList.Builder<ListenableFuture<Directory>> fetches = ImmutableList.builder();
+    for (Digest digest : digests) {
+      if (digest.getSizeBytes() != 0 && directories.getIfPresent(digest) == null) {
+        fetches.add(fetchService.submit(() -> get(digest)));
+      }
+    }
+    boolean interrupted = false;
+    IOException exception = null;
+    for (ListenableFuture<Directory> fetch : fetches.build()) {
+      if (interrupted || exception != null) {
+        fetch.cancel(true);
+        continue;
+      }
+      try {
+        fetch.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        exception = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+      } catch (InterruptedException e) {
+        fetch.cancel(true);
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      throw new InterruptedException();
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  /**
+   * Produce an index of all directories reachable from the input root.
+   */
+  Map<Digest, Directory> getDirectoriesIndex(Digest inputRootDigest)
+      throws IOException, InterruptedException {
+    Map<Digest, Directory> directoriesIndex = new HashMap<>();
+    Set<Digest> visited = new HashSet<>();
+    Queue<Digest> remaining = new ArrayDeque<>();
+    remaining.offer(inputRootDigest);
+    visited.add(inputRootDigest);
+    while (!remaining.isEmpty()) {
+      Digest digest = remaining.poll();
+      Directory directory = get(digest);
+      directoriesIndex.put(digest, directory);
+      for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+        Digest childDigest = directoryNode.getDigest();
+        if (visited.add(childDigest)) {
+          remaining.offer(childDigest);
+        }
+      }
+    }
+    return ImmutableMap.copyOf(directoriesIndex);
+  }
+}
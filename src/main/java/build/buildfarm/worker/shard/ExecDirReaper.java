@@ -0,0 +1,124 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static build.buildfarm.worker.Utils.removeDirectory;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Removes directories off of the caller's path by renaming them into a
+ * trash directory and deleting them in the background.
+ *
+ * At most concurrency removals run at once, each draining the trash queue
+ * in turn, so that a burst of completed operations does not saturate the
+ * disk shared with input fetch and execution. Directories remaining in
+ * the trash when the worker stops are removed when it is next started.
+ */
+class ExecDirReaper {
+  private static final Logger logger = Logger.getLogger(ExecDirReaper.class.getName());
+
+  private final Path trash;
+  private final Executor executor;
+  private final int concurrency;
+  private final Queue<Path> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger backlog = new AtomicInteger(0);
+  private final AtomicInteger reapers = new AtomicInteger(0);
+  private final AtomicLong reaped = new AtomicLong(0);
+
+  ExecDirReaper(Path trash, Executor executor, int concurrency) {
+    checkArgument(concurrency > 0, "concurrency must be positive");
+    this.trash = trash;
+    this.executor = executor;
+    this.concurrency = concurrency;
+  }
+
+  /** directories awaiting or undergoing removal */
+  int getBacklog() {
+    return backlog.get();
+  }
+
+  /** directories removed since creation */
+  long getReaped() {
+    return reaped.get();
+  }
+
+  /**
+   * move directory into the trash, to be removed in the background
+   *
+   * The trash must reside on the same filesystem as directory, so that
+   * the move is a rename.
+   */
+  void reap(Path directory) throws IOException {
+    Path trashed = trash.resolve(directory.getFileName() + "." + UUID.randomUUID());
+    Files.move(directory, trashed);
+    backlog.incrementAndGet();
+    pending.add(trashed);
+    startReaper();
+  }
+
+  private void startReaper() {
+    for (;;) {
+      int running = reapers.get();
+      if (running >= concurrency) {
+        // a running reaper will drain the entry
+        return;
+      }
+      if (reapers.compareAndSet(running, running + 1)) {
+        break;
+      }
+    }
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      // stopping, the trash is emptied on the next start
+      reapers.decrementAndGet();
+    }
+  }
+
+  private void drain() {
+    try {
+      for (Path directory = pending.poll(); directory != null; directory = pending.poll()) {
+        try {
+          removeDirectory(directory);
+          reaped.incrementAndGet();
+        } catch (IOException e) {
+          logger.log(SEVERE, format("error removing %s", directory), e);
+        } finally {
+          backlog.decrementAndGet();
+        }
+      }
+    } finally {
+      reapers.decrementAndGet();
+    }
+    // an entry added after the last poll may have found all reapers running
+    if (!pending.isEmpty()) {
+      startReaper();
+    }
+  }
+}
@@ -14,30 +14,124 @@
 
 package build.buildfarm.worker.shard;
 
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import build.bazel.remote.execution.v2.Digest;
-import build.buildfarm.cas.ContentAddressableStorage;
-import build.buildfarm.cas.ContentAddressableStorage.Blob;
+import build.buildfarm.common.HedgedReads;
 import build.buildfarm.common.InputStreamFactory;
-import com.google.protobuf.ByteString;
+import build.buildfarm.common.LatencyAwareReadPolicy;
+import build.buildfarm.common.ReadPolicy;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
 
 class FailoverInputStreamFactory implements InputStreamFactory {
+  private static final String PRIMARY = "primary";
+  private static final String DELEGATE = "delegate";
+
   private final InputStreamFactory primary;
   private final InputStreamFactory delegate;
+  private final ReadPolicy readPolicy;
+  private final ListeningExecutorService hedgeService;
 
   FailoverInputStreamFactory(InputStreamFactory primary, InputStreamFactory delegate) {
+    this(
+        primary,
+        delegate,
+        new LatencyAwareReadPolicy(/* hedgePercentile=*/ 0, /* minHedgeDelayNanos=*/ 0),
+        newDirectExecutorService());
+  }
+
+  /**
+   * Reads which have not received a response from primary within the hedge
+   * delay of the readPolicy are also requested from delegate.
+   */
+  FailoverInputStreamFactory(
+      InputStreamFactory primary,
+      InputStreamFactory delegate,
+      ReadPolicy readPolicy,
+      ExecutorService hedgeService) {
     this.primary = primary;
     this.delegate = delegate;
+    this.readPolicy = readPolicy;
+    this.hedgeService = listeningDecorator(hedgeService);
+  }
+
+  private InputStream newPrimaryInput(Digest blobDigest, long offset) throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    // the absence of a blob from the primary is not a failure
+    InputStream input = primary.newInput(blobDigest, offset);
+    readPolicy.onSuccess(PRIMARY, System.nanoTime() - startNanos);
+    return input;
+  }
+
+  private InputStream newDelegateInput(Digest blobDigest, long offset) throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    InputStream input = delegate.newInput(blobDigest, offset);
+    readPolicy.onSuccess(DELEGATE, System.nanoTime() - startNanos);
+    return input;
   }
 
   @Override
   public InputStream newInput(Digest blobDigest, long offset) throws IOException, InterruptedException {
+    long hedgeDelayNanos = readPolicy.getHedgeDelayNanos();
+    if (hedgeDelayNanos < 0) {
+      try {
+        return newPrimaryInput(blobDigest, offset);
+      } catch (NoSuchFileException e) {
+        return newDelegateInput(blobDigest, offset);
+      }
+    }
+
+    ListenableFuture<InputStream> primaryRead = hedgeService.submit(() -> newPrimaryInput(blobDigest, offset));
     try {
-      return primary.newInput(blobDigest, offset);
-    } catch (NoSuchFileException e) {
-      return delegate.newInput(blobDigest, offset);
+      return primaryRead.get(hedgeDelayNanos, NANOSECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (!(cause instanceof NoSuchFileException)) {
+        throwCause(cause);
+      }
+      return newDelegateInput(blobDigest, offset);
+    } catch (TimeoutException e) {
+      // hedge with the delegate
+    } catch (InterruptedException e) {
+      // the primary input will be closed upon completion
+      HedgedReads.firstSuccessful(ImmutableList.of(primaryRead)).cancel(false);
+      throw e;
     }
+
+    ListenableFuture<InputStream> delegateRead = hedgeService.submit(() -> newDelegateInput(blobDigest, offset));
+    ListenableFuture<InputStream> firstRead = HedgedReads.firstSuccessful(ImmutableList.of(primaryRead, delegateRead));
+    try {
+      return firstRead.get();
+    } catch (ExecutionException e) {
+      // both have failed, and the delegate failure is authoritative
+      try {
+        delegateRead.get();
+      } catch (ExecutionException delegateException) {
+        throwCause(delegateException.getCause());
+      }
+      throw new IllegalStateException("delegate read did not fail");
+    } catch (InterruptedException e) {
+      firstRead.cancel(false);
+      throw e;
+    }
+  }
+
+  private static void throwCause(Throwable cause) throws IOException, InterruptedException {
+    Throwables.throwIfUnchecked(cause);
+    Throwables.throwIfInstanceOf(cause, IOException.class);
+    Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+    throw new UncheckedExecutionException(cause);
   }
 }
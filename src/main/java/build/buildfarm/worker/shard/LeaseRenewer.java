@@ -0,0 +1,186 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.SEVERE;
+
+import build.buildfarm.common.SharedTimer;
+import build.buildfarm.v1test.QueueEntry;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Renews the dispatched leases of all operations active on a worker with a
+ * single backplane request each period, in place of a request per operation.
+ *
+ * An operation's poller requests that its lease be kept with each poll, and
+ * learns of a failed renewal with its next poll. Leases of operations which
+ * are requeued or completed are released immediately, and leases which are
+ * not requested for several periods, as for a paused poller, are dropped.
+ * Leases of operations held before they have a poller, as by a lookahead,
+ * are kept until they are first polled or released.
+ */
+class LeaseRenewer {
+  private static final Logger logger = Logger.getLogger(LeaseRenewer.class.getName());
+
+  // polls and renewals are driven by independent timers, allow for drift
+  private static final int LAPSE_PERIODS = 3;
+
+  private static final class Lease {
+    final QueueEntry queueEntry;
+    volatile long requestedAtMillis;
+    volatile boolean held;
+    volatile boolean failed = false;
+
+    Lease(QueueEntry queueEntry, long requestedAtMillis, boolean held) {
+      this.queueEntry = queueEntry;
+      this.requestedAtMillis = requestedAtMillis;
+      this.held = held;
+    }
+  }
+
+  private final OperationPoller operationPoller;
+  private final long periodMillis;
+  private final long requeueDelayMillis;
+  private final LongSupplier clock;
+  private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+  // guarded by this
+  private ScheduledFuture<?> nextRenewal = null;
+  private boolean stopped = false;
+
+  LeaseRenewer(
+      OperationPoller operationPoller,
+      long periodMillis,
+      long requeueDelayMillis,
+      LongSupplier clock) {
+    this.operationPoller = operationPoller;
+    this.periodMillis = periodMillis;
+    this.requeueDelayMillis = requeueDelayMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * request that the lease for queueEntry be kept, returning false if a
+   * renewal has failed since the last request
+   */
+  boolean poll(QueueEntry queueEntry) {
+    String operationName = queueEntry.getExecuteEntry().getOperationName();
+    long now = clock.getAsLong();
+    Lease lease = leases.computeIfAbsent(operationName, (name) -> new Lease(queueEntry, now, false));
+    if (lease.failed) {
+      leases.remove(operationName, lease);
+      return false;
+    }
+    lease.requestedAtMillis = now;
+    lease.held = false;
+    scheduleRenewal();
+    return true;
+  }
+
+  /**
+   * keep the lease for queueEntry without polls, until it is first polled
+   * or released
+   */
+  void hold(QueueEntry queueEntry) {
+    String operationName = queueEntry.getExecuteEntry().getOperationName();
+    leases.put(operationName, new Lease(queueEntry, clock.getAsLong(), /* held=*/ true));
+    scheduleRenewal();
+  }
+
+  private synchronized void scheduleRenewal() {
+    if (!stopped && nextRenewal == null) {
+      nextRenewal = SharedTimer.getDefault().schedule(this::renewal, periodMillis, MILLISECONDS);
+    }
+  }
+
+  private void renewal() {
+    renewLeases();
+    synchronized (this) {
+      nextRenewal = null;
+      if (!leases.isEmpty()) {
+        scheduleRenewal();
+      }
+    }
+  }
+
+  /** renew all requested leases, marking those which could not be renewed */
+  void renewLeases() {
+    long now = clock.getAsLong();
+    long lapseMillis = periodMillis * LAPSE_PERIODS;
+    ImmutableList.Builder<QueueEntry> queueEntries = ImmutableList.builder();
+    for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+      Lease lease = entry.getValue();
+      if (!lease.held && now - lease.requestedAtMillis > lapseMillis) {
+        leases.remove(entry.getKey(), lease);
+      } else if (!lease.failed) {
+        queueEntries.add(lease.queueEntry);
+      }
+    }
+    ImmutableList<QueueEntry> renewals = queueEntries.build();
+    if (renewals.isEmpty()) {
+      return;
+    }
+
+    Set<String> invalidOperationNames;
+    try {
+      invalidOperationNames = operationPoller.poll(renewals, now + requeueDelayMillis);
+    } catch (IOException e) {
+      logger.log(SEVERE, format("error renewing %d leases", renewals.size()), e);
+      invalidOperationNames = renewals.stream()
+          .map((queueEntry) -> queueEntry.getExecuteEntry().getOperationName())
+          .collect(Collectors.toSet());
+    }
+    for (String operationName : invalidOperationNames) {
+      Lease lease = leases.get(operationName);
+      if (lease != null) {
+        lease.failed = true;
+      }
+    }
+  }
+
+  /**
+   * drop the lease for operationName, which must not be renewed again, as
+   * its entry may have been requeued and dispatched elsewhere
+   *
+   * Returns false if a renewal of the lease has failed, when the entry may
+   * already be leased to another worker, and must not be requeued by this one.
+   */
+  boolean release(String operationName) {
+    Lease lease = leases.remove(operationName);
+    return lease == null || !lease.failed;
+  }
+
+  int getLeaseCount() {
+    return leases.size();
+  }
+
+  synchronized void stop() {
+    stopped = true;
+    if (nextRenewal != null) {
+      nextRenewal.cancel(false);
+      nextRenewal = null;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.util.Timestamps;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Declines dispatched operations whose summarized inputs are mostly absent
+ * from the local CAS when another worker is known to hold more of them, so
+ * that they may be dispatched to that worker.
+ *
+ * Local content is queried without recording access, and the holders of
+ * remote content are taken from content summaries or blob location sets,
+ * so an operation whose inputs are held nowhere is accepted. A declined
+ * operation is returned behind the queued operations. A worker declines an
+ * operation at most once, and accepts any operation which has been queued
+ * for maxWait, so that locality may delay, but never starve, work.
+ */
+class LocalityFilter {
+  private static final Logger logger = Logger.getLogger(LocalityFilter.class.getName());
+
+  // bounds the declined operations remembered between dispatches
+  private static final int MAX_DECLINED_OPERATIONS = 4096;
+
+  interface HolderIndex {
+    /** the workers known to hold each of digests, omitting those held nowhere */
+    Map<Digest, Set<String>> getHolders(List<Digest> digests) throws IOException;
+  }
+
+  private final String name;
+  private final Predicate<Digest> isLocal;
+  private final HolderIndex holderIndex;
+  private final double minLocalFraction;
+  private final long maxWaitMillis;
+  private final LongSupplier clock;
+  private final Cache<String, Boolean> declinedOperations;
+
+  LocalityFilter(
+      String name,
+      Predicate<Digest> isLocal,
+      HolderIndex holderIndex,
+      double minLocalFraction,
+      long maxWaitMillis,
+      LongSupplier clock) {
+    checkArgument(maxWaitMillis > 0, "locality must be bounded by a wait");
+    this.name = name;
+    this.isLocal = isLocal;
+    this.holderIndex = holderIndex;
+    this.minLocalFraction = minLocalFraction;
+    this.maxWaitMillis = maxWaitMillis;
+    this.clock = clock;
+    declinedOperations = CacheBuilder.newBuilder()
+        .maximumSize(MAX_DECLINED_OPERATIONS)
+        .expireAfterWrite(maxWaitMillis, MILLISECONDS)
+        .build();
+  }
+
+  private static long totalBytes(List<Digest> inputSummary) {
+    long totalBytes = 0;
+    for (Digest digest : inputSummary) {
+      totalBytes += digest.getSizeBytes();
+    }
+    return totalBytes;
+  }
+
+  /** the fraction, by size, of the summarized inputs held locally */
+  double localFraction(List<Digest> inputSummary) {
+    long totalBytes = totalBytes(inputSummary);
+    if (totalBytes == 0) {
+      return 1;
+    }
+    long localBytes = 0;
+    for (Digest digest : inputSummary) {
+      if (isLocal.test(digest)) {
+        localBytes += digest.getSizeBytes();
+      }
+    }
+    return localBytes / (double) totalBytes;
+  }
+
+  /**
+   * the greatest fraction, by size, of the summarized inputs known to be
+   * held by any other worker
+   */
+  double bestRemoteFraction(List<Digest> inputSummary) throws IOException {
+    long totalBytes = totalBytes(inputSummary);
+    if (totalBytes == 0) {
+      return 0;
+    }
+    Map<String, Long> heldBytes = new HashMap<>();
+    for (Map.Entry<Digest, Set<String>> entry : holderIndex.getHolders(inputSummary).entrySet()) {
+      for (String worker : entry.getValue()) {
+        if (!worker.equals(name)) {
+          heldBytes.merge(worker, entry.getKey().getSizeBytes(), Long::sum);
+        }
+      }
+    }
+    long bestBytes = 0;
+    for (long bytes : heldBytes.values()) {
+      bestBytes = Math.max(bestBytes, bytes);
+    }
+    return bestBytes / (double) totalBytes;
+  }
+
+  /** determine whether this worker should run the dispatched queueEntry */
+  boolean accept(QueueEntry queueEntry) {
+    ExecuteEntry executeEntry = queueEntry.getExecuteEntry();
+    if (queueEntry.getInputSummaryCount() == 0) {
+      return true;
+    }
+    if (executeEntry.hasQueuedTimestamp()
+        && clock.getAsLong() - Timestamps.toMillis(executeEntry.getQueuedTimestamp()) >= maxWaitMillis) {
+      return true;
+    }
+    List<Digest> inputSummary = queueEntry.getInputSummaryList();
+    double localFraction = localFraction(inputSummary);
+    if (localFraction >= minLocalFraction) {
+      return true;
+    }
+    try {
+      if (bestRemoteFraction(inputSummary) <= localFraction) {
+        // no other worker is better placed to run it
+        return true;
+      }
+    } catch (IOException e) {
+      logger.log(WARNING, "error finding holders of inputs for " + executeEntry.getOperationName(), e);
+      return true;
+    }
+    // accept an operation we have already declined
+    return declinedOperations.asMap().putIfAbsent(executeEntry.getOperationName(), true) != null;
+  }
+}
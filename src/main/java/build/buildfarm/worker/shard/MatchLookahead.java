@@ -0,0 +1,200 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+import build.buildfarm.v1test.QueueEntry;
+import build.buildfarm.v1test.QueuedOperation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Retains a bounded number of dispatched operations with their queued
+ * operations already fetched, so that a freed slot is refilled without a
+ * dispatch and fetch round trip.
+ *
+ * The leases of retained entries are kept by the dispatcher, and an entry is
+ * handed out only within the validity period of its dispatch, and is
+ * otherwise requeued to be matched by any worker.
+ */
+class MatchLookahead {
+  private static final Logger logger = Logger.getLogger(MatchLookahead.class.getName());
+
+  private static final long DISPATCH_ERROR_DELAY_MILLIS = 1000;
+
+  interface Dispatcher {
+    // null if no entry could be matched
+    QueueEntry dispatch() throws IOException, InterruptedException;
+  }
+
+  interface QueuedOperationFetcher {
+    // null if the queued operation is missing or invalid
+    QueuedOperation fetch(QueueEntry queueEntry) throws IOException, InterruptedException;
+  }
+
+  private static class Entry {
+    final QueueEntry queueEntry;
+    final long dispatchedAtMillis;
+
+    Entry(QueueEntry queueEntry, long dispatchedAtMillis) {
+      this.queueEntry = queueEntry;
+      this.dispatchedAtMillis = dispatchedAtMillis;
+    }
+
+    String getOperationName() {
+      return queueEntry.getExecuteEntry().getOperationName();
+    }
+  }
+
+  private final Dispatcher dispatcher;
+  private final QueuedOperationFetcher fetcher;
+  private final Consumer<String> requeuer;
+  private final long dispatchValidityMillis;
+  private final LongSupplier clock;
+  private final Semaphore capacity;
+  private final BlockingQueue<Entry> entries = new LinkedBlockingQueue<>();
+  private final Map<String, QueuedOperation> queuedOperations = new ConcurrentHashMap<>();
+  private Thread thread = null;
+
+  MatchLookahead(
+      int size,
+      Dispatcher dispatcher,
+      QueuedOperationFetcher fetcher,
+      Consumer<String> requeuer,
+      long dispatchValidityMillis,
+      LongSupplier clock) {
+    this.dispatcher = dispatcher;
+    this.fetcher = fetcher;
+    this.requeuer = requeuer;
+    this.dispatchValidityMillis = dispatchValidityMillis;
+    this.clock = clock;
+    capacity = new Semaphore(size);
+  }
+
+  synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this::run, "MatchLookahead");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /** stop retaining entries and requeue those retained */
+  void stop() throws InterruptedException {
+    Thread stoppedThread;
+    synchronized (this) {
+      stoppedThread = thread;
+    }
+    if (stoppedThread != null) {
+      stoppedThread.interrupt();
+      stoppedThread.join();
+    }
+    List<Entry> remaining = new ArrayList<>();
+    entries.drainTo(remaining);
+    for (Entry entry : remaining) {
+      discard(entry);
+    }
+  }
+
+  private void discard(Entry entry) {
+    requeue(entry.getOperationName());
+  }
+
+  /** requeue a polled entry which will not be executed, with its queued operation */
+  void requeue(String operationName) {
+    queuedOperations.remove(operationName);
+    requeuer.accept(operationName);
+  }
+
+  private void run() {
+    try {
+      for (;;) {
+        capacity.acquire();
+        if (!retainNext()) {
+          capacity.release();
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    }
+  }
+
+  private boolean retainNext() throws InterruptedException {
+    QueueEntry queueEntry;
+    try {
+      queueEntry = dispatcher.dispatch();
+    } catch (IOException e) {
+      logger.log(WARNING, "error dispatching lookahead operation", e);
+      MILLISECONDS.sleep(DISPATCH_ERROR_DELAY_MILLIS);
+      return false;
+    }
+    if (queueEntry == null) {
+      return false;
+    }
+    Entry entry = new Entry(queueEntry, clock.getAsLong());
+    String operationName = entry.getOperationName();
+    try {
+      QueuedOperation queuedOperation = fetcher.fetch(queueEntry);
+      if (queuedOperation != null) {
+        queuedOperations.put(operationName, queuedOperation);
+      }
+    } catch (IOException e) {
+      // the fetch is repeated when the operation is executed
+      logger.log(SEVERE, format("error prefetching queued operation for %s", operationName), e);
+    } catch (InterruptedException e) {
+      discard(entry);
+      throw e;
+    }
+    entries.add(entry);
+    return true;
+  }
+
+  /**
+   * retrieve the next retained entry, or null if none is available within
+   * the timeout or the next entry's dispatch is no longer valid
+   */
+  QueueEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+    Entry entry = entries.poll(timeout, unit);
+    if (entry == null) {
+      return null;
+    }
+    capacity.release();
+    if (clock.getAsLong() - entry.dispatchedAtMillis > dispatchValidityMillis) {
+      logger.info(format("requeueing expired lookahead operation %s", entry.getOperationName()));
+      discard(entry);
+      return null;
+    }
+    return entry.queueEntry;
+  }
+
+  /** take the prefetched queued operation for operationName, or null if none is retained */
+  QueuedOperation takeQueuedOperation(String operationName) {
+    return queuedOperations.remove(operationName);
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import build.buildfarm.worker.PipelineMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.logging.Logger;
+
+/** Serves pipeline metrics for scraping at /metrics over HTTP. */
+class MetricsServer {
+  private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final PipelineMetrics metrics;
+  private final HttpServer server;
+
+  MetricsServer(int port, PipelineMetrics metrics) throws IOException {
+    this.metrics = metrics;
+    server = HttpServer.create(new InetSocketAddress(port), /* backlog=*/ 0);
+    server.createContext("/metrics", this::handle);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      try (Writer writer = new OutputStreamWriter(content, UTF_8)) {
+        metrics.writeTo(writer);
+      }
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, content.size());
+      try (OutputStream out = exchange.getResponseBody()) {
+        content.writeTo(out);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  void start() {
+    server.start();
+    logger.info("metrics available at " + server.getAddress() + "/metrics");
+  }
+
+  void stop() {
+    server.stop(/* delay=*/ 0);
+  }
+}
@@ -14,11 +14,12 @@
 
 package build.buildfarm.worker.shard;
 
-import build.bazel.remote.execution.v2.ExecutionStage;
 import build.buildfarm.v1test.QueueEntry;
 import java.io.IOException;
+import java.util.Set;
 
 @FunctionalInterface
 interface OperationPoller {
-  boolean poll(QueueEntry queueEntry, ExecutionStage.Value stage, long requeueAt) throws IOException;
+  /** returns the names of the polled operations which are no longer valid */
+  Set<String> poll(Iterable<QueueEntry> queueEntries, long requeueAt) throws IOException;
 }
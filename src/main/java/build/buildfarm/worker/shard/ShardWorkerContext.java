@@ -20,8 +20,10 @@ import static build.buildfarm.common.Errors.VIOLATION_TYPE_INVALID;
 import static build.buildfarm.common.Errors.VIOLATION_TYPE_MISSING;
 import static com.google.common.collect.Maps.uniqueIndex;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
@@ -32,11 +34,10 @@ import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecutionStage;
-import build.bazel.remote.execution.v2.FileNode;
-import build.bazel.remote.execution.v2.OutputFile;
 import build.bazel.remote.execution.v2.Platform;
 import build.bazel.remote.execution.v2.RequestMetadata;
 import build.bazel.remote.execution.v2.Tree;
+import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.cas.ContentAddressableStorage.EntryLimitException;
 import build.buildfarm.common.DigestUtil;
@@ -49,6 +50,7 @@ import build.buildfarm.common.grpc.Retrier;
 import build.buildfarm.common.grpc.Retrier.Backoff;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Instance.MatchListener;
+import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.worker.RetryingMatchListener;
 import build.buildfarm.worker.WorkerContext;
 import build.buildfarm.v1test.ExecuteEntry;
@@ -63,6 +65,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
@@ -83,11 +87,16 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
@@ -96,16 +105,30 @@ import java.util.logging.Logger;
 class ShardWorkerContext implements WorkerContext {
   private static final Logger logger = Logger.getLogger(ShardWorkerContext.class.getName());
 
+  // outputs up to this size are read once into memory to be hashed and
+  // inserted, larger outputs are hashed and then copied from their files
+  private static final long SINGLE_PASS_UPLOAD_MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+  // the leases of retained lookahead operations are renewed, but operations
+  // retained for longer are requeued to be matched by idle workers
+  private static final long LOOKAHEAD_DISPATCH_VALIDITY_MILLIS = 20 * 1000;
+
+  // renewed leases are requeued by the backplane if not renewed again
+  private static final long LEASE_REQUEUE_DELAY_MILLIS = 30 * 1000;
+
   private final String name;
   private final Platform matchPlatform;
   private final Duration operationPollPeriod;
   private final OperationPoller operationPoller;
+  private final LeaseRenewer leaseRenewer;
   private final int inlineContentLimit;
   private final int inputFetchStageWidth;
   private final int executeStageWidth;
   private final ShardBackplane backplane;
   private final ExecFileSystem execFileSystem;
   private final InputStreamFactory inputStreamFactory;
+  private final DirectoryCache directoryCache;
+  private final ListeningExecutorService outputUploadService;
   private final Map<String, ExecutionPolicy> policies;
   private final Instance instance;
   private final long deadlineAfter;
@@ -113,8 +136,14 @@ class ShardWorkerContext implements WorkerContext {
   private final Duration defaultActionTimeout;
   private final Duration maximumActionTimeout;
   private final Map<String, QueueEntry> activeOperations = Maps.newConcurrentMap();
+  private final MatchLookahead matchLookahead; // null if disabled
+  private final LocalityFilter localityFilter; // null if disabled
+  private final boolean persistentWorkers;
   
-  static Platform getMatchPlatform(Platform platform, Iterable<ExecutionPolicy> policyNames) {
+  static Platform getMatchPlatform(
+      Platform platform,
+      Iterable<ExecutionPolicy> policyNames,
+      boolean persistentWorkers) {
     Platform.Builder builder = platform.toBuilder();
     for (ExecutionPolicy policy : policyNames) {
       String name = policy.getName();
@@ -124,6 +153,12 @@ class ShardWorkerContext implements WorkerContext {
             .setValue(name);
       }
     }
+    if (persistentWorkers) {
+      // all actions which request persistent workers may be run on this worker
+      builder.addPropertiesBuilder()
+          .setName("persistent-worker")
+          .setValue("true");
+    }
     return builder.build();
   }
 
@@ -135,9 +170,14 @@ class ShardWorkerContext implements WorkerContext {
       int inlineContentLimit,
       int inputFetchStageWidth,
       int executeStageWidth,
+      int matchLookahead,
+      LocalityFilter localityFilter,
+      boolean persistentWorkers,
       ShardBackplane backplane,
       ExecFileSystem execFileSystem,
       InputStreamFactory inputStreamFactory,
+      DirectoryCache directoryCache,
+      ExecutorService outputUploadService,
       Iterable<ExecutionPolicy> policies,
       Instance instance,
       long deadlineAfter,
@@ -145,21 +185,48 @@ class ShardWorkerContext implements WorkerContext {
       Duration defaultActionTimeout,
       Duration maximumActionTimeout) {
     this.name = name;
-    this.matchPlatform = getMatchPlatform(platform, policies);
+    this.matchPlatform = getMatchPlatform(platform, policies, persistentWorkers);
+    this.persistentWorkers = persistentWorkers;
     this.operationPollPeriod = operationPollPeriod;
     this.operationPoller = operationPoller;
+    leaseRenewer = new LeaseRenewer(
+        operationPoller,
+        operationPollPeriod.getSeconds() * 1000 + operationPollPeriod.getNanos() / 1000000,
+        LEASE_REQUEUE_DELAY_MILLIS,
+        System::currentTimeMillis);
     this.inlineContentLimit = inlineContentLimit;
     this.inputFetchStageWidth = inputFetchStageWidth;
     this.executeStageWidth = executeStageWidth;
+    this.localityFilter = localityFilter;
     this.backplane = backplane;
     this.execFileSystem = execFileSystem;
     this.inputStreamFactory = inputStreamFactory;
+    this.directoryCache = directoryCache;
+    this.outputUploadService = listeningDecorator(outputUploadService);
     this.policies = uniqueIndex(policies, (policy) -> policy.getName());
     this.instance = instance;
     this.deadlineAfter = deadlineAfter;
     this.deadlineAfterUnits = deadlineAfterUnits;
     this.defaultActionTimeout = defaultActionTimeout;
     this.maximumActionTimeout = maximumActionTimeout;
+    if (matchLookahead > 0) {
+      this.matchLookahead = new MatchLookahead(
+          matchLookahead,
+          this::dispatchMatched,
+          this::fetchQueuedOperation,
+          this::requeue,
+          LOOKAHEAD_DISPATCH_VALIDITY_MILLIS,
+          System::currentTimeMillis);
+    } else {
+      this.matchLookahead = null;
+    }
+  }
+
+  void stop() throws InterruptedException {
+    leaseRenewer.stop();
+    if (matchLookahead != null) {
+      matchLookahead.stop();
+    }
   }
 
   private static Retrier createBackplaneRetrier() {
@@ -196,12 +263,8 @@ class ShardWorkerContext implements WorkerContext {
     String operationName = queueEntry.getExecuteEntry().getOperationName();
     poller.resume(
         () -> {
-          boolean success = false;
-          try {
-            success = operationPoller.poll(queueEntry, stage, System.currentTimeMillis() + 30 * 1000);
-          } catch (IOException e) {
-            logger.log(SEVERE, format("%s: poller: error while polling %s", name, operationName), e);
-          }
+          // renewals of all active operations are batched by the lease renewer
+          boolean success = leaseRenewer.poll(queueEntry);
 
           logger.info(format("%s: poller: Completed Poll for %s: %s", name, operationName, success ? "OK" : "Failed"));
           if (!success) {
@@ -211,6 +274,7 @@ class ShardWorkerContext implements WorkerContext {
         },
         () -> {
           logger.info(format("%s: poller: Deadline expired for %s", name, operationName));
+          leaseRenewer.release(operationName);
           onFailure.run();
         },
         deadline);
@@ -235,13 +299,26 @@ class ShardWorkerContext implements WorkerContext {
   @Override
   public QueuedOperation getQueuedOperation(QueueEntry queueEntry)
       throws IOException, InterruptedException {
+    if (matchLookahead != null) {
+      QueuedOperation queuedOperation =
+          matchLookahead.takeQueuedOperation(queueEntry.getExecuteEntry().getOperationName());
+      if (queuedOperation != null) {
+        return queuedOperation;
+      }
+    }
+    return fetchQueuedOperation(queueEntry);
+  }
+
+  private QueuedOperation fetchQueuedOperation(QueueEntry queueEntry)
+      throws IOException, InterruptedException {
     Digest queuedOperationDigest = queueEntry.getQueuedOperationDigest();
     ByteString queuedOperationBlob = getBlob(queuedOperationDigest);
     if (queuedOperationBlob == null) {
       return null;
     }
+    QueuedOperation queuedOperation;
     try {
-      return QueuedOperation.parseFrom(queuedOperationBlob);
+      queuedOperation = QueuedOperation.parseFrom(queuedOperationBlob);
     } catch (InvalidProtocolBufferException e) {
       logger.warning(
           format(
@@ -250,6 +327,28 @@ class ShardWorkerContext implements WorkerContext {
               DigestUtil.toString(queuedOperationDigest)));
       return null;
     }
+    if (!queuedOperation.hasTree()) {
+      // directories are referenced by digest, retrieve any that we do not already have
+      directoryCache.prefetch(queuedOperation.getDirectoriesList());
+    }
+    return queuedOperation;
+  }
+
+  /**
+   * determine whether the dispatched queueEntry should run on this worker,
+   * returning it to the queue otherwise
+   */
+  private boolean acceptOrReturn(QueueEntry queueEntry) throws IOException, InterruptedException {
+    if (!satisfiesRequirements(matchPlatform, queueEntry.getPlatform())) {
+      backplane.rejectOperation(queueEntry);
+      return false;
+    }
+    if (localityFilter != null && !localityFilter.accept(queueEntry)) {
+      // behind the queued operations, lest this worker dispatch it again
+      backplane.deferOperation(queueEntry);
+      return false;
+    }
+    return true;
   }
 
   private void matchInterruptible(MatchListener listener)
@@ -266,18 +365,67 @@ class ShardWorkerContext implements WorkerContext {
       // unavailable backplane will propagate a null queueEntry
     }
     listener.onWaitEnd();
-    if (queueEntry == null || satisfiesRequirements(matchPlatform, queueEntry.getPlatform())) {
+    if (queueEntry == null || acceptOrReturn(queueEntry)) {
       listener.onEntry(queueEntry);
-    } else {
-      backplane.rejectOperation(queueEntry);
     }
     if (Thread.interrupted()) {
       throw new InterruptedException();
     }
   }
 
+  /**
+   * dispatch an operation for the lookahead, returning null if it does not
+   * satisfy our platform or is already active
+   */
+  private QueueEntry dispatchMatched() throws IOException, InterruptedException {
+    QueueEntry queueEntry;
+    try {
+      queueEntry = backplane.dispatchOperation();
+    } catch (IOException e) {
+      Status status = Status.fromThrowable(e);
+      if (status.getCode() != Code.UNAVAILABLE) {
+        throw e;
+      }
+      return null;
+    }
+    if (queueEntry == null) {
+      return null;
+    }
+    if (!acceptOrReturn(queueEntry)) {
+      return null;
+    }
+    String operationName = queueEntry.getExecuteEntry().getOperationName();
+    if (activeOperations.putIfAbsent(operationName, queueEntry) != null) {
+      logger.warning("matched duplicate operation " + operationName);
+      return null;
+    }
+    // retained entries are renewed until they are polled by their executor
+    leaseRenewer.hold(queueEntry);
+    return queueEntry;
+  }
+
+  private void matchFromLookahead(MatchListener listener) throws InterruptedException {
+    matchLookahead.start();
+    listener.onWaitStart();
+    // bounded so that the stage may observe its closure
+    QueueEntry queueEntry = matchLookahead.poll(1, SECONDS);
+    listener.onWaitEnd();
+    boolean success = false;
+    try {
+      success = listener.onEntry(queueEntry);
+    } finally {
+      if (queueEntry != null && !success) {
+        matchLookahead.requeue(queueEntry.getExecuteEntry().getOperationName());
+      }
+    }
+  }
+
   @Override
   public void match(MatchListener listener) throws InterruptedException {
+    if (matchLookahead != null) {
+      matchFromLookahead(listener);
+      return;
+    }
     RetryingMatchListener dedupMatchListener = new RetryingMatchListener() {
       boolean matched = false;
 
@@ -364,8 +512,14 @@ class ShardWorkerContext implements WorkerContext {
 
   private void requeue(String operationName) {
     QueueEntry queueEntry = activeOperations.remove(operationName);
+    // a later renewal would delay the requeued entry
+    if (!leaseRenewer.release(operationName)) {
+      // the entry may have been requeued and dispatched to another worker
+      logger.info(format("dropping operation %s with a lost lease", operationName));
+      return;
+    }
     try {
-      operationPoller.poll(queueEntry, ExecutionStage.Value.QUEUED, 0);
+      operationPoller.poll(ImmutableList.of(queueEntry), 0);
     } catch (IOException e) {
       // ignore, at least dispatcher will pick us up in 30s
       logger.log(SEVERE, "Failure while trying to fast requeue " + operationName, e);
@@ -378,6 +532,7 @@ class ShardWorkerContext implements WorkerContext {
 
   void deactivate(String operationName) {
     activeOperations.remove(operationName);
+    leaseRenewer.release(operationName);
   }
 
   @Override
@@ -430,6 +585,11 @@ class ShardWorkerContext implements WorkerContext {
     return true;
   }
 
+  @Override
+  public boolean getPersistentWorkers() {
+    return persistentWorkers;
+  }
+
   @Override
   public Duration getDefaultActionTimeout() {
     return defaultActionTimeout;
@@ -488,6 +648,112 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
+  /** the result of an output upload, with a null digest if the file did not exist */
+  private static class UploadedOutput {
+    final Digest digest;
+    final boolean exceededEntryLimit;
+
+    UploadedOutput(Digest digest, boolean exceededEntryLimit) {
+      this.digest = digest;
+      this.exceededEntryLimit = exceededEntryLimit;
+    }
+  }
+
+  private static class PendingFile {
+    final Directory.Builder directory;
+    final String name;
+    final boolean isExecutable;
+    final ListenableFuture<UploadedOutput> upload;
+
+    PendingFile(
+        Directory.Builder directory,
+        String name,
+        boolean isExecutable,
+        ListenableFuture<UploadedOutput> upload) {
+      this.directory = directory;
+      this.name = name;
+      this.isExecutable = isExecutable;
+      this.upload = upload;
+    }
+  }
+
+  private static class PendingDirectory {
+    final Directory.Builder parent;
+    final String name;
+    final Directory.Builder directory;
+
+    PendingDirectory(Directory.Builder parent, String name, Directory.Builder directory) {
+      this.parent = parent;
+      this.name = name;
+      this.directory = directory;
+    }
+  }
+
+  /**
+   * hash and insert an output file, reading small files once into memory
+   * so that they are hashed and inserted in a single pass, and linking
+   * larger files into a local file cache where possible, without copying
+   */
+  private UploadedOutput uploadOutputFile(Path file) throws IOException, InterruptedException {
+    Digest digest;
+    try {
+      if (Files.size(file) <= SINGLE_PASS_UPLOAD_MAX_SIZE_BYTES) {
+        ByteString content;
+        try (InputStream in = Files.newInputStream(file)) {
+          content = ByteString.readFrom(in);
+        }
+        digest = getDigestUtil().compute(content);
+        insertBlob(digest, content);
+        return new UploadedOutput(digest, /* exceededEntryLimit=*/ false);
+      }
+      ContentAddressableStorage storage = execFileSystem.getStorage();
+      if (storage instanceof CASFileCache) {
+        try {
+          digest = ((CASFileCache) storage).adopt(file);
+        } catch (EntryLimitException e) {
+          return new UploadedOutput(e.getDigest(), /* exceededEntryLimit=*/ true);
+        }
+        if (digest != null) {
+          return new UploadedOutput(digest, /* exceededEntryLimit=*/ false);
+        }
+      }
+      digest = getDigestUtil().compute(file);
+    } catch (NoSuchFileException e) {
+      return new UploadedOutput(/* digest=*/ null, /* exceededEntryLimit=*/ false);
+    }
+    try {
+      insertFile(digest, file);
+    } catch (EntryLimitException e) {
+      return new UploadedOutput(digest, /* exceededEntryLimit=*/ true);
+    }
+    return new UploadedOutput(digest, /* exceededEntryLimit=*/ false);
+  }
+
+  private ListenableFuture<UploadedOutput> uploadOutputFileAsync(Path file) {
+    return outputUploadService.submit(() -> uploadOutputFile(file));
+  }
+
+  private static UploadedOutput getUpload(ListenableFuture<UploadedOutput> upload)
+      throws IOException, InterruptedException {
+    try {
+      return upload.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  private static void addEntryLimitViolation(
+      PreconditionFailure.Builder preconditionFailure, Digest digest) {
+    preconditionFailure.addViolationsBuilder()
+        .setType(VIOLATION_TYPE_MISSING)
+        .setSubject("blobs/" + DigestUtil.toString(digest))
+        .setDescription("An output could not be uploaded because it exceeded the maximum size of an entry");
+  }
+
   @Override
   public void uploadOutputs(
       Digest actionDigest,
@@ -496,7 +762,37 @@ class ShardWorkerContext implements WorkerContext {
       Iterable<String> outputFiles,
       Iterable<String> outputDirs)
       throws IOException, InterruptedException, StatusException {
+    // uploads proceed concurrently, and are collected in order
+    List<ListenableFuture<UploadedOutput>> uploads = new ArrayList<>();
+    try {
+      uploadOutputsConcurrently(
+          actionDigest,
+          resultBuilder,
+          actionRoot,
+          outputFiles,
+          outputDirs,
+          uploads);
+    } finally {
+      for (ListenableFuture<UploadedOutput> upload : uploads) {
+        upload.cancel(true);
+      }
+    }
+
+    /* put together our outputs and update the result */
+    updateActionResultStdOutputs(resultBuilder);
+  }
+
+  private void uploadOutputsConcurrently(
+      Digest actionDigest,
+      ActionResult.Builder resultBuilder,
+      Path actionRoot,
+      Iterable<String> outputFiles,
+      Iterable<String> outputDirs,
+      List<ListenableFuture<UploadedOutput>> uploads)
+      throws IOException, InterruptedException, StatusException {
     PreconditionFailure.Builder preconditionFailure = PreconditionFailure.newBuilder();
+    Map<String, ListenableFuture<UploadedOutput>> outputFileUploads = new LinkedHashMap<>();
+    Map<String, Boolean> outputFileExecutable = new HashMap<>();
     for (String outputFile : outputFiles) {
       Path outputPath = actionRoot.resolve(outputFile);
       if (!Files.exists(outputPath)) {
@@ -517,27 +813,19 @@ class ShardWorkerContext implements WorkerContext {
       // want to decrement input references *before* this to ensure that we cannot
       // cause an internal deadlock
 
-      Digest digest;
-      try {
-        digest = getDigestUtil().compute(outputPath);
-      } catch (NoSuchFileException e) {
-        continue;
-      }
-
-      OutputFile.Builder outputFileBuilder = resultBuilder.addOutputFilesBuilder()
-          .setPath(outputFile)
-          .setDigest(digest)
-          .setIsExecutable(Files.isExecutable(outputPath));
-      try {
-        insertFile(digest, outputPath);
-      } catch (EntryLimitException e) {
-        preconditionFailure.addViolationsBuilder()
-            .setType(VIOLATION_TYPE_MISSING)
-            .setSubject("blobs/" + DigestUtil.toString(digest))
-            .setDescription("An output could not be uploaded because it exceeded the maximum size of an entry");
-      }
+      // permissions are observed before the upload, which may link the file
+      outputFileExecutable.put(outputFile, Files.isExecutable(outputPath));
+      ListenableFuture<UploadedOutput> upload = uploadOutputFileAsync(outputPath);
+      uploads.add(upload);
+      outputFileUploads.put(outputFile, upload);
     }
 
+    // directory trees are walked while their files upload, and are
+    // completed once all of their digests are known
+    List<String> walkedOutputDirs = new ArrayList<>();
+    List<Tree.Builder> treeBuilders = new ArrayList<>();
+    List<PendingFile> pendingFiles = new ArrayList<>();
+    List<PendingDirectory> pendingDirectories = new ArrayList<>();
     for (String outputDir : outputDirs) {
       Path outputDirPath = actionRoot.resolve(outputDir);
       if (!Files.exists(outputDirPath)) {
@@ -561,37 +849,23 @@ class ShardWorkerContext implements WorkerContext {
         Stack<Directory.Builder> path = new Stack<>();
 
         @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-          Digest digest;
-          try {
-            digest = getDigestUtil().compute(file);
-          } catch (NoSuchFileException e) {
-            logger.log(SEVERE, format("error visiting file %s under output dir %s", outputDirPath.relativize(file), outputDirPath.toAbsolutePath()), e);
-            return FileVisitResult.CONTINUE;
-          }
-
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
           // should we cast to PosixFilePermissions and do gymnastics there for executable?
 
           // TODO symlink per revision proposal
-          FileNode.Builder fileNodeBuilder = currentDirectory.addFilesBuilder()
-              .setName(file.getFileName().toString())
-              .setDigest(digest)
-              .setIsExecutable(Files.isExecutable(file));
-          try {
-            insertFile(digest, file);
-          } catch (InterruptedException e) {
-            throw new IOException(e);
-          } catch (EntryLimitException e) {
-            preconditionFailure.addViolationsBuilder()
-                .setType(VIOLATION_TYPE_MISSING)
-                .setSubject("blobs/" + DigestUtil.toString(digest))
-                .setDescription("An output could not be uploaded because it exceeded the maximum size of an entry");
-          }
+          boolean isExecutable = Files.isExecutable(file);
+          ListenableFuture<UploadedOutput> upload = uploadOutputFileAsync(file);
+          uploads.add(upload);
+          pendingFiles.add(new PendingFile(
+              currentDirectory,
+              file.getFileName().toString(),
+              isExecutable,
+              upload));
           return FileVisitResult.CONTINUE;
         }
 
         @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
           path.push(currentDirectory);
           if (dir.equals(outputDirPath)) {
             currentDirectory = outputRoot;
@@ -602,29 +876,69 @@ class ShardWorkerContext implements WorkerContext {
         }
 
         @Override
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
           Directory.Builder parentDirectory = path.pop();
           if (parentDirectory != null) {
-            parentDirectory.addDirectoriesBuilder()
-                .setName(dir.getFileName().toString())
-                .setDigest(getDigestUtil().compute(currentDirectory.build()));
+            // visited after all of its children, digests are computed in this order
+            pendingDirectories.add(new PendingDirectory(
+                parentDirectory,
+                dir.getFileName().toString(),
+                currentDirectory));
           }
           currentDirectory = parentDirectory;
           return FileVisitResult.CONTINUE;
         }
       });
-      Tree tree = treeBuilder.build();
+      walkedOutputDirs.add(outputDir);
+      treeBuilders.add(treeBuilder);
+    }
+
+    for (Map.Entry<String, ListenableFuture<UploadedOutput>> entry : outputFileUploads.entrySet()) {
+      String outputFile = entry.getKey();
+      UploadedOutput uploaded = getUpload(entry.getValue());
+      if (uploaded.digest == null) {
+        continue;
+      }
+      resultBuilder.addOutputFilesBuilder()
+          .setPath(outputFile)
+          .setDigest(uploaded.digest)
+          .setIsExecutable(outputFileExecutable.get(outputFile));
+      if (uploaded.exceededEntryLimit) {
+        addEntryLimitViolation(preconditionFailure, uploaded.digest);
+      }
+    }
+
+    for (PendingFile pendingFile : pendingFiles) {
+      UploadedOutput uploaded = getUpload(pendingFile.upload);
+      if (uploaded.digest == null) {
+        logger.severe(format("output file %s was removed during upload", pendingFile.name));
+        continue;
+      }
+      pendingFile.directory.addFilesBuilder()
+          .setName(pendingFile.name)
+          .setDigest(uploaded.digest)
+          .setIsExecutable(pendingFile.isExecutable);
+      if (uploaded.exceededEntryLimit) {
+        addEntryLimitViolation(preconditionFailure, uploaded.digest);
+      }
+    }
+
+    for (PendingDirectory pendingDirectory : pendingDirectories) {
+      pendingDirectory.parent.addDirectoriesBuilder()
+          .setName(pendingDirectory.name)
+          .setDigest(getDigestUtil().compute(pendingDirectory.directory.build()));
+    }
+
+    for (int i = 0; i < walkedOutputDirs.size(); i++) {
+      Tree tree = treeBuilders.get(i).build();
       ByteString treeBlob = tree.toByteString();
       Digest treeDigest = getDigestUtil().compute(treeBlob);
       insertBlob(treeDigest, treeBlob);
       resultBuilder.addOutputDirectoriesBuilder()
-          .setPath(outputDir)
+          .setPath(walkedOutputDirs.get(i))
           .setTreeDigest(treeDigest);
     }
     checkPreconditionFailure(actionDigest, preconditionFailure.build());
-
-    /* put together our outputs and update the result */
-    updateActionResultStdOutputs(resultBuilder);
   }
 
   private void logComplete(String operationName) {
@@ -661,11 +975,19 @@ class ShardWorkerContext implements WorkerContext {
     return directoriesIndex.build();
   }
 
+  @Override
+  public Map<Digest, Directory> getDirectoriesIndex(Tree tree, Action action) throws IOException, InterruptedException {
+    if (tree.hasRoot()) {
+      return getDigestUtil().createDirectoriesIndex(tree);
+    }
+    return directoryCache.getDirectoriesIndex(action.getInputRootDigest());
+  }
+
   @Override
   public Path createExecDir(String operationName, Tree tree, Action action, Command command) throws IOException, InterruptedException {
     return execFileSystem.createExecDir(
         operationName,
-        getDigestUtil().createDirectoriesIndex(tree),
+        getDirectoriesIndex(tree, action),
         action,
         command);
   }
@@ -698,4 +1020,15 @@ class ShardWorkerContext implements WorkerContext {
   public Write getOperationStreamWrite(String name) {
     throw new UnsupportedOperationException();
   }
+
+  @Override
+  public Digest uploadFile(Path file) throws IOException, InterruptedException {
+    Digest digest = getDigestUtil().compute(file);
+    try {
+      insertFile(digest, file);
+    } catch (EntryLimitException e) {
+      return null;
+    }
+    return digest;
+  }
 }
@@ -16,22 +16,31 @@ package build.buildfarm.worker.shard;
 
 import static build.buildfarm.cas.ContentAddressableStorages.createGrpcCAS;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.FINER;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Platform;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.cas.MemoryCAS;
+import build.buildfarm.common.ContentSummaryFilter;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
 import build.buildfarm.common.InputStreamFactory;
+import build.buildfarm.common.LatencyAwareReadPolicy;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.instance.Instance;
+import build.buildfarm.instance.shard.ContentSummaries;
 import build.buildfarm.instance.shard.RedisShardBackplane;
 import build.buildfarm.instance.shard.RemoteInputStreamFactory;
 import build.buildfarm.instance.shard.WorkerStubs;
@@ -40,20 +49,31 @@ import build.buildfarm.server.ContentAddressableStorageService;
 import build.buildfarm.server.ByteStreamService;
 import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.worker.ExecuteActionStage;
+import build.buildfarm.worker.ExecutionResources;
 import build.buildfarm.worker.FuseCAS;
 import build.buildfarm.worker.InputFetchStage;
 import build.buildfarm.worker.MatchStage;
 import build.buildfarm.worker.Pipeline;
+import build.buildfarm.worker.PipelineMetrics;
 import build.buildfarm.worker.PipelineStage;
 import build.buildfarm.worker.PutOperationStage;
 import build.buildfarm.worker.ReportResultStage;
+import build.buildfarm.worker.StageWidthController;
 import build.buildfarm.worker.WorkerContext;
 import build.buildfarm.v1test.ContentAddressableStorageConfig;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryConfig;
+import build.buildfarm.v1test.ContentSummaryDelta;
 import build.buildfarm.v1test.FilesystemCASConfig;
+import build.buildfarm.v1test.LocalityDispatch;
 import build.buildfarm.v1test.ShardWorkerConfig;
 import build.buildfarm.v1test.ShardWorker;
+import build.buildfarm.v1test.StageWidthTuning;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -61,6 +81,7 @@ import com.google.devtools.common.options.OptionsParser;
 import com.google.longrunning.Operation;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.util.Durations;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.Status;
@@ -74,9 +95,12 @@ import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 import javax.naming.ConfigurationException;
 
@@ -85,6 +109,12 @@ public class Worker {
   private static final Logger logger = Logger.getLogger(Worker.class.getName());
 
   private static final int shutdownWaitTimeInSeconds = 10;
+  private static final double DEFAULT_TARGET_CPU_LOAD = 1.0;
+  private static final long DEFAULT_STAGE_WIDTH_ADJUSTMENT_PERIOD_SECONDS = 10;
+  private static final long DEFAULT_LOCALITY_MAX_WAIT_MILLIS = 10 * 1000;
+  private static final long DEFAULT_CONTENT_SUMMARY_EXPECTED_BLOBS = 1000 * 1000;
+  private static final double DEFAULT_CONTENT_SUMMARY_FALSE_POSITIVE_RATE = 0.01;
+  private static final long DEFAULT_CONTENT_SUMMARY_PUBLISH_PERIOD_MILLIS = 30 * 1000;
 
   private final ShardWorkerConfig config;
   private final ShardWorkerInstance instance;
@@ -92,9 +122,21 @@ public class Worker {
   private final Path root;
   private final DigestUtil digestUtil;
   private final ExecFileSystem execFileSystem;
+  private final ShardWorkerContext context;
   private final Pipeline pipeline;
   private final ShardBackplane backplane;
   private final LoadingCache<String, Instance> workerStubs;
+  private final ExecutorService directoryFetchService;
+  private final ExecutorService outputUploadService;
+  private final ExecutorService blobReadService;
+  private final StageWidthController stageWidthController; // null if widths are fixed
+  private final ContentSummaryFilter contentSummaryFilter; // null if summaries are disabled
+  private final ContentSummaries contentSummaries; // null if summaries are disabled
+  private final long contentSummaryPublishPeriodMillis;
+  private ContentSummary publishedContentSummary = null; // null if the next publication is whole
+  private MetricsServer metricsServer = null;
+  private ScheduledExecutorService stageWidthService = null;
+  private ScheduledExecutorService contentSummaryService = null;
 
   public Worker(String session, ShardWorkerConfig config) throws ConfigurationException {
     this(session, ServerBuilder.forPort(config.getPort()), config);
@@ -161,11 +203,29 @@ public class Worker {
 
     workerStubs = WorkerStubs.create(digestUtil);
 
+    if (config.hasContentSummary()) {
+      ContentSummaryConfig contentSummaryConfig = config.getContentSummary();
+      contentSummaryFilter = createContentSummaryFilter(contentSummaryConfig);
+      long publishPeriodMillis = Durations.toMillis(contentSummaryConfig.getPublishPeriod());
+      if (publishPeriodMillis <= 0) {
+        publishPeriodMillis = DEFAULT_CONTENT_SUMMARY_PUBLISH_PERIOD_MILLIS;
+      }
+      contentSummaryPublishPeriodMillis = publishPeriodMillis;
+      contentSummaries = new ContentSummaries(backplane, contentSummaryConfig.getSummaryOnly());
+    } else {
+      contentSummaryFilter = null;
+      contentSummaryPublishPeriodMillis = 0;
+      contentSummaries = null;
+    }
+
     ExecutorService removeDirectoryService =
         newFixedThreadPool(
             /* nThreads=*/ 32,
             new ThreadFactoryBuilder().setNameFormat("remove-directory-pool-%d").build());
     ExecutorService accessRecorder = newSingleThreadExecutor();
+    blobReadService =
+        newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("blob-read-pool-%d").build());
 
     InputStreamFactory remoteInputStreamFactory =
         new RemoteInputStreamFactory(
@@ -173,7 +233,14 @@ public class Worker {
             backplane,
             new Random(),
             workerStubs,
-            (worker, t, context) -> {});
+            (worker, t, context) -> {},
+            new LatencyAwareReadPolicy(),
+            blobReadService,
+            config.getBatchReadMaxBlobSizeBytes() != 0
+                ? config.getBatchReadMaxBlobSizeBytes()
+                : RemoteInputStreamFactory.DEFAULT_BATCH_MAX_BLOB_SIZE_BYTES,
+            config.getParallelReadMinBlobSizeBytes(),
+            contentSummaries);
     ContentAddressableStorage storage = createStorages(
         remoteInputStreamFactory, removeDirectoryService, accessRecorder, config.getCasList());
     execFileSystem = createExecFileSystem(
@@ -199,20 +266,41 @@ public class Worker {
         .addService(new ByteStreamService(instances, /* writeDeadlineAfter=*/ 1, DAYS))
         .build();
 
-    ShardWorkerContext context = new ShardWorkerContext(
+    InputStreamFactory workerInputStreamFactory =
+        new EmptyInputStreamFactory(
+            new FailoverInputStreamFactory(
+                execFileSystem.getStorage(),
+                remoteInputStreamFactory,
+                new LatencyAwareReadPolicy(),
+                blobReadService));
+    directoryFetchService =
+        newFixedThreadPool(
+            /* nThreads=*/ 32,
+            new ThreadFactoryBuilder().setNameFormat("directory-fetch-pool-%d").build());
+    outputUploadService =
+        newFixedThreadPool(
+            /* nThreads=*/ 32,
+            new ThreadFactoryBuilder().setNameFormat("output-upload-pool-%d").build());
+
+    context = new ShardWorkerContext(
         config.getPublicName(),
-        config.getPlatform(),
+        getProvisionedPlatform(config),
         config.getOperationPollPeriod(),
-        backplane::pollOperation,
+        backplane::pollOperations,
         config.getInlineContentLimit(),
         config.getInputFetchStageWidth(),
         config.getExecuteStageWidth(),
+        config.getMatchLookahead(),
+        createLocalityFilter(storage, backplane, contentSummaries, config),
+        config.getPersistentWorkers(),
         backplane,
         execFileSystem,
-        new EmptyInputStreamFactory(
-            new FailoverInputStreamFactory(
-                execFileSystem.getStorage(),
-                remoteInputStreamFactory)),
+        workerInputStreamFactory,
+        new DirectoryCache(
+            workerInputStreamFactory,
+            config.getDirectoryCacheMaxSizeBytes(),
+            directoryFetchService),
+        outputUploadService,
         config.getExecutionPoliciesList(),
         instance,
         /* deadlineAfter=*/ 1, /* deadlineAfterUnits=*/ DAYS,
@@ -222,8 +310,12 @@ public class Worker {
     PipelineStage completeStage = new PutOperationStage((operation) -> context.deactivate(operation.getName()));
     PipelineStage errorStage = completeStage; /* new ErrorStage(); */
     PipelineStage reportResultStage = new ReportResultStage(context, completeStage, errorStage);
-    PipelineStage executeActionStage = new ExecuteActionStage(context, reportResultStage, errorStage);
-    PipelineStage inputFetchStage = new InputFetchStage(context, executeActionStage, new PutOperationStage(context::requeue));
+    ExecuteActionStage executeActionStage = new ExecuteActionStage(
+        context,
+        reportResultStage,
+        errorStage,
+        createExecutionResources(config));
+    InputFetchStage inputFetchStage = new InputFetchStage(context, executeActionStage, new PutOperationStage(context::requeue));
     PipelineStage matchStage = new MatchStage(context, inputFetchStage, errorStage);
 
     pipeline = new Pipeline();
@@ -233,9 +325,163 @@ public class Worker {
     pipeline.add(executeActionStage, 2);
     pipeline.add(reportResultStage, 1);
 
+    if (config.hasStageWidthTuning()) {
+      stageWidthController = createStageWidthController(
+          config.getStageWidthTuning(),
+          inputFetchStage,
+          executeActionStage);
+    } else {
+      stageWidthController = null;
+    }
+
     logger.info(String.format("%s initialized", identifier));
   }
 
+  private static ExecutionResources createExecutionResources(ShardWorkerConfig config) {
+    return new ExecutionResources(
+        Math.max(0, config.getExecuteStageCores()),
+        config.getExecuteStageMemoryBytes());
+  }
+
+  /**
+   * the configured platform, with the cores and mem capacities against which
+   * min-cores and min-mem requirements are matched. Constrained execute
+   * stage totals are provisioned in place of configured capacities, so that
+   * every matched action may be admitted. Otherwise cores default to the
+   * available processors, and memory is unprovisioned, matching any need.
+   */
+  @VisibleForTesting
+  static Platform getProvisionedPlatform(ShardWorkerConfig config) {
+    int executeStageCores = config.getExecuteStageCores();
+    long executeStageMemoryBytes = config.getExecuteStageMemoryBytes();
+    boolean hasCores = false;
+    Platform.Builder builder = Platform.newBuilder();
+    for (Platform.Property property : config.getPlatform().getPropertiesList()) {
+      if (property.getName().equals("cores")) {
+        if (executeStageCores > 0) {
+          continue;
+        }
+        hasCores = true;
+      } else if (property.getName().equals("mem") && executeStageMemoryBytes > 0) {
+        continue;
+      }
+      builder.addProperties(property);
+    }
+    if (!hasCores) {
+      int cores = executeStageCores;
+      if (cores <= 0) {
+        cores = Runtime.getRuntime().availableProcessors();
+      }
+      builder.addPropertiesBuilder()
+          .setName("cores")
+          .setValue(Integer.toString(cores));
+    }
+    if (executeStageMemoryBytes > 0) {
+      builder.addPropertiesBuilder()
+          .setName("mem")
+          .setValue(Long.toString(executeStageMemoryBytes));
+    }
+    return builder.build();
+  }
+
+  private static ContentSummaryFilter createContentSummaryFilter(ContentSummaryConfig config) {
+    long expectedBlobs = config.getExpectedBlobs();
+    if (expectedBlobs <= 0) {
+      expectedBlobs = DEFAULT_CONTENT_SUMMARY_EXPECTED_BLOBS;
+    }
+    double falsePositiveRate = config.getFalsePositiveRate();
+    if (falsePositiveRate <= 0) {
+      falsePositiveRate = DEFAULT_CONTENT_SUMMARY_FALSE_POSITIVE_RATE;
+    }
+    return new ContentSummaryFilter(expectedBlobs, falsePositiveRate);
+  }
+
+  // null if locality dispatch is disabled
+  private static LocalityFilter createLocalityFilter(
+      ContentAddressableStorage storage,
+      ShardBackplane backplane,
+      ContentSummaries contentSummaries,
+      ShardWorkerConfig config) {
+    if (!config.hasLocalityDispatch()) {
+      return null;
+    }
+    // local content is queried without recording access or consulting delegates
+    Predicate<Digest> isLocal;
+    if (storage instanceof CASFileCache) {
+      isLocal = ((CASFileCache) storage)::containsLocal;
+    } else if (storage instanceof MemoryCAS) {
+      isLocal = ((MemoryCAS) storage)::containsLocal;
+    } else {
+      logger.warning("locality dispatch requires filesystem or memory storage, disabling");
+      return null;
+    }
+    LocalityFilter.HolderIndex holderIndex;
+    if (contentSummaries != null) {
+      holderIndex = (digests) -> {
+        ImmutableMap.Builder<Digest, Set<String>> holders = ImmutableMap.builder();
+        for (Digest digest : ImmutableSet.copyOf(digests)) {
+          holders.put(digest, contentSummaries.getLikelyHolders(digest));
+        }
+        return holders.build();
+      };
+    } else {
+      holderIndex = backplane::getBlobDigestsWorkers;
+    }
+    LocalityDispatch localityDispatch = config.getLocalityDispatch();
+    long maxWaitMillis = Durations.toMillis(localityDispatch.getMaxWait());
+    if (maxWaitMillis <= 0) {
+      maxWaitMillis = DEFAULT_LOCALITY_MAX_WAIT_MILLIS;
+    }
+    return new LocalityFilter(
+        config.getPublicName(),
+        isLocal,
+        holderIndex,
+        localityDispatch.getMinLocalFraction(),
+        maxWaitMillis,
+        System::currentTimeMillis);
+  }
+
+  private static StageWidthController createStageWidthController(
+      StageWidthTuning tuning,
+      InputFetchStage inputFetchStage,
+      ExecuteActionStage executeActionStage) {
+    double targetCpuLoad = tuning.getTargetCpuLoad();
+    if (targetCpuLoad <= 0) {
+      targetCpuLoad = DEFAULT_TARGET_CPU_LOAD;
+    }
+    long adjustmentPeriodSeconds = tuning.getAdjustmentPeriod().getSeconds();
+    if (adjustmentPeriodSeconds <= 0) {
+      adjustmentPeriodSeconds = DEFAULT_STAGE_WIDTH_ADJUSTMENT_PERIOD_SECONDS;
+    }
+    int inputFetchWidth = inputFetchStage.getWidth();
+    int executeWidth = executeActionStage.getWidth();
+    return new StageWidthController(
+        inputFetchStage,
+        executeActionStage,
+        minWidth(tuning.getMinInputFetchStageWidth(), tuning.getMaxInputFetchStageWidth(), inputFetchWidth),
+        maxWidth(tuning.getMinInputFetchStageWidth(), tuning.getMaxInputFetchStageWidth(), inputFetchWidth),
+        minWidth(tuning.getMinExecuteStageWidth(), tuning.getMaxExecuteStageWidth(), executeWidth),
+        maxWidth(tuning.getMinExecuteStageWidth(), tuning.getMaxExecuteStageWidth(), executeWidth),
+        targetCpuLoad,
+        /* samplesPerAdjustment=*/ (int) adjustmentPeriodSeconds);
+  }
+
+  /** the lower bound of a stage width, the configured width if unset */
+  private static int minWidth(int min, int max, int width) {
+    if (min > 0) {
+      return min;
+    }
+    return max > 0 ? Math.min(width, max) : width;
+  }
+
+  /** the upper bound of a stage width, the configured width if unset */
+  private static int maxWidth(int min, int max, int width) {
+    if (max > 0) {
+      return max;
+    }
+    return Math.max(width, min);
+  }
+
   private ExecFileSystem createFuseExecFileSystem(
       InputStreamFactory remoteInputStreamFactory,
       ContentAddressableStorage storage) {
@@ -291,10 +537,17 @@ public class Worker {
         throw new IllegalArgumentException("Invalid cas type specified");
       case MEMORY:
       case FUSE: // FIXME have FUSE refer to a name for storage backing, and topo
-        return new MemoryCAS(config.getMemory().getMaxSizeBytes(), this::onStoragePut, delegate);
+        return new MemoryCAS(
+            config.getMemory().getMaxSizeBytes(),
+            this::onStoragePut,
+            delegate,
+            config.getMemory().getOffHeap());
       case GRPC:
         checkState(delegate == null, "grpc cas cannot delegate");
         return createGrpcCAS(config.getGrpc());
+      case TIERED:
+        // the exec filesystem requires a filesystem cas at the head of the sequence
+        throw new IllegalArgumentException("tiered cas is not supported for workers, use the cas sequence");
       case FILESYSTEM:
         FilesystemCASConfig fsCASConfig = config.getFilesystem();
         return new ShardCASFileCache(
@@ -349,8 +602,30 @@ public class Worker {
       Thread.interrupted();
       interrupted = true;
     }
+    try {
+      context.stop();
+    } catch (InterruptedException e) {
+      Thread.interrupted();
+      interrupted = true;
+    }
     logger.info("Stopping exec filesystem");
     execFileSystem.stop();
+    if (stageWidthService != null) {
+      stageWidthService.shutdownNow();
+    }
+    if (contentSummaryService != null) {
+      contentSummaryService.shutdownNow();
+    }
+    if (metricsServer != null) {
+      logger.info("Stopping the metrics server");
+      metricsServer.stop();
+    }
+    if (!shutdownAndAwaitTermination(directoryFetchService, 1, MINUTES)) {
+      logger.severe("could not terminate directoryFetchService");
+    }
+    if (!shutdownAndAwaitTermination(outputUploadService, 1, MINUTES)) {
+      logger.severe("could not terminate outputUploadService");
+    }
     if (server != null) {
       logger.info("Shutting down the server");
       server.shutdown();
@@ -364,6 +639,9 @@ public class Worker {
         server.shutdownNow();
       }
     }
+    if (!shutdownAndAwaitTermination(blobReadService, 1, MINUTES)) {
+      logger.severe("could not terminate blobReadService");
+    }
     try {
       backplane.stop();
     } catch (InterruptedException e) {
@@ -376,7 +654,17 @@ public class Worker {
     }
   }
 
+  private boolean isSummaryOnly() {
+    return config.getContentSummary().getSummaryOnly();
+  }
+
   private void onStoragePut(Digest digest) {
+    if (contentSummaryFilter != null) {
+      contentSummaryFilter.add(digest);
+    }
+    if (isSummaryOnly()) {
+      return;
+    }
     try {
       backplane.addBlobLocation(digest, config.getPublicName());
     } catch (IOException e) {
@@ -385,6 +673,14 @@ public class Worker {
   }
 
   private void onStorageExpire(Iterable<Digest> digests) {
+    if (contentSummaryFilter != null) {
+      for (Digest digest : digests) {
+        contentSummaryFilter.remove(digest);
+      }
+    }
+    if (isSummaryOnly()) {
+      return;
+    }
     try {
       backplane.removeBlobsLocation(digests, config.getPublicName());
     } catch (IOException e) {
@@ -392,6 +688,44 @@ public class Worker {
     }
   }
 
+  private void onStorageStart(List<Digest> digests) {
+    if (contentSummaryFilter != null) {
+      for (Digest digest : digests) {
+        contentSummaryFilter.add(digest);
+      }
+    }
+    if (!isSummaryOnly()) {
+      addBlobsLocation(digests, config.getPublicName());
+    }
+  }
+
+  private void publishContentSummary() {
+    ContentSummaryDelta delta = contentSummaryFilter.takeDelta();
+    ContentSummary summary;
+    if (publishedContentSummary == null) {
+      // changes after the delta was taken are repeated in the next delta
+      summary = contentSummaryFilter.toContentSummary();
+      delta = null;
+    } else if (delta.getWordIndicesCount() == 0) {
+      // readers retain the published summary
+      return;
+    } else {
+      summary = ContentSummaryFilter.apply(publishedContentSummary, delta);
+      if (delta.getSerializedSize() > summary.getSerializedSize() / 2) {
+        // readers retrieve the whole summary more cheaply
+        delta = null;
+      }
+    }
+    try {
+      backplane.putContentSummary(config.getPublicName(), summary, delta);
+      publishedContentSummary = summary;
+    } catch (IOException e) {
+      // the taken delta is lost, readers must retrieve the next summary whole
+      publishedContentSummary = null;
+      logger.log(SEVERE, "error publishing content summary", e);
+    }
+  }
+
   private void blockUntilShutdown() throws InterruptedException {
     // should really be waiting for either server or pipeline shutdown
     try {
@@ -498,9 +832,13 @@ public class Worker {
 
       removeWorker(config.getPublicName());
 
-      execFileSystem.start((digests) -> addBlobsLocation(digests, config.getPublicName()));
+      execFileSystem.start(this::onStorageStart);
 
       server.start();
+      if (config.getMetricsPort() > 0) {
+        metricsServer = new MetricsServer(config.getMetricsPort(), PipelineMetrics.getDefault());
+        metricsServer.start();
+      }
       startFailsafeRegistration();
     } catch (Exception e) {
       stop();
@@ -519,6 +857,25 @@ public class Worker {
         }
       }
     });
+    if (stageWidthController != null) {
+      stageWidthService = newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("stage-width-controller-%d").build());
+      stageWidthService.scheduleAtFixedRate(stageWidthController, 1, 1, SECONDS);
+    }
+    if (contentSummaryFilter != null) {
+      contentSummaryService = newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("content-summary-service-%d").build());
+      contentSummaryService.scheduleAtFixedRate(
+          this::publishContentSummary,
+          0,
+          contentSummaryPublishPeriodMillis,
+          MILLISECONDS);
+      contentSummaryService.scheduleWithFixedDelay(
+          contentSummaries::refresh,
+          0,
+          contentSummaryPublishPeriodMillis,
+          MILLISECONDS);
+    }
     pipeline.start();
   }
 
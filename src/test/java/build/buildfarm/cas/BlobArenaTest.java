@@ -0,0 +1,86 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BlobArenaTest {
+  @Test
+  public void capacityIsRoundedToSizeClass() {
+    assertThat(BlobArena.capacityFor(1)).isEqualTo(BlobArena.MIN_SLOT_SIZE);
+    assertThat(BlobArena.capacityFor(BlobArena.MIN_SLOT_SIZE)).isEqualTo(BlobArena.MIN_SLOT_SIZE);
+    assertThat(BlobArena.capacityFor(BlobArena.MIN_SLOT_SIZE + 1)).isEqualTo(BlobArena.MIN_SLOT_SIZE * 2);
+    assertThat(BlobArena.capacityFor(BlobArena.SLAB_SIZE)).isEqualTo(BlobArena.SLAB_SIZE);
+    assertThat(BlobArena.capacityFor(BlobArena.SLAB_SIZE + 1)).isEqualTo(BlobArena.SLAB_SIZE + 1);
+  }
+
+  @Test
+  public void slotContentIsReadBack() {
+    BlobArena arena = new BlobArena();
+    ByteString content = ByteString.copyFromUtf8("content");
+    BlobArena.Slot slot = arena.allocate(content);
+    assertThat(slot.capacity()).isEqualTo(BlobArena.MIN_SLOT_SIZE);
+    assertThat(slot.read()).isEqualTo(content);
+  }
+
+  @Test
+  public void slotsAreReusedAfterFree() {
+    BlobArena arena = new BlobArena();
+    BlobArena.Slot slot = arena.allocate(ByteString.copyFromUtf8("foo"));
+    arena.free(slot);
+    BlobArena.Slot reused = arena.allocate(ByteString.copyFromUtf8("bar"));
+    assertThat(reused.read()).isEqualTo(ByteString.copyFromUtf8("bar"));
+    assertThat(arena.getReservedBytes()).isEqualTo(BlobArena.SLAB_SIZE);
+  }
+
+  @Test
+  public void emptySlabIsReleasedWhenClassHasAnother() {
+    BlobArena arena = new BlobArena();
+    ByteString content = ByteString.copyFrom(new byte[BlobArena.SLAB_SIZE / 2]);
+    List<BlobArena.Slot> slots = new ArrayList<>();
+    // fill one slab and start another
+    for (int i = 0; i < 3; i++) {
+      slots.add(arena.allocate(content));
+    }
+    assertThat(arena.getReservedBytes()).isEqualTo(2L * BlobArena.SLAB_SIZE);
+
+    arena.free(slots.get(0));
+    arena.free(slots.get(1));
+    assertThat(arena.getReservedBytes()).isEqualTo(BlobArena.SLAB_SIZE);
+
+    arena.free(slots.get(2));
+    // the last slab of the class is retained
+    assertThat(arena.getReservedBytes()).isEqualTo(BlobArena.SLAB_SIZE);
+  }
+
+  @Test
+  public void largeContentIsGivenDedicatedBuffer() {
+    BlobArena arena = new BlobArena();
+    ByteString content = ByteString.copyFrom(new byte[BlobArena.SLAB_SIZE + 1]);
+    BlobArena.Slot slot = arena.allocate(content);
+    assertThat(arena.getReservedBytes()).isEqualTo(BlobArena.SLAB_SIZE + 1);
+    assertThat(slot.read()).isEqualTo(content);
+    arena.free(slot);
+    assertThat(arena.getReservedBytes()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas;
+
+import build.buildfarm.cas.ContentAddressableStorage.Blob;
+import build.buildfarm.common.DigestUtil;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Throughput measurements of MemoryCAS, run manually with the benchmarks
+ * target and excluded from the unit tests.
+ */
+@RunWith(JUnit4.class)
+public class MemoryCASBenchmark {
+  private static final Logger logger = Logger.getLogger(MemoryCASBenchmark.class.getName());
+
+  @Test
+  public void concurrentHitsAndPuts() throws Exception {
+    int threads = 8;
+    int operationsPerThread = 20000;
+    DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
+    ImmutableList.Builder<Blob> hotBlobs = ImmutableList.builder();
+    for (int i = 0; i < 64; i++) {
+      hotBlobs.add(new Blob(ByteString.copyFromUtf8("hot-" + i), digestUtil));
+    }
+    ImmutableList<Blob> hot = hotBlobs.build();
+    // room for the hot set and a small number of cold blobs
+    ContentAddressableStorage storage = new MemoryCAS(64 * 16);
+    for (Blob blob : hot) {
+      storage.put(blob);
+    }
+
+    AtomicLong misses = new AtomicLong(0);
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    long startNanos = System.nanoTime();
+    ImmutableList.Builder<Future<?>> futures = ImmutableList.builder();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      futures.add(service.submit(() -> {
+        for (int i = 0; i < operationsPerThread; i++) {
+          Blob blob = hot.get(i % hot.size());
+          if (storage.get(blob.getDigest()) == null) {
+            misses.incrementAndGet();
+            storage.put(blob);
+          }
+          if (i % 16 == 0) {
+            storage.put(new Blob(ByteString.copyFromUtf8("cold-" + thread + "-" + i), digestUtil));
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures.build()) {
+      future.get();
+    }
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    service.shutdown();
+    logger.info(String.format(
+        "%d threads completed %d operations in %dms with %d hot misses",
+        threads, threads * operationsPerThread, elapsedMillis, misses.get()));
+  }
+}
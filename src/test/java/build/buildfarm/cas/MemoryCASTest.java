@@ -23,7 +23,15 @@ import static org.mockito.Mockito.verify;
 import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.common.DigestUtil;
 import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -83,4 +91,104 @@ public class MemoryCASTest {
     DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
     storage.get(digestUtil.compute(ByteString.EMPTY));
   }
+
+  @Test
+  public void accessedEntryIsNotExpired() {
+    ContentAddressableStorage storage = new MemoryCAS(12);
+
+    DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
+    Blob stdout = new Blob(ByteString.copyFromUtf8("stdout"), digestUtil);
+    Blob stderr = new Blob(ByteString.copyFromUtf8("stderr"), digestUtil);
+    storage.put(stdout);
+    storage.put(stderr);
+    assertThat(storage.get(stdout.getDigest())).isNotNull();
+    storage.put(new Blob(ByteString.copyFromUtf8("stdin!"), digestUtil));
+    assertThat(storage.contains(stdout.getDigest())).isTrue();
+    assertThat(storage.contains(stderr.getDigest())).isFalse();
+  }
+
+  @Test
+  public void concurrentHitsAndPutsAreConsistent() throws Exception {
+    int threads = 8;
+    int operationsPerThread = 2000;
+    DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
+    ImmutableList.Builder<Blob> hotBlobs = ImmutableList.builder();
+    for (int i = 0; i < 64; i++) {
+      hotBlobs.add(new Blob(ByteString.copyFromUtf8("hot-" + i), digestUtil));
+    }
+    ImmutableList<Blob> hot = hotBlobs.build();
+    // room for the hot set and a small number of cold blobs
+    long maxSizeInBytes = 64 * 16;
+    MemoryCAS storage = new MemoryCAS(maxSizeInBytes);
+    for (Blob blob : hot) {
+      storage.put(blob);
+    }
+
+    // each cold blob is put once, with a counted expiration
+    ConcurrentMap<Digest, AtomicInteger> expirations = new ConcurrentHashMap<>();
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    ImmutableList.Builder<Future<?>> futures = ImmutableList.builder();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      futures.add(service.submit(() -> {
+        for (int i = 0; i < operationsPerThread; i++) {
+          Blob blob = hot.get(i % hot.size());
+          if (storage.get(blob.getDigest()) == null) {
+            storage.put(blob);
+          }
+          if (i % 16 == 0) {
+            Blob cold = new Blob(ByteString.copyFromUtf8("cold-" + thread + "-" + i), digestUtil);
+            AtomicInteger expired = new AtomicInteger(0);
+            expirations.put(cold.getDigest(), expired);
+            storage.put(cold, expired::incrementAndGet);
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures.build()) {
+      future.get();
+    }
+    service.shutdown();
+
+    assertThat(storage.size()).isAtMost(maxSizeInBytes);
+    int expiredCount = 0;
+    for (Map.Entry<Digest, AtomicInteger> entry : expirations.entrySet()) {
+      if (storage.containsLocal(entry.getKey())) {
+        assertThat(entry.getValue().get()).isEqualTo(0);
+      } else {
+        assertThat(entry.getValue().get()).isEqualTo(1);
+        expiredCount++;
+      }
+    }
+    // the cold blobs exceed the limit alone
+    assertThat(expiredCount).isGreaterThan(0);
+    for (Blob blob : hot) {
+      Blob stored = storage.get(blob.getDigest());
+      if (stored != null) {
+        assertThat(stored.getData()).isEqualTo(blob.getData());
+      }
+    }
+  }
+
+  @Test
+  public void offHeapContentIsReadAndExpiredBySlotCapacity() {
+    ContentAddressableStorage storage =
+        new MemoryCAS(BlobArena.MIN_SLOT_SIZE * 2, (digest) -> {}, /* delegate=*/ null, /* offHeap=*/ true);
+
+    DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
+    Runnable mockOnExpiration = mock(Runnable.class);
+    Blob stdout = new Blob(ByteString.copyFromUtf8("stdout"), digestUtil);
+    Blob stderr = new Blob(ByteString.copyFromUtf8("stderr"), digestUtil);
+    storage.put(stdout, mockOnExpiration);
+    storage.put(stderr);
+    assertThat(storage.get(stdout.getDigest()).getData()).isEqualTo(stdout.getData());
+
+    // each blob reserves a minimum slot, the third exceeds the limit
+    storage.put(new Blob(ByteString.copyFromUtf8("stdin"), digestUtil));
+    assertThat(storage.contains(stderr.getDigest())).isFalse();
+    verify(mockOnExpiration, never()).run();
+    storage.put(new Blob(ByteString.copyFromUtf8("a"), digestUtil));
+    verify(mockOnExpiration, times(1)).run();
+    assertThat(storage.get(stdout.getDigest())).isNull();
+  }
 }
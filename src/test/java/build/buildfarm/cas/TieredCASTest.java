@@ -0,0 +1,137 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.RequestMetadata;
+import build.buildfarm.cas.ContentAddressableStorage.Blob;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.Write;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TieredCASTest {
+  private final DigestUtil digestUtil = new DigestUtil(DigestUtil.HashFunction.SHA256);
+  private final MemoryCAS first = new MemoryCAS(1024);
+  private final MemoryCAS second = new MemoryCAS(1024);
+  private final Blob blob = new Blob(ByteString.copyFromUtf8("content"), digestUtil);
+
+  @Test
+  public void writeThroughPutsToAllTiers() throws InterruptedException {
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, second),
+        TieredCAS.WritePolicy.WRITE_THROUGH,
+        /* promoteOnRead=*/ false,
+        directExecutor());
+
+    storage.put(blob);
+
+    assertThat(first.contains(blob.getDigest())).isTrue();
+    assertThat(second.contains(blob.getDigest())).isTrue();
+  }
+
+  @Test
+  public void writeBackDefersLaterTiers() throws InterruptedException {
+    List<Runnable> writeBacks = new ArrayList<>();
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, second),
+        TieredCAS.WritePolicy.WRITE_BACK,
+        /* promoteOnRead=*/ false,
+        writeBacks::add);
+
+    storage.put(blob);
+
+    assertThat(first.contains(blob.getDigest())).isTrue();
+    assertThat(second.contains(blob.getDigest())).isFalse();
+    assertThat(writeBacks).hasSize(1);
+    writeBacks.get(0).run();
+    assertThat(second.contains(blob.getDigest())).isTrue();
+  }
+
+  @Test
+  public void readFromLaterTierIsPromoted() throws InterruptedException {
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, second),
+        TieredCAS.WritePolicy.WRITE_THROUGH,
+        /* promoteOnRead=*/ true,
+        directExecutor());
+    second.put(blob);
+
+    assertThat(storage.get(blob.getDigest()).getData()).isEqualTo(blob.getData());
+    assertThat(first.contains(blob.getDigest())).isTrue();
+  }
+
+  @Test
+  public void missingBlobsAreFoundInAnyTier() throws InterruptedException {
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, second),
+        TieredCAS.WritePolicy.WRITE_THROUGH,
+        /* promoteOnRead=*/ false,
+        directExecutor());
+    Blob missing = new Blob(ByteString.copyFromUtf8("missing"), digestUtil);
+    second.put(blob);
+
+    assertThat(storage.findMissingBlobs(ImmutableList.of(blob.getDigest(), missing.getDigest())))
+        .containsExactly(missing.getDigest());
+    assertThat(storage.get(missing.getDigest())).isNull();
+  }
+
+  @Test
+  public void writeChecksPresenceWithoutReadingTiers() {
+    ContentAddressableStorage last = mock(ContentAddressableStorage.class);
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, last),
+        TieredCAS.WritePolicy.WRITE_THROUGH,
+        /* promoteOnRead=*/ false,
+        directExecutor());
+    when(last.contains(blob.getDigest())).thenReturn(true);
+
+    Write write = storage.getWrite(blob.getDigest(), UUID.randomUUID(), RequestMetadata.getDefaultInstance());
+
+    assertThat(write.isComplete()).isTrue();
+    verify(last, never()).get(any(Digest.class));
+  }
+
+  @Test
+  public void writeOfMissingBlobIsIncomplete() {
+    ContentAddressableStorage last = mock(ContentAddressableStorage.class);
+    TieredCAS storage = new TieredCAS(
+        ImmutableList.of(first, last),
+        TieredCAS.WritePolicy.WRITE_THROUGH,
+        /* promoteOnRead=*/ false,
+        directExecutor());
+
+    Write write = storage.getWrite(blob.getDigest(), UUID.randomUUID(), RequestMetadata.getDefaultInstance());
+
+    assertThat(write.isComplete()).isFalse();
+    verify(last).contains(blob.getDigest());
+    verify(last, never()).get(any(Digest.class));
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static build.buildfarm.common.Actions.satisfiesRequirements;
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Platform;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ActionsTest {
+  private static Platform platform(String name, String value) {
+    return Platform.newBuilder()
+        .addProperties(Platform.Property.newBuilder()
+            .setName(name)
+            .setValue(value))
+        .build();
+  }
+
+  @Test
+  public void resourceRequirementsAreComparedNumerically() {
+    assertThat(satisfiesRequirements(platform("cores", "8"), platform("min-cores", "4"))).isTrue();
+    assertThat(satisfiesRequirements(platform("cores", "8"), platform("min-cores", "16"))).isFalse();
+    assertThat(satisfiesRequirements(platform("mem", "1024"), platform("min-mem", "1024"))).isTrue();
+  }
+
+  @Test
+  public void unprovisionedResourcesAreUnconstrained() {
+    assertThat(satisfiesRequirements(Platform.getDefaultInstance(), platform("min-cores", "1")))
+        .isTrue();
+    assertThat(satisfiesRequirements(platform("cores", "8"), platform("min-mem", "1"))).isTrue();
+  }
+
+  @Test
+  public void otherRequirementsAreComparedAsStrings() {
+    assertThat(satisfiesRequirements(platform("os", "linux"), platform("os", "linux"))).isTrue();
+    assertThat(satisfiesRequirements(platform("os", "linux"), platform("os", "macos"))).isFalse();
+  }
+}
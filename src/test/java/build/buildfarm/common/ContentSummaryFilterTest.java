@@ -0,0 +1,116 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ContentSummaryFilterTest {
+  private final DigestUtil digestUtil = new DigestUtil(HashFunction.SHA256);
+
+  private Digest digest(int i) {
+    return digestUtil.compute(ByteString.copyFromUtf8("blob-" + i));
+  }
+
+  @Test
+  public void summaryContainsAddedBlobs() {
+    ContentSummaryFilter filter = new ContentSummaryFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(digest(i));
+    }
+    ContentSummary summary = filter.toContentSummary();
+    for (int i = 0; i < 1000; i++) {
+      assertThat(ContentSummaryFilter.mightContain(summary, digest(i))).isTrue();
+    }
+  }
+
+  @Test
+  public void summaryFalsePositivesAreBounded() {
+    ContentSummaryFilter filter = new ContentSummaryFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(digest(i));
+    }
+    ContentSummary summary = filter.toContentSummary();
+    int falsePositives = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (ContentSummaryFilter.mightContain(summary, digest(i))) {
+        falsePositives++;
+      }
+    }
+    // 1% expected, allowing for variance
+    assertThat(falsePositives).isLessThan(300);
+  }
+
+  @Test
+  public void removedBlobsAreAbsentFromSummary() {
+    ContentSummaryFilter filter = new ContentSummaryFilter(1000, 0.01);
+    Digest retained = digest(0);
+    Digest removed = digest(1);
+    filter.add(retained);
+    filter.add(removed);
+    filter.remove(removed);
+    ContentSummary summary = filter.toContentSummary();
+    assertThat(ContentSummaryFilter.mightContain(summary, retained)).isTrue();
+    assertThat(ContentSummaryFilter.mightContain(summary, removed)).isFalse();
+  }
+
+  @Test
+  public void emptySummaryContainsNothing() {
+    assertThat(ContentSummaryFilter.mightContain(ContentSummary.getDefaultInstance(), digest(0)))
+        .isFalse();
+  }
+
+  @Test
+  public void deltaIsEmptyWithoutChanges() {
+    ContentSummaryFilter filter = new ContentSummaryFilter(1000, 0.01);
+    filter.add(digest(0));
+    assertThat(filter.takeDelta().getWordIndicesCount()).isGreaterThan(0);
+    assertThat(filter.takeDelta().getWordIndicesCount()).isEqualTo(0);
+
+    // a second insertion of a blob does not change the summary
+    filter.add(digest(0));
+    assertThat(filter.takeDelta().getWordIndicesCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void appliedDeltasMatchSummary() {
+    ContentSummaryFilter filter = new ContentSummaryFilter(1000, 0.01);
+    for (int i = 0; i < 100; i++) {
+      filter.add(digest(i));
+    }
+    ContentSummary published = filter.toContentSummary();
+    filter.takeDelta();
+    for (int i = 100; i < 200; i++) {
+      filter.add(digest(i));
+    }
+    filter.remove(digest(0));
+    ContentSummaryDelta delta = filter.takeDelta();
+
+    ContentSummary summary = filter.toContentSummary();
+    assertThat(ContentSummaryFilter.apply(published, delta)).isEqualTo(summary);
+    // deltas are idempotent
+    assertThat(ContentSummaryFilter.apply(summary, delta)).isEqualTo(summary);
+    assertThat(delta.getSerializedSize()).isLessThan(summary.getSerializedSize());
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LatencyAwareReadPolicyTest {
+  @Test
+  public void orderPrefersFasterSources() {
+    ReadPolicy policy = new LatencyAwareReadPolicy();
+    policy.onSuccess("slow", 1000);
+    policy.onSuccess("fast", 10);
+    assertThat(policy.order(ImmutableList.of("slow", "fast")))
+        .containsExactly("fast", "slow")
+        .inOrder();
+  }
+
+  @Test
+  public void orderPrefersUnmeasuredSources() {
+    ReadPolicy policy = new LatencyAwareReadPolicy();
+    policy.onSuccess("measured", 10);
+    assertThat(policy.order(ImmutableList.of("measured", "unmeasured")))
+        .containsExactly("unmeasured", "measured")
+        .inOrder();
+  }
+
+  @Test
+  public void orderPenalizesFailingSources() {
+    ReadPolicy policy = new LatencyAwareReadPolicy();
+    policy.onSuccess("failing", 10);
+    policy.onFailure("failing");
+    policy.onFailure("failing");
+    policy.onSuccess("reliable", 50);
+    policy.onFailure("unreachable");
+    assertThat(policy.order(ImmutableList.of("unreachable", "failing", "reliable")))
+        .containsExactly("reliable", "failing", "unreachable")
+        .inOrder();
+  }
+
+  @Test
+  public void hedgeDelayIsPercentileOfObservedLatency() {
+    ReadPolicy policy = new LatencyAwareReadPolicy(/* hedgePercentile=*/ 90, /* minHedgeDelayNanos=*/ 0);
+    assertThat(policy.getHedgeDelayNanos()).isLessThan(0L);
+    for (int i = 1; i <= 100; i++) {
+      policy.onSuccess("source", i);
+    }
+    assertThat(policy.getHedgeDelayNanos()).isEqualTo(90L);
+  }
+
+  @Test
+  public void hedgingDisabledWithZeroPercentile() {
+    ReadPolicy policy = new LatencyAwareReadPolicy(/* hedgePercentile=*/ 0, /* minHedgeDelayNanos=*/ 0);
+    for (int i = 1; i <= 100; i++) {
+      policy.onSuccess("source", i);
+    }
+    assertThat(policy.getHedgeDelayNanos()).isLessThan(0L);
+  }
+
+  @Test
+  public void failedSourcesAreRetriedAfterErrorsDecay() {
+    AtomicLong nowNanos = new AtomicLong(0);
+    ReadPolicy policy = new LatencyAwareReadPolicy(
+        /* hedgePercentile=*/ 0, /* minHedgeDelayNanos=*/ 0, nowNanos::get);
+    policy.onFailure("unreachable");
+    policy.onSuccess("measured", 10);
+    assertThat(policy.order(ImmutableList.of("unreachable", "measured")))
+        .containsExactly("measured", "unreachable")
+        .inOrder();
+
+    nowNanos.addAndGet(MINUTES.toNanos(2));
+    assertThat(policy.order(ImmutableList.of("measured", "unreachable")))
+        .containsExactly("unreachable", "measured")
+        .inOrder();
+  }
+
+  @Test
+  public void failurePenaltyDecays() {
+    AtomicLong nowNanos = new AtomicLong(0);
+    ReadPolicy policy = new LatencyAwareReadPolicy(
+        /* hedgePercentile=*/ 0, /* minHedgeDelayNanos=*/ 0, nowNanos::get);
+    policy.onSuccess("failing", 10);
+    policy.onFailure("failing");
+    policy.onFailure("failing");
+    policy.onSuccess("reliable", 50);
+    assertThat(policy.order(ImmutableList.of("failing", "reliable")))
+        .containsExactly("reliable", "failing")
+        .inOrder();
+
+    nowNanos.addAndGet(MINUTES.toNanos(2));
+    assertThat(policy.order(ImmutableList.of("reliable", "failing")))
+        .containsExactly("failing", "reliable")
+        .inOrder();
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.protobuf.util.Durations;
+import io.grpc.Deadline;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Scale measurements of Poller, run manually with the benchmarks target
+ * and excluded from the unit tests.
+ */
+@RunWith(JUnit4.class)
+public class PollerBenchmark {
+  private static final Logger logger = Logger.getLogger(PollerBenchmark.class.getName());
+
+  @Test
+  public void manyConcurrentPollersShareThreads() throws InterruptedException {
+    int pollerCount = 10000;
+    int threadsBefore = Thread.activeCount();
+    CountDownLatch polled = new CountDownLatch(pollerCount);
+    List<Poller> pollers = new ArrayList<>(pollerCount);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < pollerCount; i++) {
+      Poller poller = new Poller(Durations.fromMillis(100));
+      AtomicInteger polls = new AtomicInteger(0);
+      poller.resume(
+          () -> {
+            if (polls.incrementAndGet() == 2) {
+              polled.countDown();
+            }
+            return true;
+          },
+          () -> {},
+          Deadline.after(1, DAYS));
+      pollers.add(poller);
+    }
+    assertThat(polled.await(30, SECONDS)).isTrue();
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    int threads = Thread.activeCount() - threadsBefore;
+    for (Poller poller : pollers) {
+      poller.pause();
+    }
+    logger.info(String.format(
+        "%d pollers polled twice in %dms with %d additional threads",
+        pollerCount,
+        elapsedMillis,
+        threads));
+    assertThat(threads).isLessThan(pollerCount / 10);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.protobuf.util.Durations;
+import io.grpc.Deadline;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PollerTest {
+  @Test
+  public void pollsUntilPollFails() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromMillis(1));
+    AtomicInteger polls = new AtomicInteger(0);
+    CountDownLatch failed = new CountDownLatch(1);
+    poller.resume(
+        () -> {
+          if (polls.incrementAndGet() < 3) {
+            return true;
+          }
+          failed.countDown();
+          return false;
+        },
+        () -> {},
+        Deadline.after(1, DAYS));
+    assertThat(failed.await(10, SECONDS)).isTrue();
+    MILLISECONDS.sleep(10);
+    assertThat(polls.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void expirationRunsWithoutPoll() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromSeconds(10));
+    AtomicInteger polls = new AtomicInteger(0);
+    CountDownLatch expired = new CountDownLatch(1);
+    poller.resume(
+        () -> polls.incrementAndGet() > 0,
+        expired::countDown,
+        Deadline.after(1, MILLISECONDS));
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(polls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void pauseStopsPolling() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromMillis(1));
+    AtomicInteger polls = new AtomicInteger(0);
+    CountDownLatch polled = new CountDownLatch(1);
+    poller.resume(
+        () -> {
+          polls.incrementAndGet();
+          polled.countDown();
+          return true;
+        },
+        () -> {},
+        Deadline.after(1, DAYS));
+    assertThat(polled.await(10, SECONDS)).isTrue();
+    poller.pause();
+    int pausedPolls = polls.get();
+    MILLISECONDS.sleep(20);
+    assertThat(polls.get()).isEqualTo(pausedPolls);
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.protobuf.util.Durations;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WatchdogTest {
+  @Test
+  public void unpetWatchdogRuns() throws InterruptedException {
+    CountDownLatch ran = new CountDownLatch(1);
+    Watchdog watchdog = new Watchdog(Durations.fromMillis(1), ran::countDown);
+    watchdog.start();
+    assertThat(ran.await(10, SECONDS)).isTrue();
+  }
+
+  @Test
+  public void petDefersRun() throws InterruptedException {
+    CountDownLatch ran = new CountDownLatch(1);
+    Watchdog watchdog = new Watchdog(Durations.fromMillis(200), ran::countDown);
+    watchdog.start();
+    for (int i = 0; i < 5; i++) {
+      MILLISECONDS.sleep(20);
+      watchdog.pet();
+    }
+    assertThat(ran.getCount()).isEqualTo(1);
+    assertThat(ran.await(10, SECONDS)).isTrue();
+  }
+
+  @Test
+  public void stoppedWatchdogDoesNotRun() throws InterruptedException {
+    AtomicBoolean ran = new AtomicBoolean(false);
+    Watchdog watchdog = new Watchdog(Durations.fromMillis(10), () -> ran.set(true));
+    watchdog.start();
+    watchdog.stop();
+    MILLISECONDS.sleep(50);
+    assertThat(ran.get()).isFalse();
+  }
+}
@@ -37,6 +37,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.verify;
@@ -69,7 +70,6 @@ import build.buildfarm.v1test.MemoryInstanceConfig;
 import build.buildfarm.v1test.QueueEntry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
@@ -84,6 +84,7 @@ import com.google.rpc.Code;
 import com.google.rpc.PreconditionFailure;
 import com.google.rpc.PreconditionFailure.Violation;
 import com.google.rpc.Status;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -119,7 +120,7 @@ public class MemoryInstanceTest {
   private ExecutorService watcherService;
 
   private Map<Digest, ByteString> storage;
-  private List<MemoryInstance.Worker> workers;
+  private Map<Platform, Deque<MemoryInstance.Worker>> workers;
   private Map<String, Watchdog> requeuers;
   private Map<String, Watchdog> operationTimeoutDelays;
 
@@ -147,7 +148,7 @@ public class MemoryInstanceTest {
         .build();
 
     storage = Maps.newHashMap();
-    workers = Lists.newArrayList();
+    workers = Maps.newLinkedHashMap();
     requeuers = Maps.newHashMap();
     operationTimeoutDelays = Maps.newHashMap();
     instance = new MemoryInstance(
@@ -448,8 +449,13 @@ public class MemoryInstanceTest {
   }
 
   private Digest createAction(Action.Builder actionBuilder) {
+    return createAction(actionBuilder, Platform.getDefaultInstance());
+  }
+
+  private Digest createAction(Action.Builder actionBuilder, Platform platform) {
     Command command = Command.newBuilder()
         .addArguments("echo")
+        .setPlatform(platform)
         .build();
     ByteString commandBlob = command.toByteString();
     Digest commandDigest = DIGEST_UTIL.compute(commandBlob);
@@ -572,4 +578,69 @@ public class MemoryInstanceTest {
     assertThat(requeuers).isEmpty();
     assertThat(outstandingOperations.get(operationName)).isEqualTo(queuedOperation);
   }
+
+  private static Platform platform(String os) {
+    return Platform.newBuilder()
+        .addProperties(Platform.Property.newBuilder()
+            .setName("os")
+            .setValue(os))
+        .build();
+  }
+
+  private QueueEntry matchEntry(Platform platform) throws InterruptedException {
+    MatchListener listener = mock(MatchListener.class);
+    when(listener.onEntry(any(QueueEntry.class))).thenReturn(true);
+    instance.match(platform, listener);
+    ArgumentCaptor<QueueEntry> queueEntryCaptor = ArgumentCaptor.forClass(QueueEntry.class);
+    verify(listener, times(1)).onEntry(queueEntryCaptor.capture());
+    return queueEntryCaptor.getValue();
+  }
+
+  @Test
+  public void matchTakesEarliestOperationSatisfiedByPlatform() throws InterruptedException {
+    ImmutableList<String> oses = ImmutableList.of("foo", "bar", "foo");
+    for (int i = 0; i < oses.size(); i++) {
+      // distinct timeouts, so that each execution is a distinct action
+      instance.execute(
+          createAction(Action.newBuilder().setTimeout(Durations.fromSeconds(i + 1)), platform(oses.get(i))),
+          /* skipCacheLookup=*/ true,
+          ExecutionPolicy.getDefaultInstance(),
+          ResultsCachePolicy.getDefaultInstance(),
+          RequestMetadata.getDefaultInstance(),
+          (operation) -> {});
+    }
+
+    QueueEntry barEntry = matchEntry(platform("bar"));
+    assertThat(barEntry.getPlatform()).isEqualTo(platform("bar"));
+
+    QueueEntry firstFooEntry = matchEntry(platform("foo"));
+    QueueEntry secondFooEntry = matchEntry(platform("foo"));
+    assertThat(firstFooEntry.getPlatform()).isEqualTo(platform("foo"));
+    assertThat(secondFooEntry.getPlatform()).isEqualTo(platform("foo"));
+    assertThat(firstFooEntry.getExecuteEntry().getOperationName())
+        .isNotEqualTo(secondFooEntry.getExecuteEntry().getOperationName());
+  }
+
+  @Test
+  public void putOperationDispatchesToWaitingWorkerOfSatisfyingPlatform()
+      throws InterruptedException {
+    MatchListener fooListener = mock(MatchListener.class);
+    MatchListener barListener = mock(MatchListener.class);
+    when(barListener.onEntry(any(QueueEntry.class))).thenReturn(true);
+    instance.match(platform("foo"), fooListener);
+    instance.match(platform("bar"), barListener);
+    assertThat(workers).hasSize(2);
+
+    instance.execute(
+        createAction(Action.newBuilder(), platform("bar")),
+        /* skipCacheLookup=*/ true,
+        ExecutionPolicy.getDefaultInstance(),
+        ResultsCachePolicy.getDefaultInstance(),
+        RequestMetadata.getDefaultInstance(),
+        (operation) -> {});
+
+    verify(fooListener, never()).onEntry(any(QueueEntry.class));
+    verify(barListener, times(1)).onEntry(any(QueueEntry.class));
+    assertThat(workers.keySet()).containsExactly(platform("foo"));
+  }
 }
@@ -0,0 +1,169 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.instance.Instance;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import com.google.rpc.Code;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchedBlobReaderTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private final List<List<Digest>> requests = new ArrayList<>();
+  private final List<SettableFuture<Iterable<Response>>> responses = new ArrayList<>();
+  private Instance worker;
+
+  @Before
+  public void setUp() {
+    worker = mock(Instance.class);
+    when(worker.getAllBlobsFuture(any(Iterable.class))).thenAnswer((invocation) -> {
+      Iterable<Digest> digests = invocation.getArgument(0);
+      requests.add(ImmutableList.copyOf(digests));
+      SettableFuture<Iterable<Response>> response = SettableFuture.create();
+      responses.add(response);
+      return response;
+    });
+  }
+
+  private BatchedBlobReader newReader(long maxBatchSizeBytes) {
+    return new BatchedBlobReader(
+        (name) -> worker,
+        /* maxBlobSizeBytes=*/ 16,
+        maxBatchSizeBytes,
+        /* maxBatchesInFlight=*/ 1);
+  }
+
+  private static Response found(ByteString content) {
+    return Response.newBuilder()
+        .setDigest(DIGEST_UTIL.compute(content))
+        .setData(content)
+        .build();
+  }
+
+  @Test
+  public void readsPendingOnARequestAreBatched() throws Exception {
+    BatchedBlobReader reader = newReader(/* maxBatchSizeBytes=*/ 1024);
+    ByteString foo = ByteString.copyFromUtf8("foo");
+    ByteString bar = ByteString.copyFromUtf8("bar");
+    ByteString baz = ByteString.copyFromUtf8("baz");
+
+    ListenableFuture<ByteString> fooRead = reader.read("worker", DIGEST_UTIL.compute(foo));
+    ListenableFuture<ByteString> barRead = reader.read("worker", DIGEST_UTIL.compute(bar));
+    ListenableFuture<ByteString> bazRead = reader.read("worker", DIGEST_UTIL.compute(baz));
+    assertThat(requests).hasSize(1);
+
+    responses.get(0).set(ImmutableList.of(found(foo)));
+    assertThat(fooRead.get()).isEqualTo(foo);
+    assertThat(requests).hasSize(2);
+    assertThat(requests.get(1))
+        .containsExactly(DIGEST_UTIL.compute(bar), DIGEST_UTIL.compute(baz))
+        .inOrder();
+
+    responses.get(1).set(ImmutableList.of(found(bar), found(baz)));
+    assertThat(barRead.get()).isEqualTo(bar);
+    assertThat(bazRead.get()).isEqualTo(baz);
+  }
+
+  @Test
+  public void batchesAreBoundedBySize() {
+    BatchedBlobReader reader = newReader(/* maxBatchSizeBytes=*/ 16);
+    reader.read("worker", DIGEST_UTIL.compute(ByteString.copyFromUtf8("first")));
+    for (int i = 0; i < 4; i++) {
+      reader.read("worker", DIGEST_UTIL.compute(ByteString.copyFromUtf8("blob-" + i)));
+    }
+
+    responses.get(0).set(ImmutableList.of());
+    assertThat(requests).hasSize(2);
+    assertThat(requests.get(1)).hasSize(2);
+    responses.get(1).set(ImmutableList.of());
+    assertThat(requests).hasSize(3);
+    assertThat(requests.get(2)).hasSize(2);
+  }
+
+  @Test
+  public void pendingReadsOfADigestAreShared() {
+    BatchedBlobReader reader = newReader(/* maxBatchSizeBytes=*/ 1024);
+    reader.read("worker", DIGEST_UTIL.compute(ByteString.copyFromUtf8("first")));
+    Digest digest = DIGEST_UTIL.compute(ByteString.copyFromUtf8("shared"));
+
+    assertThat(reader.read("worker", digest)).isSameAs(reader.read("worker", digest));
+  }
+
+  @Test
+  public void responseStatusFailsItsReadOnly() throws Exception {
+    BatchedBlobReader reader = newReader(/* maxBatchSizeBytes=*/ 1024);
+    reader.read("worker", DIGEST_UTIL.compute(ByteString.copyFromUtf8("first")));
+    ByteString found = ByteString.copyFromUtf8("found");
+    Digest missing = DIGEST_UTIL.compute(ByteString.copyFromUtf8("missing"));
+    ListenableFuture<ByteString> foundRead = reader.read("worker", DIGEST_UTIL.compute(found));
+    ListenableFuture<ByteString> missingRead = reader.read("worker", missing);
+    responses.get(0).set(ImmutableList.of());
+
+    Iterables.getLast(responses).set(ImmutableList.of(
+        found(found),
+        Response.newBuilder()
+            .setDigest(missing)
+            .setStatus(com.google.rpc.Status.newBuilder()
+                .setCode(Code.NOT_FOUND.getNumber()))
+            .build()));
+
+    assertThat(foundRead.get()).isEqualTo(found);
+    try {
+      missingRead.get();
+      fail("read of missing blob succeeded");
+    } catch (ExecutionException e) {
+      assertThat(Status.fromThrowable(e.getCause()).getCode()).isEqualTo(Status.Code.NOT_FOUND);
+    }
+  }
+
+  @Test
+  public void requestFailureFailsAllReads() throws Exception {
+    BatchedBlobReader reader = newReader(/* maxBatchSizeBytes=*/ 1024);
+    ListenableFuture<ByteString> read =
+        reader.read("worker", DIGEST_UTIL.compute(ByteString.copyFromUtf8("first")));
+
+    responses.get(0).setException(Status.UNAVAILABLE.asRuntimeException());
+
+    try {
+      read.get();
+      fail("read of unavailable worker succeeded");
+    } catch (ExecutionException e) {
+      assertThat(Status.fromThrowable(e.getCause()).getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+  }
+}
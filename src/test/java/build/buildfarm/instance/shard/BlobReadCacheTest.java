@@ -0,0 +1,71 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BlobReadCacheTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  @Test
+  public void putContentIsPresent() {
+    BlobReadCache cache = new BlobReadCache(/* maxSizeBytes=*/ 1024, /* maxEntrySizeBytes=*/ 64);
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    assertThat(cache.getIfPresent(digest)).isNull();
+    cache.put(digest, content);
+    assertThat(cache.getIfPresent(digest)).isEqualTo(content);
+  }
+
+  @Test
+  public void largeBlobsAreNotCached() {
+    BlobReadCache cache = new BlobReadCache(/* maxSizeBytes=*/ 1024, /* maxEntrySizeBytes=*/ 4);
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    assertThat(cache.isCacheable(digest)).isFalse();
+    cache.put(digest, content);
+    assertThat(cache.getIfPresent(digest)).isNull();
+  }
+
+  @Test
+  public void incompleteContentIsNotCached() {
+    BlobReadCache cache = new BlobReadCache(/* maxSizeBytes=*/ 1024, /* maxEntrySizeBytes=*/ 64);
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    cache.put(digest, content.substring(1));
+    assertThat(cache.getIfPresent(digest)).isNull();
+  }
+
+  @Test
+  public void reportIncludesHitRate() {
+    BlobReadCache cache = new BlobReadCache(/* maxSizeBytes=*/ 1024, /* maxEntrySizeBytes=*/ 64);
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    cache.getIfPresent(digest);
+    cache.put(digest, content);
+    cache.getIfPresent(digest);
+    assertThat(cache.report()).contains("2 requests, 50.0% hit rate");
+    assertThat(cache.report()).contains("0 requests");
+  }
+}
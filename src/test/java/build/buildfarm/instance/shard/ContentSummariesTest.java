@@ -0,0 +1,170 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.ContentSummaryFilter;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.ShardBackplane;
+import build.buildfarm.v1test.ContentSummary;
+import build.buildfarm.v1test.ContentSummaryDelta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ContentSummariesTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private final Digest held = DIGEST_UTIL.compute(ByteString.copyFromUtf8("held"));
+  private final Digest other = DIGEST_UTIL.compute(ByteString.copyFromUtf8("other"));
+  private ContentSummaryFilter filter;
+  private ContentSummary summary;
+  private ShardBackplane backplane;
+  private ContentSummaries contentSummaries;
+
+  @Before
+  public void setUp() throws IOException {
+    filter = new ContentSummaryFilter(100, 0.01);
+    filter.add(held);
+    summary = filter.toContentSummary();
+    filter.takeDelta();
+    backplane = mock(ShardBackplane.class);
+    when(backplane.getContentSummaryVersions()).thenReturn(ImmutableMap.of("worker", 1L));
+    when(backplane.getContentSummaries(ImmutableList.of("worker")))
+        .thenReturn(ImmutableMap.of("worker", summary));
+    when(backplane.getContentSummaries(ImmutableList.of())).thenReturn(ImmutableMap.of());
+    contentSummaries = new ContentSummaries(backplane, /* exclusive=*/ false);
+  }
+
+  @Test
+  public void summariesAreEmptyUntilRefreshed() {
+    assertThat(contentSummaries.getLikelyHolders(held)).isEmpty();
+    contentSummaries.refresh();
+    assertThat(contentSummaries.getLikelyHolders(held)).containsExactly("worker");
+  }
+
+  @Test
+  public void likelyHoldersAreSummarizedWorkers() {
+    contentSummaries.refresh();
+    assertThat(contentSummaries.getLikelyHolders(held)).containsExactly("worker");
+    assertThat(contentSummaries.getLikelyHolders(other)).isEmpty();
+  }
+
+  @Test
+  public void countLikelyHeldCountsSummarizedDigests() {
+    contentSummaries.refresh();
+    assertThat(contentSummaries.countLikelyHeld("worker", ImmutableList.of(held, other))).isEqualTo(1);
+    assertThat(contentSummaries.countLikelyHeld("unsummarized", ImmutableList.of(held, other))).isEqualTo(0);
+  }
+
+  @Test
+  public void onlyChangedSummariesAreRetrieved() throws IOException {
+    contentSummaries.refresh();
+    contentSummaries.refresh();
+    verify(backplane, times(1)).getContentSummaries(ImmutableList.of("worker"));
+    verify(backplane, times(1)).getContentSummaries(ImmutableList.of());
+
+    when(backplane.getContentSummaryVersions()).thenReturn(ImmutableMap.of("worker", 2L));
+    contentSummaries.refresh();
+    verify(backplane, times(2)).getContentSummaries(ImmutableList.of("worker"));
+    assertThat(contentSummaries.getLikelyHolders(held)).containsExactly("worker");
+  }
+
+  @Test
+  public void removedWorkersAreDropped() throws IOException {
+    contentSummaries.refresh();
+    when(backplane.getContentSummaryVersions()).thenReturn(ImmutableMap.of());
+    contentSummaries.refresh();
+    assertThat(contentSummaries.getLikelyHolders(held)).isEmpty();
+  }
+
+  @Test
+  public void failedRefreshRetainsSummaries() throws IOException {
+    contentSummaries.refresh();
+    when(backplane.getContentSummaryVersions()).thenThrow(new IOException("unavailable"));
+    contentSummaries.refresh();
+    assertThat(contentSummaries.getLikelyHolders(held)).containsExactly("worker");
+  }
+
+  @Test
+  public void deltasOfRetainedSummariesAreApplied() throws IOException {
+    contentSummaries.refresh();
+    filter.add(other);
+    ContentSummaryDelta delta = filter.takeDelta().toBuilder()
+        .setBaseVersion(1)
+        .build();
+    when(backplane.getContentSummaryVersions()).thenReturn(ImmutableMap.of("worker", 2L));
+    when(backplane.getContentSummaryDeltas(ImmutableList.of("worker")))
+        .thenReturn(ImmutableMap.of("worker", delta));
+
+    contentSummaries.refresh();
+
+    verify(backplane, times(1)).getContentSummaries(ImmutableList.of("worker"));
+    assertThat(contentSummaries.getLikelyHolders(other)).containsExactly("worker");
+  }
+
+  @Test
+  public void deltasOfOtherVersionsAreNotApplied() throws IOException {
+    contentSummaries.refresh();
+    ContentSummaryDelta delta = filter.takeDelta().toBuilder()
+        .setBaseVersion(2)
+        .build();
+    when(backplane.getContentSummaryVersions()).thenReturn(ImmutableMap.of("worker", 2L));
+    when(backplane.getContentSummaryDeltas(ImmutableList.of("worker")))
+        .thenReturn(ImmutableMap.of("worker", delta));
+
+    contentSummaries.refresh();
+
+    verify(backplane, times(2)).getContentSummaries(ImmutableList.of("worker"));
+  }
+
+  @Test
+  public void likelyHoldersAreLocatedWithoutLocationSets() throws IOException {
+    contentSummaries.refresh();
+    assertThat(contentSummaries.locate(held, ImmutableSet.of("worker"))).containsExactly("worker");
+    verify(backplane, never()).getBlobLocationSet(held);
+  }
+
+  @Test
+  public void unsummarizedBlobsAreLocatedByLocationSets() throws IOException {
+    contentSummaries.refresh();
+    when(backplane.getBlobLocationSet(other)).thenReturn(ImmutableSet.of("other-worker"));
+    assertThat(contentSummaries.locate(other, ImmutableSet.of("worker", "other-worker")))
+        .containsExactly("other-worker");
+  }
+
+  @Test
+  public void exclusiveSummariesNeverRequestLocationSets() throws IOException {
+    contentSummaries = new ContentSummaries(backplane, /* exclusive=*/ true);
+    contentSummaries.refresh();
+    assertThat(contentSummaries.locate(other, ImmutableSet.of("worker"))).isEmpty();
+    verify(backplane, never()).getBlobLocationSet(other);
+  }
+}
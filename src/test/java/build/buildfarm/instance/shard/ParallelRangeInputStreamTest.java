@@ -0,0 +1,127 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static org.junit.Assert.fail;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelRangeInputStreamTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private final ByteString content = ByteString.copyFromUtf8("0123456789abcdefghij");
+  private final Digest digest = DIGEST_UTIL.compute(content);
+  private final List<String> rangeWorkers = new ArrayList<>();
+  private final Semaphore buffers = new Semaphore(3);
+
+  private InputStream newInput(Set<String> failedWorkers) {
+    assertThat(buffers.tryAcquire()).isTrue();
+    return new ParallelRangeInputStream(
+        digest,
+        ImmutableList.of("worker1", "worker2", "worker3"),
+        (worker, offset, limit) -> {
+          rangeWorkers.add(worker);
+          if (failedWorkers.contains(worker)) {
+            throw Status.UNAVAILABLE.asRuntimeException();
+          }
+          return content.substring((int) offset, (int) (offset + limit));
+        },
+        /* rangeSizeBytes=*/ 4,
+        /* maxRangesInFlight=*/ 2,
+        newDirectExecutorService(),
+        buffers);
+  }
+
+  @Test
+  public void rangesAreReadFromEachWorkerInTurn() throws IOException {
+    try (InputStream in = newInput(ImmutableSet.of())) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+    assertThat(rangeWorkers)
+        .containsExactly("worker1", "worker2", "worker3", "worker1", "worker2")
+        .inOrder();
+  }
+
+  @Test
+  public void failedRangeIsReadFromAnotherWorker() throws IOException {
+    try (InputStream in = newInput(ImmutableSet.of("worker2"))) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+    // worker2 is not requested again after its failure
+    assertThat(rangeWorkers)
+        .containsExactly("worker1", "worker2", "worker3", "worker1", "worker3", "worker1")
+        .inOrder();
+  }
+
+  @Test
+  public void readFailsWhenNoWorkerCanServeARange() {
+    try (InputStream in = newInput(ImmutableSet.of("worker1", "worker2", "worker3"))) {
+      ByteString.readFrom(in);
+      fail("read succeeded without a worker");
+    } catch (IOException e) {
+      assertThat(Status.fromThrowable(e.getCause()).getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+  }
+
+  @Test
+  public void rangesAreReadWithinAvailableBuffers() throws IOException {
+    // only the buffer acquired for the stream remains
+    assertThat(buffers.tryAcquire(2)).isTrue();
+    try (InputStream in = newInput(ImmutableSet.of())) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+    assertThat(rangeWorkers)
+        .containsExactly("worker1", "worker2", "worker3", "worker1", "worker2")
+        .inOrder();
+    assertThat(buffers.availablePermits()).isEqualTo(1);
+  }
+
+  @Test
+  public void buffersAreReleasedWhenReadCompletes() throws IOException {
+    InputStream in = newInput(ImmutableSet.of());
+    // the first two ranges are buffered ahead of the reader
+    assertThat(buffers.availablePermits()).isEqualTo(1);
+    assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    assertThat(buffers.availablePermits()).isEqualTo(3);
+    in.close();
+    assertThat(buffers.availablePermits()).isEqualTo(3);
+  }
+
+  @Test
+  public void buffersAreReleasedOnClose() throws IOException {
+    InputStream in = newInput(ImmutableSet.of());
+    assertThat(in.read()).isEqualTo('0');
+    in.close();
+    assertThat(buffers.availablePermits()).isEqualTo(3);
+  }
+}
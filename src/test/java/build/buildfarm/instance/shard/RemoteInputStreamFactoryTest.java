@@ -0,0 +1,120 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.RequestMetadata;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.ReadPolicy;
+import build.buildfarm.common.ShardBackplane;
+import build.buildfarm.instance.Instance;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteInputStreamFactoryTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private static final ReadPolicy IN_ORDER = new ReadPolicy() {
+    @Override
+    public List<String> order(Collection<String> sources) {
+      return ImmutableList.copyOf(sources);
+    }
+
+    @Override
+    public long getHedgeDelayNanos() {
+      return -1;
+    }
+
+    @Override
+    public void onSuccess(String source, long firstResponseNanos) {
+    }
+
+    @Override
+    public void onFailure(String source) {
+    }
+  };
+
+  private final ByteString content = ByteString.copyFromUtf8("content");
+  private final Digest digest = DIGEST_UTIL.compute(content);
+  private Instance worker;
+  private RemoteInputStreamFactory inputStreamFactory;
+
+  @Before
+  public void setUp() throws Exception {
+    ShardBackplane backplane = mock(ShardBackplane.class);
+    when(backplane.getWorkers()).thenReturn(ImmutableSet.of("worker"));
+    when(backplane.getBlobLocationSet(digest)).thenReturn(ImmutableSet.of("worker"));
+    worker = mock(Instance.class);
+    when(worker.newBlobInput(
+        eq(digest),
+        eq(0L),
+        anyLong(),
+        any(TimeUnit.class),
+        any(RequestMetadata.class)))
+        .thenAnswer((invocation) -> content.newInput());
+    inputStreamFactory = new RemoteInputStreamFactory(
+        backplane,
+        new Random(),
+        CacheBuilder.newBuilder().build(CacheLoader.from((name) -> worker)),
+        (name, t, context) -> {},
+        IN_ORDER,
+        newDirectExecutorService(),
+        /* contentSummaries=*/ null);
+  }
+
+  @Test
+  public void batchFailureFallsBackToStream() throws Exception {
+    when(worker.getAllBlobsFuture(any(Iterable.class)))
+        .thenReturn(immediateFailedFuture(Status.UNKNOWN.asRuntimeException()));
+
+    try (InputStream in = inputStreamFactory.newInput(digest, 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void throwingBatchPeerFallsBackToStream() throws Exception {
+    when(worker.getAllBlobsFuture(any(Iterable.class)))
+        .thenThrow(new IllegalStateException("batches are not served"));
+
+    try (InputStream in = inputStreamFactory.newInput(digest, 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+}
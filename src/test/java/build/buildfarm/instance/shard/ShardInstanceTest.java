@@ -32,6 +32,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.AdditionalAnswers.answer;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
@@ -62,6 +63,7 @@ import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Poller;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.common.Watcher;
+import build.buildfarm.common.Write.CompleteWrite;
 import build.buildfarm.common.Write.NullWrite;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.v1test.CompletedOperationMetadata;
@@ -75,6 +77,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
@@ -140,6 +143,15 @@ public class ShardInstanceTest {
         /* dispatchedMonitorIntervalSeconds=*/ 0,
         /* runOperationQueuer=*/ false,
         /* maxBlobSize=*/ 0,
+        /* queueDirectoriesByReference=*/ false,
+        /* minTransformConcurrency=*/ 0,
+        /* maxTransformConcurrency=*/ 0,
+        /* blobReplicationFactor=*/ 1,
+        /* blobReplicationMaxSizeBytes=*/ 0,
+        /* readCacheMaxSizeBytes=*/ 0,
+        /* readCacheMaxEntrySizeBytes=*/ 0,
+        /* contentSummaryRefreshPeriodMillis=*/ 0,
+        /* contentSummaryOnly=*/ false,
         mockOnStop,
         CacheBuilder.newBuilder()
             .build(mockInstanceLoader));
@@ -733,6 +745,53 @@ public class ShardInstanceTest {
     assertThat(missingDigests).containsExactly(digest);
   }
 
+  @Test
+  public void committedBlobWriteIsReplicated() throws Exception {
+    ShardInstance replicatingInstance = new ShardInstance(
+        "shard",
+        DIGEST_UTIL,
+        mockBackplane,
+        /* runDispatchedMonitor=*/ false,
+        /* dispatchedMonitorIntervalSeconds=*/ 0,
+        /* runOperationQueuer=*/ false,
+        /* maxBlobSize=*/ 0,
+        /* queueDirectoriesByReference=*/ false,
+        /* minTransformConcurrency=*/ 0,
+        /* maxTransformConcurrency=*/ 0,
+        /* blobReplicationFactor=*/ 2,
+        /* blobReplicationMaxSizeBytes=*/ 0,
+        /* readCacheMaxSizeBytes=*/ 0,
+        /* readCacheMaxEntrySizeBytes=*/ 0,
+        /* contentSummaryRefreshPeriodMillis=*/ 0,
+        /* contentSummaryOnly=*/ false,
+        mockOnStop,
+        CacheBuilder.newBuilder()
+            .build(mockInstanceLoader));
+    when(mockInstanceLoader.load(any(String.class))).thenReturn(mockWorkerInstance);
+    when(mockBackplane.getWorkers()).thenReturn(ImmutableSet.of("worker1", "worker2"));
+
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    // replicas are read from the worker written to, without a location set
+    when(mockWorkerInstance.newBlobInput(eq(digest), eq(0L), anyLong(), any(TimeUnit.class), any(RequestMetadata.class)))
+        .thenReturn(content.newInput());
+    NullWrite replicaWrite = new NullWrite();
+    SettableFuture<Void> replicated = SettableFuture.create();
+    replicaWrite.addListener(() -> replicated.set(null), directExecutor());
+    when(mockWorkerInstance.getBlobWrite(eq(digest), any(UUID.class), any(RequestMetadata.class)))
+        .thenReturn(new CompleteWrite(content.size()), replicaWrite);
+
+    replicatingInstance.start();
+    try {
+      replicatingInstance.getBlobWrite(digest, UUID.randomUUID(), RequestMetadata.getDefaultInstance());
+      replicated.get(QUEUE_TEST_TIMEOUT_SECONDS, SECONDS);
+      assertThat(replicaWrite.getCommittedSize()).isEqualTo(content.size());
+      verify(mockBackplane, never()).getBlobLocationSet(digest);
+    } finally {
+      replicatingInstance.stop();
+    }
+  }
+
   @Test
   public void watchOperationFutureIsDoneForCompleteOperation() throws IOException {
     Watcher watcher = mock(Watcher.class);
@@ -800,4 +859,32 @@ public class ShardInstanceTest {
     verify(mockBackplane, times(1)).getOperation(incompleteOperation.getName());
     verify(mockBackplane, times(1)).watchOperation(incompleteOperation.getName(), watcher);
   }
+
+  @Test
+  public void cachedBlobReadPastEndIsOutOfRange() {
+    ByteString content = ByteString.copyFromUtf8("cached");
+    Digest digest = DIGEST_UTIL.compute(content);
+    StreamObserver<ByteString> blobObserver = mock(StreamObserver.class);
+
+    ShardInstance.getCachedBlob(digest, content, content.size() + 1, content.size(), blobObserver);
+
+    ArgumentCaptor<Throwable> errorCaptor = ArgumentCaptor.forClass(Throwable.class);
+    verify(blobObserver, times(1)).onError(errorCaptor.capture());
+    assertThat(Status.fromThrowable(errorCaptor.getValue()).getCode()).isEqualTo(Status.Code.OUT_OF_RANGE);
+    verify(blobObserver, never()).onNext(any(ByteString.class));
+    verify(blobObserver, never()).onCompleted();
+  }
+
+  @Test
+  public void cachedBlobReadIsLimited() {
+    ByteString content = ByteString.copyFromUtf8("cached");
+    Digest digest = DIGEST_UTIL.compute(content);
+    StreamObserver<ByteString> blobObserver = mock(StreamObserver.class);
+
+    ShardInstance.getCachedBlob(digest, content, /* offset=*/ 1, /* count=*/ 3, blobObserver);
+
+    verify(blobObserver, times(1)).onNext(ByteString.copyFromUtf8("ach"));
+    verify(blobObserver, times(1)).onCompleted();
+    verify(blobObserver, never()).onError(any(Throwable.class));
+  }
 }
@@ -0,0 +1,111 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TransformLimiterTest {
+  private static void acquireAll(TransformLimiter limiter, int count) throws InterruptedException {
+    for (int i = 0; i < count; i++) {
+      limiter.acquire();
+    }
+  }
+
+  @Test
+  public void limitGrowsWithStableLatency() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 10, /* initialLimit=*/ 2);
+    for (int i = 0; i < 20; i++) {
+      int limit = limiter.getLimit();
+      acquireAll(limiter, limit);
+      for (int j = 0; j < limit; j++) {
+        limiter.release(/* latencyNanos=*/ 100, /* success=*/ true);
+      }
+    }
+    assertThat(limiter.getLimit()).isGreaterThan(2);
+    assertThat(limiter.getLimit()).isAtMost(10);
+    assertThat(limiter.getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void limitDoesNotGrowWhenUnused() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 100, /* initialLimit=*/ 10);
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire();
+      limiter.release(/* latencyNanos=*/ 100, /* success=*/ true);
+    }
+    assertThat(limiter.getLimit()).isEqualTo(10);
+  }
+
+  @Test
+  public void failuresDecreaseLimitOncePerWindow() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 100, /* initialLimit=*/ 10);
+    acquireAll(limiter, 4);
+    limiter.release(/* latencyNanos=*/ 100, /* success=*/ false);
+    assertThat(limiter.getLimit()).isEqualTo(9);
+    limiter.release(/* latencyNanos=*/ 100, /* success=*/ false);
+    assertThat(limiter.getLimit()).isEqualTo(9);
+  }
+
+  @Test
+  public void latencyInflationDecreasesLimit() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 100, /* initialLimit=*/ 10);
+    limiter.acquire();
+    limiter.release(/* latencyNanos=*/ 100, /* success=*/ true);
+    assertThat(limiter.getLimit()).isEqualTo(10);
+    limiter.acquire();
+    limiter.release(/* latencyNanos=*/ 1000, /* success=*/ true);
+    assertThat(limiter.getLimit()).isLessThan(10);
+  }
+
+  @Test
+  public void backpressureRespectsMinimum() {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 4, /* maxLimit=*/ 100, /* initialLimit=*/ 4);
+    limiter.onBackpressure();
+    assertThat(limiter.getLimit()).isEqualTo(4);
+  }
+
+  @Test
+  public void unsampledReleasesDoNotAffectLimit() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 100, /* initialLimit=*/ 10);
+    limiter.acquire();
+    limiter.release(/* latencyNanos=*/ 1000, /* success=*/ true);
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire();
+      limiter.release();
+    }
+    limiter.acquire();
+    limiter.release(/* latencyNanos=*/ 1000, /* success=*/ true);
+    assertThat(limiter.getLimit()).isEqualTo(10);
+    assertThat(limiter.getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void baselineRecoversFromFastOutlier() throws InterruptedException {
+    TransformLimiter limiter = new TransformLimiter(/* minLimit=*/ 1, /* maxLimit=*/ 100, /* initialLimit=*/ 10);
+    limiter.acquire();
+    limiter.release(/* latencyNanos=*/ 10, /* success=*/ true);
+    for (int i = 0; i < 50; i++) {
+      limiter.acquire();
+      limiter.release(/* latencyNanos=*/ 1000, /* success=*/ true);
+    }
+    // a baseline pinned near the outlier would hold the limit at its minimum
+    assertThat(limiter.getLimit()).isGreaterThan(1);
+  }
+}
@@ -29,7 +29,10 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.RequestMetadata;
+import build.bazel.remote.execution.v2.Tree;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.instance.Instance;
 import com.google.common.collect.ImmutableSet;
@@ -285,4 +288,29 @@ public class UtilTest {
         eq(ImmutableSet.of(workerName)),
         eq(ImmutableSet.of()));
   }
+
+  private static Digest fileDigest(String hash, long size) {
+    return Digest.newBuilder().setHash(hash).setSizeBytes(size).build();
+  }
+
+  private static FileNode file(String name, Digest digest) {
+    return FileNode.newBuilder().setName(name).setDigest(digest).build();
+  }
+
+  @Test
+  public void summarizeInputsSelectsLargestDistinctFiles() {
+    Digest small = fileDigest("small", 1);
+    Digest medium = fileDigest("medium", 10);
+    Digest large = fileDigest("large", 100);
+    Tree tree = Tree.newBuilder()
+        .setRoot(Directory.newBuilder()
+            .addFiles(file("a", large))
+            .addFiles(file("b", small)))
+        .addChildren(Directory.newBuilder()
+            .addFiles(file("c", large))
+            .addFiles(file("d", medium)))
+        .build();
+
+    assertThat(Util.summarizeInputs(tree, 2)).containsExactly(large, medium).inOrder();
+  }
 }
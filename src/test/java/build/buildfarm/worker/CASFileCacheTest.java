@@ -31,6 +31,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
@@ -57,6 +58,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.protobuf.ByteString;
+import com.google.rpc.Code;
 import io.grpc.Deadline;
 import java.io.InputStream;
 import java.io.IOException;
@@ -68,6 +70,7 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -81,6 +84,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -164,6 +168,25 @@ class CASFileCacheTest {
     assertThat(Files.exists(path)).isTrue();
   }
 
+  @Test
+  public void getAllFutureServesLocalContentOnly() throws Exception {
+    ByteString blob = ByteString.copyFromUtf8("Hello, World");
+    Digest blobDigest = DIGEST_UTIL.compute(blob);
+    blobs.put(blobDigest, blob);
+    fileCache.put(blobDigest, false);
+    ByteString delegated = ByteString.copyFromUtf8("delegated");
+    Digest delegatedDigest = DIGEST_UTIL.compute(delegated);
+    blobs.put(delegatedDigest, delegated);
+
+    List<Response> responses = ImmutableList.copyOf(
+        fileCache.getAllFuture(ImmutableList.of(blobDigest, delegatedDigest)).get());
+
+    assertThat(responses).hasSize(2);
+    assertThat(responses.get(0).getStatus().getCode()).isEqualTo(Code.OK.getNumber());
+    assertThat(responses.get(0).getData()).isEqualTo(blob);
+    assertThat(responses.get(1).getStatus().getCode()).isEqualTo(Code.NOT_FOUND.getNumber());
+  }
+
   @Test(expected = IllegalStateException.class)
   public void putEmptyFileThrowsIllegalStateException() throws IOException, InterruptedException {
     InputStreamFactory mockInputStreamFactory = mock(InputStreamFactory.class);
@@ -284,6 +307,64 @@ class CASFileCacheTest {
     assertThat(Files.exists(strawPath)).isTrue();
   }
 
+  private boolean supportsLinkCounts() {
+    return root.getFileSystem().supportedFileAttributeViews().contains("unix");
+  }
+
+  @Test
+  public void adoptLinksFileAsBlob() throws IOException, InterruptedException {
+    ByteString blob = ByteString.copyFromUtf8("adopted");
+    Digest blobDigest = DIGEST_UTIL.compute(blob);
+    Path output = root.resolve("output");
+    Files.write(output, blob.toByteArray());
+
+    Digest digest = fileCache.adopt(output);
+
+    if (supportsLinkCounts()) {
+      assertThat(digest).isEqualTo(blobDigest);
+      assertThat(fileCache.contains(blobDigest)).isTrue();
+      assertThat(Files.exists(output)).isTrue();
+      verify(onPut, times(1)).accept(blobDigest);
+    } else {
+      assertThat(digest).isNull();
+      assertThat(fileCache.contains(blobDigest)).isFalse();
+    }
+  }
+
+  @Test
+  public void adoptLeavesNoIntermediateLinks() throws IOException, InterruptedException {
+    ByteString blob = ByteString.copyFromUtf8("adopted twice");
+    Digest blobDigest = DIGEST_UTIL.compute(blob);
+    Path first = root.resolve("first");
+    Path second = root.resolve("second");
+    Files.write(first, blob.toByteArray());
+    Files.write(second, blob.toByteArray());
+
+    Digest firstDigest = fileCache.adopt(first);
+    Digest secondDigest = fileCache.adopt(second);
+
+    if (supportsLinkCounts()) {
+      assertThat(firstDigest).isEqualTo(blobDigest);
+      assertThat(secondDigest).isEqualTo(blobDigest);
+      // the second file's content was already present, it is not linked
+      assertThat(((Number) Files.getAttribute(second, "unix:nlink")).intValue()).isEqualTo(1);
+    }
+    try (Stream<Path> paths = Files.list(root)) {
+      assertThat(paths.anyMatch((path) -> path.getFileName().toString().startsWith("adopt."))).isFalse();
+    }
+  }
+
+  @Test
+  public void adoptRefusesLinkedFile() throws IOException, InterruptedException {
+    ByteString blob = ByteString.copyFromUtf8("linked");
+    Path output = root.resolve("output");
+    Files.write(output, blob.toByteArray());
+    Files.createLink(root.resolve("link"), output);
+
+    assertThat(fileCache.adopt(output)).isNull();
+    assertThat(fileCache.contains(DIGEST_UTIL.compute(blob))).isFalse();
+  }
+
   @Test
   public void startLoadsExistingBlob() throws IOException, InterruptedException {
     ByteString blob = ByteString.copyFromUtf8("blob");
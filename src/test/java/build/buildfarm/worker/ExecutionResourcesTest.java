@@ -0,0 +1,98 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Platform;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExecutionResourcesTest {
+  private static Platform platform(String cores, String memoryBytes) {
+    Platform.Builder platform = Platform.newBuilder();
+    if (cores != null) {
+      platform.addPropertiesBuilder()
+          .setName(ExecutionResources.CORES_PROPERTY)
+          .setValue(cores);
+    }
+    if (memoryBytes != null) {
+      platform.addPropertiesBuilder()
+          .setName(ExecutionResources.MEMORY_PROPERTY)
+          .setValue(memoryBytes);
+    }
+    return platform.build();
+  }
+
+  @Test
+  public void undeclaredNeedsClaimNothing() {
+    ExecutionResources resources = new ExecutionResources(/* cores=*/ 4, /* memoryBytes=*/ 1024);
+    ExecutionResources.Claim claim = resources.claim(Platform.getDefaultInstance());
+    assertThat(claim.cores).isEqualTo(0);
+    assertThat(claim.memoryBytes).isEqualTo(0);
+  }
+
+  @Test
+  public void unconstrainedResourcesAreNotClaimed() {
+    ExecutionResources resources = new ExecutionResources(/* cores=*/ 0, /* memoryBytes=*/ 0);
+    ExecutionResources.Claim claim = resources.claim(platform("2", "512"));
+    assertThat(claim.cores).isEqualTo(0);
+    assertThat(claim.memoryBytes).isEqualTo(0);
+  }
+
+  @Test
+  public void declaredNeedsAreClaimed() {
+    ExecutionResources resources = new ExecutionResources(/* cores=*/ 4, /* memoryBytes=*/ 1024);
+    ExecutionResources.Claim claim = resources.claim(platform("2", "512"));
+    assertThat(claim.cores).isEqualTo(2);
+    assertThat(claim.memoryBytes).isEqualTo(512);
+  }
+
+  @Test
+  public void invalidNeedsAreIgnored() {
+    ExecutionResources resources = new ExecutionResources(/* cores=*/ 4, /* memoryBytes=*/ 0);
+    ExecutionResources.Claim claim = resources.claim(platform("many", "-1"));
+    assertThat(claim.cores).isEqualTo(0);
+    assertThat(claim.memoryBytes).isEqualTo(0);
+  }
+
+  @Test
+  public void acquireWaitsForRelease() throws InterruptedException {
+    ExecutionResources resources = new ExecutionResources(/* cores=*/ 4, /* memoryBytes=*/ 1024);
+    ExecutionResources.Claim large = resources.claim(platform("3", "512"));
+    ExecutionResources.Claim small = resources.claim(platform("2", null));
+    resources.acquire(large);
+    assertThat(resources.getAvailableCores()).isEqualTo(1);
+    assertThat(resources.getAvailableMemoryBytes()).isEqualTo(512);
+
+    Thread acquirer = new Thread(() -> {
+      try {
+        resources.acquire(small);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    acquirer.start();
+    acquirer.join(100);
+    assertThat(acquirer.isAlive()).isTrue();
+
+    resources.release(large);
+    acquirer.join();
+    assertThat(resources.getAvailableCores()).isEqualTo(2);
+    assertThat(resources.getAvailableMemoryBytes()).isEqualTo(1024);
+  }
+}
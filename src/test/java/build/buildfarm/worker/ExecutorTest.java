@@ -0,0 +1,273 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.Write;
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkRequestInput;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
+import com.google.rpc.Code;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExecutorTest {
+  private static final String TEXT_FILE_BUSY_MESSAGE =
+      "Cannot run program \"tool\": error=26, Text file busy";
+
+  @Test
+  public void startProcessRetriesBusyExecutable() throws Exception {
+    Process process = mock(Process.class);
+    AtomicInteger attempts = new AtomicInteger();
+    Process started = Executor.startProcess(() -> {
+      if (attempts.incrementAndGet() < 3) {
+        throw new IOException(TEXT_FILE_BUSY_MESSAGE);
+      }
+      return process;
+    });
+    assertThat(started).isSameInstanceAs(process);
+    assertThat(attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void startProcessRethrowsAfterAttemptsAreExhausted() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    IOException busy = new IOException(TEXT_FILE_BUSY_MESSAGE);
+    try {
+      Executor.startProcess(() -> {
+        attempts.incrementAndGet();
+        throw busy;
+      });
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertThat(e).isSameInstanceAs(busy);
+    }
+    assertThat(attempts.get()).isEqualTo(Executor.TEXT_FILE_BUSY_ATTEMPTS);
+  }
+
+  @Test
+  public void startProcessDoesNotRetryOtherErrors() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    try {
+      Executor.startProcess(() -> {
+        attempts.incrementAndGet();
+        throw new IOException("Cannot run program \"tool\": error=2, No such file or directory");
+      });
+      fail("expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertThat(attempts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void workRequestInputsIncludeEveryInputFile() {
+    DigestUtil digestUtil = new DigestUtil(HashFunction.SHA256);
+    Digest fooDigest = digestUtil.compute(ByteString.copyFromUtf8("foo"));
+    Digest barDigest = digestUtil.compute(ByteString.copyFromUtf8("bar"));
+    Directory subdirectory = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder().setName("bar").setDigest(barDigest))
+        .build();
+    Digest subdirectoryDigest = digestUtil.compute(subdirectory);
+    Directory root = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder().setName("foo").setDigest(fooDigest))
+        .addDirectories(DirectoryNode.newBuilder().setName("sub").setDigest(subdirectoryDigest))
+        .build();
+    Digest rootDigest = digestUtil.compute(root);
+    Map<Digest, Directory> directoriesIndex = ImmutableMap.of(
+        rootDigest, root,
+        subdirectoryDigest, subdirectory);
+
+    ImmutableList.Builder<WorkRequestInput> inputs = ImmutableList.builder();
+    assertThat(Executor.addWorkRequestInputs("", rootDigest, directoriesIndex, inputs)).isTrue();
+    assertThat(inputs.build()).containsExactly(
+        WorkRequestInput.newBuilder()
+            .setPath("foo")
+            .setDigest(ByteString.copyFromUtf8(fooDigest.getHash()))
+            .build(),
+        WorkRequestInput.newBuilder()
+            .setPath("sub/bar")
+            .setDigest(ByteString.copyFromUtf8(barDigest.getHash()))
+            .build());
+  }
+
+  @Test
+  public void workRequestInputsRequireCompleteTree() {
+    DigestUtil digestUtil = new DigestUtil(HashFunction.SHA256);
+    Directory missing = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder().setName("bar"))
+        .build();
+    Directory root = Directory.newBuilder()
+        .addDirectories(DirectoryNode.newBuilder()
+            .setName("missing")
+            .setDigest(digestUtil.compute(missing)))
+        .build();
+    Digest rootDigest = digestUtil.compute(root);
+
+    assertThat(Executor.addWorkRequestInputs(
+        "",
+        rootDigest,
+        ImmutableMap.of(rootDigest, root),
+        ImmutableList.builder())).isFalse();
+  }
+
+  private static Path createCaptureDirectory() throws IOException {
+    Path root = getOnlyElement(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories());
+    return Files.createDirectory(root.resolve("captures"));
+  }
+
+  private static Path writeCapture(Path captureDirectory, ByteString content) throws IOException {
+    Path capture;
+    try (Stream<Path> captures = Files.list(captureDirectory)) {
+      capture = getOnlyElement(captures.iterator());
+    }
+    Files.write(capture, content.toByteArray());
+    return capture;
+  }
+
+  private static ByteString content(long size) {
+    byte[] bytes = new byte[(int) size];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) ('a' + i % 26);
+    }
+    return ByteString.copyFrom(bytes);
+  }
+
+  @Test
+  public void captureWithinInlineLimitIsReturnedRaw() throws Exception {
+    WorkerContext workerContext = mock(WorkerContext.class);
+    Path captureDirectory = createCaptureDirectory();
+    Executor.StdOutput stdout =
+        new Executor.StdOutput(workerContext, captureDirectory, ".stdout", /* write=*/ null);
+    ByteString content = content(Executor.STD_OUTPUT_INLINE_LIMIT);
+    writeCapture(captureDirectory, content);
+
+    AtomicReference<ByteString> raw = new AtomicReference<>();
+    AtomicReference<Digest> digest = new AtomicReference<>();
+    stdout.complete(raw::set, digest::set);
+    assertThat(raw.get()).isEqualTo(content);
+    assertThat(digest.get()).isNull();
+    verify(workerContext, never()).uploadFile(any(Path.class));
+  }
+
+  @Test
+  public void captureBeyondInlineLimitIsUploaded() throws Exception {
+    WorkerContext workerContext = mock(WorkerContext.class);
+    Path captureDirectory = createCaptureDirectory();
+    Executor.StdOutput stdout =
+        new Executor.StdOutput(workerContext, captureDirectory, ".stdout", /* write=*/ null);
+    ByteString content = content(Executor.STD_OUTPUT_INLINE_LIMIT + 1);
+    Path capture = writeCapture(captureDirectory, content);
+    Digest uploaded = new DigestUtil(HashFunction.SHA256).compute(content);
+    when(workerContext.uploadFile(capture)).thenReturn(uploaded);
+
+    AtomicReference<ByteString> raw = new AtomicReference<>();
+    AtomicReference<Digest> digest = new AtomicReference<>();
+    stdout.complete(raw::set, digest::set);
+    assertThat(digest.get()).isEqualTo(uploaded);
+    assertThat(raw.get()).isNull();
+  }
+
+  @Test
+  public void captureBeyondEntryLimitIsTruncated() throws Exception {
+    WorkerContext workerContext = mock(WorkerContext.class);
+    Path captureDirectory = createCaptureDirectory();
+    Executor.StdOutput stdout =
+        new Executor.StdOutput(workerContext, captureDirectory, ".stderr", /* write=*/ null);
+    ByteString content = content(Executor.STD_OUTPUT_INLINE_LIMIT * 2);
+    Path capture = writeCapture(captureDirectory, content);
+    when(workerContext.uploadFile(capture)).thenReturn(null);
+
+    AtomicReference<ByteString> raw = new AtomicReference<>();
+    AtomicReference<Digest> digest = new AtomicReference<>();
+    stdout.complete(raw::set, digest::set);
+    assertThat(raw.get())
+        .isEqualTo(content.substring(0, (int) Executor.STD_OUTPUT_INLINE_LIMIT));
+    assertThat(digest.get()).isNull();
+  }
+
+  @Test
+  public void discardRemovesCapture() throws Exception {
+    Path captureDirectory = createCaptureDirectory();
+    Executor.StdOutput stdout = new Executor.StdOutput(
+        mock(WorkerContext.class), captureDirectory, ".stdout", /* write=*/ null);
+    Path capture = writeCapture(captureDirectory, ByteString.copyFromUtf8("output"));
+    stdout.discard();
+    assertThat(Files.exists(capture)).isFalse();
+  }
+
+  @Test
+  public void streamedOutputHasNoCapture() throws Exception {
+    Path captureDirectory = createCaptureDirectory();
+    new Executor.StdOutput(
+        mock(WorkerContext.class), captureDirectory, ".stdout", mock(Write.class));
+    try (Stream<Path> captures = Files.list(captureDirectory)) {
+      assertThat(captures.count()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void timedOutWorkRequestHasIncompleteExitCode() throws Exception {
+    PersistentWorkerPool pool = mock(PersistentWorkerPool.class);
+    PersistentWorker worker = mock(PersistentWorker.class);
+    PersistentWorker.Key key =
+        new PersistentWorker.Key(ImmutableList.of("tool"), ImmutableMap.of());
+    Path execDir = Jimfs.newFileSystem(Configuration.unix()).getPath("/exec");
+    WorkRequest request = WorkRequest.getDefaultInstance();
+    when(pool.borrow(eq(key), any(Path.class))).thenReturn(worker);
+    when(worker.execute(eq(execDir), eq(request), eq(1000L), any()))
+        .thenThrow(new TimeoutException());
+    ActionResult.Builder resultBuilder = ActionResult.newBuilder().setExitCode(0);
+
+    Code statusCode = Executor.executeWorkRequest(
+        "timed-out", pool, key, execDir, request, /* timeoutNanos=*/ 1000L, resultBuilder);
+
+    assertThat(statusCode).isEqualTo(Code.DEADLINE_EXCEEDED);
+    assertThat(resultBuilder.getExitCode()).isEqualTo(Executor.INCOMPLETE_EXIT_CODE);
+    verify(pool, times(1)).invalidate(worker);
+    verify(pool, never()).release(any(PersistentWorker.class));
+  }
+}
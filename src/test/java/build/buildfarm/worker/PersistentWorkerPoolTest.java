@@ -0,0 +1,99 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentWorkerPoolTest {
+  private final Path root =
+      getOnlyElement(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories());
+  private final PersistentWorkerPool pool = new PersistentWorkerPool(/* maxIdlePerKey=*/ 1);
+
+  private static PersistentWorker.Key key(String tool) {
+    return new PersistentWorker.Key(ImmutableList.of(tool), ImmutableMap.of());
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void releasedWorkerIsReusedForKey() {
+    PersistentWorker worker = pool.borrow(key("javac"), root);
+    pool.release(worker);
+    assertThat(pool.borrow(key("javac"), root)).isSameInstanceAs(worker);
+  }
+
+  @Test
+  public void workerIsNotSharedAcrossKeys() {
+    PersistentWorker worker = pool.borrow(key("javac"), root);
+    pool.release(worker);
+    assertThat(pool.borrow(key("scalac"), root)).isNotSameInstanceAs(worker);
+  }
+
+  @Test
+  public void idleWorkersAreBoundedPerKey() {
+    PersistentWorker first = pool.borrow(key("javac"), root);
+    PersistentWorker second = pool.borrow(key("javac"), root);
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.borrow(key("javac"), root)).isSameInstanceAs(first);
+    assertThat(pool.borrow(key("javac"), root)).isNotSameInstanceAs(second);
+  }
+
+  @Test
+  public void workersReleasedAfterCloseAreNotRetained() {
+    PersistentWorker worker = pool.borrow(key("javac"), root);
+    pool.close();
+    pool.release(worker);
+    assertThat(pool.borrow(key("javac"), root)).isNotSameInstanceAs(worker);
+  }
+
+  @Test
+  public void narrowedBoundDestroysExcessIdleWorkers() {
+    pool.setMaxIdlePerKey(2);
+    PersistentWorker first = pool.borrow(key("javac"), root);
+    PersistentWorker second = pool.borrow(key("javac"), root);
+    pool.release(first);
+    pool.release(second);
+    pool.setMaxIdlePerKey(1);
+    assertThat(pool.borrow(key("javac"), root)).isSameInstanceAs(second);
+    assertThat(pool.borrow(key("javac"), root)).isNotSameInstanceAs(first);
+  }
+
+  @Test
+  public void widenedBoundRetainsMoreIdleWorkers() {
+    pool.setMaxIdlePerKey(2);
+    PersistentWorker first = pool.borrow(key("javac"), root);
+    PersistentWorker second = pool.borrow(key("javac"), root);
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.borrow(key("javac"), root)).isSameInstanceAs(second);
+    assertThat(pool.borrow(key("javac"), root)).isSameInstanceAs(first);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PipelineMetricsTest {
+  private static String format(PipelineMetrics metrics) throws IOException {
+    StringWriter writer = new StringWriter();
+    metrics.writeTo(writer);
+    return writer.toString();
+  }
+
+  @Test
+  public void stageIsSharedByName() {
+    PipelineMetrics metrics = new PipelineMetrics();
+    assertThat(metrics.stage("InputFetchStage")).isSameInstanceAs(metrics.stage("InputFetchStage"));
+    assertThat(metrics.stage("InputFetchStage")).isNotSameInstanceAs(metrics.stage("ExecuteActionStage"));
+  }
+
+  @Test
+  public void recordCountsResults() {
+    PipelineMetrics metrics = new PipelineMetrics();
+    PipelineMetrics.Stage stage = metrics.stage("ExecuteActionStage");
+    stage.record(/* usecs=*/ 100, /* stallUSecs=*/ 0, /* success=*/ true);
+    stage.record(/* usecs=*/ 100, /* stallUSecs=*/ 0, /* success=*/ true);
+    stage.record(/* usecs=*/ 100, /* stallUSecs=*/ 0, /* success=*/ false);
+    assertThat(stage.getCount(/* success=*/ true)).isEqualTo(2);
+    assertThat(stage.getCount(/* success=*/ false)).isEqualTo(1);
+  }
+
+  @Test
+  public void histogramBucketsAreCumulative() throws IOException {
+    PipelineMetrics metrics = new PipelineMetrics();
+    PipelineMetrics.Stage stage = metrics.stage("MatchStage");
+    stage.record(/* usecs=*/ 50, /* stallUSecs=*/ 0, /* success=*/ true);
+    stage.record(/* usecs=*/ 2000, /* stallUSecs=*/ 0, /* success=*/ true);
+    stage.record(/* usecs=*/ 3600000000L, /* stallUSecs=*/ 0, /* success=*/ true);
+    String text = format(metrics);
+    assertThat(text).contains("pipeline_stage_tick_seconds_bucket{stage=\"MatchStage\",le=\"1.0E-4\"} 1\n");
+    assertThat(text).contains("pipeline_stage_tick_seconds_bucket{stage=\"MatchStage\",le=\"0.0025\"} 2\n");
+    assertThat(text).contains("pipeline_stage_tick_seconds_bucket{stage=\"MatchStage\",le=\"600.0\"} 2\n");
+    assertThat(text).contains("pipeline_stage_tick_seconds_bucket{stage=\"MatchStage\",le=\"+Inf\"} 3\n");
+    assertThat(text).contains("pipeline_stage_tick_seconds_count{stage=\"MatchStage\"} 3\n");
+    assertThat(text).contains("pipeline_stage_stall_seconds_count{stage=\"MatchStage\"} 3\n");
+  }
+
+  @Test
+  public void slotsAreReported() throws IOException {
+    PipelineMetrics metrics = new PipelineMetrics();
+    metrics.stage("InputFetchStage").setSlots(() -> 3, () -> 8);
+    String text = format(metrics);
+    assertThat(text).contains("pipeline_stage_slots_used{stage=\"InputFetchStage\"} 3\n");
+    assertThat(text).contains("pipeline_stage_slots{stage=\"InputFetchStage\"} 8\n");
+  }
+
+  @Test
+  public void gaugesAreReported() throws IOException {
+    PipelineMetrics metrics = new PipelineMetrics();
+    metrics.setGauge("exec_dir_reaper_backlog", "Directories awaiting removal.", () -> 5);
+    String text = format(metrics);
+    assertThat(text).contains("# TYPE exec_dir_reaper_backlog gauge\n");
+    assertThat(text).contains("exec_dir_reaper_backlog 5\n");
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StageWidthControllerTest {
+  private static class FakeStage extends SuperscalarPipelineStage {
+    FakeStage(String name, int width) {
+      super(name, /* workerContext=*/ null, /* output=*/ null, /* error=*/ null, width);
+    }
+
+    void fill() throws InterruptedException {
+      while (getSlotsUsed() < getWidth()) {
+        claim();
+      }
+    }
+
+    @Override
+    protected void interruptAll() {}
+
+    @Override
+    Logger getLogger() {
+      return Logger.getLogger(StageWidthControllerTest.class.getName());
+    }
+
+    @Override
+    OperationContext take() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    void put(OperationContext operationContext) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static StageWidthController newController(
+      FakeStage inputFetchStage, FakeStage executeActionStage, double cpuLoad) {
+    return new StageWidthController(
+        inputFetchStage,
+        executeActionStage,
+        /* minInputFetchWidth=*/ 1,
+        /* maxInputFetchWidth=*/ 8,
+        /* minExecuteWidth=*/ 1,
+        /* maxExecuteWidth=*/ 8,
+        /* targetCpuLoad=*/ 1.0,
+        () -> cpuLoad,
+        /* samplesPerAdjustment=*/ 1);
+  }
+
+  @Test
+  public void saturatedInputFetchWithoutStallsWidensInputFetch() throws InterruptedException {
+    FakeStage inputFetchStage = new FakeStage("FetchBoundInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("FetchBoundExecuteActionStage", 2);
+    inputFetchStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 0, /* success=*/ true);
+
+    newController(inputFetchStage, executeActionStage, /* cpuLoad=*/ 0.5).run();
+
+    assertThat(inputFetchStage.getWidth()).isEqualTo(3);
+    assertThat(executeActionStage.getWidth()).isEqualTo(2);
+  }
+
+  @Test
+  public void widenedInputFetchWithSlowerFetchesIsUndone() throws InterruptedException {
+    FakeStage inputFetchStage = new FakeStage("SourceBoundInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("SourceBoundExecuteActionStage", 2);
+    StageWidthController controller =
+        newController(inputFetchStage, executeActionStage, /* cpuLoad=*/ 0.5);
+    inputFetchStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 0, /* success=*/ true);
+    controller.run();
+    assertThat(inputFetchStage.getWidth()).isEqualTo(3);
+
+    // three fetches at twice the latency complete fewer fetches than two
+    inputFetchStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 2000, /* stallUSecs=*/ 0, /* success=*/ true);
+    controller.run();
+    assertThat(inputFetchStage.getWidth()).isEqualTo(2);
+
+    // and the width is not retried while the worker remains fetch bound
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 0, /* success=*/ true);
+    controller.run();
+    assertThat(inputFetchStage.getWidth()).isEqualTo(2);
+  }
+
+  @Test
+  public void widenedInputFetchWithHigherThroughputContinues() throws InterruptedException {
+    FakeStage inputFetchStage = new FakeStage("ScalingInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("ScalingExecuteActionStage", 2);
+    StageWidthController controller =
+        newController(inputFetchStage, executeActionStage, /* cpuLoad=*/ 0.5);
+    inputFetchStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 0, /* success=*/ true);
+    controller.run();
+
+    inputFetchStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1200, /* stallUSecs=*/ 0, /* success=*/ true);
+    controller.run();
+    assertThat(inputFetchStage.getWidth()).isEqualTo(4);
+  }
+
+  @Test
+  public void stalledInputFetchWidensSaturatedExecute() throws InterruptedException {
+    FakeStage inputFetchStage = new FakeStage("ExecuteBoundInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("ExecuteBoundExecuteActionStage", 2);
+    executeActionStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 500, /* success=*/ true);
+
+    newController(inputFetchStage, executeActionStage, /* cpuLoad=*/ 0.5).run();
+
+    assertThat(executeActionStage.getWidth()).isEqualTo(3);
+    assertThat(inputFetchStage.getWidth()).isEqualTo(2);
+  }
+
+  @Test
+  public void overloadNarrowsExecuteAndStalledInputFetch() throws InterruptedException {
+    FakeStage inputFetchStage = new FakeStage("OverloadedInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("OverloadedExecuteActionStage", 2);
+    executeActionStage.fill();
+    inputFetchStage.metrics.record(/* usecs=*/ 1000, /* stallUSecs=*/ 500, /* success=*/ true);
+
+    newController(inputFetchStage, executeActionStage, /* cpuLoad=*/ 2.0).run();
+
+    assertThat(executeActionStage.getWidth()).isEqualTo(1);
+    assertThat(inputFetchStage.getWidth()).isEqualTo(1);
+  }
+
+  @Test
+  public void narrowedStageRetainsExcessClaims() throws InterruptedException {
+    FakeStage stage = new FakeStage("NarrowedStage", 2);
+    stage.fill();
+    stage.setWidth(1);
+    assertThat(stage.getSlotsUsed()).isEqualTo(2);
+    stage.releaseClaim("operation");
+    assertThat(stage.getSlotsUsed()).isEqualTo(1);
+    assertThat(stage.isClaimed()).isTrue();
+  }
+
+  @Test
+  public void adjustmentErrorsDoNotEscapeRun() {
+    FakeStage inputFetchStage = new FakeStage("FailingInputFetchStage", 2);
+    FakeStage executeActionStage = new FakeStage("FailingExecuteActionStage", 2);
+    StageWidthController controller = new StageWidthController(
+        inputFetchStage,
+        executeActionStage,
+        /* minInputFetchWidth=*/ 1,
+        /* maxInputFetchWidth=*/ 8,
+        /* minExecuteWidth=*/ 1,
+        /* maxExecuteWidth=*/ 8,
+        /* targetCpuLoad=*/ 1.0,
+        () -> {
+          throw new IllegalStateException("load unavailable");
+        },
+        /* samplesPerAdjustment=*/ 1);
+
+    // a scheduled controller would be cancelled by an escaping error
+    controller.run();
+    controller.run();
+
+    assertThat(inputFetchStage.getWidth()).isEqualTo(2);
+    assertThat(executeActionStage.getWidth()).isEqualTo(2);
+  }
+}
@@ -37,6 +37,7 @@ import com.google.longrunning.Operation;
 import com.google.protobuf.Duration;
 import io.grpc.Deadline;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.function.Predicate;
 
 class StubWorkerContext implements WorkerContext {
@@ -56,14 +57,17 @@ class StubWorkerContext implements WorkerContext {
   @Override public boolean hasMaximumActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public boolean getStreamStdout() { throw new UnsupportedOperationException(); }
   @Override public boolean getStreamStderr() { throw new UnsupportedOperationException(); }
+  @Override public boolean getPersistentWorkers() { throw new UnsupportedOperationException(); }
   @Override public Duration getDefaultActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public Duration getMaximumActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public QueuedOperation getQueuedOperation(QueueEntry queueEntry) { throw new UnsupportedOperationException(); }
+  @Override public Map<Digest, Directory> getDirectoriesIndex(Tree tree, Action action) { throw new UnsupportedOperationException(); }
   @Override public Path createExecDir(String operationName, Tree tree, Action action, Command command) { throw new UnsupportedOperationException(); }
   @Override public void destroyExecDir(Path execDir) { throw new UnsupportedOperationException(); }
   @Override public void uploadOutputs(Digest actionDigest, ActionResult.Builder resultBuilder, Path actionRoot, Iterable<String> outputFiles, Iterable<String> outputDirs) { throw new UnsupportedOperationException(); }
   @Override public boolean putOperation(Operation operation, Action action) { throw new UnsupportedOperationException(); }
   @Override public Write getOperationStreamWrite(String name) { throw new UnsupportedOperationException(); }
+  @Override public Digest uploadFile(Path file) { throw new UnsupportedOperationException(); }
   @Override public void blacklistAction(String actionId) { throw new UnsupportedOperationException(); }
   @Override public void putActionResult(ActionKey actionKey, ActionResult actionResult) { throw new UnsupportedOperationException(); }
 };
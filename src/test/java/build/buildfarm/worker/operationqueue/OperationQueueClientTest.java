@@ -51,7 +51,8 @@ public class OperationQueueClientTest {
     OperationQueueClient client = new OperationQueueClient(
         instance,
         Platform.getDefaultInstance(),
-        ImmutableList.of(ExecutionPolicy.newBuilder().setName("foo").build()));
+        ImmutableList.of(ExecutionPolicy.newBuilder().setName("foo").build()),
+        /* persistentWorkers=*/ false);
     MatchListener listener = new MatchListener() {
       @Override
       public void onWaitStart() {
@@ -0,0 +1,115 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.InputStreamFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DirectoryCacheTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestUtil.HashFunction.SHA256);
+
+  private final Map<Digest, ByteString> blobs = Maps.newHashMap();
+  private final AtomicInteger reads = new AtomicInteger();
+
+  private final InputStreamFactory inputStreamFactory = new InputStreamFactory() {
+    @Override
+    public InputStream newInput(Digest digest, long offset) throws IOException {
+      reads.incrementAndGet();
+      ByteString content = blobs.get(digest);
+      if (content == null) {
+        throw new NoSuchFileException(DigestUtil.toString(digest));
+      }
+      return content.substring((int) offset).newInput();
+    }
+  };
+
+  private Digest putDirectory(Directory directory) {
+    ByteString content = directory.toByteString();
+    Digest digest = DIGEST_UTIL.compute(content);
+    blobs.put(digest, content);
+    return digest;
+  }
+
+  @Test
+  public void directoriesIndexContainsAllReachableDirectories() throws IOException, InterruptedException {
+    Directory leaf = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("file")
+            .setDigest(DIGEST_UTIL.compute(ByteString.copyFromUtf8("content"))))
+        .build();
+    Digest leafDigest = putDirectory(leaf);
+    Directory root = Directory.newBuilder()
+        .addDirectories(DirectoryNode.newBuilder()
+            .setName("leaf")
+            .setDigest(leafDigest))
+        .build();
+    Digest rootDigest = putDirectory(root);
+
+    DirectoryCache directoryCache = new DirectoryCache(
+        inputStreamFactory,
+        /* maxSizeBytes=*/ 0,
+        newDirectExecutorService());
+    Map<Digest, Directory> directoriesIndex = directoryCache.getDirectoriesIndex(rootDigest);
+    assertThat(directoriesIndex).containsExactly(rootDigest, root, leafDigest, leaf);
+  }
+
+  @Test
+  public void prefetchedDirectoriesAreNotRefetched() throws IOException, InterruptedException {
+    Directory root = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("file")
+            .setDigest(DIGEST_UTIL.compute(ByteString.copyFromUtf8("content"))))
+        .build();
+    Digest rootDigest = putDirectory(root);
+
+    DirectoryCache directoryCache = new DirectoryCache(
+        inputStreamFactory,
+        /* maxSizeBytes=*/ 0,
+        newDirectExecutorService());
+    directoryCache.prefetch(ImmutableList.of(rootDigest));
+    assertThat(reads.get()).isEqualTo(1);
+    directoryCache.getDirectoriesIndex(rootDigest);
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test(expected = IOException.class)
+  public void missingDirectoryThrowsIOException() throws IOException, InterruptedException {
+    Digest missingDigest = DIGEST_UTIL.compute(ByteString.copyFromUtf8("missing"));
+    DirectoryCache directoryCache = new DirectoryCache(
+        inputStreamFactory,
+        /* maxSizeBytes=*/ 0,
+        newDirectExecutorService());
+    directoryCache.getDirectoriesIndex(missingDigest);
+  }
+}
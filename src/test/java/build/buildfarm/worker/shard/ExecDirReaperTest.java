@@ -0,0 +1,98 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExecDirReaperTest {
+  private final List<Runnable> tasks = new ArrayList<>();
+  private Path root;
+  private Path trash;
+
+  @Before
+  public void setUp() throws IOException {
+    root = getOnlyElement(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories());
+    trash = root.resolve(".trash");
+    Files.createDirectories(trash);
+  }
+
+  private Path createExecDir(String name) throws IOException {
+    Path execDir = root.resolve(name);
+    Files.createDirectories(execDir.resolve("subdir"));
+    Files.write(execDir.resolve("subdir").resolve("file"), new byte[] { 1 });
+    return execDir;
+  }
+
+  private void runTasks() {
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+  }
+
+  private List<Path> trashContents() throws IOException {
+    return Files.list(trash).collect(Collectors.toList());
+  }
+
+  @Test
+  public void reapMovesDirectoryToTrashBeforeRemoval() throws IOException {
+    ExecDirReaper reaper = new ExecDirReaper(trash, tasks::add, /* concurrency=*/ 1);
+    Path execDir = createExecDir("operation");
+
+    reaper.reap(execDir);
+
+    assertThat(Files.exists(execDir)).isFalse();
+    assertThat(trashContents()).hasSize(1);
+    assertThat(reaper.getBacklog()).isEqualTo(1);
+
+    runTasks();
+
+    assertThat(trashContents()).isEmpty();
+    assertThat(reaper.getBacklog()).isEqualTo(0);
+    assertThat(reaper.getReaped()).isEqualTo(1);
+  }
+
+  @Test
+  public void removalsAreBoundedByConcurrency() throws IOException {
+    ExecDirReaper reaper = new ExecDirReaper(trash, tasks::add, /* concurrency=*/ 2);
+
+    reaper.reap(createExecDir("foo"));
+    reaper.reap(createExecDir("bar"));
+    reaper.reap(createExecDir("baz"));
+
+    assertThat(tasks).hasSize(2);
+    assertThat(reaper.getBacklog()).isEqualTo(3);
+
+    runTasks();
+
+    assertThat(trashContents()).isEmpty();
+    assertThat(reaper.getBacklog()).isEqualTo(0);
+    assertThat(reaper.getReaped()).isEqualTo(3);
+  }
+}
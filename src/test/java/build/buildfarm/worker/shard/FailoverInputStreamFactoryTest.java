@@ -15,14 +15,20 @@
 package build.buildfarm.worker.shard;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.InputStreamFactory;
+import build.buildfarm.common.ReadPolicy;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.NoSuchFileException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -78,4 +84,54 @@ public class FailoverInputStreamFactoryTest {
     InputStream in = failoverFactory.newInput(contentDigest, /* offset=*/ 0);
     assertThat(ByteString.readFrom(in)).isEqualTo(content);
   }
+
+  @Test
+  public void slowPrimaryIsHedgedWithDelegate() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest contentDigest = DIGEST_UTIL.compute(content);
+    CountDownLatch primaryLatch = new CountDownLatch(1);
+    ReadPolicy immediateHedgePolicy = new ReadPolicy() {
+      @Override
+      public List<String> order(Collection<String> sources) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public long getHedgeDelayNanos() {
+        return 0;
+      }
+
+      @Override
+      public void onSuccess(String source, long firstResponseNanos) {
+      }
+
+      @Override
+      public void onFailure(String source) {
+      }
+    };
+    ExecutorService hedgeService = newCachedThreadPool();
+    FailoverInputStreamFactory failoverFactory = new FailoverInputStreamFactory(
+        /* primary=*/ new InputStreamFactory() {
+          @Override
+          public InputStream newInput(Digest digest, long offset) throws IOException, InterruptedException {
+            primaryLatch.await();
+            throw new NoSuchFileException(DigestUtil.toString(digest));
+          }
+        },
+        /* failover=*/ new InputStreamFactory() {
+          @Override
+          public InputStream newInput(Digest digest, long offset) throws IOException {
+            if (digest.equals(contentDigest)) {
+              return content.newInput();
+            }
+            throw new IOException("invalid");
+          }
+        },
+        immediateHedgePolicy,
+        hedgeService);
+    InputStream in = failoverFactory.newInput(contentDigest, /* offset=*/ 0);
+    assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    primaryLatch.countDown();
+    hedgeService.shutdown();
+  }
 }
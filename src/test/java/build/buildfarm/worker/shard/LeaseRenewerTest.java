@@ -0,0 +1,170 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LeaseRenewerTest {
+  // long enough that the scheduled renewal never runs during a test
+  private static final long PERIOD_MILLIS = 60 * 60 * 1000;
+
+  private final List<List<QueueEntry>> polls = new ArrayList<>();
+  private Set<String> invalidOperationNames = ImmutableSet.of();
+  private boolean unavailable = false;
+  private long now = 0;
+
+  private final LeaseRenewer renewer = new LeaseRenewer(
+      (queueEntries, requeueAt) -> {
+        polls.add(ImmutableList.copyOf(queueEntries));
+        if (unavailable) {
+          throw new IOException("backplane unavailable");
+        }
+        return invalidOperationNames;
+      },
+      PERIOD_MILLIS,
+      /* requeueDelayMillis=*/ 30 * 1000,
+      () -> now);
+
+  private static QueueEntry queueEntry(String operationName) {
+    return QueueEntry.newBuilder()
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName(operationName))
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    renewer.stop();
+  }
+
+  @Test
+  public void leasesAreRenewedInOneRequest() {
+    QueueEntry foo = queueEntry("foo");
+    QueueEntry bar = queueEntry("bar");
+    assertThat(renewer.poll(foo)).isTrue();
+    assertThat(renewer.poll(bar)).isTrue();
+
+    renewer.renewLeases();
+
+    assertThat(polls).hasSize(1);
+    assertThat(polls.get(0)).containsExactly(foo, bar);
+  }
+
+  @Test
+  public void failedRenewalIsReportedToItsOperationOnly() {
+    QueueEntry foo = queueEntry("foo");
+    QueueEntry bar = queueEntry("bar");
+    renewer.poll(foo);
+    renewer.poll(bar);
+    invalidOperationNames = ImmutableSet.of("foo");
+
+    renewer.renewLeases();
+
+    assertThat(renewer.poll(foo)).isFalse();
+    assertThat(renewer.poll(bar)).isTrue();
+  }
+
+  @Test
+  public void backplaneErrorFailsAllRenewals() {
+    QueueEntry foo = queueEntry("foo");
+    QueueEntry bar = queueEntry("bar");
+    renewer.poll(foo);
+    renewer.poll(bar);
+    unavailable = true;
+
+    renewer.renewLeases();
+
+    assertThat(renewer.poll(foo)).isFalse();
+    assertThat(renewer.poll(bar)).isFalse();
+  }
+
+  @Test
+  public void unrequestedLeasesLapse() {
+    renewer.poll(queueEntry("foo"));
+    now += PERIOD_MILLIS * 4;
+
+    renewer.renewLeases();
+
+    assertThat(polls).isEmpty();
+    assertThat(renewer.getLeaseCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void releasedLeasesAreNotRenewed() {
+    QueueEntry foo = queueEntry("foo");
+    QueueEntry bar = queueEntry("bar");
+    renewer.poll(foo);
+    renewer.poll(bar);
+
+    renewer.release("foo");
+    renewer.renewLeases();
+
+    assertThat(polls).hasSize(1);
+    assertThat(polls.get(0)).containsExactly(bar);
+    assertThat(renewer.getLeaseCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void heldLeasesAreRenewedPastTheRequeueDeadline() {
+    QueueEntry foo = queueEntry("foo");
+    renewer.hold(foo);
+    // retained beyond both the lapse and the backplane's requeue deadline
+    now += 60 * 1000;
+
+    renewer.renewLeases();
+
+    assertThat(polls).hasSize(1);
+    assertThat(polls.get(0)).containsExactly(foo);
+    assertThat(renewer.release("foo")).isTrue();
+  }
+
+  @Test
+  public void polledHeldLeasesLapse() {
+    QueueEntry foo = queueEntry("foo");
+    renewer.hold(foo);
+    assertThat(renewer.poll(foo)).isTrue();
+    now += PERIOD_MILLIS * 4;
+
+    renewer.renewLeases();
+
+    assertThat(polls).isEmpty();
+    assertThat(renewer.getLeaseCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void releaseOfFailedLeaseIsNotOwned() {
+    renewer.hold(queueEntry("foo"));
+    invalidOperationNames = ImmutableSet.of("foo");
+
+    renewer.renewLeases();
+
+    assertThat(renewer.release("foo")).isFalse();
+    assertThat(renewer.getLeaseCount()).isEqualTo(0);
+  }
+}
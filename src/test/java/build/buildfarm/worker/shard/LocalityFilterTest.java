@@ -0,0 +1,138 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.cas.ContentAddressableStorage.Blob;
+import build.buildfarm.cas.MemoryCAS;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalityFilterTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+  private static final long MAX_WAIT_MILLIS = 10 * 1000;
+
+  private final MemoryCAS storage = new MemoryCAS(1024 * 1024);
+  private Map<Digest, Set<String>> holders = ImmutableMap.of();
+  private boolean holdersUnavailable = false;
+  private long now = 1000 * 1000;
+  private LocalityFilter filter;
+  private Digest local;
+  private Digest remote;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    filter = new LocalityFilter(
+        "self",
+        storage::containsLocal,
+        (digests) -> {
+          if (holdersUnavailable) {
+            throw new IOException("backplane unavailable");
+          }
+          return holders;
+        },
+        /* minLocalFraction=*/ 0.5,
+        MAX_WAIT_MILLIS,
+        () -> now);
+    Blob localBlob = new Blob(ByteString.copyFromUtf8("local input"), DIGEST_UTIL);
+    storage.put(localBlob);
+    local = localBlob.getDigest();
+    remote = DIGEST_UTIL.compute(ByteString.copyFromUtf8("a much larger remote input"));
+  }
+
+  private QueueEntry queueEntry(String operationName, long queuedAtMillis, Digest... inputSummary) {
+    QueueEntry.Builder queueEntry = QueueEntry.newBuilder()
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName(operationName)
+            .setQueuedTimestamp(Timestamp.newBuilder()
+                .setSeconds(queuedAtMillis / 1000)));
+    for (Digest digest : inputSummary) {
+      queueEntry.addInputSummary(digest);
+    }
+    return queueEntry.build();
+  }
+
+  @Test
+  public void localFractionIsWeightedBySize() {
+    double expected = local.getSizeBytes() / (double) (local.getSizeBytes() + remote.getSizeBytes());
+    assertThat(filter.localFraction(ImmutableList.of(local, remote))).isWithin(1e-9).of(expected);
+  }
+
+  @Test
+  public void mostlyLocalOperationIsAccepted() throws InterruptedException {
+    assertThat(filter.accept(queueEntry("local", now, local))).isTrue();
+  }
+
+  @Test
+  public void unsummarizedOperationIsAccepted() throws InterruptedException {
+    assertThat(filter.accept(queueEntry("unsummarized", now))).isTrue();
+  }
+
+  @Test
+  public void remoteOperationIsDeclinedOnce() throws InterruptedException {
+    holders = ImmutableMap.of(remote, ImmutableSet.of("other"));
+    QueueEntry queueEntry = queueEntry("remote", now, local, remote);
+    assertThat(filter.accept(queueEntry)).isFalse();
+    assertThat(filter.accept(queueEntry)).isTrue();
+  }
+
+  @Test
+  public void unheldOperationIsAccepted() throws InterruptedException {
+    assertThat(filter.accept(queueEntry("cold", now, local, remote))).isTrue();
+  }
+
+  @Test
+  public void operationHeldOnlyBySelfIsAccepted() throws InterruptedException {
+    holders = ImmutableMap.of(remote, ImmutableSet.of("self"));
+    assertThat(filter.accept(queueEntry("self", now, local, remote))).isTrue();
+  }
+
+  @Test
+  public void operationIsAcceptedWhenHoldersAreUnavailable() throws InterruptedException {
+    holdersUnavailable = true;
+    assertThat(filter.accept(queueEntry("unavailable", now, local, remote))).isTrue();
+  }
+
+  @Test
+  public void localQueriesDoNotConsultDelegate() throws InterruptedException {
+    MemoryCAS delegate = new MemoryCAS(1024 * 1024);
+    Blob delegatedBlob = new Blob(ByteString.copyFromUtf8("delegated input"), DIGEST_UTIL);
+    delegate.put(delegatedBlob);
+    MemoryCAS cache = new MemoryCAS(1024 * 1024, (digest) -> {}, delegate);
+    assertThat(cache.containsLocal(delegatedBlob.getDigest())).isFalse();
+  }
+
+  @Test
+  public void longQueuedOperationIsAccepted() throws InterruptedException {
+    assertThat(filter.accept(queueEntry("remote", now - MAX_WAIT_MILLIS, remote))).isTrue();
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import build.buildfarm.v1test.QueuedOperation;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MatchLookaheadTest {
+  private final BlockingQueue<QueueEntry> dispatchable = new LinkedBlockingQueue<>();
+  private final List<String> requeued = new CopyOnWriteArrayList<>();
+  private final AtomicLong clock = new AtomicLong(0);
+
+  private static QueueEntry queueEntry(String operationName) {
+    return QueueEntry.newBuilder()
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName(operationName))
+        .build();
+  }
+
+  private MatchLookahead newMatchLookahead(int size) {
+    return new MatchLookahead(
+        size,
+        dispatchable::take,
+        (queueEntry) -> QueuedOperation.getDefaultInstance(),
+        requeued::add,
+        /* dispatchValidityMillis=*/ 1000,
+        clock::get);
+  }
+
+  @Test
+  public void dispatchedEntryIsRetainedWithQueuedOperation() throws InterruptedException {
+    MatchLookahead matchLookahead = newMatchLookahead(1);
+    matchLookahead.start();
+    dispatchable.put(queueEntry("foo"));
+    QueueEntry queueEntry = matchLookahead.poll(10, SECONDS);
+    assertThat(queueEntry).isEqualTo(queueEntry("foo"));
+    assertThat(matchLookahead.takeQueuedOperation("foo")).isEqualTo(QueuedOperation.getDefaultInstance());
+    assertThat(matchLookahead.takeQueuedOperation("foo")).isNull();
+    matchLookahead.stop();
+    assertThat(requeued).isEmpty();
+  }
+
+  @Test
+  public void expiredEntryIsRequeued() throws InterruptedException {
+    MatchLookahead matchLookahead = newMatchLookahead(1);
+    matchLookahead.start();
+    dispatchable.put(queueEntry("foo"));
+    while (!dispatchable.isEmpty()) {
+      Thread.sleep(1);
+    }
+    clock.set(2000);
+    // the entry may not yet be retained after its dispatch, wait for it
+    QueueEntry queueEntry = null;
+    while (requeued.isEmpty()) {
+      queueEntry = matchLookahead.poll(10, SECONDS);
+    }
+    assertThat(queueEntry).isNull();
+    assertThat(requeued).containsExactly("foo");
+    assertThat(matchLookahead.takeQueuedOperation("foo")).isNull();
+    matchLookahead.stop();
+  }
+
+  @Test
+  public void stopRequeuesRetainedEntries() throws InterruptedException {
+    MatchLookahead matchLookahead = newMatchLookahead(2);
+    matchLookahead.start();
+    dispatchable.put(queueEntry("foo"));
+    dispatchable.put(queueEntry("bar"));
+    while (!dispatchable.isEmpty()) {
+      Thread.sleep(1);
+    }
+    matchLookahead.stop();
+    assertThat(requeued).containsExactly("foo", "bar");
+  }
+
+  @Test
+  public void requeuedEntryReleasesQueuedOperation() throws InterruptedException {
+    MatchLookahead matchLookahead = newMatchLookahead(1);
+    matchLookahead.start();
+    dispatchable.put(queueEntry("foo"));
+    QueueEntry queueEntry = matchLookahead.poll(10, SECONDS);
+    assertThat(queueEntry).isEqualTo(queueEntry("foo"));
+    matchLookahead.requeue("foo");
+    assertThat(requeued).containsExactly("foo");
+    assertThat(matchLookahead.takeQueuedOperation("foo")).isNull();
+    matchLookahead.stop();
+  }
+}
@@ -14,7 +14,11 @@
 
 package build.buildfarm.worker.shard;
 
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -22,25 +26,38 @@ import static org.mockito.Mockito.when;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.Platform;
 import build.bazel.remote.execution.v2.Platform.Property;
+import build.bazel.remote.execution.v2.Tree;
+import build.buildfarm.cas.ContentAddressableStorage;
+import build.buildfarm.cas.MemoryCAS;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
 import build.buildfarm.common.InputStreamFactory;
 import build.buildfarm.common.ShardBackplane;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Instance.MatchListener;
+import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.ExecutionPolicy;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.worker.WorkerContext;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
+import io.grpc.Status;
 import io.grpc.StatusException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -82,17 +99,34 @@ public class ShardWorkerContextTest {
   }
 
   WorkerContext createTestContext(Platform platform, Iterable<ExecutionPolicy> policies) {
+    return createTestContext(
+        platform,
+        policies,
+        /* operationPoller=*/ (queueEntries, requeueAt) -> ImmutableSet.of(),
+        /* matchLookahead=*/ 0);
+  }
+
+  ShardWorkerContext createTestContext(
+      Platform platform,
+      Iterable<ExecutionPolicy> policies,
+      OperationPoller operationPoller,
+      int matchLookahead) {
     return new ShardWorkerContext(
         "test",
         platform,
         /* operationPollPeriod=*/ Duration.getDefaultInstance(),
-        /* operationPoller=*/ (queueEntry, stage, requeueAt) -> { return false; },
+        operationPoller,
         /* inlineContentLimit=*/ 0,
         /* inputFetchStageWidth=*/ 0,
         /* executeStageWidth=*/ 0,
+        matchLookahead,
+        /* localityFilter=*/ null,
+        /* persistentWorkers=*/ false,
         backplane,
         execFileSystem,
         inputStreamFactory,
+        new DirectoryCache(inputStreamFactory, /* maxSizeBytes=*/ 0, newDirectExecutorService()),
+        /* outputUploadService=*/ newDirectExecutorService(),
         policies,
         instance,
         /* deadlineAfter=*/ 0,
@@ -113,6 +147,46 @@ public class ShardWorkerContextTest {
         ImmutableList.of());
   }
 
+  @Test
+  public void outputDirectoryTreeContainsUploadedFiles() throws Exception {
+    ContentAddressableStorage storage = new MemoryCAS(/* maxSizeInBytes=*/ 1024);
+    when(execFileSystem.getStorage()).thenReturn(storage);
+    Path outputDir = root.resolve("output");
+    Files.createDirectories(outputDir.resolve("subdir"));
+    ByteString fileContent = ByteString.copyFromUtf8("file");
+    ByteString subdirFileContent = ByteString.copyFromUtf8("subdir file");
+    Files.write(outputDir.resolve("file"), fileContent.toByteArray());
+    Files.write(outputDir.resolve("subdir").resolve("file"), subdirFileContent.toByteArray());
+    WorkerContext context = createTestContext();
+    ActionResult.Builder resultBuilder = ActionResult.newBuilder();
+    context.uploadOutputs(
+        Digest.getDefaultInstance(),
+        resultBuilder,
+        root,
+        ImmutableList.of(),
+        ImmutableList.of("output"));
+
+    Digest treeDigest = resultBuilder.getOutputDirectories(0).getTreeDigest();
+    Tree tree = Tree.parseFrom(storage.get(treeDigest).getData());
+    Directory subdir = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("file")
+            .setDigest(DIGEST_UTIL.compute(subdirFileContent)))
+        .build();
+    assertThat(tree.getChildrenList()).containsExactly(subdir);
+    assertThat(tree.getRoot().getFilesList()).containsExactly(
+        FileNode.newBuilder()
+            .setName("file")
+            .setDigest(DIGEST_UTIL.compute(fileContent))
+            .build());
+    assertThat(tree.getRoot().getDirectoriesList()).containsExactly(
+        DirectoryNode.newBuilder()
+            .setName("subdir")
+            .setDigest(DIGEST_UTIL.compute(subdir))
+            .build());
+    assertThat(storage.get(DIGEST_UTIL.compute(subdirFileContent)).getData()).isEqualTo(subdirFileContent);
+  }
+
   @Test
   public void queueEntryWithExecutionPolicyPlatformMatches() throws Exception {
     WorkerContext context = createTestContext(
@@ -135,4 +209,93 @@ public class ShardWorkerContextTest {
     context.match(listener);
     verify(listener, times(1)).onEntry(queueEntry);
   }
+
+  @Test
+  public void lookaheadEntryIsRequeuedWhenListenerFails() throws Exception {
+    QueueEntry queueEntry = QueueEntry.newBuilder()
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName("operation"))
+        .build();
+    when(backplane.dispatchOperation())
+        .thenReturn(queueEntry)
+        .thenReturn(null);
+    // the queued operation is missing, and is fetched again for execution
+    when(inputStreamFactory.newInput(any(Digest.class), anyLong()))
+        .thenThrow(Status.NOT_FOUND.asRuntimeException());
+    List<QueueEntry> requeued = new CopyOnWriteArrayList<>();
+    ShardWorkerContext context = createTestContext(
+        Platform.getDefaultInstance(),
+        /* policies=*/ ImmutableList.of(),
+        (queueEntries, requeueAt) -> {
+          // renewals of the retained entry's lease are not requeues
+          if (requeueAt == 0) {
+            Iterables.addAll(requeued, queueEntries);
+          }
+          return ImmutableSet.of();
+        },
+        /* matchLookahead=*/ 1);
+    MatchListener listener = mock(MatchListener.class);
+    when(listener.onEntry(queueEntry)).thenThrow(new IllegalStateException("listener failed"));
+
+    // the lookahead may not yet retain the entry when first matched
+    boolean failed = false;
+    for (int i = 0; i < 10 && !failed; i++) {
+      try {
+        context.match(listener);
+      } catch (IllegalStateException e) {
+        failed = true;
+      }
+    }
+    context.stop();
+
+    assertThat(failed).isTrue();
+    assertThat(requeued).containsExactly(queueEntry);
+  }
+
+  @Test
+  public void lookaheadEntryWithLostLeaseIsNotRequeued() throws Exception {
+    QueueEntry queueEntry = QueueEntry.newBuilder()
+        .setExecuteEntry(ExecuteEntry.newBuilder()
+            .setOperationName("operation"))
+        .build();
+    when(backplane.dispatchOperation())
+        .thenReturn(queueEntry)
+        .thenReturn(null);
+    CountDownLatch renewalFailed = new CountDownLatch(1);
+    // the entry is retained only after its lease renewal has failed
+    when(inputStreamFactory.newInput(any(Digest.class), anyLong()))
+        .thenAnswer((invocation) -> {
+          renewalFailed.await();
+          throw Status.NOT_FOUND.asRuntimeException();
+        });
+    List<QueueEntry> requeued = new CopyOnWriteArrayList<>();
+    ShardWorkerContext context = createTestContext(
+        Platform.getDefaultInstance(),
+        /* policies=*/ ImmutableList.of(),
+        (queueEntries, requeueAt) -> {
+          if (requeueAt == 0) {
+            Iterables.addAll(requeued, queueEntries);
+            return ImmutableSet.of();
+          }
+          // the retained entry was requeued and dispatched elsewhere
+          renewalFailed.countDown();
+          return ImmutableSet.of("operation");
+        },
+        /* matchLookahead=*/ 1);
+    MatchListener listener = mock(MatchListener.class);
+    List<QueueEntry> matched = new CopyOnWriteArrayList<>();
+    when(listener.onEntry(any(QueueEntry.class)))
+        .thenAnswer((invocation) -> {
+          matched.add(invocation.getArgument(0));
+          return false;
+        });
+
+    for (int i = 0; i < 10 && matched.isEmpty(); i++) {
+      context.match(listener);
+    }
+    context.stop();
+
+    assertThat(matched).containsExactly(queueEntry);
+    assertThat(requeued).isEmpty();
+  }
 }
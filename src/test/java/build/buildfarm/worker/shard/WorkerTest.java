@@ -14,6 +14,10 @@
 
 package build.buildfarm.worker.shard;
 
+import static build.buildfarm.common.Actions.satisfiesRequirements;
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Platform;
 import build.buildfarm.v1test.ShardWorkerConfig;
 import javax.naming.ConfigurationException;
 import org.junit.Test;
@@ -38,4 +42,40 @@ public class WorkerTest {
             .setRoot("/")
             .build());
   }
+
+  private static Platform platform(String name, String value) {
+    return Platform.newBuilder()
+        .addProperties(Platform.Property.newBuilder()
+            .setName(name)
+            .setValue(value))
+        .build();
+  }
+
+  @Test
+  public void memoryNeedsMatchDefaultWorker() {
+    Platform provisioned = Worker.getProvisionedPlatform(ShardWorkerConfig.getDefaultInstance());
+    assertThat(satisfiesRequirements(provisioned, platform("min-mem", "1073741824"))).isTrue();
+  }
+
+  @Test
+  public void executeStageTotalsAreProvisioned() {
+    ShardWorkerConfig config = ShardWorkerConfig.newBuilder()
+        .setPlatform(Platform.newBuilder()
+            .addProperties(Platform.Property.newBuilder()
+                .setName("cores")
+                .setValue("64"))
+            .addProperties(Platform.Property.newBuilder()
+                .setName("os")
+                .setValue("linux")))
+        .setExecuteStageCores(4)
+        .setExecuteStageMemoryBytes(1024)
+        .build();
+    Platform provisioned = Worker.getProvisionedPlatform(config);
+    // needs beyond the admission totals are never matched
+    assertThat(satisfiesRequirements(provisioned, platform("min-cores", "4"))).isTrue();
+    assertThat(satisfiesRequirements(provisioned, platform("min-cores", "8"))).isFalse();
+    assertThat(satisfiesRequirements(provisioned, platform("min-mem", "1024"))).isTrue();
+    assertThat(satisfiesRequirements(provisioned, platform("min-mem", "2048"))).isFalse();
+    assertThat(satisfiesRequirements(provisioned, platform("os", "linux"))).isTrue();
+  }
 }